@@ -9,8 +9,8 @@
  *  java task1.Nbody.java [gnumBodies] [numSteps] [massOfBodies] [massVariance] [numResultsShown]
  * 
  * where:
- *  gnumBodies: The number of bodies used in the simulation.
- *  numSteps: The number of steps/cycles.
+ *  gnumBodies: The number of bodies used in the simulation (default 240).
+ *  numSteps: The number of steps/cycles (default 400000).
  *  massOfBodies: The mass used for each body.
  *  numResultsShown: The number of results to be printed to stdout.
  * 
@@ -19,13 +19,26 @@
  * 
  * Some liberty was taken to make the results look nice when displayed as a figure.
  * 
+ * The initial conditions are generated in parallel from -Dnbody.seed
+ * (default random), the same seed always gives the same bodies.
+ * 
+ * -Dnbody.integrator=leapfrog|wh (default leapfrog) picks the integrator.
+ * wh is util.WisdomHolman: every body follows its exact orbit around the
+ * sun and only the forces between the other bodies are kicks, so far longer
+ * steps keep the same accuracy. task3.IntegratorBench compares both.
+ * 
  *  @author Alex Lindberg
  * 
  */
 package task1;
 
+import java.util.Arrays;
+
+import util.BodyStore;
+import util.ParallelInit;
 import util.Util;
 import util.Util.*;
+import util.WisdomHolman;
 
 public class NBody {
 
@@ -43,12 +56,10 @@ public class NBody {
     public final int gnumBodies;
     public final int numSteps;
     public final double massBody;
+    public final long seed;
 
-    // Data oriented variable storage
-    Point[] p; // x, y coords
-    Point[] v; // x, y velocity
-    Point[] f; // x, y Forces
-    double[] m; // Mass
+    // Data oriented variable storage, one primitive array per property
+    public final BodyStore b;
 
     /**
      * Simulation of the nbody-problem
@@ -63,79 +74,85 @@ public class NBody {
         this.gnumBodies = gnumBodies;
         this.numSteps = numSteps;
         this.massBody = massBody;
+        this.seed = ParallelInit.seed();
 
-        this.p = new Point[gnumBodies];
-        this.v = new Point[gnumBodies];
-        this.f = new Point[gnumBodies];
-        this.m = new double[gnumBodies];
-
-        this.p[0] = new Point(0, 0);
-        this.v[0] = new Point(0, 0);
-        this.f[0] = new Point(0, 0);
-        this.m[0] = SUN_MASS;
+        this.b = new BodyStore(gnumBodies);
+        this.b.m[0] = SUN_MASS;
 
-        for (int i = 1; i < gnumBodies; i++) {
+        Point sun = new Point(b.x[0], b.y[0]);
+        ParallelInit.run(1, gnumBodies, seed, (i, rand) -> {
             // Random position
-            this.p[i] = Point.getRandPos(this.p[0], RADIUS, MIN_DIST);
+            Point pos = Point.getRandPos(sun, RADIUS, MIN_DIST, rand);
+            b.x[i] = pos.x;
+            b.y[i] = pos.y;
             // Random velocity between [-velBound, velBound]
             // Velocity orthogonal to the direction vector from the sun to current body
-            double vx = (this.p[0].x - this.p[i].x) * START_VEL;
-            double vy = -(this.p[0].y - this.p[i].y) * START_VEL;
-            this.v[i] = new Point(vx, vy);
-            this.f[i] = new Point(0, 0);
+            b.vx[i] = (b.x[0] - b.x[i]) * START_VEL;
+            b.vy[i] = -(b.y[0] - b.y[i]) * START_VEL;
             // Mass with some varaince
-            this.m[i] = massBody * (1 + randInterval(-massVariance, massVariance));
-        }
+            b.m[i] = massBody * (1 + ParallelInit.interval(rand, -massVariance, massVariance));
+        });
     }
 
     public void calculateForces() {
-        double distance, magnitude;
-        Point direction;
+        final double[] x = b.x, y = b.y, m = b.m, fx = b.fx, fy = b.fy;
+        double distance, magnitude, dirX, dirY;
 
         for (int i = 0; i < gnumBodies - 1; i++) {
             for (int j = i + 1; j < gnumBodies; j++) {
-                distance = dist(p[i], p[j]);
-                magnitude = (G * m[i] * m[j]) / (Math.pow(distance, 2) * SOFTENING);
-                direction = new Point(  p[j].x - p[i].x,
-                                        p[j].y - p[i].y);
-                f[i].x += magnitude * direction.x / distance;
-                f[j].x -= magnitude * direction.x / distance;
-                f[i].y += magnitude * direction.y / distance;
-                f[j].y -= magnitude * direction.y / distance;
+                dirX = x[j] - x[i];
+                dirY = y[j] - y[i];
+                distance = Math.sqrt(dirX * dirX + dirY * dirY);
+                magnitude = (G * m[i] * m[j]) / (distance * distance * SOFTENING);
+                fx[i] += magnitude * dirX / distance;
+                fx[j] -= magnitude * dirX / distance;
+                fy[i] += magnitude * dirY / distance;
+                fy[j] -= magnitude * dirY / distance;
             }
         }
     }
 
-    public void moveBodies() {
-        Point deltaV, deltaP;
-        
-        for (int i = 0; i < gnumBodies; i++) {
-            deltaV = new Point( (f[i].x / m[i]) * DT, 
-                                (f[i].y / m[i]) * DT);
-            deltaP = new Point( (v[i].x + deltaV.x / 2) * DT,
-                                (v[i].y + deltaV.y / 2) * DT);
-
-            v[i].x += deltaV.x;
-            v[i].y += deltaV.y;
-            p[i].x += deltaP.x;
-            p[i].y += deltaP.y;
-            f[i].x = f[i].y = 0.0;
-        }
+    /* Forces between all bodies but the sun at (x, y) into fx, fy, for WisdomHolman */
+    public void interactionForces(double[] x, double[] y, double[] fx, double[] fy) {
+        System.arraycopy(x, 0, b.x, 0, gnumBodies);
+        System.arraycopy(y, 0, b.y, 0, gnumBodies);
+        Arrays.fill(b.fx, 0.0);
+        Arrays.fill(b.fy, 0.0);
+        double sun = b.m[0];
+        b.m[0] = 0.0;
+        calculateForces();
+        b.m[0] = sun;
+        System.arraycopy(b.fx, 0, fx, 0, gnumBodies);
+        System.arraycopy(b.fy, 0, fy, 0, gnumBodies);
     }
 
-    /* Calculates the distance between two Bodys. */
-    public double dist(Point p1, Point p2) {
-        return Math.sqrt(Math.pow((p1.x - p2.x), 2) + Math.pow((p1.y - p2.y), 2));
+    /* WisdomHolman for this simulation, the sun pulls with G m / (d^2 SOFTENING) */
+    public WisdomHolman wisdomHolman() {
+        WisdomHolman wh = new WisdomHolman(gnumBodies, G * b.m[0] / SOFTENING);
+        wh.load(b.x, b.y, b.vx, b.vy, b.m);
+        return wh;
     }
 
-    public static double randInterval(double min, double max) {
-        return Math.random() * (max - min) + min;
+    public void moveBodies() {
+        final double[] x = b.x, y = b.y, vx = b.vx, vy = b.vy, m = b.m, fx = b.fx, fy = b.fy;
+        double dvx, dvy;
+
+        for (int i = 0; i < gnumBodies; i++) {
+            dvx = (fx[i] / m[i]) * DT;
+            dvy = (fy[i] / m[i]) * DT;
+
+            x[i] += (vx[i] + dvx / 2) * DT;
+            y[i] += (vy[i] + dvy / 2) * DT;
+            vx[i] += dvx;
+            vy[i] += dvy;
+            fx[i] = fy[i] = 0.0;
+        }
     }
 
     public static void main(String[] args) {
 
-        final int MAX_BODIES = 240;
-        final int MAX_STEPS = 400000;
+        final int DEFAULT_BODIES = 240;
+        final int DEFAULT_STEPS = 400000;
 
         int gnumBodies, numSteps;
         long startTime, endTime;
@@ -143,32 +160,40 @@ public class NBody {
         double massVariance;
         int numResultsShown;
 
-        gnumBodies = (args.length > 0) && (Integer.parseInt(args[0]) < MAX_BODIES) ? Integer.parseInt(args[0])
-                : MAX_BODIES;
-        numSteps = (args.length > 1) && (Integer.parseInt(args[1]) < MAX_STEPS) ? Integer.parseInt(args[1])
-                : MAX_STEPS;
+        gnumBodies = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_BODIES;
+        numSteps = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_STEPS;
         numResultsShown = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
         massOfBodies = (args.length > 3) ? Integer.parseInt(args[3]) : EARTH_MASS;
         massVariance = (args.length > 4) ? Integer.parseInt(args[4]) : 0.1;
 
         NBody prg = new NBody(gnumBodies, numSteps, massOfBodies, massVariance);
+        System.out.format("Seed : %d%n", prg.seed);
 
         System.out.println("\n- Initial Conditions -\n");
-        Util.printArrays(prg.p, prg.v, gnumBodies, numResultsShown);
+        Util.printArrays(prg.b, numResultsShown);
+
+        boolean wisdomHolman = System.getProperty("nbody.integrator", "leapfrog").equals("wh");
 
         startTime = System.nanoTime();
 
         // Start seq work
-        for (int i = 0; i < numSteps; i++) {
-            prg.calculateForces();
-            prg.moveBodies();
+        if (wisdomHolman) {
+            WisdomHolman wh = prg.wisdomHolman();
+            for (int i = 0; i < numSteps; i++)
+                wh.step(DT, prg::interactionForces);
+            wh.store(prg.b.x, prg.b.y, prg.b.vx, prg.b.vy);
+        } else {
+            for (int i = 0; i < numSteps; i++) {
+                prg.calculateForces();
+                prg.moveBodies();
+            }
         }
         // Finished seq work
 
         endTime = System.nanoTime() - startTime;
 
         System.out.format("\n- After %d steps -%n%n", numSteps);
-        Util.printArrays(prg.p, prg.v, gnumBodies, numResultsShown);
+        Util.printArrays(prg.b, numResultsShown);
 
         System.out.format("%n- Simulation executed in %.1f ms -%n", endTime * Math.pow(10, -6));
         System.out.println("---------------------------------");
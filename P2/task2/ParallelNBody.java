@@ -19,17 +19,51 @@
  * 
  * Some liberty was taken to make the results look nice when displayed as a figure.
  * 
+ * The force kernel is picked with -Dnbody.kernel=scalar|vector|vector-float
+ * (default scalar). The vector kernels need the incubator module:
+ *  javac --add-modules jdk.incubator.vector task2/*.java
+ *  java --add-modules jdk.incubator.vector -Dnbody.kernel=vector task2.ParallelNBody
+ * The chosen kernel is checked against the scalar one before the simulation starts.
+ * 
+ * -Dnbody.tile=off|auto|<blockSize> (default off) switches to the cache tiled
+ * force pass, auto picks the block size from a short calibration run.
+ * 
+ * -Dnbody.barrier=cyclic|phaser|spin|tree (default cyclic) picks the barrier
+ * between the phases of a step, see util.StepBarrier.
+ * 
+ * -Dnbody.engine=threads|graph (default threads) replaces the worker threads
+ * with the dataflow TaskGraph, which has no barriers and uses
+ * -Dnbody.tile=<blockSize> as its block size (default 256).
+ * 
+ * -Dnbody.integrator=leapfrog|wh (default leapfrog) picks the integrator.
+ * wh is util.WisdomHolman, stepped by the main thread: for every force
+ * evaluation it releases the worker threads, which compute and reduce the
+ * forces between all bodies but the sun and stop at a barrier with it. wh
+ * runs on the worker threads, -Dnbody.engine=graph is ignored with it.
+ * 
+ * -Dnbody.memory=<bytes> (k, m, g suffixes, default half the free heap) bounds
+ * the force buffers. Dense buffers over the budget are replaced by the tiled
+ * layout, the run stops if those do not fit either.
+ * 
+ * Defaults are 240 bodies, 350000 steps and 4 workers. The initial conditions
+ * are generated in parallel from -Dnbody.seed (default random), the same seed
+ * always gives the same bodies.
+ * 
  *  @author Alex Lindberg
  * 
  */
 package task2;
 
+import java.util.concurrent.BrokenBarrierException;
+
+import util.BodyStore;
+import util.ForceReduction;
+import util.ParallelInit;
+import util.StepBarrier;
 import util.Util;
+import util.WisdomHolman;
 import util.Util.*;
 
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CyclicBarrier;
-
 public class ParallelNBody {
 
     public static final double DOWNSCALING = 0.01;
@@ -42,22 +76,27 @@ public class ParallelNBody {
     public static final double DT = 0.1;
     public static final double START_VEL = 0.0001;
     public static final double MASS_VARIANCE = 0.2;
+    public static final int REDUCE_BLOCK = 256;
 
     public final int gnumBodies;
     public final double massBody;
     public final int numSteps;
+    public final long seed;
     
     public int currentStep = 0;
-    private CyclicBarrier barrier;
-    private CyclicBarrier barrier2;
+    private StepBarrier barrier;
+    private StepBarrier barrier2;
     private Worker[] workers;
     private final int PR;
+    // -Dnbody.integrator=wh, the main thread and the workers meet at forceStart and forceDone
+    private final boolean wisdomHolman;
+    private StepBarrier forceStart, forceDone;
 
-    // Data oriented variable storage
-    Point[] p; // x, y coords
-    Point[] v; // x, y velocity
-    Point[][] f; // x, y Forces
-    double[] m; // Mass
+    // Data oriented variable storage, one primitive array per property
+    BodyStore b;
+    ForceReduction forces; // Forces per worker, see setupForces
+    ForceKernel kernel = new ScalarKernel();
+    TiledForces tiles; // null means reverse stripes
 
     /**
      * Simulation of the nbody-problem
@@ -74,87 +113,143 @@ public class ParallelNBody {
         this.massBody = massBody;
         this.PR = numWorkers;
 
-        this.p = new Point[gnumBodies];
-        this.v = new Point[gnumBodies];
-        this.f = new Point[numWorkers][gnumBodies];
-        this.m = new double[gnumBodies];
+        this.b = new BodyStore(gnumBodies);
+        this.seed = ParallelInit.seed();
 
         // Barrier, action increments step counter
-        barrier = new CyclicBarrier(numWorkers);
-        barrier2 = new CyclicBarrier(numWorkers, () -> { currentStep++; });
+        String barrierType = System.getProperty("nbody.barrier", "cyclic");
+        barrier = StepBarrier.create(barrierType, numWorkers, null);
+        barrier2 = StepBarrier.create(barrierType, numWorkers, () -> { currentStep++; });
+        this.wisdomHolman = System.getProperty("nbody.integrator", "leapfrog").equals("wh");
+        if (wisdomHolman) {
+            // The main thread is the last party
+            forceStart = StepBarrier.create(barrierType, numWorkers + 1, null);
+            forceDone = StepBarrier.create(barrierType, numWorkers + 1, null);
+        }
         // Prepare parallel workers
         workers = new Worker[numWorkers];
         for (int i = 0; i < numWorkers; i++)
             workers[i] = new Worker(i);
 
-        this.p[0] = new Point(0, 0);
-        this.v[0] = new Point(0, 0);
-        this.m[0] = EARTH_MASS * 333.0;
+        this.b.m[0] = EARTH_MASS * 333.0;
 
-        for (int i = 1; i < gnumBodies; i++) {
+        Point sun = new Point(b.x[0], b.y[0]);
+        ParallelInit.run(1, gnumBodies, seed, (i, rand) -> {
             // Random position
-            this.p[i] = Point.getRandPos(this.p[0], RADIUS, MIN_DIST);
+            Point pos = Point.getRandPos(sun, RADIUS, MIN_DIST, rand);
+            b.x[i] = pos.x;
+            b.y[i] = pos.y;
             // Random velocity between [-velBound, velBound]
             // Velocity orthogonal to the direction vector from the sun to current body
-            double vx = (this.p[0].x - this.p[i].x) * START_VEL;
-            double vy = -(this.p[0].y - this.p[i].y) * START_VEL;
-            this.v[i] = new Point(vx, vy);
+            b.vx[i] = (b.x[0] - b.x[i]) * START_VEL;
+            b.vy[i] = -(b.y[0] - b.y[i]) * START_VEL;
             // Mass with some varaince
-            this.m[i] = massBody * (1 + randInterval(-massVariance, massVariance));
+            b.m[i] = massBody * (1 + ParallelInit.interval(rand, -massVariance, massVariance));
+        });
+    }
+
+    /**
+     * Picks the force schedule and allocates the force buffers. tile is off,
+     * auto or a block size. Dense buffers over the memory budget are replaced
+     * by the tiled layout. Returns false if not even that fits.
+     */
+    public boolean setupForces(String tile, long budget) {
+        if (tile.equals("off")) {
+            long dense = ForceReduction.denseBytes(gnumBodies, PR, REDUCE_BLOCK);
+            if (dense <= budget) {
+                tiles = null;
+                forces = ForceReduction.dense(gnumBodies, PR, REDUCE_BLOCK);
+                return true;
+            }
+            System.out.format("Dense force buffers need %,d bytes (budget %,d), using tiles%n", dense, budget);
+            tile = "auto";
+        }
+        int blockSize = tile.equals("auto") ? TiledForces.calibrate(kernel, b) : Integer.parseInt(tile);
+        TiledForces tiled = new TiledForces(gnumBodies, PR, blockSize);
+        boolean[][] touched = tiled.touched();
+        long bytes = ForceReduction.bytes(touched, blockSize);
+        if (bytes > budget) {
+            System.err.format("Error: tiled force buffers need %,d bytes (budget %,d)%n", bytes, budget);
+            return false;
         }
-        for (int w = 0; w < numWorkers; w++) 
-            for (int i = 0; i < gnumBodies; i++) 
-                this.f[w][i] = new Point(0, 0);
+        tiles = tiled;
+        forces = new ForceReduction(gnumBodies, PR, blockSize, touched);
+        return true;
     }
 
     public void calculateForces(int w) {
-        double distance, magnitude;
-        Point direction;
+        final double[] x = b.x, y = b.y, m = b.m;
+        final double[] fxw = forces.fx(w), fyw = forces.fy(w);
 
+        if (tiles != null) {
+            tiles.calculateForces(w, kernel, b, forces);
+            return;
+        }
         for (int i = w; i < gnumBodies; i += PR) {
-            for (int j = i + 1; j < gnumBodies; j++) {
-                distance = dist(p[i], p[j]);
-                magnitude = (G * m[i] * m[j]) / ((Math.pow(distance, 2) * SOFTENING));
-                direction = new Point(  p[j].x - p[i].x,
-                                        p[j].y - p[i].y);
-                f[w][i].x += magnitude * direction.x / distance;
-                f[w][j].x -= magnitude * direction.x / distance;
-                f[w][i].y += magnitude * direction.y / distance;
-                f[w][j].y -= magnitude * direction.y / distance;
-            }
+            kernel.interact(i, i + 1, gnumBodies, x, y, m, fxw, fyw);
         }
     }
 
     public void moveBodies(int w) {
-        Point deltaV, deltaP;
-        Point force = new Point(0, 0);
+        // Each worker reduces and moves every PR:th block of bodies
+        for (int k = w; k < forces.numBlocks; k += PR) {
+            moveBlock(k, b, b);
+        }
+    }
 
-        for (int i = w; i < gnumBodies; i += PR) {
-            for (int k = 0; k < PR; k++) {
-                force.x += f[k][i].x; f[k][i].x = 0;
-                force.y += f[k][i].y; f[k][i].y = 0;
-            }
-            deltaV = new Point( (force.x / m[i]) * DT, 
-                                (force.y / m[i]) * DT);
-            deltaP = new Point( (v[i].x + deltaV.x / 2) * DT,
-                                (v[i].y + deltaV.y / 2) * DT);
-
-            v[i].x += deltaV.x;
-            v[i].y += deltaV.y;
-            p[i].x += deltaP.x;
-            p[i].y += deltaP.y;
-            force.x = force.y = 0.0;
-            
+    /* Reduces the forces of block k and moves its bodies from the positions in one store to another */
+    public void moveBlock(int k, BodyStore from, BodyStore to) {
+        final double[] x = from.x, y = from.y, nx = to.x, ny = to.y;
+        final double[] vx = b.vx, vy = b.vy, m = b.m, fx = b.fx, fy = b.fy;
+        double dvx, dvy;
+
+        forces.reduce(k, fx, fy);
+
+        int end = Math.min((k + 1) * forces.blockSize, gnumBodies);
+        for (int i = k * forces.blockSize; i < end; i++) {
+            dvx = (fx[i] / m[i]) * DT;
+            dvy = (fy[i] / m[i]) * DT;
+
+            nx[i] = x[i] + (vx[i] + dvx / 2) * DT;
+            ny[i] = y[i] + (vy[i] + dvy / 2) * DT;
+            vx[i] += dvx;
+            vy[i] += dvy;
+        }
+    }
+
+    /* Forces between all bodies but the sun at (x, y) into fx, fy, computed by the workers, for WisdomHolman */
+    public void interactionForces(double[] x, double[] y, double[] fx, double[] fy) {
+        System.arraycopy(x, 0, b.x, 0, gnumBodies);
+        System.arraycopy(y, 0, b.y, 0, gnumBodies);
+        double sun = b.m[0];
+        b.m[0] = 0.0;
+        try {
+            forceStart.await(PR);
+            forceDone.await(PR);
+        } catch (InterruptedException | BrokenBarrierException e) {
+            throw new IllegalStateException("Force pass failed", e);
         }
+        b.m[0] = sun;
+        System.arraycopy(b.fx, 0, fx, 0, gnumBodies);
+        System.arraycopy(b.fy, 0, fy, 0, gnumBodies);
     }
 
-    /* Calculates the distance between two Bodys. */
-    public double dist(Point p1, Point p2) {
-        return Math.sqrt(Math.pow((p1.x - p2.x), 2) + Math.pow((p1.y - p2.y), 2));
+    /* WisdomHolman for this simulation, the sun pulls with G m / (d^2 SOFTENING) */
+    public WisdomHolman wisdomHolman() {
+        WisdomHolman wh = new WisdomHolman(gnumBodies, G * b.m[0] / SOFTENING);
+        wh.load(b.x, b.y, b.vx, b.vy, b.m);
+        return wh;
     }
 
-    public static double randInterval(double min, double max) {
-        return Math.random() * (max - min) + min;
+    /* Releases the workers of a WisdomHolman run from forceStart for the last time */
+    public void stopWorkers() throws InterruptedException {
+        for (Worker w : workers)
+            w.finished = true;
+        try {
+            forceStart.await(PR);
+        } catch (BrokenBarrierException e) {
+            throw new IllegalStateException("Force pass failed", e);
+        }
     }
 
     private class Worker implements Runnable {
@@ -165,7 +260,7 @@ public class ParallelNBody {
             this.id = id;
         }
         public void exitBarrier() throws Exception {
-            barrier2.await(); 
+            barrier2.await(this.id); 
             // The main thread increments the counter so we need only wait to finish
             if( currentStep >= numSteps)
                 this.finished = true;
@@ -173,9 +268,20 @@ public class ParallelNBody {
         @Override
         public void run() {
             try {  
+                while (wisdomHolman) {
+                    // Forces only, reduced into b.fx and b.fy for interactionForces
+                    forceStart.await(this.id);
+                    if (finished)
+                        return;
+                    calculateForces(this.id);
+                    barrier.await(this.id);
+                    for (int k = this.id; k < forces.numBlocks; k += PR)
+                        forces.reduce(k, b.fx, b.fy);
+                    forceDone.await(this.id);
+                }
                 while(!finished) {
                     calculateForces(this.id);
-                    barrier.await();
+                    barrier.await(this.id);
                     moveBodies(this.id);
                     this.exitBarrier();
                 }
@@ -189,9 +295,9 @@ public class ParallelNBody {
 
     public static void main(String[] args) throws InterruptedException {
 
-        final int MAX_BODIES = 240;
-        final int MAX_STEPS = 350000;
-        final int MAX_WORKERS = 4;
+        final int DEFAULT_BODIES = 240;
+        final int DEFAULT_STEPS = 350000;
+        final int DEFAULT_WORKERS = 4;
 
         int gnumBodies, numSteps, numWorkers;
         long startTime, endTime;
@@ -199,41 +305,87 @@ public class ParallelNBody {
         double massVariance;
         int numResultsShown;
 
-        gnumBodies = (args.length > 0) && (Integer.parseInt(args[0]) < MAX_BODIES) ? Integer.parseInt(args[0])
-                : MAX_BODIES;
-        numSteps = (args.length > 1) && (Integer.parseInt(args[1]) < MAX_STEPS) ? Integer.parseInt(args[1])
-                : MAX_STEPS;
-        numWorkers = (args.length > 2) && (Integer.parseInt(args[2]) < MAX_WORKERS) ? Integer.parseInt(args[2])
-                : MAX_WORKERS;
+        gnumBodies = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_BODIES;
+        numSteps = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_STEPS;
+        numWorkers = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_WORKERS;
         numResultsShown = (args.length > 3) ? Integer.parseInt(args[3]) : 5;
         massOfBodies = (args.length > 4) ? Integer.parseInt(args[4]) : EARTH_MASS;
         massVariance = (args.length > 5) ? Integer.parseInt(args[5]) : 0.1;
 
         ParallelNBody prg = new ParallelNBody(gnumBodies, numSteps, numWorkers, massOfBodies, massVariance);
+
+        // Pick the force kernel and check it against the scalar reference
+        ForceKernel kernel = ForceKernel.load(System.getProperty("nbody.kernel", "scalar"));
+        double kernelError = ForceKernel.compare(kernel, new ScalarKernel(), prg.b);
+        if (kernelError > kernel.tolerance()) {
+            System.err.format("Warning: %s deviates %.2e from scalar, using scalar%n",
+                    kernel.getClass().getSimpleName(), kernelError);
+            kernel = new ScalarKernel();
+        }
+        prg.kernel = kernel;
+
+        long budget = ForceReduction.budget();
+        String tile = System.getProperty("nbody.tile", "off");
+        TaskGraph graph = null;
+        if (System.getProperty("nbody.engine", "threads").equals("graph") && !prg.wisdomHolman) {
+            int blockSize = tile.equals("off") || tile.equals("auto") ? REDUCE_BLOCK : Integer.parseInt(tile);
+            long dense = ForceReduction.denseBytes(gnumBodies, numWorkers, blockSize);
+            if (dense > budget) {
+                System.err.format("Error: graph force buffers need %,d bytes (budget %,d)%n", dense, budget);
+                System.exit(1);
+            }
+            graph = new TaskGraph(prg, numWorkers, numSteps, blockSize);
+        } else if (!prg.setupForces(tile, budget)) {
+            System.exit(1);
+        }
+        System.out.format("Seed : %d%n", prg.seed);
+        System.out.format("Force buffers : %,d bytes%n", prg.forces.bytes());
+        System.out.format("Force kernel : %s (error %.2e)%n", kernel.getClass().getSimpleName(), kernelError);
         Thread[] workerThreads = new Thread[numWorkers];
 
         System.out.println("\n- Initial Conditions -\n");
-        Util.printArrays(prg.p, prg.v, gnumBodies, numResultsShown);
+        Util.printArrays(prg.b, numResultsShown);
 
         startTime = System.nanoTime();
 
         // Start seq work
 
-        for (int i = 0; i < numWorkers; i++) {
-            workerThreads[i] = new Thread(prg.workers[i]);
-            workerThreads[i].start();
+        if (graph != null) {
+            graph.run();
+        } else if (prg.wisdomHolman) {
+            for (int i = 0; i < numWorkers; i++) {
+                workerThreads[i] = new Thread(prg.workers[i]);
+                workerThreads[i].start();
+            }
+            WisdomHolman wh = prg.wisdomHolman();
+            for (int i = 0; i < numSteps; i++) {
+                wh.step(DT, prg::interactionForces);
+                prg.currentStep++;
+            }
+            wh.store(prg.b.x, prg.b.y, prg.b.vx, prg.b.vy);
+            prg.stopWorkers();
+            for (int i = 0; i < numWorkers; i++)
+                workerThreads[i].join();
+        } else {
+            for (int i = 0; i < numWorkers; i++) {
+                workerThreads[i] = new Thread(prg.workers[i]);
+                workerThreads[i].start();
+            }
+            for (int i = 0; i < numWorkers; i++) 
+                workerThreads[i].join();
         }
-        for (int i = 0; i < numWorkers; i++) 
-            workerThreads[i].join();
 
         // Finished seq work
 
         endTime = System.nanoTime() - startTime;
 
         System.out.format("\n- After %d steps -%n%n", numSteps);
-        Util.printArrays(prg.p, prg.v, gnumBodies, numResultsShown);
+        Util.printArrays(prg.b, numResultsShown);
 
         System.out.format("%n- Simulation executed in %.1f ms -%n", endTime * Math.pow(10, -6));
+        if (graph != null)
+            System.out.format("- Idle = %.1f %% of %d threads -%n",
+                    100.0 * (1 - graph.busyNanos() / ((double) endTime * numWorkers)), numWorkers);
         System.out.println("---------------------------------");
         System.out.format("%d  & %.1f \\\\ %n", gnumBodies, endTime * Math.pow(10, -9));
     }
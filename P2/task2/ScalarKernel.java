@@ -0,0 +1,26 @@
+package task2;
+
+import static task2.ParallelNBody.G;
+import static task2.ParallelNBody.SOFTENING;
+
+/**
+ * Plain scalar force loop, also the reference the other kernels are checked against.
+ */
+public class ScalarKernel implements ForceKernel {
+
+    @Override
+    public void interact(int i, int from, int to, double[] x, double[] y, double[] m, double[] fx, double[] fy) {
+        double distance, mag, dirX, dirY;
+
+        for (int j = from; j < to; j++) {
+            dirX = x[j] - x[i];
+            dirY = y[j] - y[i];
+            distance = Math.sqrt(dirX * dirX + dirY * dirY);
+            mag = (G * m[i] * m[j]) / (distance * distance * SOFTENING);
+            fx[i] += mag * dirX / distance;
+            fx[j] -= mag * dirX / distance;
+            fy[i] += mag * dirY / distance;
+            fy[j] -= mag * dirY / distance;
+        }
+    }
+}
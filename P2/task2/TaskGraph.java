@@ -0,0 +1,186 @@
+package task2;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import util.BodyStore;
+import util.ForceReduction;
+import util.SlotPool;
+
+/**
+ * Dataflow version of the simulation, without any global barrier.
+ *
+ * A step is a graph of block tasks. Tile (bi, bj) of step s computes the
+ * forces between two blocks, Move k of step s reduces and moves block k:
+ *
+ *  Move bi and Move bj of step s - 1  ->  Tile (bi, bj) of step s
+ *  every Tile of step s touching k    ->  Move k of step s
+ *
+ * Every task counts down the tasks waiting for it and forks the ones that
+ * reach zero, on a work stealing ForkJoinPool. A thread that runs out of
+ * work in one step steals tiles of the next one as soon as their two blocks
+ * have moved, instead of waiting for the slowest thread at a barrier.
+ *
+ * Positions are double buffered: step s reads state[s % 2] and moves into
+ * state[(s + 1) % 2]. The dependencies keep two steps from ever touching the
+ * same block of the same buffer, so one set of dense force buffers (one slot
+ * per pool thread) is enough.
+ */
+public class TaskGraph {
+
+    private final ParallelNBody prg;
+    private final int numSteps;
+    private final int numBlocks;
+    private final TiledForces tiles;
+    private final TiledForces.Scratch[] scratch;
+    private final BodyStore[] state;
+    private final ForkJoinPool pool;
+
+    private final AtomicIntegerArray tilePending; // [tile] blocks the tile still waits for
+    private final AtomicIntegerArray movePending; // [block] tiles the move still waits for
+    private final AtomicIntegerArray stepMoves;   // [step] blocks moved in the step
+    private final AtomicInteger remaining;        // blocks not through the last step yet
+    private final AtomicInteger stepsDone = new AtomicInteger();
+    private final CompletableFuture<Void> finished = new CompletableFuture<>();
+    private final LongAdder busy = new LongAdder();
+
+    public TaskGraph(ParallelNBody prg, int numWorkers, int numSteps, int blockSize) {
+        this.prg = prg;
+        this.numSteps = numSteps;
+        this.tiles = new TiledForces(prg.gnumBodies, 1, blockSize);
+        this.numBlocks = (prg.gnumBodies + blockSize - 1) / blockSize;
+        this.scratch = new TiledForces.Scratch[numWorkers];
+        for (int w = 0; w < numWorkers; w++)
+            scratch[w] = new TiledForces.Scratch(2 * blockSize);
+        // Every pool thread writes to its own slot of the dense buffers
+        prg.forces = ForceReduction.dense(prg.gnumBodies, numWorkers, blockSize);
+        this.state = new BodyStore[] { prg.b, prg.b.positionBuffer() };
+        this.pool = SlotPool.create(numWorkers);
+
+        this.tilePending = new AtomicIntegerArray((int) tiles.numTiles());
+        for (int bi = 0; bi < numBlocks; bi++)
+            for (int bj = bi; bj < numBlocks; bj++)
+                tilePending.set(index(bi, bj), bi == bj ? 1 : 2);
+        this.movePending = new AtomicIntegerArray(numBlocks);
+        for (int k = 0; k < numBlocks; k++)
+            movePending.set(k, numBlocks); // k against every block
+        this.stepMoves = new AtomicIntegerArray(numSteps);
+        this.remaining = new AtomicInteger(numBlocks);
+    }
+
+    public void run() throws InterruptedException {
+        // Seeding from a pool thread keeps the forked tiles inside the pool
+        pool.execute(() -> {
+            for (int k = 0; k < numBlocks; k++)
+                release(k, 0);
+        });
+        try {
+            finished.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Task failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        prg.b = state[numSteps & 1];
+        prg.currentStep = stepsDone.get();
+    }
+
+    /* Nanoseconds the pool threads spent running tasks */
+    public long busyNanos() {
+        return busy.sum();
+    }
+
+    /* Position of tile (bi, bj), bi <= bj, in row major upper triangle order */
+    private int index(int bi, int bj) {
+        return (int) ((long) bi * numBlocks - (long) bi * (bi - 1) / 2 + (bj - bi));
+    }
+
+    /* Block k holds its step s positions, start the tiles of step s that were waiting for it */
+    private void release(int k, int s) {
+        if (s == numSteps) {
+            if (remaining.decrementAndGet() == 0)
+                finished.complete(null);
+            return;
+        }
+        for (int bi = 0; bi <= k; bi++)
+            ready(bi, k, s);
+        for (int bj = k + 1; bj < numBlocks; bj++)
+            ready(k, bj, s);
+    }
+
+    private void ready(int bi, int bj, int s) {
+        int t = index(bi, bj);
+        if (tilePending.decrementAndGet(t) == 0) {
+            // The next step can only count down after this tile ran, so resetting here is safe
+            tilePending.set(t, bi == bj ? 1 : 2);
+            new Tile(bi, bj, s).fork();
+        }
+    }
+
+    /* One tile touching block k finished in step s */
+    private void forceDone(int k, int s) {
+        if (movePending.decrementAndGet(k) == 0) {
+            movePending.set(k, numBlocks);
+            new Move(k, s).fork();
+        }
+    }
+
+    private class Tile extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int bi, bj, s;
+
+        Tile(int bi, int bj, int s) {
+            this.bi = bi;
+            this.bj = bj;
+            this.s = s;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                long t0 = System.nanoTime();
+                int w = SlotPool.slot();
+                ForceReduction forces = prg.forces;
+                tiles.tile(bi, bj, prg.kernel, state[s & 1], scratch[w], forces.fx(w), forces.fy(w),
+                        forces.offset(w, bi), forces.offset(w, bj));
+                busy.add(System.nanoTime() - t0);
+                forceDone(bi, s);
+                if (bj != bi)
+                    forceDone(bj, s);
+            } catch (Throwable e) {
+                finished.completeExceptionally(e);
+            }
+        }
+    }
+
+    private class Move extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int k, s;
+
+        Move(int k, int s) {
+            this.k = k;
+            this.s = s;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                long t0 = System.nanoTime();
+                prg.moveBlock(k, state[s & 1], state[(s + 1) & 1]);
+                busy.add(System.nanoTime() - t0);
+                if (stepMoves.incrementAndGet(s) == numBlocks)
+                    stepsDone.incrementAndGet();
+                release(k, s + 1);
+            } catch (Throwable e) {
+                finished.completeExceptionally(e);
+            }
+        }
+    }
+}
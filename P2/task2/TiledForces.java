@@ -0,0 +1,188 @@
+package task2;
+
+import util.BodyStore;
+import util.ForceReduction;
+
+/**
+ * Cache tiled schedule for the symmetric force pass.
+ *
+ * The upper triangle of the (i, j) interaction space is cut into square
+ * tiles of blockSize x blockSize bodies. A tile reuses the same j block
+ * for every i in its i block, so the j block stays in cache instead of
+ * streaming the whole body array once per i. Inside a tile both bodies of
+ * a pair are updated (Newton's third law), diagonal tiles only do j > i.
+ *
+ * The workers form a rows x cols grid and tile (bi, bj) goes to worker
+ * (bi % rows, bj % cols). A worker then only writes forces to about
+ * N / rows + N / cols bodies, which keeps its force buffer small.
+ * Each tile is computed on a packed copy of its two blocks and the result
+ * is added to the worker's segments in the ForceReduction.
+ */
+public class TiledForces {
+
+    public static final int[] CANDIDATES = { 32, 64, 128, 256, 512, 1024, 2048, 4096 };
+    public static final int CALIBRATE_BODIES = 65536;
+
+    public final int blockSize;
+    private final int n;
+    private final int numBlocks;
+    private final int rows, cols;
+    private final Scratch[] scratch;
+
+    public TiledForces(int gnumBodies, int numWorkers, int blockSize) {
+        this.blockSize = blockSize;
+        this.n = gnumBodies;
+        this.numBlocks = (gnumBodies + blockSize - 1) / blockSize;
+
+        // Most square grid that uses every worker
+        int r = (int) Math.sqrt(numWorkers);
+        while (numWorkers % r != 0)
+            r--;
+        this.rows = r;
+        this.cols = numWorkers / r;
+
+        this.scratch = new Scratch[numWorkers];
+        for (int w = 0; w < numWorkers; w++)
+            scratch[w] = new Scratch(2 * blockSize);
+    }
+
+    /* Number of tiles in the upper triangle */
+    public long numTiles() {
+        return (long) numBlocks * (numBlocks + 1) / 2;
+    }
+
+    /* Which blocks each worker writes forces to, used to size the force buffers */
+    public boolean[][] touched() {
+        boolean[][] touched = new boolean[rows * cols][numBlocks];
+        for (int w = 0; w < rows * cols; w++) {
+            int p = w / cols, q = w % cols;
+            // Row blocks that have a column block at or after them
+            for (int bi = p; bi < numBlocks; bi += rows)
+                if (bi + Math.floorMod(q - bi, cols) < numBlocks)
+                    touched[w][bi] = true;
+            // Column blocks that have a row block at or before them
+            for (int bj = q; bj < numBlocks; bj += cols)
+                if (bj >= p)
+                    touched[w][bj] = true;
+        }
+        return touched;
+    }
+
+    /* Forces of all tiles assigned to the worker, added to its force buffers */
+    public void calculateForces(int worker, ForceKernel kernel, BodyStore b, ForceReduction forces) {
+        int p = worker / cols, q = worker % cols;
+        double[] fx = forces.fx(worker), fy = forces.fy(worker);
+
+        for (int bi = p; bi < numBlocks; bi += rows) {
+            // First block at or after bi in this worker's column
+            int bj = bi + Math.floorMod(q - bi, cols);
+            for (; bj < numBlocks; bj += cols) {
+                tile(bi, bj, kernel, b, scratch[worker], fx, fy,
+                        forces.offset(worker, bi), forces.offset(worker, bj));
+            }
+        }
+    }
+
+    /**
+     * All pairs between block bi and block bj, bi <= bj. The forces on the
+     * bodies of block bi are added to outX/outY from offI, those of bj from offJ.
+     */
+    void tile(int bi, int bj, ForceKernel kernel, BodyStore b, Scratch s,
+            double[] outX, double[] outY, int offI, int offJ) {
+        int iStart = bi * blockSize, ni = Math.min(blockSize, n - iStart);
+        int jStart = bj * blockSize, nj = bi == bj ? 0 : Math.min(blockSize, n - jStart);
+
+        s.load(0, iStart, ni, b);
+        s.load(ni, jStart, nj, b);
+        if (bi == bj) {
+            for (int i = 0; i < ni; i++)
+                kernel.interact(i, i + 1, ni, s.x, s.y, s.m, s.fx, s.fy);
+        } else {
+            for (int i = 0; i < ni; i++)
+                kernel.interact(i, ni, ni + nj, s.x, s.y, s.m, s.fx, s.fy);
+        }
+        s.store(0, ni, outX, outY, offI);
+        s.store(ni, nj, outX, outY, offJ);
+    }
+
+    /**
+     * Times one row of tiles (the first block against every block) for each
+     * candidate block size and returns the size with the highest throughput.
+     * Interactions per second are printed for every candidate. Only the first
+     * CALIBRATE_BODIES bodies are used, so the run stays short for large N.
+     */
+    public static int calibrate(ForceKernel kernel, BodyStore b) {
+        int n = Math.min(b.n, CALIBRATE_BODIES);
+        double[] fx = new double[n], fy = new double[n];
+        int best = CANDIDATES[0];
+        double bestRate = 0.0;
+
+        // Warm up the kernel so the first candidate is not timed by the interpreter
+        TiledForces warmup = new TiledForces(n, 1, Math.min(CANDIDATES[2], n));
+        for (int round = 0; round < 3; round++)
+            warmup.row(kernel, b, fx, fy);
+
+        System.out.println("Tile size \t interactions/s");
+        for (int size : CANDIDATES) {
+            if (size > n && size != CANDIDATES[0])
+                break;
+            TiledForces tiles = new TiledForces(n, 1, size);
+            long interactions = 0;
+            long elapsed = Long.MAX_VALUE;
+            // Best of a few rounds
+            for (int round = 0; round < 3; round++) {
+                long t0 = System.nanoTime();
+                interactions = tiles.row(kernel, b, fx, fy);
+                elapsed = Math.min(elapsed, System.nanoTime() - t0);
+            }
+            double rate = interactions / (Math.max(elapsed, 1) * 1e-9);
+            System.out.format("%9d \t %.3e%n", size, rate);
+            if (rate > bestRate) {
+                bestRate = rate;
+                best = size;
+            }
+        }
+        System.out.format("Using tile size %d%n", best);
+        return best;
+    }
+
+    /* First block against every block, returns the number of interactions */
+    private long row(ForceKernel kernel, BodyStore b, double[] fx, double[] fy) {
+        long interactions = 0;
+        int rows = Math.min(blockSize, n);
+        for (int bj = 0; bj < numBlocks; bj++) {
+            tile(0, bj, kernel, b, scratch[0], fx, fy, 0, bj * blockSize);
+            interactions += bj == 0 ? (long) rows * (rows - 1) / 2
+                    : (long) rows * (Math.min((bj + 1) * blockSize, n) - bj * blockSize);
+        }
+        return interactions;
+    }
+
+    /* Packed copy of the two blocks of a tile */
+    static class Scratch {
+        final double[] x, y, m, fx, fy;
+
+        Scratch(int size) {
+            x = new double[size];
+            y = new double[size];
+            m = new double[size];
+            fx = new double[size];
+            fy = new double[size];
+        }
+
+        void load(int to, int from, int len, BodyStore b) {
+            System.arraycopy(b.x, from, x, to, len);
+            System.arraycopy(b.y, from, y, to, len);
+            System.arraycopy(b.m, from, m, to, len);
+            java.util.Arrays.fill(fx, to, to + len, 0.0);
+            java.util.Arrays.fill(fy, to, to + len, 0.0);
+        }
+
+        void store(int from, int len, double[] outX, double[] outY, int off) {
+            for (int t = 0; t < len; t++) {
+                outX[off + t] += fx[from + t];
+                outY[off + t] += fy[from + t];
+            }
+        }
+    }
+}
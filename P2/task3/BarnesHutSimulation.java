@@ -1,6 +1,9 @@
 package task3;
 
-import java.util.Random;
+import java.util.SplittableRandom;
+
+import util.ParallelInit;
+import util.WisdomHolman;
 
 public class BarnesHutSimulation {
 
@@ -17,23 +20,35 @@ public class BarnesHutSimulation {
     public final int gnumBodies;
     public final double theta;
     public final double DT;
+    public final long seed;
 
     Body[] bodies;
     BarnesHutTree tree;
-
+    FlatBarnesHutTree flatTree; // used instead of tree with -Dnbody.tree=flat (default)
+    MortonBarnesHutTree mortonTree; // used instead of tree with -Dnbody.tree=morton
+    ParticleMesh mesh; // used instead of any tree with -Dnbody.engine=pm, beside it with treepm
+    final boolean treePM; // the mesh only has the long range force, the tree adds the short range one
+    final boolean refit; // -Dnbody.build=refit updates the flat tree of the last step when it can
+    int fullBuilds;
+    final boolean groups; // -Dnbody.walk=group walks the tree once per group of -Dnbody.group bodies
+    final int groupSize;
+    final boolean wisdomHolman; // -Dnbody.integrator=wh moves the bodies with util.WisdomHolman instead of Body.move
+    private long forceBuild, forceUpdate; // time spent in interactionForces
+
+    /* A NaN theta is tuned by ThetaTuner to the force error -Dnbody.error (default 0.001) */
     public BarnesHutSimulation(int gnumBodies, double theta, double dt, boolean[] config) {
         this.gnumBodies = gnumBodies;
-        this.theta = theta;
         this.DT = dt;
         this.config = config;
 
         this.bodies = new Body[gnumBodies];
+        this.seed = ParallelInit.seed();
 
         // The "Sun"
         this.bodies[0] = new Body(0, 0, 0, 0, SUN_MASS, dt);
 
-        Random rand = new Random();
-        for (int i = 1; i < gnumBodies; i++) {
+        // Bodies are generated in parallel, the same seed (-Dnbody.seed) gives the same bodies
+        ParallelInit.run(1, gnumBodies, seed, (i, rand) -> {
 
             double r = RADIUS * Math.sqrt(rand.nextDouble()) + MIN_DIST; // distance
             double theta0 = rand.nextDouble() * 2 * Math.PI; // direction
@@ -42,20 +57,59 @@ public class BarnesHutSimulation {
 
             double vx = (this.bodies[0].x - x) * START_VEL;
             double vy = -(this.bodies[0].y - y) * START_VEL;
-            double mass = EARTH_MASS * (1 + randInterval(
+            double mass = EARTH_MASS * (1 + randInterval(rand,
                     -MASS_VARIANCE,
                     MASS_VARIANCE)) * DOWNSCALING;
             this.bodies[i] = new Body(x, y, vx, vy, mass, dt);
+        });
+
+        if (Double.isNaN(theta)) {
+            double target = Double.parseDouble(System.getProperty("nbody.error", "0.001"));
+            ThetaTuner tuner = new ThetaTuner(this.bodies, ThetaTuner.SAMPLE);
+            theta = tuner.tune(target);
+            System.out.format("Tuned theta : %.4g (rms force error %.2e, target %.2e)%n", theta, tuner.error(theta),
+                    target);
         }
+        this.theta = theta;
 
-        this.tree = buildTree(this.bodies);
+        // The flat tree is reused every step, the morton tree is built from sorted Morton keys
+        // and -Dnbody.tree=objects builds a new BarnesHutTree instead
+        // -Dnbody.engine=pm replaces the tree by a ParticleMesh of -Dnbody.grid points per side,
+        // treepm splits the force at -Dnbody.split mesh cells between the mesh and a flat or object tree
+        String treeName = System.getProperty("nbody.tree", "flat");
+        String engine = System.getProperty("nbody.engine", "tree");
+        int grid = Integer.getInteger("nbody.grid", ParticleMesh.GRID);
+        this.treePM = engine.equals("treepm");
+        this.wisdomHolman = System.getProperty("nbody.integrator", "leapfrog").equals("wh");
+        if (engine.equals("pm")) {
+            this.mesh = new ParticleMesh(this.bodies, grid);
+        } else {
+            if (treePM)
+                this.mesh = new ParticleMesh(this.bodies, grid,
+                        Double.parseDouble(System.getProperty("nbody.split", String.valueOf(ParticleMesh.SPLIT))));
+            // The morton tree has no short range walk, and it reorders the bodies, which WisdomHolman does not follow
+            if (treeName.equals("flat") || ((treePM || wisdomHolman) && treeName.equals("morton")))
+                this.flatTree = new FlatBarnesHutTree(this.bodies, theta);
+            else if (treeName.equals("morton"))
+                this.mortonTree = new MortonBarnesHutTree(this.bodies, theta);
+        }
+        this.refit = flatTree != null && System.getProperty("nbody.build", "full").equals("refit");
+        this.groups = mortonTree == null && !treePM && System.getProperty("nbody.walk", "body").equals("group");
+        this.groupSize = Integer.getInteger("nbody.group", 16);
+        buildTree(this.bodies);
     }
 
-    public static double randInterval(double min, double max) {
-        return Math.random() * (max - min) + min;
+    public static double randInterval(SplittableRandom rand, double min, double max) {
+        return ParallelInit.interval(rand, min, max);
     }
 
-    private BarnesHutTree buildTree(Body[] bodies) {
+    private void buildTree(Body[] bodies) {
+        if (mesh != null && !treePM)
+            return;
+        if (refit && fullBuilds > 0 && flatTree.refit())
+            return;
+        fullBuilds++;
+
         // Find the bounding box that contains all the bodies
         double xMin = Double.POSITIVE_INFINITY;
         double xMax = Double.NEGATIVE_INFINITY;
@@ -81,6 +135,17 @@ public class BarnesHutSimulation {
         double cx = (xMin + xMax) / 2;
         double cy = (yMin + yMax) / 2;
         double width = Math.max(xMax - xMin, yMax - yMin);
+        // Room to move before a body leaves the root and forces a full build
+        if (refit)
+            width *= 1.25;
+        if (mortonTree != null) {
+            mortonTree.build(cx, cy, width);
+            return;
+        }
+        if (flatTree != null) {
+            flatTree.build(cx, cy, width);
+            return;
+        }
         BarnesHutTree root = new BarnesHutTree(cx, cy, width, this.theta);
 
         // Insert each body into the tree
@@ -88,30 +153,130 @@ public class BarnesHutSimulation {
             root.insert(body);
         }
 
-        return root;
+        this.tree = root;
     }
 
-    public void run(int numSteps) {
-        long t0, timeToBuild = 0, timeToUpdate = 0, timeToMove = 0;
-        for (int i = 0; i < numSteps; i++) {
-            t0 = System.nanoTime();
-            this.tree = buildTree(bodies);
-            timeToBuild += System.nanoTime() - t0;
-
-            t0 = System.nanoTime();
-            for (Body b : bodies) {
-                this.tree.updateForce(b);
+    /* Net forces on all bodies from the tree of this step */
+    private void updateForces() {
+        if (treePM) {
+            mesh.updateForces();
+            double rs = mesh.splitRadius();
+            for (int i = 0; i < bodies.length; i++) {
+                if (flatTree != null)
+                    flatTree.updateForceShort(i, rs);
+                else
+                    tree.updateForceShort(bodies[i], rs);
             }
-            timeToUpdate += System.nanoTime() - t0;
+        } else if (mesh != null)
+            mesh.updateForces();
+        else if (groups && flatTree != null)
+            flatTree.updateForceGroups(groupSize);
+        else if (groups)
+            tree.updateForceGroups(groupSize);
+        else
+            for (int i = 0; i < bodies.length; i++)
+                updateForce(i);
+    }
 
+    /* Net force on body i from the tree of this step */
+    private void updateForce(int i) {
+        if (mortonTree != null)
+            mortonTree.updateForce(i);
+        else if (flatTree != null)
+            flatTree.updateForce(i);
+        else
+            tree.updateForce(bodies[i]);
+    }
+
+    /* WisdomHolman started from the bodies, the sun pulls with G m / d^2 like the trees */
+    private WisdomHolman wisdomHolman() {
+        int n = bodies.length;
+        double[] x = new double[n], y = new double[n], vx = new double[n], vy = new double[n], m = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = bodies[i].x;
+            y[i] = bodies[i].y;
+            vx[i] = bodies[i].vx;
+            vy[i] = bodies[i].vy;
+            m[i] = bodies[i].mass;
+        }
+        WisdomHolman wh = new WisdomHolman(n, Constants.G * bodies[0].mass);
+        wh.load(x, y, vx, vy, m);
+        return wh;
+    }
+
+    /* Writes the state of wh back to the bodies */
+    private void store(WisdomHolman wh) {
+        int n = bodies.length;
+        double[] x = new double[n], y = new double[n], vx = new double[n], vy = new double[n];
+        wh.store(x, y, vx, vy);
+        for (int i = 0; i < n; i++) {
+            bodies[i].x = x[i];
+            bodies[i].y = y[i];
+            bodies[i].vx = vx[i];
+            bodies[i].vy = vy[i];
+        }
+    }
+
+    /* Forces between all bodies but the sun at (x, y) into fx, fy, from the engine of this simulation */
+    private void interactionForces(double[] x, double[] y, double[] fx, double[] fy) {
+        double sun = bodies[0].mass;
+        bodies[0].mass = 0.0;
+        for (int i = 0; i < bodies.length; i++) {
+            bodies[i].x = x[i];
+            bodies[i].y = y[i];
+            bodies[i].ax = bodies[i].ay = 0.0;
+        }
+        long t0 = System.nanoTime();
+        buildTree(bodies);
+        long t1 = System.nanoTime();
+        updateForces();
+        forceBuild += t1 - t0;
+        forceUpdate += System.nanoTime() - t1;
+        for (int i = 0; i < bodies.length; i++) {
+            fx[i] = bodies[i].ax;
+            fy[i] = bodies[i].ay;
+            bodies[i].ax = bodies[i].ay = 0.0;
+        }
+        bodies[0].mass = sun;
+    }
+
+    public void run(int numSteps) {
+        long t0, timeToBuild = 0, timeToUpdate = 0, timeToMove = 0;
+        fullBuilds = 0;
+        if (wisdomHolman) {
+            // Build and update are the ones of the interaction forces, move is everything else
+            forceBuild = forceUpdate = 0;
             t0 = System.nanoTime();
-            for (Body b : bodies) {
-                b.move();
+            WisdomHolman wh = wisdomHolman();
+            for (int i = 0; i < numSteps; i++)
+                wh.step(DT, this::interactionForces);
+            store(wh);
+            timeToBuild = forceBuild;
+            timeToUpdate = forceUpdate;
+            timeToMove = System.nanoTime() - t0 - forceBuild - forceUpdate;
+        } else {
+            for (int i = 0; i < numSteps; i++) {
+                t0 = System.nanoTime();
+                buildTree(bodies);
+                timeToBuild += System.nanoTime() - t0;
+
+                t0 = System.nanoTime();
+                updateForces();
+                timeToUpdate += System.nanoTime() - t0;
+
+                t0 = System.nanoTime();
+                for (Body b : bodies) {
+                    b.move();
+                }
+                timeToMove += System.nanoTime() - t0;
             }
-            timeToMove += System.nanoTime() - t0;
         }
         System.out.format("Sequential:%n   Build (n=%d):\t%,d,%n   update: \t\t%,d,%n   move: \t\t%,d%n%n",
                 numSteps, timeToBuild, timeToUpdate, timeToMove);
+        if (refit)
+            // Wisdom-Holman evaluates the forces once more than it steps
+            System.out.format("Full builds : %d of %d, the other steps refit the tree%n%n", fullBuilds,
+                    wisdomHolman ? numSteps + 1 : numSteps);
         timeToBuild /= numSteps;
         timeToUpdate /= numSteps;
         timeToMove /= numSteps;
@@ -123,39 +288,43 @@ public class BarnesHutSimulation {
         boolean showQuads = config[0];
         boolean showCenterOfMass = config[1];
         BarnesHutSimulationGUI GUI = new BarnesHutSimulationGUI(this, showQuads, showCenterOfMass);
+        WisdomHolman wh = wisdomHolman ? wisdomHolman() : null;
         while (shouldRun) {
-            this.tree = buildTree(bodies);
-            for (Body b : bodies)
-                this.tree.updateForce(b);
-            for (Body b : bodies)
-                b.move();
+            if (wh != null) {
+                wh.step(DT, this::interactionForces);
+                store(wh);
+            } else {
+                buildTree(bodies);
+                updateForces();
+                for (Body b : bodies)
+                    b.move();
+            }
             if (shouldRun)
                 GUI.repaint();
         }
     }
 
     public static void main(String[] args) {
-        final int MAX_BODIES = 240;
-        final int MAX_STEPS = 350000;
-        final double MAX_FAR = 2.0;
+        final int DEFAULT_BODIES = 240;
+        final int DEFAULT_STEPS = 350000;
+        final double DEFAULT_FAR = 2.0;
 
         int gnumBodies, numSteps;
         double startTime, endTime;
         double dt = 0.1;
         double far = 1.5;
 
-        gnumBodies = (args.length > 0) && (Integer.parseInt(args[0]) < MAX_BODIES) ? Integer.parseInt(args[0])
-                : MAX_BODIES;
-        numSteps = (args.length > 1) && (Integer.parseInt(args[1]) < MAX_STEPS) ? Integer.parseInt(args[1])
-                : MAX_STEPS;
-        far = (args.length > 2) && (Double.parseDouble(args[2]) < MAX_STEPS) ? Double.parseDouble(args[2])
-                : MAX_FAR;
+        gnumBodies = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_BODIES;
+        numSteps = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_STEPS;
+        // far = auto picks the largest theta that meets -Dnbody.error
+        far = (args.length > 2) ? (args[2].equals("auto") ? Double.NaN : Double.parseDouble(args[2])) : DEFAULT_FAR;
 
         boolean showQuads = true;
         boolean showCenterOfMass = false;
         boolean[] config = new boolean[] { showQuads, showCenterOfMass };
 
         BarnesHutSimulation sim = new BarnesHutSimulation(gnumBodies, far, dt, config);
+        System.out.format("Seed : %d%n", sim.seed);
 
         if (numSteps <= 0) {
             sim.run(true);
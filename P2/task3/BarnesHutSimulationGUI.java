@@ -34,7 +34,9 @@ public class BarnesHutSimulationGUI extends JFrame {
 
             Graphics2D g2d = (Graphics2D) g;
 
-            if (drawQuads || drawTotalMass)
+            if ((drawQuads || drawTotalMass) && sim.flatTree != null)
+                drawTree(g2d, sim.flatTree);
+            else if (drawQuads || drawTotalMass)
                 drawTree(g2d, sim.tree);
 
             // Draw each body as a small circle
@@ -68,5 +70,18 @@ public class BarnesHutSimulationGUI extends JFrame {
             drawTree(g2d, tree.SW);
         }
 
+        /* Same for the flat tree, every node in use is a quad */
+        private void drawTree(Graphics2D g2d, FlatBarnesHutTree tree) {
+            if (!drawQuads)
+                return;
+            g2d.setColor(Color.RED);
+            for (int k = 0; k < tree.size; k++) {
+                int x = (int) (SCALING * (tree.centerX[k] - (tree.width[k] / 2))) + (screenSize.width / 2);
+                int y = (int) (SCALING * (tree.centerY[k] - (tree.width[k] / 2))) + (screenSize.height / 2);
+                int r = (int) (SCALING * (tree.width[k] / 2));
+                g2d.drawRect(x, y, 2 * r, 2 * r);
+            }
+        }
+
     }
 }
@@ -1,5 +1,7 @@
 package task3;
 
+import java.util.Arrays;
+
 public class BarnesHutTree {
 
     public final double G = Constants.G;
@@ -14,6 +16,7 @@ public class BarnesHutTree {
     public double totalMass;
     public double totalCenterOfMassX;
     public double totalCenterOfMassY;
+    private int count; // bodies inserted into this subtree
 
     public BarnesHutTree(double centerX, double centerY, double width, double theta) {
         this.centerX = centerX;
@@ -27,6 +30,7 @@ public class BarnesHutTree {
 
         // New leaf node
         if (this.body == null && isExternal()) {
+            count = 1;
             this.body = newBody;
             return;
         }
@@ -35,6 +39,7 @@ public class BarnesHutTree {
             // Create a new internal node and insert both bodies
             Body oldBody = body;
             body = null;
+            count = 0;
             NE = new BarnesHutTree(centerX + radius / 2, centerY + radius / 2, radius, theta);
             NW = new BarnesHutTree(centerX - radius / 2, centerY + radius / 2, radius, theta);
             SE = new BarnesHutTree(centerX + radius / 2, centerY - radius / 2, radius, theta);
@@ -44,6 +49,7 @@ public class BarnesHutTree {
 
         } else {
             // Update total mass and center of mass of this node
+            count++;
             totalMass += newBody.mass;
             totalCenterOfMassX += newBody.mass * newBody.x;
             totalCenterOfMassY += newBody.mass * newBody.y;
@@ -66,21 +72,22 @@ public class BarnesHutTree {
     }
 
     public void updateForce(Body newBody) {
-        if (this.body == null) {
-            return;
-        }
         if (isExternal()) {
-            if (this.body.equals(newBody))
+            // Internal nodes have no body, only an empty leaf or the body itself is skipped
+            if (this.body == null || this.body.equals(newBody))
                 return;
             double dx = this.body.x - newBody.x;
             double dy = this.body.y - newBody.y;
             double distance = distance(dx, dy);
             double F = G * this.body.mass * newBody.mass / (distance * distance);
             newBody.addForce(F * dx / distance, F * dy / distance);
-        } else if (this.width / distance(this.body, newBody) < theta) {
-            double dx = this.totalCenterOfMassX / this.totalMass - newBody.x;
-            double dy = this.totalCenterOfMassY / this.totalMass - newBody.y;
-            double distance = distance(dx, dy);
+            return;
+        }
+        // The opening test uses the distance to the center of mass of the node
+        double dx = this.totalCenterOfMassX / this.totalMass - newBody.x;
+        double dy = this.totalCenterOfMassY / this.totalMass - newBody.y;
+        double distance = distance(dx, dy);
+        if (this.width / distance < theta) {
             double F = G * this.totalMass * newBody.mass / (distance * distance);
             newBody.addForce(F * dx / distance, F * dy / distance);
         } else {
@@ -95,14 +102,180 @@ public class BarnesHutTree {
         }
     }
 
-    private boolean isExternal() {
-        return NW == null && NE == null && SW == null && SE == null;
+    /* Short range part of the force on newBody for TreePM, like FlatBarnesHutTree.updateForceShort */
+    public void updateForceShort(Body newBody, double rs) {
+        updateForceShort(newBody, rs, ParticleMesh.CUTOFF * rs);
     }
 
-    private double distance(Body bodyA, Body bodyB) {
-        double dx = bodyA.x - bodyB.x;
-        double dy = bodyA.y - bodyB.y;
-        return distance(dx, dy);
+    private void updateForceShort(Body newBody, double rs, double cut) {
+        double ox = Math.max(Math.abs(newBody.x - this.centerX) - this.width / 2, 0.0);
+        double oy = Math.max(Math.abs(newBody.y - this.centerY) - this.width / 2, 0.0);
+        if (ox * ox + oy * oy > cut * cut)
+            return;
+        if (isExternal()) {
+            if (this.body == null || this.body.equals(newBody))
+                return;
+            double dx = this.body.x - newBody.x;
+            double dy = this.body.y - newBody.y;
+            double distance = distance(dx, dy);
+            double F = G * this.body.mass * newBody.mass / (distance * distance)
+                    * ParticleMesh.shortRange(distance, rs);
+            newBody.addForce(F * dx / distance, F * dy / distance);
+            return;
+        }
+        double dx = this.totalCenterOfMassX / this.totalMass - newBody.x;
+        double dy = this.totalCenterOfMassY / this.totalMass - newBody.y;
+        double distance = distance(dx, dy);
+        if (this.width / distance < theta) {
+            double F = G * this.totalMass * newBody.mass / (distance * distance) * ParticleMesh.shortRange(distance, rs);
+            newBody.addForce(F * dx / distance, F * dy / distance);
+        } else {
+            if (NW != null)
+                NW.updateForceShort(newBody, rs, cut);
+            if (SW != null)
+                SW.updateForceShort(newBody, rs, cut);
+            if (SE != null)
+                SE.updateForceShort(newBody, rs, cut);
+            if (NE != null)
+                NE.updateForceShort(newBody, rs, cut);
+        }
+    }
+
+    /**
+     * Approximates the net force on every body in the tree with one walk
+     * per group of close bodies, the largest subtrees with at most groupSize
+     * bodies, like FlatBarnesHutTree.updateForceGroups.
+     */
+    public void updateForceGroups(int groupSize) {
+        groups(this, new Group(groupSize));
+    }
+
+    /* Walks the groups in this subtree, root is the whole tree */
+    private void groups(BarnesHutTree root, Group group) {
+        if (count == 0)
+            return;
+        if (count > group.capacity && !isExternal()) {
+            NE.groups(root, group);
+            NW.groups(root, group);
+            SE.groups(root, group);
+            SW.groups(root, group);
+            return;
+        }
+        group.clear();
+        members(group);
+        root.walk(this, group);
+
+        for (int r = 0; r < group.count; r++) {
+            Body newBody = group.members[r];
+            double fx = 0.0, fy = 0.0;
+            for (int j = 0; j < group.size; j++) {
+                if (group.member[j] == r)
+                    continue;
+                double dx = group.x[j] - newBody.x;
+                double dy = group.y[j] - newBody.y;
+                double distance = distance(dx, dy);
+                double F = G * group.mass[j] * newBody.mass / (distance * distance);
+                fx += F * dx / distance;
+                fy += F * dy / distance;
+            }
+            newBody.addForce(fx, fy);
+        }
+    }
+
+    /* Adds the bodies of this subtree to the group */
+    private void members(Group group) {
+        if (isExternal()) {
+            if (body != null)
+                group.add(body);
+            return;
+        }
+        NE.members(group);
+        NW.members(group);
+        SE.members(group);
+        SW.members(group);
+    }
+
+    /* Adds the bodies and nodes that the group of subtree g interacts with to the list */
+    private void walk(BarnesHutTree g, Group group) {
+        if (isExternal()) {
+            if (body != null)
+                group.list(body.x, body.y, body.mass, body);
+            return;
+        }
+        // A node holding the group is always opened, its mass includes the group
+        double middle = width / 2.0;
+        boolean holds = width >= g.width && Math.abs(g.centerX - centerX) < middle
+                && Math.abs(g.centerY - centerY) < middle;
+        if (!holds) {
+            double x = totalCenterOfMassX / totalMass;
+            double y = totalCenterOfMassY / totalMass;
+            if (width / group.distance(x, y) < theta) {
+                group.list(x, y, totalMass, null);
+                return;
+            }
+        }
+        NW.walk(g, group);
+        SW.walk(g, group);
+        SE.walk(g, group);
+        NE.walk(g, group);
+    }
+
+    /* Bodies of a group, their bounding box and their interaction list */
+    private static class Group {
+        final int capacity;
+        final Body[] members;
+        int count;
+        double minX, maxX, minY, maxY;
+
+        int size;
+        double[] x = new double[64], y = new double[64], mass = new double[64];
+        int[] member = new int[64]; // index in members of a listed body of the group, -1 otherwise
+
+        Group(int capacity) {
+            this.capacity = capacity;
+            this.members = new Body[capacity];
+        }
+
+        void clear() {
+            count = size = 0;
+            minX = minY = Double.POSITIVE_INFINITY;
+            maxX = maxY = Double.NEGATIVE_INFINITY;
+        }
+
+        void add(Body b) {
+            members[count++] = b;
+            minX = Math.min(minX, b.x);
+            maxX = Math.max(maxX, b.x);
+            minY = Math.min(minY, b.y);
+            maxY = Math.max(maxY, b.y);
+        }
+
+        void list(double px, double py, double m, Body b) {
+            if (size == x.length) {
+                x = Arrays.copyOf(x, 2 * size);
+                y = Arrays.copyOf(y, 2 * size);
+                mass = Arrays.copyOf(mass, 2 * size);
+                member = Arrays.copyOf(member, 2 * size);
+            }
+            int r = count - 1;
+            while (r >= 0 && members[r] != b)
+                r--;
+            x[size] = px;
+            y[size] = py;
+            mass[size] = m;
+            member[size++] = b == null ? -1 : r;
+        }
+
+        /* Distance from (px, py) to the nearest point of the bounding box */
+        double distance(double px, double py) {
+            double dx = Math.max(Math.max(minX - px, px - maxX), 0.0);
+            double dy = Math.max(Math.max(minY - py, py - maxY), 0.0);
+            return Math.sqrt(dx * dx + dy * dy);
+        }
+    }
+
+    private boolean isExternal() {
+        return NW == null && NE == null && SW == null && SE == null;
     }
 
     private double distance(double dx, double dy) {
@@ -0,0 +1,492 @@
+package task3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Barnes-Hut tree in flat arrays, a drop in for BarnesHutTree.
+ *
+ * BarnesHutTree allocates four child objects for every split and the whole
+ * tree is garbage after each step. Here node k is a slot in primitive
+ * arrays: its square (centerX, centerY, width), the mass sums of an internal
+ * node, the body of a leaf and the index of its first child. The children
+ * of a node are consecutive, in NE, NW, SE, SW order. The arrays are kept
+ * between steps and only grow, so once they are big enough a step
+ * allocates nothing.
+ *
+ * insert and updateForce do the same arithmetic in the same order as
+ * BarnesHutTree, so both trees give the same forces.
+ *
+ * Instead of a new build, refit keeps the tree of the last step. Every node
+ * knows the bounds its ancestors' quadrant tests put on its bodies, and
+ * every body keeps a copy of the bounds of its leaf. Chunks of bodies are
+ * checked in parallel, a body still inside its bounds stays in its leaf and
+ * only the others are taken out and inserted again from the root. The mass
+ * sums are then summed again bottom up, the top subtrees in parallel, or in
+ * one backwards pass over the nodes without parallelism (children always
+ * come after their parent). Nodes
+ * that lost all their bodies stay in the tree until the next full build.
+ * A leaf keeps the mass sums of its body, only refit reads them.
+ *
+ * updateForceGroups walks the tree once per group of close bodies instead
+ * of once per body: the largest subtrees with at most groupSize bodies. A
+ * node is accepted for the whole group if it is far enough from every
+ * point of the group's bounding box, so each body gets at least the
+ * accuracy of its own walk. The accepted nodes and the bodies of the opened
+ * leaves make one interaction list, summed for every body of the group in
+ * a plain loop over arrays.
+ */
+public class FlatBarnesHutTree {
+
+    public final double G = Constants.G;
+    public final double theta;
+
+    private static final int NE = 0, NW = 1, SE = 2, SW = 3;
+    private static final int EMPTY = -1; // body[k] of an empty leaf or an internal node
+    private static final int FORK_LEVELS = 3; // refit sums the subtrees of the top levels in parallel
+    private static final int CHUNK = 1 << 12; // bodies per refit task
+    private static final int CELL = -2;       // listBody of an accepted node in the interaction list
+
+    private final Body[] bodies;
+    int size; // nodes in use, read by the GUI
+
+    private int[] child = {}; // first of the four children, -1 for an external node
+    private int[] body = {};  // index of the body in a leaf
+    double[] centerX = {}, centerY = {}, width = {};
+    private double[] totalMass = {}, totalCenterOfMassX = {}, totalCenterOfMassY = {};
+    private double[] minX = {}, maxX = {}, minY = {}, maxY = {}; // a body in node k has minX < x <= maxX, minY < y <= maxY
+
+    private final int[] leaf;   // [body] leaf holding the body
+    private final double[] leafMinX, leafMaxX, leafMinY, leafMaxY; // [body] bounds of the leaf
+    private final int[] moved;  // bodies that left their leaf, from CHUNK * chunk on for each chunk
+    private final int[] movers; // [chunk] bodies of the chunk that left their leaf, -1 if one left the root
+    private int built;          // nodes after the last full build
+    private int movedSinceBuild;
+
+    // Group walk: bodies per subtree, the bodies of the group, their bounding box and the interaction list
+    private int[] count = {};
+    private int[] group = {};
+    private int groupCount;
+    private double groupMinX, groupMaxX, groupMinY, groupMaxY;
+    private int listSize;
+    private int[] listBody = {};
+    private double[] listX = {}, listY = {}, listMass = {};
+
+    public FlatBarnesHutTree(Body[] bodies, double theta) {
+        this.bodies = bodies;
+        this.theta = theta;
+        this.leaf = new int[bodies.length];
+        this.leafMinX = new double[bodies.length];
+        this.leafMaxX = new double[bodies.length];
+        this.leafMinY = new double[bodies.length];
+        this.leafMaxY = new double[bodies.length];
+        this.moved = new int[bodies.length];
+        this.movers = new int[(bodies.length + CHUNK - 1) / CHUNK];
+        allocate(Math.max(4 * bodies.length, 64));
+    }
+
+    /* Empties the tree, the root covers the square centered at (centerX, centerY) */
+    public void reset(double centerX, double centerY, double width) {
+        size = 0;
+        node(centerX, centerY, width);
+        minX[0] = minY[0] = Double.NEGATIVE_INFINITY;
+        maxX[0] = maxY[0] = Double.POSITIVE_INFINITY;
+        movedSinceBuild = 0;
+    }
+
+    /* Inserts all bodies into the emptied tree */
+    public void build(double centerX, double centerY, double width) {
+        reset(centerX, centerY, width);
+        for (int i = 0; i < bodies.length; i++)
+            insert(i);
+        built = size;
+    }
+
+    /**
+     * Updates the tree of the last build to the new positions of the bodies.
+     * Gives false and leaves the tree as it is if it has degraded too far and
+     * needs a full build: a body is outside the root square, or since the
+     * last build the tree has grown by a quarter or a quarter of the bodies
+     * have changed leaves.
+     */
+    public boolean refit() {
+        if (4 * (size - built) > built)
+            return false;
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int c = 0; c < movers.length; c++) {
+            int chunk = c;
+            tasks.add(ForkJoinTask.adapt(() -> check(chunk)));
+        }
+        ForkJoinTask.invokeAll(tasks);
+        int n = 0;
+        for (int c = 0; c < movers.length; c++) {
+            if (movers[c] < 0)
+                return false;
+            n += movers[c];
+        }
+        if (4 * (movedSinceBuild + n) > bodies.length)
+            return false;
+
+        // The leaves of the bodies that stayed got their new mass sums in check
+        for (int c = 0; c < movers.length; c++) {
+            for (int r = c * CHUNK; r < c * CHUNK + movers[c]; r++) {
+                int k = leaf[moved[r]];
+                body[k] = EMPTY;
+                totalMass[k] = totalCenterOfMassX[k] = totalCenterOfMassY[k] = 0.0;
+            }
+        }
+        for (int c = 0; c < movers.length; c++) {
+            for (int r = c * CHUNK; r < c * CHUNK + movers[c]; r++)
+                insert(moved[r]);
+        }
+        movedSinceBuild += n;
+        if (ForkJoinPool.getCommonPoolParallelism() > 1)
+            sum(0, 0);
+        else
+            for (int k = size - 1; k >= 0; k--)
+                sum(k);
+        return true;
+    }
+
+    /* Lists the bodies of the chunk that left their leaf */
+    private void check(int chunk) {
+        double middle = width[0] / 2.0;
+        int n = 0;
+        for (int i = chunk * CHUNK, end = Math.min(i + CHUNK, bodies.length); i < end; i++) {
+            Body b = bodies[i];
+            if (!(b.x <= centerX[0] + middle && b.x >= centerX[0] - middle &&
+                    b.y <= centerY[0] + middle && b.y >= centerY[0] - middle)) {
+                movers[chunk] = -1;
+                return;
+            }
+            if (b.x > leafMinX[i] && b.x <= leafMaxX[i] && b.y > leafMinY[i] && b.y <= leafMaxY[i]) {
+                int k = leaf[i];
+                totalMass[k] = b.mass;
+                totalCenterOfMassX[k] = b.mass * b.x;
+                totalCenterOfMassY[k] = b.mass * b.y;
+            } else {
+                moved[chunk * CHUNK + n++] = i;
+            }
+        }
+        movers[chunk] = n;
+    }
+
+    /* Adds body i to the tree, like BarnesHutTree.insert(bodies[i]) */
+    public void insert(int i) {
+        insert(0, i);
+    }
+
+    private void insert(int k, int i) {
+        Body newBody = bodies[i];
+        while (true) {
+            if (child[k] < 0) {
+                // New leaf node
+                if (body[k] == EMPTY) {
+                    place(k, i);
+                    return;
+                }
+                // Create a new internal node and insert both bodies
+                int oldBody = body[k];
+                body[k] = EMPTY;
+                split(k);
+                insert(k, oldBody);
+            }
+            // Update total mass and center of mass of this node
+            totalMass[k] += newBody.mass;
+            totalCenterOfMassX[k] += newBody.mass * newBody.x;
+            totalCenterOfMassY[k] += newBody.mass * newBody.y;
+
+            // Insert the body into the appropriate quadrant
+            if (newBody.x > centerX[k])
+                k = child[k] + (newBody.y > centerY[k] ? NE : SE);
+            else
+                k = child[k] + (newBody.y > centerY[k] ? NW : SW);
+        }
+    }
+
+    /* Approximates the net force on body i from all bodies in the tree, like BarnesHutTree.updateForce */
+    public void updateForce(int i) {
+        updateForce(0, bodies[i], i);
+    }
+
+    /* Approximates the net force on every body in the tree, with one walk per group of at most groupSize bodies */
+    public void updateForceGroups(int groupSize) {
+        for (int k = size - 1; k >= 0; k--) {
+            int c = child[k];
+            count[k] = c >= 0 ? count[c] + count[c + 1] + count[c + 2] + count[c + 3] : body[k] != EMPTY ? 1 : 0;
+        }
+        if (group.length < groupSize)
+            group = new int[groupSize];
+        groups(0, groupSize);
+    }
+
+    /* Walks the groups in the subtree of node k */
+    private void groups(int k, int groupSize) {
+        if (count[k] == 0)
+            return;
+        if (count[k] > groupSize) {
+            for (int c = child[k]; c < child[k] + 4; c++)
+                groups(c, groupSize);
+            return;
+        }
+        groupCount = 0;
+        groupMinX = groupMinY = Double.POSITIVE_INFINITY;
+        groupMaxX = groupMaxY = Double.NEGATIVE_INFINITY;
+        members(k);
+        listSize = 0;
+        walk(0, k);
+
+        for (int r = 0; r < groupCount; r++) {
+            int i = group[r];
+            Body newBody = bodies[i];
+            double fx = 0.0, fy = 0.0;
+            for (int j = 0; j < listSize; j++) {
+                if (listBody[j] == i)
+                    continue;
+                double dx = listX[j] - newBody.x;
+                double dy = listY[j] - newBody.y;
+                double distance = distance(dx, dy);
+                double F = G * listMass[j] * newBody.mass / (distance * distance);
+                fx += F * dx / distance;
+                fy += F * dy / distance;
+            }
+            newBody.addForce(fx, fy);
+        }
+    }
+
+    /* Lists the bodies in the subtree of node k as the group and grows its bounding box */
+    private void members(int k) {
+        if (child[k] >= 0) {
+            for (int c = child[k]; c < child[k] + 4; c++)
+                members(c);
+        } else if (body[k] != EMPTY) {
+            Body b = bodies[body[k]];
+            group[groupCount++] = body[k];
+            groupMinX = Math.min(groupMinX, b.x);
+            groupMaxX = Math.max(groupMaxX, b.x);
+            groupMinY = Math.min(groupMinY, b.y);
+            groupMaxY = Math.max(groupMaxY, b.y);
+        }
+    }
+
+    /* Adds the nodes and bodies that the group of node g interacts with below node k to the list */
+    private void walk(int k, int g) {
+        if (child[k] < 0) {
+            if (body[k] != EMPTY) {
+                Body b = bodies[body[k]];
+                list(body[k], b.x, b.y, b.mass);
+            }
+            return;
+        }
+        if (totalMass[k] == 0.0)
+            return;
+        // A node holding the group is always opened, its mass includes the group
+        if (!holds(k, g)) {
+            double x = totalCenterOfMassX[k] / totalMass[k];
+            double y = totalCenterOfMassY[k] / totalMass[k];
+            double dx = Math.max(Math.max(groupMinX - x, x - groupMaxX), 0.0);
+            double dy = Math.max(Math.max(groupMinY - y, y - groupMaxY), 0.0);
+            if (width[k] / distance(dx, dy) < theta) {
+                list(CELL, x, y, totalMass[k]);
+                return;
+            }
+        }
+        for (int c = child[k]; c < child[k] + 4; c++)
+            walk(c, g);
+    }
+
+    /* Whether the square of node k holds the one of node g, squares are nested or apart */
+    private boolean holds(int k, int g) {
+        return width[k] >= width[g] && Math.abs(centerX[g] - centerX[k]) < width[k] / 2.0
+                && Math.abs(centerY[g] - centerY[k]) < width[k] / 2.0;
+    }
+
+    private void list(int b, double x, double y, double m) {
+        if (listSize == listBody.length) {
+            int capacity = Math.max(2 * listSize, 64);
+            listBody = Arrays.copyOf(listBody, capacity);
+            listX = Arrays.copyOf(listX, capacity);
+            listY = Arrays.copyOf(listY, capacity);
+            listMass = Arrays.copyOf(listMass, capacity);
+        }
+        listBody[listSize] = b;
+        listX[listSize] = x;
+        listY[listSize] = y;
+        listMass[listSize++] = m;
+    }
+
+    private void updateForce(int k, Body newBody, int i) {
+        if (child[k] < 0) {
+            if (body[k] == EMPTY || body[k] == i)
+                return;
+            Body b = bodies[body[k]];
+            double dx = b.x - newBody.x;
+            double dy = b.y - newBody.y;
+            double distance = distance(dx, dy);
+            double F = G * b.mass * newBody.mass / (distance * distance);
+            newBody.addForce(F * dx / distance, F * dy / distance);
+            return;
+        }
+        // Emptied by refit
+        if (totalMass[k] == 0.0)
+            return;
+        double dx = totalCenterOfMassX[k] / totalMass[k] - newBody.x;
+        double dy = totalCenterOfMassY[k] / totalMass[k] - newBody.y;
+        double distance = distance(dx, dy);
+        if (width[k] / distance < theta) {
+            double F = G * totalMass[k] * newBody.mass / (distance * distance);
+            newBody.addForce(F * dx / distance, F * dy / distance);
+        } else {
+            updateForce(child[k] + NW, newBody, i);
+            updateForce(child[k] + SW, newBody, i);
+            updateForce(child[k] + SE, newBody, i);
+            updateForce(child[k] + NE, newBody, i);
+        }
+    }
+
+    /* Short range part of the force on body i for TreePM with split radius rs, see ParticleMesh */
+    public void updateForceShort(int i, double rs) {
+        updateForceShort(0, bodies[i], i, rs, ParticleMesh.CUTOFF * rs);
+    }
+
+    /* Same walk as updateForce, but nodes whose square is farther than cut from the body are skipped */
+    private void updateForceShort(int k, Body newBody, int i, double rs, double cut) {
+        double ox = Math.max(Math.abs(newBody.x - centerX[k]) - width[k] / 2, 0.0);
+        double oy = Math.max(Math.abs(newBody.y - centerY[k]) - width[k] / 2, 0.0);
+        if (ox * ox + oy * oy > cut * cut)
+            return;
+        if (child[k] < 0) {
+            if (body[k] == EMPTY || body[k] == i)
+                return;
+            Body b = bodies[body[k]];
+            double dx = b.x - newBody.x;
+            double dy = b.y - newBody.y;
+            double distance = distance(dx, dy);
+            double F = G * b.mass * newBody.mass / (distance * distance) * ParticleMesh.shortRange(distance, rs);
+            newBody.addForce(F * dx / distance, F * dy / distance);
+            return;
+        }
+        if (totalMass[k] == 0.0)
+            return;
+        double dx = totalCenterOfMassX[k] / totalMass[k] - newBody.x;
+        double dy = totalCenterOfMassY[k] / totalMass[k] - newBody.y;
+        double distance = distance(dx, dy);
+        if (width[k] / distance < theta) {
+            double F = G * totalMass[k] * newBody.mass / (distance * distance) * ParticleMesh.shortRange(distance, rs);
+            newBody.addForce(F * dx / distance, F * dy / distance);
+        } else {
+            updateForceShort(child[k] + NW, newBody, i, rs, cut);
+            updateForceShort(child[k] + SW, newBody, i, rs, cut);
+            updateForceShort(child[k] + SE, newBody, i, rs, cut);
+            updateForceShort(child[k] + NE, newBody, i, rs, cut);
+        }
+    }
+
+    /* Sums the subtree of node k bottom up, level is the depth of k */
+    private void sum(int k, int level) {
+        int c = child[k];
+        if (c < 0)
+            return;
+        if (level < FORK_LEVELS && bodies.length >= CHUNK) {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int q = c; q < c + 4; q++) {
+                int node = q;
+                tasks.add(ForkJoinTask.adapt(() -> sum(node, level + 1)));
+            }
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            for (int q = c; q < c + 4; q++)
+                sum(q, level + 1);
+        }
+        sum(k);
+    }
+
+    /* Sums the mass of internal node k from its children */
+    private void sum(int k) {
+        int c = child[k];
+        if (c < 0)
+            return;
+        double m = 0.0, mx = 0.0, my = 0.0;
+        for (int q = c; q < c + 4; q++) {
+            m += totalMass[q];
+            mx += totalCenterOfMassX[q];
+            my += totalCenterOfMassY[q];
+        }
+        totalMass[k] = m;
+        totalCenterOfMassX[k] = mx;
+        totalCenterOfMassY[k] = my;
+    }
+
+    /* Puts body i in leaf k */
+    private void place(int k, int i) {
+        Body b = bodies[i];
+        body[k] = i;
+        leaf[i] = k;
+        leafMinX[i] = minX[k];
+        leafMaxX[i] = maxX[k];
+        leafMinY[i] = minY[k];
+        leafMaxY[i] = maxY[k];
+        totalMass[k] = b.mass;
+        totalCenterOfMassX[k] = b.mass * b.x;
+        totalCenterOfMassY[k] = b.mass * b.y;
+    }
+
+    /* Gives node k four empty children, same squares as in BarnesHutTree.insert */
+    private void split(int k) {
+        totalMass[k] = totalCenterOfMassX[k] = totalCenterOfMassY[k] = 0.0;
+        double radius = width[k] / 2.0;
+        int c = node(centerX[k] + radius / 2, centerY[k] + radius / 2, radius);
+        node(centerX[k] - radius / 2, centerY[k] + radius / 2, radius);
+        node(centerX[k] + radius / 2, centerY[k] - radius / 2, radius);
+        node(centerX[k] - radius / 2, centerY[k] - radius / 2, radius);
+        child[k] = c;
+        // Bounds of the tests in insert: east is x > centerX, north is y > centerY
+        bounds(c + NE, Math.max(minX[k], centerX[k]), maxX[k], Math.max(minY[k], centerY[k]), maxY[k]);
+        bounds(c + NW, minX[k], Math.min(maxX[k], centerX[k]), Math.max(minY[k], centerY[k]), maxY[k]);
+        bounds(c + SE, Math.max(minX[k], centerX[k]), maxX[k], minY[k], Math.min(maxY[k], centerY[k]));
+        bounds(c + SW, minX[k], Math.min(maxX[k], centerX[k]), minY[k], Math.min(maxY[k], centerY[k]));
+    }
+
+    private void bounds(int k, double x0, double x1, double y0, double y1) {
+        minX[k] = x0;
+        maxX[k] = x1;
+        minY[k] = y0;
+        maxY[k] = y1;
+    }
+
+    private int node(double x, double y, double w) {
+        if (size == child.length)
+            allocate(2 * size);
+        int k = size++;
+        centerX[k] = x;
+        centerY[k] = y;
+        width[k] = w;
+        child[k] = -1;
+        body[k] = EMPTY;
+        totalMass[k] = totalCenterOfMassX[k] = totalCenterOfMassY[k] = 0.0;
+        return k;
+    }
+
+    private void allocate(int capacity) {
+        child = Arrays.copyOf(child, capacity);
+        body = Arrays.copyOf(body, capacity);
+        centerX = Arrays.copyOf(centerX, capacity);
+        centerY = Arrays.copyOf(centerY, capacity);
+        width = Arrays.copyOf(width, capacity);
+        totalMass = Arrays.copyOf(totalMass, capacity);
+        totalCenterOfMassX = Arrays.copyOf(totalCenterOfMassX, capacity);
+        totalCenterOfMassY = Arrays.copyOf(totalCenterOfMassY, capacity);
+        minX = Arrays.copyOf(minX, capacity);
+        maxX = Arrays.copyOf(maxX, capacity);
+        minY = Arrays.copyOf(minY, capacity);
+        maxY = Arrays.copyOf(maxY, capacity);
+        count = Arrays.copyOf(count, capacity);
+    }
+
+    private double distance(double dx, double dy) {
+        return Math.sqrt((dx * dx) + (dy * dy));
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Leapfrog against Wisdom-Holman: time, energy drift and position error of
+ * task1.NBody over a fixed time span for several step sizes.
+ *
+ * Usage (from root):
+ *  javac task3/IntegratorBench.java
+ *  java task3.IntegratorBench [time] [gnumBodies] [dt...]
+ *
+ * where:
+ *  time:        Simulated time of every run (default 30).
+ *  gnumBodies:  The number of bodies (default 200).
+ *  dt:          Step sizes to test (default 1 0.3 0.1 0.03 0.01).
+ *
+ * Every run starts from the initial conditions of task1.NBody with the same
+ * seed (-Dnbody.seed, one random seed for all runs if it is not set) and
+ * takes its forces from calculateForces. Leapfrog moves the bodies like
+ * moveBodies with step dt, Wisdom-Holman is util.WisdomHolman through
+ * wisdomHolman and interactionForces. Energy drift is
+ * |E(end) - E(0)| / |E(0)| as in AccuracyBench. The position error is the
+ * median distance of the bodies to a Wisdom-Holman run with a tenth of the
+ * smallest step, over RADIUS.
+ *
+ * The bodies start almost at rest and fall into the sun, the first ones
+ * after about 10. Leapfrog fails at the first pass, Wisdom-Holman follows
+ * it. Pairs of bodies that come very close are resolved by neither, they
+ * make the energy drift jump for some step sizes, and the median leaves
+ * them out of the position error.
+ */
+package task3;
+
+import java.util.Arrays;
+
+import util.BodyStore;
+import util.ParallelInit;
+import util.WisdomHolman;
+
+public class IntegratorBench {
+
+    private static final double MASS_VARIANCE = 0.1; // as in task1.NBody.main
+
+    public static void main(String[] args) {
+        double time = (args.length > 0) ? Double.parseDouble(args[0]) : 30;
+        int n = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+        double[] steps = { 1, 0.3, 0.1, 0.03, 0.01 };
+        if (args.length > 2) {
+            steps = new double[args.length - 2];
+            for (int i = 2; i < args.length; i++)
+                steps[i - 2] = Double.parseDouble(args[i]);
+        }
+
+        // Every run reads the seed again, so it has to be fixed before the first one
+        if (System.getProperty("nbody.seed") == null)
+            System.setProperty("nbody.seed", String.valueOf(ParallelInit.seed()));
+        System.out.format("Seed : %d%n", ParallelInit.seed());
+
+        double smallest = Double.POSITIVE_INFINITY;
+        for (double dt : steps)
+            smallest = Math.min(smallest, dt);
+        BodyStore reference = run(true, n, time, smallest / 10).b;
+        double e0 = AccuracyBench.energy(new task1.NBody(n, 0, task1.NBody.EARTH_MASS, MASS_VARIANCE).b);
+
+        System.out.format("%12s %10s %10s %12s %12s %12s%n", "integrator", "dt", "steps", "ms", "energy drift",
+                "pos error");
+        for (double dt : steps) {
+            for (boolean wisdomHolman : new boolean[] { false, true }) {
+                long t0 = System.nanoTime();
+                task1.NBody prg = run(wisdomHolman, n, time, dt);
+                long t = System.nanoTime() - t0;
+                double drift = Math.abs(AccuracyBench.energy(prg.b) - e0) / Math.abs(e0);
+                System.out.format("%12s %10.4f %10d %12.1f %12.3e %12.3e%n", wisdomHolman ? "wh" : "leapfrog", dt,
+                        numSteps(time, dt), t * 1e-6, drift, error(prg.b, reference));
+            }
+        }
+    }
+
+    private static int numSteps(double time, double dt) {
+        return (int) Math.round(time / dt);
+    }
+
+    /* The simulation after time with step dt */
+    private static task1.NBody run(boolean wisdomHolman, int n, double time, double dt) {
+        int numSteps = numSteps(time, dt);
+        task1.NBody prg = new task1.NBody(n, numSteps, task1.NBody.EARTH_MASS, MASS_VARIANCE);
+        if (wisdomHolman) {
+            WisdomHolman wh = prg.wisdomHolman();
+            for (int s = 0; s < numSteps; s++)
+                wh.step(dt, prg::interactionForces);
+            wh.store(prg.b.x, prg.b.y, prg.b.vx, prg.b.vy);
+        } else {
+            for (int s = 0; s < numSteps; s++) {
+                prg.calculateForces();
+                move(prg.b, dt);
+            }
+        }
+        return prg;
+    }
+
+    /* task1.NBody.moveBodies with step dt */
+    private static void move(BodyStore b, double dt) {
+        for (int i = 0; i < b.n; i++) {
+            double dvx = (b.fx[i] / b.m[i]) * dt;
+            double dvy = (b.fy[i] / b.m[i]) * dt;
+            b.x[i] += (b.vx[i] + dvx / 2) * dt;
+            b.y[i] += (b.vy[i] + dvy / 2) * dt;
+            b.vx[i] += dvx;
+            b.vy[i] += dvy;
+            b.fx[i] = b.fy[i] = 0.0;
+        }
+    }
+
+    /* Median distance of the bodies to the reference, over RADIUS */
+    private static double error(BodyStore b, BodyStore reference) {
+        double[] distance = new double[b.n];
+        for (int i = 0; i < b.n; i++)
+            distance[i] = Math.hypot(b.x[i] - reference.x[i], b.y[i] - reference.y[i]);
+        Arrays.sort(distance);
+        return distance[b.n / 2] / task1.NBody.RADIUS;
+    }
+}
@@ -0,0 +1,85 @@
+package task3;
+
+import java.util.Arrays;
+
+import util.MortonTree;
+
+/**
+ * Barnes-Hut tree built from sorted Morton keys (see util.MortonTree)
+ * instead of inserting the bodies one at a time.
+ *
+ * build sorts the Body array itself by key, so bodies close in space are
+ * also close in the array and the force loop walks similar paths one body
+ * after the other. Indices of the bodies change with every build.
+ *
+ * The opening test and the forces are the ones of BarnesHutTree, but cells
+ * with a single occupied quadrant are skipped, so the approximation differs
+ * a little from BarnesHutTree.
+ */
+public class MortonBarnesHutTree {
+
+    public final double G = Constants.G;
+    public final double theta;
+
+    private final Body[] bodies;
+    private final Body[] sorted;
+    private final double[] x, y, m;
+    private final MortonTree tree;
+
+    public MortonBarnesHutTree(Body[] bodies, double theta) {
+        this.bodies = bodies;
+        this.theta = theta;
+        this.sorted = new Body[bodies.length];
+        this.x = new double[bodies.length];
+        this.y = new double[bodies.length];
+        this.m = new double[bodies.length];
+        this.tree = new MortonTree(bodies.length);
+    }
+
+    /* Sorts the bodies and builds the tree in the square centered at (centerX, centerY) */
+    public void build(double centerX, double centerY, double width) {
+        Arrays.parallelSetAll(x, i -> bodies[i].x);
+        Arrays.parallelSetAll(y, i -> bodies[i].y);
+        Arrays.parallelSetAll(m, i -> bodies[i].mass);
+        tree.build(x, y, m, bodies.length, centerX, centerY, width, false);
+
+        int[] order = tree.order();
+        for (int r = 0; r < bodies.length; r++)
+            sorted[r] = bodies[order[r]];
+        System.arraycopy(sorted, 0, bodies, 0, bodies.length);
+    }
+
+    /* Approximates the net force on body i from all bodies in the tree, like BarnesHutTree.updateForce */
+    public void updateForce(int i) {
+        if (tree.count > 0)
+            updateForce(tree.root, bodies[i], i);
+    }
+
+    private void updateForce(int k, Body newBody, int i) {
+        // Leaf, its rank is the index of the body
+        if (k < 0) {
+            if (~k == i)
+                return;
+            double dx = tree.x[~k] - newBody.x;
+            double dy = tree.y[~k] - newBody.y;
+            double distance = distance(dx, dy);
+            double F = G * tree.m[~k] * newBody.mass / (distance * distance);
+            newBody.addForce(F * dx / distance, F * dy / distance);
+            return;
+        }
+        double dx = tree.comX[k] - newBody.x;
+        double dy = tree.comY[k] - newBody.y;
+        double distance = distance(dx, dy);
+        if (tree.size[k] / distance < theta) {
+            double F = G * tree.mass[k] * newBody.mass / (distance * distance);
+            newBody.addForce(F * dx / distance, F * dy / distance);
+        } else {
+            updateForce(tree.left[k], newBody, i);
+            updateForce(tree.right[k], newBody, i);
+        }
+    }
+
+    private double distance(double dx, double dy) {
+        return Math.sqrt((dx * dx) + (dy * dy));
+    }
+}
@@ -0,0 +1,271 @@
+package task3;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Particle-mesh gravity, an engine for very many bodies beside the trees.
+ *
+ * Every step covers the bounding box of the bodies with a mesh of m x m
+ * points, spacing h, and:
+ *
+ *  1. Deposits the mass of every body on the four mesh points around it,
+ *     cloud in cell. The bodies are cut into one range per pool thread and
+ *     every range has its own mesh, so no two threads write to the same
+ *     point. The meshes are then summed row by row in parallel.
+ *  2. Convolves the masses with the Green's function -G / r of the force
+ *     G m m / d^2 used by the trees, with FFTs. A Poisson solve in 2D would
+ *     give a force falling off as 1 / d instead. The mesh is padded with
+ *     zeros to 2m x 2m so the convolution is not periodic (Hockney and
+ *     Eastwood), and the transform of the Green's function is made once:
+ *     for spacing h it is the one for spacing 1 over h. Mesh points closer
+ *     than h take the distance h / 2.
+ *  3. Differences the potential into the field, -grad phi, with central
+ *     differences, and interpolates the field at every body with the same
+ *     cloud in cell weights as the deposit, so a body does not pull itself.
+ *
+ * The FFTs are radix 2 in place, the rows in parallel, the columns as rows
+ * of the transposed grid. A step costs O(N + m^2 log m). Forces between
+ * bodies a few cells apart are smoothed by the mesh, the far field is
+ * accurate.
+ *
+ * For TreePM the force is split at radius rs, a fixed number of cells. The
+ * mesh only takes the long range part, Green's function -G erf(r / 2rs) / r,
+ * which is smooth on the scale of the mesh. The rest, G m m / d^2 times
+ * shortRange(d, rs), falls off like a Gaussian, so a tree walk can skip
+ * everything beyond CUTOFF split radii (see
+ * FlatBarnesHutTree.updateForceShort). rs in cells keeps the transform of
+ * the Green's function the same for every spacing, up to the factor 1 / h.
+ */
+public class ParticleMesh {
+
+    public static final int GRID = 256; // default mesh points per side
+    public static final double SPLIT = 1.25; // default split radius of TreePM, in mesh cells
+    public static final double CUTOFF = 4.5; // short range walks skip nodes beyond CUTOFF split radii
+
+    private final Body[] bodies;
+    private final int m;      // mesh points per side
+    private final int n;      // side of the zero padded grid, 2m
+    private final int bits;   // log2(n)
+    private final int slabs;  // deposit ranges, one mesh each
+    private final double split; // split radius in cells, 0 for the whole force
+
+    private final double[][] slab;     // [range] mass per mesh point, row major m * m
+    private final double[] re, im;     // padded grid, row major n * n
+    private final double[] greenRe, greenIm; // transform of the Green's function for spacing 1
+    private final double[] phi, gx, gy; // potential and field, m * m
+    private final double[] cos, sin;   // twiddles of an n point transform
+    private final int[] reverse;       // bit reversal permutation of n points
+
+    private double x0, y0, h; // first mesh point and spacing of the last step
+
+    /* m is rounded up to a power of two */
+    public ParticleMesh(Body[] bodies, int m) {
+        this(bodies, m, 0.0);
+    }
+
+    /* Only the long range part of the force for a split radius of split cells, 0 for the whole force */
+    public ParticleMesh(Body[] bodies, int m, double split) {
+        this.bodies = bodies;
+        this.split = split;
+        this.m = Integer.highestOneBit(Math.max(m - 1, 8)) << 1;
+        this.n = 2 * this.m;
+        this.bits = Integer.numberOfTrailingZeros(n);
+        this.slabs = Math.max(1, ForkJoinPool.getCommonPoolParallelism());
+        this.slab = new double[slabs][this.m * this.m];
+        this.re = new double[n * n];
+        this.im = new double[n * n];
+        this.phi = new double[this.m * this.m];
+        this.gx = new double[this.m * this.m];
+        this.gy = new double[this.m * this.m];
+
+        this.cos = new double[n / 2];
+        this.sin = new double[n / 2];
+        for (int k = 0; k < n / 2; k++) {
+            cos[k] = Math.cos(2 * Math.PI * k / n);
+            sin[k] = Math.sin(2 * Math.PI * k / n);
+        }
+        this.reverse = new int[n];
+        for (int k = 0; k < n; k++)
+            reverse[k] = Integer.reverse(k) >>> (32 - bits);
+
+        // -G / r on the padded grid, distances wrap around so negative offsets sit at the far end
+        this.greenRe = new double[n * n];
+        this.greenIm = new double[n * n];
+        for (int j = 0; j < n; j++) {
+            for (int i = 0; i < n; i++) {
+                int di = Math.min(i, n - i), dj = Math.min(j, n - j);
+                double r = Math.sqrt(di * di + dj * dj);
+                if (split > 0.0)
+                    greenRe[j * n + i] = r > 0.0 ? -Constants.G * (1 - erfc(r / (2 * split))) / r
+                            : -Constants.G / (split * Math.sqrt(Math.PI));
+                else
+                    greenRe[j * n + i] = -Constants.G / (r > 0.0 ? r : 0.5);
+            }
+        }
+        transform(greenRe, greenIm, n, false);
+    }
+
+    /* Split radius of the last step, 0 without a split */
+    public double splitRadius() {
+        return split * h;
+    }
+
+    /* Fraction of G m m / d^2 that is left to the short range part at distance d for split radius rs */
+    public static double shortRange(double d, double rs) {
+        double u = d / (2 * rs);
+        return erfc(u) + 2 * u / Math.sqrt(Math.PI) * Math.exp(-u * u);
+    }
+
+    /* Complementary error function of x >= 0, Abramowitz and Stegun 7.1.26, error below 1.5e-7 */
+    static double erfc(double x) {
+        double t = 1.0 / (1.0 + 0.3275911 * x);
+        double p = t * (0.254829592 + t * (-0.284496736 + t * (1.421413741 + t * (-1.453152027 + t * 1.061405429))));
+        return p * Math.exp(-x * x);
+    }
+
+    /* Adds the mesh force to every body */
+    public void updateForces() {
+        place();
+
+        IntStream.range(0, slabs).parallel().forEach(this::deposit);
+        IntStream.range(0, n).parallel().forEach(j -> {
+            int row = j * n;
+            Arrays.fill(re, row, row + n, 0.0);
+            Arrays.fill(im, row, row + n, 0.0);
+            if (j >= m)
+                return;
+            for (double[] s : slab) {
+                for (int i = 0; i < m; i++)
+                    re[row + i] += s[j * m + i];
+            }
+        });
+
+        // Only the first m rows hold mass, the others stay zero through the row transforms
+        transform(re, im, m, false);
+        double scale = 1.0 / (h * n * n);
+        IntStream.range(0, n * n).parallel().forEach(k -> {
+            double a = re[k], b = im[k];
+            re[k] = (a * greenRe[k] - b * greenIm[k]) * scale;
+            im[k] = (a * greenIm[k] + b * greenRe[k]) * scale;
+        });
+        transform(re, im, n, true);
+        IntStream.range(0, m).parallel().forEach(j -> System.arraycopy(re, j * n, phi, j * m, m));
+
+        // Field at the inner mesh points, the bodies are at least two points from the edge
+        IntStream.range(1, m - 1).parallel().forEach(j -> {
+            for (int i = 1; i < m - 1; i++) {
+                int k = j * m + i;
+                gx[k] = -(phi[k + 1] - phi[k - 1]) / (2 * h);
+                gy[k] = -(phi[k + m] - phi[k - m]) / (2 * h);
+            }
+        });
+
+        IntStream.range(0, bodies.length).parallel().forEach(this::interpolate);
+    }
+
+    /* Mesh over the bounding box of the bodies, with two spare points on every side */
+    private void place() {
+        double xMin = Double.POSITIVE_INFINITY, xMax = Double.NEGATIVE_INFINITY;
+        double yMin = Double.POSITIVE_INFINITY, yMax = Double.NEGATIVE_INFINITY;
+        for (Body b : bodies) {
+            xMin = Math.min(xMin, b.x);
+            xMax = Math.max(xMax, b.x);
+            yMin = Math.min(yMin, b.y);
+            yMax = Math.max(yMax, b.y);
+        }
+        double width = Math.max(xMax - xMin, yMax - yMin);
+        h = (width > 0.0 ? width : 1.0) / (m - 5);
+        x0 = xMin - 2 * h;
+        y0 = yMin - 2 * h;
+    }
+
+    /* Cloud in cell masses of the bodies of range t on its own mesh */
+    private void deposit(int t) {
+        double[] s = slab[t];
+        Arrays.fill(s, 0.0);
+        for (int b = (int) ((long) bodies.length * t / slabs), end = (int) ((long) bodies.length * (t + 1)
+                / slabs); b < end; b++) {
+            Body body = bodies[b];
+            double u = (body.x - x0) / h, v = (body.y - y0) / h;
+            int i = (int) u, j = (int) v;
+            double wx = u - i, wy = v - j;
+            int k = j * m + i;
+            s[k] += body.mass * (1 - wx) * (1 - wy);
+            s[k + 1] += body.mass * wx * (1 - wy);
+            s[k + m] += body.mass * (1 - wx) * wy;
+            s[k + m + 1] += body.mass * wx * wy;
+        }
+    }
+
+    /* Field at body b from the four mesh points around it, times its mass */
+    private void interpolate(int b) {
+        Body body = bodies[b];
+        double u = (body.x - x0) / h, v = (body.y - y0) / h;
+        int i = (int) u, j = (int) v;
+        double wx = u - i, wy = v - j;
+        int k = j * m + i;
+        double w00 = (1 - wx) * (1 - wy), w10 = wx * (1 - wy), w01 = (1 - wx) * wy, w11 = wx * wy;
+        double fx = w00 * gx[k] + w10 * gx[k + 1] + w01 * gx[k + m] + w11 * gx[k + m + 1];
+        double fy = w00 * gy[k] + w10 * gy[k + 1] + w01 * gy[k + m] + w11 * gy[k + m + 1];
+        body.addForce(body.mass * fx, body.mass * fy);
+    }
+
+    /*
+     * 2D transform of the n x n grid (re, im) whose rows from rows on are
+     * zero. The inverse is not scaled and leaves the columns from m on
+     * untransformed, only the first m rows and columns are read after it.
+     */
+    private void transform(double[] re, double[] im, int rows, boolean inverse) {
+        IntStream.range(0, rows).parallel().forEach(j -> fft(re, im, j * n, inverse));
+        transpose(re, im);
+        IntStream.range(0, inverse ? m : n).parallel().forEach(j -> fft(re, im, j * n, inverse));
+        transpose(re, im);
+    }
+
+    private void transpose(double[] re, double[] im) {
+        IntStream.range(0, n).parallel().forEach(j -> {
+            for (int i = j + 1; i < n; i++) {
+                int a = j * n + i, b = i * n + j;
+                double t = re[a];
+                re[a] = re[b];
+                re[b] = t;
+                t = im[a];
+                im[a] = im[b];
+                im[b] = t;
+            }
+        });
+    }
+
+    /* In place radix 2 transform of the n points from off on */
+    private void fft(double[] re, double[] im, int off, boolean inverse) {
+        for (int k = 0; k < n; k++) {
+            int r = reverse[k];
+            if (r > k) {
+                double t = re[off + k];
+                re[off + k] = re[off + r];
+                re[off + r] = t;
+                t = im[off + k];
+                im[off + k] = im[off + r];
+                im[off + r] = t;
+            }
+        }
+        double sign = inverse ? 1.0 : -1.0;
+        for (int len = 2; len <= n; len <<= 1) {
+            int half = len / 2, step = n / len;
+            for (int s = 0; s < n; s += len) {
+                for (int k = 0; k < half; k++) {
+                    double wr = cos[k * step], wi = sign * sin[k * step];
+                    int a = off + s + k, b = a + half;
+                    double tr = re[b] * wr - im[b] * wi;
+                    double ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+}
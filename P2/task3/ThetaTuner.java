@@ -0,0 +1,92 @@
+package task3;
+
+/**
+ * Picks theta (the far argument) from a target force error instead of a
+ * guess.
+ *
+ * The forces on a sample of bodies spread through the array are summed
+ * directly over all bodies once. For every candidate theta a
+ * FlatBarnesHutTree is built over the bounding box of the bodies and the
+ * sampled bodies are walked through it. The error is the rms of the force
+ * differences over the rms of the forces, so the nearly balanced pull on
+ * the sun does not swamp it. The error grows with theta, a bisection finds
+ * the largest theta within target.
+ */
+public class ThetaTuner {
+
+    public static final int SAMPLE = 256;
+    private static final int STEPS = 16; // bisection steps
+    private static final double MAX_THETA = 3.0; // the root is accepted for every body beyond this
+
+    private final Body[] bodies;
+    private final int stride;
+    private final double[] fx, fy; // [sample] direct sums
+    private final double cx, cy, width; // bounding square of the bodies
+
+    public ThetaTuner(Body[] bodies, int sample) {
+        this.bodies = bodies;
+        sample = Math.max(1, Math.min(sample, bodies.length));
+        this.stride = bodies.length / sample;
+        this.fx = new double[sample];
+        this.fy = new double[sample];
+        for (int s = 0; s < sample; s++) {
+            Body nb = bodies[s * stride];
+            for (int j = 0; j < bodies.length; j++) {
+                if (j == s * stride)
+                    continue;
+                Body b = bodies[j];
+                double dx = b.x - nb.x;
+                double dy = b.y - nb.y;
+                double distance = Math.sqrt((dx * dx) + (dy * dy));
+                double F = Constants.G * b.mass * nb.mass / (distance * distance);
+                fx[s] += F * dx / distance;
+                fy[s] += F * dy / distance;
+            }
+        }
+
+        double xMin = Double.POSITIVE_INFINITY, xMax = Double.NEGATIVE_INFINITY;
+        double yMin = Double.POSITIVE_INFINITY, yMax = Double.NEGATIVE_INFINITY;
+        for (Body b : bodies) {
+            xMin = Math.min(xMin, b.x);
+            xMax = Math.max(xMax, b.x);
+            yMin = Math.min(yMin, b.y);
+            yMax = Math.max(yMax, b.y);
+        }
+        this.cx = (xMin + xMax) / 2;
+        this.cy = (yMin + yMax) / 2;
+        this.width = Math.max(xMax - xMin, yMax - yMin);
+    }
+
+    /* Largest theta with error at most target */
+    public double tune(double target) {
+        if (error(MAX_THETA) <= target)
+            return MAX_THETA;
+        double lo = 0.0, hi = MAX_THETA;
+        for (int step = 0; step < STEPS; step++) {
+            double mid = (lo + hi) / 2.0;
+            if (error(mid) <= target)
+                lo = mid;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /* Rms force error of the sample with theta */
+    public double error(double theta) {
+        FlatBarnesHutTree tree = new FlatBarnesHutTree(bodies, theta);
+        tree.build(cx, cy, width);
+        double diff = 0.0, norm = 0.0;
+        for (int s = 0; s < fx.length; s++) {
+            Body nb = bodies[s * stride];
+            double ox = nb.ax, oy = nb.ay;
+            nb.ax = nb.ay = 0.0;
+            tree.updateForce(s * stride);
+            diff += (nb.ax - fx[s]) * (nb.ax - fx[s]) + (nb.ay - fy[s]) * (nb.ay - fy[s]);
+            norm += fx[s] * fx[s] + fy[s] * fy[s];
+            nb.ax = ox;
+            nb.ay = oy;
+        }
+        return norm > 0.0 ? Math.sqrt(diff / norm) : 0.0;
+    }
+}
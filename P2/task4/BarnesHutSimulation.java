@@ -1,10 +1,16 @@
 package task4;
 
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Semaphore;
 
+import util.CostZones;
+import util.ParallelInit;
+import util.WisdomHolman;
+
 public class BarnesHutSimulation {
 
     public static final double DOWNSCALING = Constants.DOWNSCALING;
@@ -20,9 +26,18 @@ public class BarnesHutSimulation {
     public final int gnumBodies;
     public final double theta;
     public final double DT;
+    public final long seed;
 
     Body[] bodies;
     static BarnesHutTree tree;
+    FlatBarnesHutTree flatTree; // used instead of tree unless -Dnbody.tree=objects
+    ParallelBarnesHutTree parallelTree; // used instead of both in simulate unless -Dnbody.build=single
+    ForkJoinPool pool;
+    long buildNanos; // time spent in the parallel builds
+    CostZones zones; // bodies of every worker, null gives every worker an equal block of indices
+    final boolean wisdomHolman; // -Dnbody.integrator=wh moves the bodies with util.WisdomHolman instead of Body.move
+    private CyclicBarrier forceStart, forceDone; // wh: the workers and the integrator thread, see interactionForces
+    int forceBuilds; // wh: trees built for interactionForces
 
     public BarnesHutSimulation(int gnumBodies, double theta, double dt, boolean[] config) {
         this.gnumBodies = gnumBodies;
@@ -31,12 +46,14 @@ public class BarnesHutSimulation {
         this.config = config;
 
         this.bodies = new Body[gnumBodies];
+        this.seed = ParallelInit.seed();
+        this.wisdomHolman = System.getProperty("nbody.integrator", "leapfrog").equals("wh");
 
         // The "Sun"
         this.bodies[0] = new Body(0, 0, 0, 0, SUN_MASS, dt);
 
-        Random rand = new Random();
-        for (int i = 1; i < gnumBodies; i++) {
+        // Bodies are generated in parallel, the same seed (-Dnbody.seed) gives the same bodies
+        ParallelInit.run(1, gnumBodies, seed, (i, rand) -> {
 
             double r = RADIUS * Math.sqrt(rand.nextDouble()) + MIN_DIST; // distance
             double theta0 = rand.nextDouble() * 2 * Math.PI; // direction
@@ -45,20 +62,23 @@ public class BarnesHutSimulation {
 
             double vx = (this.bodies[0].x - x) * START_VEL;
             double vy = -(this.bodies[0].y - y) * START_VEL;
-            double mass = EARTH_MASS * (1 + randInterval(
+            double mass = EARTH_MASS * (1 + randInterval(rand,
                     -MASS_VARIANCE,
                     MASS_VARIANCE)) * DOWNSCALING;
             this.bodies[i] = new Body(x, y, vx, vy, mass, dt);
-        }
+        });
 
-        tree = buildTree(this.bodies);
+        // The flat tree is reused every step, -Dnbody.tree=objects builds a new BarnesHutTree instead
+        if (System.getProperty("nbody.tree", "flat").equals("flat"))
+            this.flatTree = new FlatBarnesHutTree(this.bodies, theta);
+        buildTree(this.bodies);
     }
 
-    public static double randInterval(double min, double max) {
-        return Math.random() * (max - min) + min;
+    public static double randInterval(SplittableRandom rand, double min, double max) {
+        return ParallelInit.interval(rand, min, max);
     }
 
-    private BarnesHutTree buildTree(Body[] bodies) {
+    private void buildTree(Body[] bodies) {
         // Find the bounding box that contains all the bodies
         double xMin = Double.POSITIVE_INFINITY;
         double xMax = Double.NEGATIVE_INFINITY;
@@ -84,6 +104,16 @@ public class BarnesHutSimulation {
         double cx = (xMin + xMax) / 2;
         double cy = (yMin + yMax) / 2;
         double width = Math.max(xMax - xMin, yMax - yMin);
+        if (parallelTree != null) {
+            parallelTree.build(cx, cy, width);
+            return;
+        }
+        if (flatTree != null) {
+            flatTree.reset(cx, cy, width);
+            for (int i = 0; i < bodies.length; i++)
+                flatTree.insert(i);
+            return;
+        }
         BarnesHutTree root = new BarnesHutTree(cx, cy, width, this.theta);
 
         // Insert each body into the tree
@@ -91,7 +121,17 @@ public class BarnesHutSimulation {
             root.insert(body);
         }
 
-        return root;
+        tree = root;
+    }
+
+    /* Net force on body i from the tree of this step */
+    private void updateForce(int i) {
+        if (parallelTree != null)
+            parallelTree.updateForce(i);
+        else if (flatTree != null)
+            flatTree.updateForce(i);
+        else
+            tree.updateForce(bodies[i]);
     }
 
     // public void run(boolean shouldRun) {
@@ -112,15 +152,147 @@ public class BarnesHutSimulation {
 
     public static int currentStep = 0;
 
+    /* WisdomHolman started from the bodies, the sun pulls with G m / d^2 like the trees */
+    private WisdomHolman wisdomHolman() {
+        int n = bodies.length;
+        double[] x = new double[n], y = new double[n], vx = new double[n], vy = new double[n], m = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = bodies[i].x;
+            y[i] = bodies[i].y;
+            vx[i] = bodies[i].vx;
+            vy[i] = bodies[i].vy;
+            m[i] = bodies[i].mass;
+        }
+        WisdomHolman wh = new WisdomHolman(n, Constants.G * bodies[0].mass);
+        wh.load(x, y, vx, vy, m);
+        return wh;
+    }
+
+    /* Writes the state of wh back to the bodies */
+    private void store(WisdomHolman wh) {
+        int n = bodies.length;
+        double[] x = new double[n], y = new double[n], vx = new double[n], vy = new double[n];
+        wh.store(x, y, vx, vy);
+        for (int i = 0; i < n; i++) {
+            bodies[i].x = x[i];
+            bodies[i].y = y[i];
+            bodies[i].vx = vx[i];
+            bodies[i].vy = vy[i];
+        }
+    }
+
+    /* Forces between all bodies but the sun at (x, y) into fx, fy, the workers walk the tree */
+    private void interactionForces(double[] x, double[] y, double[] fx, double[] fy) {
+        double sun = bodies[0].mass;
+        bodies[0].mass = 0.0;
+        for (int i = 0; i < bodies.length; i++) {
+            bodies[i].x = x[i];
+            bodies[i].y = y[i];
+            bodies[i].ax = bodies[i].ay = 0.0;
+        }
+        long t0 = System.nanoTime();
+        buildTree(bodies);
+        buildNanos += System.nanoTime() - t0;
+        forceBuilds++;
+        try {
+            forceStart.await();
+            forceDone.await();
+        } catch (InterruptedException | BrokenBarrierException e) {
+            throw new IllegalStateException("Force pass failed", e);
+        }
+        for (int i = 0; i < bodies.length; i++) {
+            fx[i] = bodies[i].ax;
+            fy[i] = bodies[i].ay;
+            bodies[i].ax = bodies[i].ay = 0.0;
+        }
+        bodies[0].mass = sun;
+    }
+
+    /*
+     * -Dnbody.integrator=wh: one more thread, the last one returned, steps
+     * WisdomHolman. For every force evaluation it builds the tree (on the
+     * pool unless -Dnbody.build=single) and releases the workers, which
+     * update the forces of their equal blocks of bodies (-Dnbody.zones is
+     * ignored) and meet it again at forceDone.
+     */
+    private Thread[] simulateWisdomHolman(int numWorkers, int numSteps) {
+        if (System.getProperty("nbody.build", "parallel").equals("parallel")) {
+            pool = new ForkJoinPool(numWorkers);
+            parallelTree = new ParallelBarnesHutTree(bodies, theta, pool);
+        }
+        forceStart = new CyclicBarrier(numWorkers + 1);
+        forceDone = new CyclicBarrier(numWorkers + 1);
+
+        Thread[] threads = new Thread[numWorkers + 1];
+        for (int w = 0; w < numWorkers; w++) {
+            int id = w;
+            threads[id] = new Thread(() -> {
+                int intervalStart = (int) ((long) gnumBodies * id / numWorkers);
+                int intervalEnd = (int) ((long) gnumBodies * (id + 1) / numWorkers);
+                try {
+                    while (true) {
+                        // Released once more after the last step to stop
+                        forceStart.await();
+                        if (currentStep >= numSteps)
+                            break;
+                        for (int i = intervalStart; i < intervalEnd; i++)
+                            updateForce(i);
+                        forceDone.await();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        threads[numWorkers] = new Thread(() -> {
+            try {
+                WisdomHolman wh = wisdomHolman();
+                for (int s = 0; s < numSteps; s++) {
+                    wh.step(DT, this::interactionForces);
+                    currentStep++;
+                }
+                store(wh);
+                forceStart.await();
+            } catch (Exception e) {
+                e.printStackTrace();
+                // The waiting workers get a BrokenBarrierException and stop
+                forceStart.reset();
+            }
+        });
+        for (Thread thread : threads)
+            thread.start();
+        return threads;
+    }
+
     public Thread[] simulate(int numWorkers, int numSteps) {
+        if (wisdomHolman)
+            return simulateWisdomHolman(numWorkers, numSteps);
+        // -Dnbody.build=parallel (default) builds the tree of the next step on a fork/join pool
+        // in the exit barrier action, single has the first worker to arrive build it alone
+        if (System.getProperty("nbody.build", "parallel").equals("parallel")) {
+            pool = new ForkJoinPool(numWorkers);
+            parallelTree = new ParallelBarnesHutTree(bodies, theta, pool);
+            buildTree(bodies);
+            // -Dnbody.zones=cost splits the bodies in the tree order by the interactions of the last step
+            if (System.getProperty("nbody.zones", "static").equals("cost"))
+                zones = new CostZones(gnumBodies, numWorkers);
+        }
         CyclicBarrier barrier = new CyclicBarrier(numWorkers);
         CyclicBarrier exitBarrier = new CyclicBarrier(numWorkers, () -> {
             currentStep++;
+            if (zones != null)
+                zones.record();
+            if (parallelTree != null && currentStep < numSteps) {
+                long t0 = System.nanoTime();
+                buildTree(bodies);
+                buildNanos += System.nanoTime() - t0;
+                if (zones != null)
+                    zones.split(parallelTree.order());
+            }
         });
         Semaphore criticalWork = new Semaphore(1);
 
         Thread[] workers = new Thread[numWorkers];
-        int span = Math.floorDiv(gnumBodies, numWorkers);
         for (int w = 0; w < numWorkers; w++) {
             int id = w;
             workers[id] = new Thread(() -> {
@@ -129,24 +301,35 @@ public class BarnesHutSimulation {
                 long timeAtBarrierA = 0, timeAtBarrierB = 0;
                 long timeAtExitBarrier = 0;
                 try {
-                    int intervalEnd = (span * id) + span;
+                    // Equal blocks, the last ones take one body more when numWorkers does not divide gnumBodies
+                    int intervalStart = (int) ((long) gnumBodies * id / numWorkers);
+                    int intervalEnd = (int) ((long) gnumBodies * (id + 1) / numWorkers);
                     while (currentStep < numSteps) {
 
-                        // First to arrive builds the tree
-                        if (criticalWork.tryAcquire()) {
+                        // First to arrive builds the tree, unless it is built in parallel
+                        if (parallelTree == null && criticalWork.tryAcquire()) {
                             t0 = System.nanoTime();
-                            tree = buildTree(bodies);
+                            buildTree(bodies);
                             timeToBuild += System.nanoTime() - t0;
                             timesBuiltTree++;
                             criticalWork.release();
                         }
+                        // The parallel tree was built in the exit barrier action already
                         t0 = System.nanoTime();
-                        barrier.await();
+                        if (parallelTree == null)
+                            barrier.await();
                         timeAtBarrierA += t0  / numSteps;
                         t0 = System.nanoTime();
 
-                        for (int i = (span * id); i < intervalEnd; i++) {
-                            tree.updateForce(bodies[i]);
+                        if (zones != null) {
+                            for (int r = zones.from(id); r < zones.to(id); r++) {
+                                int i = zones.body(r);
+                                zones.cost[i] = parallelTree.updateForce(i);
+                            }
+                        } else {
+                            for (int i = intervalStart; i < intervalEnd; i++) {
+                                updateForce(i);
+                            }
                         }
                         timeToUpdate += System.nanoTime() - t0;
 
@@ -155,8 +338,13 @@ public class BarnesHutSimulation {
                         timeAtBarrierB += t0  / numSteps;
                         t0 = System.nanoTime();
                         
-                        for (int i = (span * id); i < intervalEnd; i++) {
-                            bodies[i].move();
+                        if (zones != null) {
+                            for (int r = zones.from(id); r < zones.to(id); r++)
+                                bodies[zones.body(r)].move();
+                        } else {
+                            for (int i = intervalStart; i < intervalEnd; i++) {
+                                bodies[i].move();
+                            }
                         }
                         timeToMove += System.nanoTime() - t0;
                         
@@ -182,9 +370,9 @@ public class BarnesHutSimulation {
     }
 
     public static void main(String[] args) throws Exception {
-        final int MAX_BODIES = 240;
-        final int MAX_STEPS = 350000;
-        final int MAX_WORKERS = 4;
+        final int DEFAULT_BODIES = 240;
+        final int DEFAULT_STEPS = 350000;
+        final int DEFAULT_WORKERS = 4;
         final Double MAX_FAR = 2.0;
 
         int gnumBodies, numSteps, numWorkers;
@@ -193,20 +381,18 @@ public class BarnesHutSimulation {
         double dt = 0.1;
         double far = 1;
 
-        gnumBodies = (args.length > 0) && (Integer.parseInt(args[0]) < MAX_BODIES) ? Integer.parseInt(args[0])
-                : MAX_BODIES;
-        numSteps = (args.length > 1) && (Integer.parseInt(args[1]) < MAX_STEPS) ? Integer.parseInt(args[1])
-                : MAX_STEPS;
+        gnumBodies = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_BODIES;
+        numSteps = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_STEPS;
         far = (args.length > 2) && (Double.parseDouble(args[2]) < MAX_FAR) ? Double.parseDouble(args[2])
                 : MAX_FAR;
-        numWorkers = (args.length > 3) && (Integer.parseInt(args[3]) < MAX_WORKERS) ? Integer.parseInt(args[3])
-                : MAX_WORKERS;
+        numWorkers = (args.length > 3) ? Integer.parseInt(args[3]) : DEFAULT_WORKERS;
 
         boolean showQuads = true;
         boolean showCenterOfMass = false;
         boolean[] config = new boolean[] { showQuads, showCenterOfMass };
 
         BarnesHutSimulation sim = new BarnesHutSimulation(gnumBodies, far, dt, config);
+        System.out.format("Seed : %d%n", sim.seed);
         Thread[] workers = new Thread[numWorkers];
 
         if(numResultsShown > 0) {
@@ -220,6 +406,16 @@ public class BarnesHutSimulation {
         for (Thread thread : workers) {
             thread.join();
         }
+        if (sim.pool != null) {
+            sim.pool.shutdown();
+            // Wisdom-Holman builds the tree for every force evaluation, once more than it steps
+            int builds = sim.wisdomHolman ? sim.forceBuilds : numSteps - 1;
+            System.out.format("Parallel build AVG (n=%d):\t%,d%n", builds, sim.buildNanos / Math.max(builds, 1));
+        }
+        if (sim.zones != null) {
+            System.out.println("Imbalance (largest / mean worker interactions):");
+            sim.zones.print(20);
+        }
         
         endTime = System.nanoTime() - startTime;
         
@@ -66,21 +66,22 @@ public class BarnesHutTree {
     }
 
     public void updateForce(Body newBody) {
-        if (this.body == null) {
-            return;
-        }
         if (isExternal()) {
-            if (this.body.equals(newBody))
+            // Internal nodes have no body, only an empty leaf or the body itself is skipped
+            if (this.body == null || this.body.equals(newBody))
                 return;
             double dx = this.body.x - newBody.x;
             double dy = this.body.y - newBody.y;
             double distance = distance(dx, dy);
             double F = G * this.body.mass * newBody.mass / (distance * distance);
             newBody.addForce(F * dx / distance, F * dy / distance);
-        } else if (this.width / distance(this.body, newBody) < theta) {
-            double dx = this.totalCenterOfMassX / this.totalMass - newBody.x;
-            double dy = this.totalCenterOfMassY / this.totalMass - newBody.y;
-            double distance = distance(dx, dy);
+            return;
+        }
+        // The opening test uses the distance to the center of mass of the node
+        double dx = this.totalCenterOfMassX / this.totalMass - newBody.x;
+        double dy = this.totalCenterOfMassY / this.totalMass - newBody.y;
+        double distance = distance(dx, dy);
+        if (this.width / distance < theta) {
             double F = G * this.totalMass * newBody.mass / (distance * distance);
             newBody.addForce(F * dx / distance, F * dy / distance);
         } else {
@@ -99,12 +100,6 @@ public class BarnesHutTree {
         return NW == null && NE == null && SW == null && SE == null;
     }
 
-    private double distance(Body bodyA, Body bodyB) {
-        double dx = bodyA.x - bodyB.x;
-        double dy = bodyA.y - bodyB.y;
-        return distance(dx, dy);
-    }
-
     private double distance(double dx, double dy) {
         return Math.sqrt((dx * dx) + (dy * dy));
     }
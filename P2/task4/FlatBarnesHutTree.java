@@ -0,0 +1,151 @@
+package task4;
+
+import java.util.Arrays;
+
+/**
+ * Barnes-Hut tree in flat arrays, a drop in for BarnesHutTree.
+ *
+ * BarnesHutTree allocates four child objects for every split and the whole
+ * tree is garbage after each step. Here node k is a slot in primitive
+ * arrays: its square (centerX, centerY, width), the mass sums of an internal
+ * node, the body of a leaf and the index of its first child. The children
+ * of a node are consecutive, in NE, NW, SE, SW order. The arrays are kept
+ * between steps and only grow, so once they are big enough a step
+ * allocates nothing.
+ *
+ * insert and updateForce do the same arithmetic in the same order as
+ * BarnesHutTree, so both trees give the same forces.
+ */
+public class FlatBarnesHutTree {
+
+    public final double G = Constants.G;
+    public final double theta;
+
+    private static final int NE = 0, NW = 1, SE = 2, SW = 3;
+    private static final int EMPTY = -1; // body[k] of an empty leaf or an internal node
+
+    private final Body[] bodies;
+    int size; // nodes in use, read by the GUI
+
+    private int[] child = {}; // first of the four children, -1 for an external node
+    private int[] body = {};  // index of the body in a leaf
+    double[] centerX = {}, centerY = {}, width = {};
+    private double[] totalMass = {}, totalCenterOfMassX = {}, totalCenterOfMassY = {};
+
+    public FlatBarnesHutTree(Body[] bodies, double theta) {
+        this(bodies, theta, 4 * bodies.length);
+    }
+
+    /* Starts with room for capacity nodes, for trees that only hold some of the bodies */
+    public FlatBarnesHutTree(Body[] bodies, double theta, int capacity) {
+        this.bodies = bodies;
+        this.theta = theta;
+        allocate(Math.max(capacity, 64));
+    }
+
+    /* Empties the tree, the root covers the square centered at (centerX, centerY) */
+    public void reset(double centerX, double centerY, double width) {
+        size = 0;
+        node(centerX, centerY, width);
+    }
+
+    /* Adds body i to the tree, like BarnesHutTree.insert(bodies[i]) */
+    public void insert(int i) {
+        insert(0, i);
+    }
+
+    private void insert(int k, int i) {
+        Body newBody = bodies[i];
+        while (true) {
+            if (child[k] < 0) {
+                // New leaf node
+                if (body[k] == EMPTY) {
+                    body[k] = i;
+                    return;
+                }
+                // Create a new internal node and insert both bodies
+                int oldBody = body[k];
+                body[k] = EMPTY;
+                split(k);
+                insert(k, oldBody);
+            }
+            // Update total mass and center of mass of this node
+            totalMass[k] += newBody.mass;
+            totalCenterOfMassX[k] += newBody.mass * newBody.x;
+            totalCenterOfMassY[k] += newBody.mass * newBody.y;
+
+            // Insert the body into the appropriate quadrant
+            if (newBody.x > centerX[k])
+                k = child[k] + (newBody.y > centerY[k] ? NE : SE);
+            else
+                k = child[k] + (newBody.y > centerY[k] ? NW : SW);
+        }
+    }
+
+    /* Approximates the net force on body i from all bodies in the tree, like BarnesHutTree.updateForce, returns the interactions */
+    public int updateForce(int i) {
+        return updateForce(0, bodies[i], i);
+    }
+
+    private int updateForce(int k, Body newBody, int i) {
+        if (child[k] < 0) {
+            if (body[k] == EMPTY || body[k] == i)
+                return 0;
+            Body b = bodies[body[k]];
+            double dx = b.x - newBody.x;
+            double dy = b.y - newBody.y;
+            double distance = distance(dx, dy);
+            double F = G * b.mass * newBody.mass / (distance * distance);
+            newBody.addForce(F * dx / distance, F * dy / distance);
+            return 1;
+        }
+        double dx = totalCenterOfMassX[k] / totalMass[k] - newBody.x;
+        double dy = totalCenterOfMassY[k] / totalMass[k] - newBody.y;
+        double distance = distance(dx, dy);
+        if (width[k] / distance < theta) {
+            double F = G * totalMass[k] * newBody.mass / (distance * distance);
+            newBody.addForce(F * dx / distance, F * dy / distance);
+            return 1;
+        }
+        return updateForce(child[k] + NW, newBody, i) + updateForce(child[k] + SW, newBody, i)
+                + updateForce(child[k] + SE, newBody, i) + updateForce(child[k] + NE, newBody, i);
+    }
+
+    /* Gives node k four empty children, same squares as in BarnesHutTree.insert */
+    private void split(int k) {
+        double radius = width[k] / 2.0;
+        int c = node(centerX[k] + radius / 2, centerY[k] + radius / 2, radius);
+        node(centerX[k] - radius / 2, centerY[k] + radius / 2, radius);
+        node(centerX[k] + radius / 2, centerY[k] - radius / 2, radius);
+        node(centerX[k] - radius / 2, centerY[k] - radius / 2, radius);
+        child[k] = c;
+    }
+
+    private int node(double x, double y, double w) {
+        if (size == child.length)
+            allocate(2 * size);
+        int k = size++;
+        centerX[k] = x;
+        centerY[k] = y;
+        width[k] = w;
+        child[k] = -1;
+        body[k] = EMPTY;
+        totalMass[k] = totalCenterOfMassX[k] = totalCenterOfMassY[k] = 0.0;
+        return k;
+    }
+
+    private void allocate(int capacity) {
+        child = Arrays.copyOf(child, capacity);
+        body = Arrays.copyOf(body, capacity);
+        centerX = Arrays.copyOf(centerX, capacity);
+        centerY = Arrays.copyOf(centerY, capacity);
+        width = Arrays.copyOf(width, capacity);
+        totalMass = Arrays.copyOf(totalMass, capacity);
+        totalCenterOfMassX = Arrays.copyOf(totalCenterOfMassX, capacity);
+        totalCenterOfMassY = Arrays.copyOf(totalCenterOfMassY, capacity);
+    }
+
+    private double distance(double dx, double dy) {
+        return Math.sqrt((dx * dx) + (dy * dy));
+    }
+}
@@ -0,0 +1,263 @@
+package task4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * One Barnes-Hut tree per step, built by all threads of a ForkJoinPool
+ * together instead of by a single worker, and shared by every worker in the
+ * force phase.
+ *
+ * The top levels of the tree are a complete quadtree of cells, deep enough
+ * for several cells per pool thread. A build runs in three parallel phases:
+ *
+ *  1. Every chunk of bodies finds the bottom cell of each body, with the
+ *     same quadrant tests as BarnesHutTree, and counts the bodies per cell.
+ *  2. The chunks scatter their bodies into one list per cell, in index
+ *     order, like a counting sort.
+ *  3. Every cell inserts its bodies into its own FlatBarnesHutTree, so below
+ *     the top levels the tree is the same as a BarnesHutTree.
+ *
+ * The mass sums of the top cells are then merged bottom up from the cells
+ * below them. A top cell with one body is a leaf and one without bodies is
+ * empty, like in BarnesHutTree. The tree is not changed again until the
+ * next build, so the workers can read it without locks.
+ */
+public class ParallelBarnesHutTree {
+
+    public final double G = Constants.G;
+    public final double theta;
+
+    private static final int CHUNK = 1 << 12; // bodies per classification task
+    private static final int NE = 0, NW = 1, SE = 2, SW = 3;
+
+    private final Body[] bodies;
+    private final ForkJoinPool pool;
+    private final int depth;   // top levels, cells are at level depth
+    private final int cells;   // 4^depth
+    private final int chunks;
+    private final FlatBarnesHutTree[] subtrees; // [cell]
+
+    private final int[] cell;      // [body] bottom cell
+    private final int[] members;   // bodies sorted by cell
+    private final int[] start;     // [cell] first member of the cell, start[cells] = end
+    private final int[] hist;      // [chunk * cells + cell] counts, then scatter positions
+
+    // Top nodes, level l starts at (4^l - 1) / 3, children of the c:th node of a level are 4c to 4c + 3
+    private final double[] centerX, centerY, width;
+    private final double[] totalMass, totalCenterOfMassX, totalCenterOfMassY;
+    private final int[] count, single; // bodies in the node, the body if there is only one
+
+    public ParallelBarnesHutTree(Body[] bodies, double theta, ForkJoinPool pool) {
+        this.bodies = bodies;
+        this.theta = theta;
+        this.pool = pool;
+        // Enough cells for every thread to get several, so stealing can even out the load
+        int d = 1;
+        while (d < 5 && (1 << (2 * d)) < 8 * pool.getParallelism())
+            d++;
+        this.depth = d;
+        this.cells = 1 << (2 * d);
+        this.chunks = Math.max(1, (bodies.length + CHUNK - 1) / CHUNK);
+        this.subtrees = new FlatBarnesHutTree[cells];
+        for (int c = 0; c < cells; c++)
+            subtrees[c] = new FlatBarnesHutTree(bodies, theta, 4 * bodies.length / cells);
+
+        this.cell = new int[bodies.length];
+        this.members = new int[bodies.length];
+        this.start = new int[cells + 1];
+        this.hist = new int[chunks * cells];
+
+        int nodes = offset(depth + 1);
+        this.centerX = new double[nodes];
+        this.centerY = new double[nodes];
+        this.width = new double[nodes];
+        this.totalMass = new double[nodes];
+        this.totalCenterOfMassX = new double[nodes];
+        this.totalCenterOfMassY = new double[nodes];
+        this.count = new int[nodes];
+        this.single = new int[nodes];
+    }
+
+    /* Builds the tree in the square centered at (centerX, centerY) */
+    public void build(double x, double y, double w) {
+        // Same squares as in BarnesHutTree.insert
+        square(0, x, y, w);
+        for (int l = 0; l < depth; l++) {
+            for (int c = 0; c < (1 << (2 * l)); c++) {
+                int k = offset(l) + c, child = offset(l + 1) + 4 * c;
+                double radius = width[k] / 2.0;
+                square(child + NE, centerX[k] + radius / 2, centerY[k] + radius / 2, radius);
+                square(child + NW, centerX[k] - radius / 2, centerY[k] + radius / 2, radius);
+                square(child + SE, centerX[k] + radius / 2, centerY[k] - radius / 2, radius);
+                square(child + SW, centerX[k] - radius / 2, centerY[k] - radius / 2, radius);
+            }
+        }
+
+        pool.invoke(ForkJoinTask.adapt(() -> {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int k = 0; k < chunks; k++) {
+                int chunk = k;
+                tasks.add(ForkJoinTask.adapt(() -> classify(chunk)));
+            }
+            ForkJoinTask.invokeAll(tasks);
+
+            // Positions in cell major, chunk minor order keep every cell in index order
+            int pos = 0;
+            for (int c = 0; c < cells; c++) {
+                start[c] = pos;
+                for (int k = 0; k < chunks; k++) {
+                    int t = hist[k * cells + c];
+                    hist[k * cells + c] = pos;
+                    pos += t;
+                }
+            }
+            start[cells] = pos;
+
+            tasks.clear();
+            for (int k = 0; k < chunks; k++) {
+                int chunk = k;
+                tasks.add(ForkJoinTask.adapt(() -> scatter(chunk)));
+            }
+            ForkJoinTask.invokeAll(tasks);
+
+            tasks.clear();
+            for (int c = 0; c < cells; c++) {
+                int bottom = c;
+                tasks.add(ForkJoinTask.adapt(() -> subtree(bottom)));
+            }
+            ForkJoinTask.invokeAll(tasks);
+        }));
+        merge();
+    }
+
+    /* Approximates the net force on body i from all bodies in the tree, like BarnesHutTree.updateForce, returns the interactions */
+    public int updateForce(int i) {
+        return updateForce(0, 0, 0, bodies[i], i);
+    }
+
+    /* Bodies of the tree in cell order, every cell in index order */
+    public int[] order() {
+        return members;
+    }
+
+    private int updateForce(int l, int c, int k, Body newBody, int i) {
+        if (l == depth)
+            return subtrees[c].updateForce(i);
+        if (count[k] == 0 || single[k] == i)
+            return 0;
+        if (count[k] == 1) {
+            Body b = bodies[single[k]];
+            double dx = b.x - newBody.x;
+            double dy = b.y - newBody.y;
+            double distance = distance(dx, dy);
+            double F = G * b.mass * newBody.mass / (distance * distance);
+            newBody.addForce(F * dx / distance, F * dy / distance);
+            return 1;
+        }
+        double dx = totalCenterOfMassX[k] / totalMass[k] - newBody.x;
+        double dy = totalCenterOfMassY[k] / totalMass[k] - newBody.y;
+        double distance = distance(dx, dy);
+        if (width[k] / distance < theta) {
+            double F = G * totalMass[k] * newBody.mass / (distance * distance);
+            newBody.addForce(F * dx / distance, F * dy / distance);
+            return 1;
+        }
+        int first = 4 * c, base = offset(l + 1);
+        return updateForce(l + 1, first + NW, base + first + NW, newBody, i)
+                + updateForce(l + 1, first + SW, base + first + SW, newBody, i)
+                + updateForce(l + 1, first + SE, base + first + SE, newBody, i)
+                + updateForce(l + 1, first + NE, base + first + NE, newBody, i);
+    }
+
+    /* Bottom cells of the bodies in the chunk, counted per cell */
+    private void classify(int chunk) {
+        int base = chunk * cells;
+        for (int c = 0; c < cells; c++)
+            hist[base + c] = 0;
+        for (int i = chunk * CHUNK, end = Math.min(i + CHUNK, bodies.length); i < end; i++) {
+            int c = locate(bodies[i].x, bodies[i].y);
+            cell[i] = c;
+            hist[base + c]++;
+        }
+    }
+
+    private void scatter(int chunk) {
+        int base = chunk * cells;
+        for (int i = chunk * CHUNK, end = Math.min(i + CHUNK, bodies.length); i < end; i++)
+            members[hist[base + cell[i]]++] = i;
+    }
+
+    /* Builds the tree of bottom cell c and sums its mass */
+    private void subtree(int c) {
+        int k = offset(depth) + c;
+        FlatBarnesHutTree tree = subtrees[c];
+        tree.reset(centerX[k], centerY[k], width[k]);
+        double m = 0.0, mx = 0.0, my = 0.0;
+        for (int r = start[c]; r < start[c + 1]; r++) {
+            Body b = bodies[members[r]];
+            tree.insert(members[r]);
+            m += b.mass;
+            mx += b.mass * b.x;
+            my += b.mass * b.y;
+        }
+        node(k, start[c + 1] - start[c], m, mx, my, start[c + 1] > start[c] ? members[start[c]] : -1);
+    }
+
+    /* Top cells from the ones below them */
+    private void merge() {
+        for (int l = depth - 1; l >= 0; l--) {
+            for (int c = 0; c < (1 << (2 * l)); c++) {
+                int n = 0, one = -1;
+                double m = 0.0, mx = 0.0, my = 0.0;
+                for (int q = offset(l + 1) + 4 * c, end = q + 4; q < end; q++) {
+                    n += count[q];
+                    m += totalMass[q];
+                    mx += totalCenterOfMassX[q];
+                    my += totalCenterOfMassY[q];
+                    if (count[q] > 0)
+                        one = single[q];
+                }
+                node(offset(l) + c, n, m, mx, my, one);
+            }
+        }
+    }
+
+    private void node(int k, int n, double m, double mx, double my, int one) {
+        count[k] = n;
+        single[k] = n == 1 ? one : -1;
+        totalMass[k] = m;
+        totalCenterOfMassX[k] = mx;
+        totalCenterOfMassY[k] = my;
+    }
+
+    /* Bottom cell containing (x, y), quadrants picked like BarnesHutTree.insert */
+    private int locate(double x, double y) {
+        int c = 0;
+        for (int l = 0; l < depth; l++) {
+            int k = offset(l) + c;
+            if (x > centerX[k])
+                c = 4 * c + (y > centerY[k] ? NE : SE);
+            else
+                c = 4 * c + (y > centerY[k] ? NW : SW);
+        }
+        return c;
+    }
+
+    private void square(int k, double x, double y, double w) {
+        centerX[k] = x;
+        centerY[k] = y;
+        width[k] = w;
+    }
+
+    private double distance(double dx, double dy) {
+        return Math.sqrt((dx * dx) + (dy * dy));
+    }
+
+    /* First top node of level l */
+    private static int offset(int l) {
+        return ((1 << (2 * l)) - 1) / 3;
+    }
+}
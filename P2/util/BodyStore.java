@@ -0,0 +1,66 @@
+package util;
+
+import util.Util.Point;
+
+/**
+ * Structure-of-arrays storage for the bodies of a simulation.
+ *
+ * Every property lives in its own primitive array so the force and move
+ * loops can stream through memory without allocating or chasing pointers.
+ * The Point views are only meant for printing with Util.printArrays.
+ *
+ * A position buffer shares everything but the positions with its store,
+ * so a step can read one set of positions and write the other.
+ */
+public class BodyStore {
+
+    public final int n;
+
+    public final double[] x, y;   // position
+    public final double[] vx, vy; // velocity
+    public final double[] fx, fy; // force
+    public final double[] m;      // mass
+
+    public BodyStore(int n) {
+        this.n = n;
+        this.x = new double[n];
+        this.y = new double[n];
+        this.vx = new double[n];
+        this.vy = new double[n];
+        this.fx = new double[n];
+        this.fy = new double[n];
+        this.m = new double[n];
+    }
+
+    private BodyStore(BodyStore shared, double[] x, double[] y) {
+        this.n = shared.n;
+        this.x = x;
+        this.y = y;
+        this.vx = shared.vx;
+        this.vy = shared.vy;
+        this.fx = shared.fx;
+        this.fy = shared.fy;
+        this.m = shared.m;
+    }
+
+    /* Store with its own copy of the positions, sharing all other arrays with this one */
+    public BodyStore positionBuffer() {
+        return new BodyStore(this, x.clone(), y.clone());
+    }
+
+    /* Copies the positions into Point objects, only used for printing */
+    public Point[] positions() {
+        Point[] ps = new Point[n];
+        for (int i = 0; i < n; i++)
+            ps[i] = new Point(x[i], y[i]);
+        return ps;
+    }
+
+    /* Copies the velocities into Point objects, only used for printing */
+    public Point[] velocities() {
+        Point[] vs = new Point[n];
+        for (int i = 0; i < n; i++)
+            vs[i] = new Point(vx[i], vy[i]);
+        return vs;
+    }
+}
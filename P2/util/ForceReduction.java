@@ -0,0 +1,190 @@
+package util;
+
+/**
+ * Per-worker force buffers and the reduction that merges them.
+ *
+ * Bodies are grouped into blocks of blockSize bodies. Every worker owns one
+ * flat x and one flat y array holding a segment for each block it writes
+ * forces to, in block order. Segments are rounded up to whole cache lines and
+ * every array ends with a pad line, so two workers never write to the same line.
+ *
+ * Only touched blocks get a segment, so when the force schedule lets each
+ * worker touch a small part of the bodies the memory grows slower than P * N.
+ * In the dense layout every worker touches every block and the segment of
+ * block k starts at k * blockSize, so the buffers can be indexed by body.
+ *
+ * The buffers are the largest allocation of the brute force versions, so the
+ * simulations size them against budget(), set with -Dnbody.memory=<bytes>
+ * (k, m and g suffixes allowed, default half of the free heap).
+ */
+public class ForceReduction {
+
+    public static final int LINE = 8; // doubles per 64 byte cache line
+
+    public final int n;
+    public final int numWorkers;
+    public final int blockSize;
+    public final int numBlocks;
+
+    private final double[][] fx, fy;   // per worker buffers
+    private final int[][] offset;      // [worker][block], -1 if not touched
+    private final int[][] contributors; // [block] workers that touched it
+
+    /**
+     * @param touched touched[w][k] is true if worker w writes forces to block k
+     */
+    public ForceReduction(int n, int numWorkers, int blockSize, boolean[][] touched) {
+        this.n = n;
+        this.numWorkers = numWorkers;
+        this.blockSize = blockSize;
+        this.numBlocks = (n + blockSize - 1) / blockSize;
+        this.fx = new double[numWorkers][];
+        this.fy = new double[numWorkers][];
+        this.offset = new int[numWorkers][numBlocks];
+        this.contributors = new int[numBlocks][];
+
+        int segment = roundUp(blockSize);
+        int[] count = new int[numBlocks];
+        for (int w = 0; w < numWorkers; w++) {
+            int length = 0;
+            for (int k = 0; k < numBlocks; k++) {
+                if (touched[w][k]) {
+                    offset[w][k] = length;
+                    length += segment;
+                    count[k]++;
+                } else {
+                    offset[w][k] = -1;
+                }
+            }
+            fx[w] = new double[length + LINE];
+            fy[w] = new double[length + LINE];
+        }
+        for (int k = 0; k < numBlocks; k++) {
+            contributors[k] = new int[count[k]];
+            for (int w = 0, c = 0; w < numWorkers; w++)
+                if (touched[w][k])
+                    contributors[k][c++] = w;
+        }
+    }
+
+    /* Every worker touches every block, buffers can be indexed by body */
+    public static ForceReduction dense(int n, int numWorkers, int blockSize) {
+        if (blockSize % LINE != 0)
+            throw new IllegalArgumentException("Block size must be a multiple of " + LINE);
+        int numBlocks = (n + blockSize - 1) / blockSize;
+        boolean[][] touched = new boolean[numWorkers][numBlocks];
+        for (boolean[] row : touched)
+            java.util.Arrays.fill(row, true);
+        return new ForceReduction(n, numWorkers, blockSize, touched);
+    }
+
+    public double[] fx(int worker) {
+        return fx[worker];
+    }
+
+    public double[] fy(int worker) {
+        return fy[worker];
+    }
+
+    /* Start of the block's segment in the worker's buffers, -1 if not touched */
+    public int offset(int worker, int block) {
+        return offset[worker][block];
+    }
+
+    /* Workers that write forces to the block */
+    public int[] contributors(int block) {
+        return contributors[block];
+    }
+
+    /**
+     * Sums the segments of every worker that touched the block into
+     * outX/outY (indexed by body) and clears them for the next step.
+     * Segments are added pairwise, in a tree, which keeps the rounding
+     * error at O(log P) instead of O(P).
+     */
+    public void reduce(int block, double[] outX, double[] outY) {
+        int[] cs = contributors[block];
+        int start = block * blockSize;
+        int len = Math.min(blockSize, n - start);
+
+        if (cs.length == 0) {
+            for (int t = 0; t < len; t++)
+                outX[start + t] = outY[start + t] = 0.0;
+            return;
+        }
+        for (int stride = 1; stride < cs.length; stride *= 2) {
+            for (int c = 0; c + stride < cs.length; c += 2 * stride) {
+                add(cs[c], cs[c + stride], block, len);
+            }
+        }
+        int w = cs[0];
+        int off = offset[w][block];
+        double[] bx = fx[w], by = fy[w];
+        for (int t = 0; t < len; t++) {
+            outX[start + t] = bx[off + t];
+            outY[start + t] = by[off + t];
+            bx[off + t] = by[off + t] = 0.0;
+        }
+    }
+
+    /* Adds the block segment of worker src into the one of worker dst, clearing src */
+    private void add(int dst, int src, int block, int len) {
+        int d = offset[dst][block], s = offset[src][block];
+        double[] dx = fx[dst], dy = fy[dst], sx = fx[src], sy = fy[src];
+        for (int t = 0; t < len; t++) {
+            dx[d + t] += sx[s + t];
+            dy[d + t] += sy[s + t];
+            sx[s + t] = sy[s + t] = 0.0;
+        }
+    }
+
+    /* Bytes the dense layout would allocate */
+    public static long denseBytes(int n, int numWorkers, int blockSize) {
+        long numBlocks = (n + blockSize - 1) / blockSize;
+        return 16L * numWorkers * (numBlocks * roundUp(blockSize) + LINE);
+    }
+
+    /* Bytes a layout with the given touched blocks would allocate */
+    public static long bytes(boolean[][] touched, int blockSize) {
+        long total = 0;
+        for (boolean[] row : touched) {
+            long count = 0;
+            for (boolean t : row)
+                if (t)
+                    count++;
+            total += 16L * (count * roundUp(blockSize) + LINE);
+        }
+        return total;
+    }
+
+    /* Memory budget for the force buffers in bytes */
+    public static long budget() {
+        String value = System.getProperty("nbody.memory");
+        if (value == null) {
+            Runtime rt = Runtime.getRuntime();
+            return (rt.maxMemory() - (rt.totalMemory() - rt.freeMemory())) / 2;
+        }
+        value = value.trim().toLowerCase();
+        int shift = switch (value.charAt(value.length() - 1)) {
+            case 'g' -> 30;
+            case 'm' -> 20;
+            case 'k' -> 10;
+            default -> 0;
+        };
+        if (shift > 0)
+            value = value.substring(0, value.length() - 1);
+        return Long.parseLong(value) << shift;
+    }
+
+    /* Bytes held by the force buffers */
+    public long bytes() {
+        long total = 0;
+        for (int w = 0; w < numWorkers; w++)
+            total += 8L * (fx[w].length + fy[w].length);
+        return total;
+    }
+
+    private static int roundUp(int size) {
+        return (size + LINE - 1) / LINE * LINE;
+    }
+}
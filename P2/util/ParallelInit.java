@@ -0,0 +1,53 @@
+package util;
+
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Parallel generation of initial conditions.
+ *
+ * The bodies are cut into fixed size blocks and every block gets its own
+ * SplittableRandom, split from one root generator in block order. The
+ * result therefore only depends on the seed, not on how many threads ran
+ * the blocks, and no generator is shared between threads.
+ *
+ * The seed is read from -Dnbody.seed, a random seed is used if it is not set.
+ */
+public final class ParallelInit {
+
+    public static final int BLOCK = 4096;
+
+    /* Initializes body i from its block's random stream */
+    public interface Initializer {
+        void init(int i, SplittableRandom rand);
+    }
+
+    private ParallelInit() {
+    }
+
+    public static long seed() {
+        String seed = System.getProperty("nbody.seed");
+        return seed != null ? Long.parseLong(seed) : new SplittableRandom().nextLong();
+    }
+
+    /* Runs init for every body in [from, to) */
+    public static void run(int from, int to, long seed, Initializer init) {
+        int numBlocks = (int) (((long) to - from + BLOCK - 1) / BLOCK);
+        SplittableRandom root = new SplittableRandom(seed);
+        SplittableRandom[] rands = new SplittableRandom[numBlocks];
+        for (int k = 0; k < numBlocks; k++)
+            rands[k] = root.split();
+
+        IntStream.range(0, numBlocks).parallel().forEach(k -> {
+            int start = from + k * BLOCK;
+            int end = (int) Math.min((long) start + BLOCK, to);
+            for (int i = start; i < end; i++)
+                init.init(i, rands[k]);
+        });
+    }
+
+    /* Uniform random number in [min, max) */
+    public static double interval(SplittableRandom rand, double min, double max) {
+        return rand.nextDouble() * (max - min) + min;
+    }
+}
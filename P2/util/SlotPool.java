@@ -0,0 +1,52 @@
+package util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ForkJoinPool for the engines whose tasks write to the dense force buffers
+ * of ForceReduction.dense, one slot per thread.
+ *
+ * The pool never grows past numWorkers threads and every thread takes a
+ * free slot when it starts and returns it when it retires, so slot() of two
+ * running threads is never the same.
+ */
+public final class SlotPool {
+
+    private SlotPool() {
+    }
+
+    /* Pool that never grows past numWorkers threads, each holding one buffer slot */
+    public static ForkJoinPool create(int numWorkers) {
+        ConcurrentLinkedQueue<Integer> freeSlots = new ConcurrentLinkedQueue<>();
+        for (int w = 0; w < numWorkers; w++)
+            freeSlots.add(w);
+        return new ForkJoinPool(numWorkers, pool -> new SlotThread(pool, freeSlots), null, false,
+                numWorkers, numWorkers, 0, null, 60, TimeUnit.SECONDS);
+    }
+
+    /* Buffer slot of the pool thread running the caller */
+    public static int slot() {
+        return ((SlotThread) Thread.currentThread()).slot;
+    }
+
+    /* Pool thread holding a force buffer slot, returned when the thread retires */
+    private static class SlotThread extends ForkJoinWorkerThread {
+        final int slot;
+        final ConcurrentLinkedQueue<Integer> freeSlots;
+
+        SlotThread(ForkJoinPool pool, ConcurrentLinkedQueue<Integer> freeSlots) {
+            super(pool);
+            this.freeSlots = freeSlots;
+            this.slot = freeSlots.remove();
+        }
+
+        @Override
+        protected void onTermination(Throwable exception) {
+            freeSlots.add(slot);
+            super.onTermination(exception);
+        }
+    }
+}
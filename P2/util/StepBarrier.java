@@ -0,0 +1,195 @@
+package util;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Barrier between the phases of a simulation step.
+ *
+ * Every party calls await with its own worker id in [0, parties). The action,
+ * if any, is run by one thread after all parties arrived and before any of
+ * them is released, like the barrier action of a CyclicBarrier.
+ *
+ * Implementations, picked by name (-Dnbody.barrier in the simulations):
+ *  cyclic:  java.util.concurrent.CyclicBarrier, blocks the waiting threads.
+ *  phaser:  java.util.concurrent.Phaser, blocks after a short spin.
+ *  spin:    Sense reversing barrier on one counter, waiting threads spin
+ *           and back off to yield and then short sleeps.
+ *  tree:    Combining tree of spin barriers with fan-in ARITY, so only a few
+ *           threads update each counter. Meant for high core counts.
+ *
+ * The spinning barriers burn a core per waiting thread, so they only pay off
+ * when there are no more workers than cores. With more workers than cores
+ * they skip the spinning and go straight to yielding.
+ */
+public interface StepBarrier {
+
+    int ARITY = 4;
+
+    void await(int worker) throws InterruptedException, BrokenBarrierException;
+
+    static StepBarrier create(String name, int parties, Runnable action) {
+        switch (name) {
+            case "cyclic":
+                return new Cyclic(parties, action);
+            case "phaser":
+                return new Phased(parties, action);
+            case "spin":
+                return new Spin(parties, action);
+            case "tree":
+                return new Tree(parties, action);
+            default:
+                throw new IllegalArgumentException("Unknown barrier: " + name);
+        }
+    }
+
+    /* Spins to spinLimit, then yields, then sleeps for growing periods */
+    static void backoff(int spins, int spinLimit) throws InterruptedException {
+        if (spins < spinLimit) {
+            Thread.onSpinWait();
+        } else if (spins < spinLimit + (1 << 10)) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(Math.min(1L << ((spins - spinLimit) >> 8), 100_000));
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+    }
+
+    /* Spinning only helps if every waiting thread has a core of its own */
+    static int spinLimit(int parties) {
+        return parties <= Runtime.getRuntime().availableProcessors() ? 1 << 10 : 0;
+    }
+
+    class Cyclic implements StepBarrier {
+        private final CyclicBarrier barrier;
+
+        Cyclic(int parties, Runnable action) {
+            this.barrier = new CyclicBarrier(parties, action);
+        }
+
+        @Override
+        public void await(int worker) throws InterruptedException, BrokenBarrierException {
+            barrier.await();
+        }
+    }
+
+    class Phased implements StepBarrier {
+        private final Phaser phaser;
+
+        Phased(int parties, Runnable action) {
+            this.phaser = new Phaser(parties) {
+                @Override
+                protected boolean onAdvance(int phase, int registeredParties) {
+                    if (action != null)
+                        action.run();
+                    return false; // never terminate
+                }
+            };
+        }
+
+        @Override
+        public void await(int worker) throws InterruptedException {
+            phaser.awaitAdvanceInterruptibly(phaser.arrive());
+        }
+    }
+
+    class Spin implements StepBarrier {
+        private static final int PAD = 16; // one local sense per 64 byte line
+
+        private final int parties;
+        private final int spinLimit;
+        private final Runnable action;
+        private final AtomicInteger count;
+        private final int[] localSense;
+        private volatile int sense;
+
+        Spin(int parties, Runnable action) {
+            this.parties = parties;
+            this.spinLimit = spinLimit(parties);
+            this.action = action;
+            this.count = new AtomicInteger(parties);
+            this.localSense = new int[parties * PAD];
+        }
+
+        @Override
+        public void await(int worker) throws InterruptedException {
+            int s = localSense[worker * PAD] ^= 1;
+            if (count.decrementAndGet() == 0) {
+                // Last one in resets the counter and flips the sense to release the others
+                count.set(parties);
+                if (action != null)
+                    action.run();
+                sense = s;
+            } else {
+                for (int spins = 0; sense != s; spins++)
+                    StepBarrier.backoff(spins, spinLimit);
+            }
+        }
+    }
+
+    class Tree implements StepBarrier {
+        private static final int PAD = 16;
+
+        private final int spinLimit;
+        private final Runnable action;
+        private final Node[] leaves; // leaf of worker w is leaves[w / ARITY]
+        private final int[] localSense;
+
+        Tree(int parties, Runnable action) {
+            this.spinLimit = spinLimit(parties);
+            this.action = action;
+            this.localSense = new int[parties * PAD];
+
+            // Build the tree bottom up, every node counts up to ARITY children
+            Node[] level = new Node[(parties + ARITY - 1) / ARITY];
+            for (int k = 0; k < level.length; k++)
+                level[k] = new Node(Math.min(ARITY, parties - k * ARITY));
+            this.leaves = level;
+            while (level.length > 1) {
+                Node[] up = new Node[(level.length + ARITY - 1) / ARITY];
+                for (int k = 0; k < up.length; k++)
+                    up[k] = new Node(Math.min(ARITY, level.length - k * ARITY));
+                for (int k = 0; k < level.length; k++)
+                    level[k].parent = up[k / ARITY];
+                level = up;
+            }
+        }
+
+        @Override
+        public void await(int worker) throws InterruptedException {
+            int s = localSense[worker * PAD] ^= 1;
+            arrive(leaves[worker / ARITY], s);
+        }
+
+        /* The last child to arrive at a node continues to the parent, the others wait here */
+        private void arrive(Node node, int s) throws InterruptedException {
+            if (node.count.decrementAndGet() == 0) {
+                if (node.parent != null)
+                    arrive(node.parent, s);
+                else if (action != null)
+                    action.run();
+                node.count.set(node.parties);
+                node.sense = s;
+            } else {
+                for (int spins = 0; node.sense != s; spins++)
+                    StepBarrier.backoff(spins, spinLimit);
+            }
+        }
+
+        private static class Node {
+            final int parties;
+            final AtomicInteger count;
+            volatile int sense;
+            Node parent;
+
+            Node(int parties) {
+                this.parties = parties;
+                this.count = new AtomicInteger(parties);
+            }
+        }
+    }
+}
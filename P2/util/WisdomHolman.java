@@ -0,0 +1,223 @@
+package util;
+
+/**
+ * Wisdom-Holman integrator for systems dominated by body 0, in democratic
+ * heliocentric coordinates (Duncan, Levison and Lee): positions relative to
+ * body 0, velocities relative to the center of mass.
+ *
+ * Leapfrog moves every body on a straight line between two kicks, so the
+ * step has to be small against the orbit around body 0. Here a step is
+ * split into three parts that are each solved exactly:
+ *
+ *  - Kepler: every body moves on its own orbit around body 0, see drift.
+ *  - Interaction: the forces between the other bodies kick the velocities.
+ *  - Sun: body 0 moves by the momentum of the others, which shifts all
+ *    heliocentric positions by the same amount.
+ *
+ * A step is sun(dt / 2) kick(dt / 2) kepler(dt) kick(dt / 2) sun(dt / 2).
+ * Its error comes from the interaction forces only, which are small next
+ * to the pull of body 0, so the step can be much longer than a leapfrog
+ * step of the same accuracy.
+ *
+ * The interaction forces come from any engine through Forces, with body 0
+ * made massless. They only depend on the differences of the positions, so
+ * the sun drift between two steps does not change them: the forces at the
+ * end of a step are the ones at the start of the next and every step
+ * computes them once.
+ */
+public class WisdomHolman {
+
+    /* Forces between bodies 1 to n - 1 at (x, y) into fx, fy, with body 0 massless at (x[0], y[0]) */
+    public interface Forces {
+        void compute(double[] x, double[] y, double[] fx, double[] fy);
+    }
+
+    private static final int ITERATIONS = 64; // of the Kepler solver
+    private static final double TOLERANCE = 1e-15;
+    private static final double ROUNDING = 1e-10; // steps below this that do not shrink are rounding
+
+    private final int n;
+    private final double mu; // G times the mass of body 0, in the force law of the simulation
+    private final double[] m;
+    private final double[] qx, qy; // heliocentric positions
+    private final double[] vx, vy; // barycentric velocities
+    private final double[] fx, fy; // interaction forces at the current positions
+    private boolean forces; // fx, fy hold the forces of the current positions
+    private double mass, cx, cy, cvx, cvy; // total mass, center of mass and its velocity
+
+    public WisdomHolman(int n, double mu) {
+        this.n = n;
+        this.mu = mu;
+        this.m = new double[n];
+        this.qx = new double[n];
+        this.qy = new double[n];
+        this.vx = new double[n];
+        this.vy = new double[n];
+        this.fx = new double[n];
+        this.fy = new double[n];
+    }
+
+    /* Takes the state of the bodies, in inertial coordinates */
+    public void load(double[] x, double[] y, double[] vx, double[] vy, double[] m) {
+        mass = cx = cy = cvx = cvy = 0.0;
+        for (int i = 0; i < n; i++) {
+            this.m[i] = m[i];
+            mass += m[i];
+            cx += m[i] * x[i];
+            cy += m[i] * y[i];
+            cvx += m[i] * vx[i];
+            cvy += m[i] * vy[i];
+        }
+        cx /= mass;
+        cy /= mass;
+        cvx /= mass;
+        cvy /= mass;
+        for (int i = 1; i < n; i++) {
+            qx[i] = x[i] - x[0];
+            qy[i] = y[i] - y[0];
+            this.vx[i] = vx[i] - cvx;
+            this.vy[i] = vy[i] - cvy;
+        }
+        forces = false;
+    }
+
+    /* Writes the state of the bodies back, in inertial coordinates */
+    public void store(double[] x, double[] y, double[] vx, double[] vy) {
+        // Body 0 sits where the center of mass is where it has to be
+        double sx = 0.0, sy = 0.0, px = 0.0, py = 0.0;
+        for (int i = 1; i < n; i++) {
+            sx += m[i] * qx[i];
+            sy += m[i] * qy[i];
+            px += m[i] * this.vx[i];
+            py += m[i] * this.vy[i];
+        }
+        x[0] = cx - sx / mass;
+        y[0] = cy - sy / mass;
+        vx[0] = cvx - px / m[0];
+        vy[0] = cvy - py / m[0];
+        for (int i = 1; i < n; i++) {
+            x[i] = qx[i] + x[0];
+            y[i] = qy[i] + y[0];
+            vx[i] = this.vx[i] + cvx;
+            vy[i] = this.vy[i] + cvy;
+        }
+    }
+
+    /* One step of length dt */
+    public void step(double dt, Forces engine) {
+        sun(dt / 2);
+        if (!forces)
+            engine.compute(qx, qy, fx, fy);
+        kick(dt / 2);
+        for (int i = 1; i < n; i++)
+            drift(i, dt);
+        engine.compute(qx, qy, fx, fy);
+        forces = true;
+        kick(dt / 2);
+        sun(dt / 2);
+        cx += cvx * dt;
+        cy += cvy * dt;
+    }
+
+    /* Shifts all heliocentric positions by the motion of body 0 */
+    private void sun(double dt) {
+        double px = 0.0, py = 0.0;
+        for (int i = 1; i < n; i++) {
+            px += m[i] * vx[i];
+            py += m[i] * vy[i];
+        }
+        for (int i = 1; i < n; i++) {
+            qx[i] += dt * px / m[0];
+            qy[i] += dt * py / m[0];
+        }
+    }
+
+    private void kick(double dt) {
+        for (int i = 1; i < n; i++) {
+            vx[i] += dt * fx[i] / m[i];
+            vy[i] += dt * fy[i] / m[i];
+        }
+    }
+
+    /**
+     * Moves body i for dt along its orbit around body 0, for any orbit:
+     * bound, parabolic or unbound. With the universal anomaly chi, Kepler's
+     * equation is
+     *  sigma0 chi^2 C(z) + (1 - alpha r0) chi^3 S(z) + r0 chi = sqrt(mu) dt,
+     * z = alpha chi^2, alpha = 1 / a and sigma0 = r0 . v0 / sqrt(mu). Its
+     * derivative in chi is the new distance r. Laguerre's method solves it,
+     * the new state then follows from the Lagrange coefficients f, g and
+     * their derivatives (Danby, Fundamentals of Celestial Mechanics).
+     */
+    private void drift(int i, double dt) {
+        double x = qx[i], y = qy[i], u = vx[i], v = vy[i];
+        double r0 = Math.sqrt(x * x + y * y);
+        double sqrtMu = Math.sqrt(mu);
+        double alpha = 2.0 / r0 - (u * u + v * v) / mu;
+        double sigma0 = (x * u + y * v) / sqrtMu;
+        double beta = 1.0 - alpha * r0;
+
+        double chi = alpha > 0.0 ? sqrtMu * dt * alpha : sqrtMu * dt / r0;
+        if (alpha < 0.0) {
+            // Close to body 0 the guess above overshoots by orders of magnitude, cosh(chi) overflows (Vallado)
+            double a = 1.0 / alpha;
+            double arg = -2.0 * mu * alpha * dt / (sigma0 * sqrtMu + Math.sqrt(-mu * a) * beta);
+            if (arg > 1.0)
+                chi = Math.min(chi, Math.sqrt(-a) * Math.log(arg));
+        }
+        double c = 0.5, s = 1.0 / 6.0, r = r0, last = Double.POSITIVE_INFINITY;
+        for (int k = 0; k < ITERATIONS; k++) {
+            double z = alpha * chi * chi;
+            c = stumpffC(z);
+            s = stumpffS(z);
+            double f = sigma0 * chi * chi * c + beta * chi * chi * chi * s + r0 * chi - sqrtMu * dt;
+            r = sigma0 * chi * (1.0 - z * s) + beta * chi * chi * c + r0;
+            double f2 = sigma0 * (1.0 - z * c) + beta * chi * (1.0 - z * s);
+            // Laguerre's step of order 5
+            double root = Math.sqrt(Math.abs(16.0 * r * r - 20.0 * f * f2));
+            double delta = 5.0 * f / (r + Math.copySign(root, r));
+            chi -= delta;
+            // Close to body 0 rounding keeps delta above the tolerance, it stops shrinking there
+            double scale = Math.max(Math.abs(chi), 1.0);
+            if (Math.abs(delta) <= TOLERANCE * scale || Math.abs(delta) >= last && Math.abs(delta) <= ROUNDING * scale)
+                break;
+            last = Math.abs(delta);
+        }
+        double z = alpha * chi * chi;
+        c = stumpffC(z);
+        s = stumpffS(z);
+        r = sigma0 * chi * (1.0 - z * s) + beta * chi * chi * c + r0;
+
+        double f = 1.0 - chi * chi * c / r0;
+        double g = dt - chi * chi * chi * s / sqrtMu;
+        double fDot = sqrtMu / (r * r0) * chi * (z * s - 1.0);
+        double gDot = 1.0 - chi * chi * c / r;
+        qx[i] = f * x + g * u;
+        qy[i] = f * y + g * v;
+        vx[i] = fDot * x + gDot * u;
+        vy[i] = fDot * y + gDot * v;
+    }
+
+    /* Stumpff function C(z) = (1 - cos sqrt(z)) / z */
+    private static double stumpffC(double z) {
+        if (Math.abs(z) < 1e-2)
+            return 1.0 / 2 - z * (1.0 / 24 - z * (1.0 / 720 - z * (1.0 / 40320 - z / 3628800)));
+        if (z > 0) {
+            double h = Math.sin(Math.sqrt(z) / 2);
+            return 2 * h * h / z;
+        }
+        return (Math.cosh(Math.sqrt(-z)) - 1) / -z;
+    }
+
+    /* Stumpff function S(z) = (sqrt(z) - sin sqrt(z)) / z^3/2 */
+    private static double stumpffS(double z) {
+        if (Math.abs(z) < 1e-2)
+            return 1.0 / 6 - z * (1.0 / 120 - z * (1.0 / 5040 - z * (1.0 / 362880 - z / 39916800)));
+        if (z > 0) {
+            double w = Math.sqrt(z);
+            return (w - Math.sin(w)) / (z * w);
+        }
+        double w = Math.sqrt(-z);
+        return (Math.sinh(w) - w) / (-z * w);
+    }
+}
@@ -9,11 +9,14 @@
  *  java task1.Nbody.java [gnumBodies] [numSteps] [massOfBodies] [massVariance] [numResultsShown]
  * 
  * where:
- *  gnumBodies: The number of bodies used in the simulation.
- *  numSteps: The number of steps/cycles.
+ *  gnumBodies: The number of bodies used in the simulation (default 240).
+ *  numSteps: The number of steps/cycles (default 400000).
  *  massOfBodies: The mass used for each body.
  *  numResultsShown: The number of results to be printed to stdout.
  * 
+ * The initial conditions are generated in parallel from -Dnbody.seed
+ * (default random), the same seed always gives the same bodies.
+ * 
  * 400_000 steps roughly equates to 15 seconds execution time for 120 bodies
  * on my personal computer. (14887,8 ms median)
  * 
@@ -24,6 +27,8 @@
  */
 package task1;
 
+import util.BodyStore;
+import util.ParallelInit;
 import util.Util;
 import util.Util.*;
 
@@ -40,12 +45,10 @@ public class Nbody {
     public final int gnumBodies;
     public final int numSteps;
     public final double massBody;
+    public final long seed;
 
-    // Data oriented variable storage
-    Point[] p; // x, y coords
-    Point[] v; // x, y velocity
-    Point[] f; // x, y Forces
-    double[] ms; // Mass
+    // Data oriented variable storage, one primitive array per property
+    public final BodyStore b;
 
     /**
      * Simulation of the nbody-problem
@@ -60,79 +63,64 @@ public class Nbody {
         this.gnumBodies = gnumBodies;
         this.numSteps = numSteps;
         this.massBody = massBody;
+        this.seed = ParallelInit.seed();
 
-        this.p = new Point[gnumBodies];
-        this.v = new Point[gnumBodies];
-        this.f = new Point[gnumBodies];
-        this.ms = new double[gnumBodies];
-
-        this.p[0] = new Point(0, 0);
-        this.v[0] = new Point(0, 0);
-        this.f[0] = new Point(0, 0);
-        this.ms[0] = EARTH_MASS * 333.0;
+        this.b = new BodyStore(gnumBodies);
+        this.b.m[0] = EARTH_MASS * 333.0;
 
-        for (int i = 1; i < gnumBodies; i++) {
+        Point sun = new Point(b.x[0], b.y[0]);
+        ParallelInit.run(1, gnumBodies, seed, (i, rand) -> {
             // Random position
-            this.p[i] = Point.getRandPos(this.p[0], RADIUS, MIN_DIST);
+            Point pos = Point.getRandPos(sun, RADIUS, MIN_DIST, rand);
+            b.x[i] = pos.x;
+            b.y[i] = pos.y;
             // Random velocity between [-velBound, velBound]
             // Velocity orthogonal to the direction vector from the sun to current body
-            double vx = (this.p[0].x - this.p[i].x) * START_VEL;
-            double vy = -(this.p[0].y - this.p[i].x) * START_VEL;
-            this.v[i] = new Point(vx, vy);
-            this.f[i] = new Point(0, 0);
+            b.vx[i] = (b.x[0] - b.x[i]) * START_VEL;
+            b.vy[i] = -(b.y[0] - b.x[i]) * START_VEL;
             // Mass with some varaince
-            this.ms[i] = massBody * (1 + randInterval(-massVariance, massVariance));
-        }
+            b.m[i] = massBody * (1 + ParallelInit.interval(rand, -massVariance, massVariance));
+        });
     }
 
     public void calculateForces() {
-        double distance, mag;
-        Point direction;
+        final double[] x = b.x, y = b.y, m = b.m, fx = b.fx, fy = b.fy;
+        double distance, mag, dirX, dirY;
 
         for (int i = 0; i < gnumBodies; i++) {
             for (int j = i + 1; j < gnumBodies; j++) {
-                distance = dist(p[i], p[j]);
-                mag = (G * ms[i] * ms[j]) / (Math.pow(distance, 2) + SOFTENING);
-                direction = new Point(  p[j].x - p[i].x,
-                                        p[j].y - p[i].y);
-                f[i].x += mag * direction.x / distance;
-                f[j].x -= mag * direction.x / distance;
-                f[i].y += mag * direction.y / distance;
-                f[j].y -= mag * direction.y / distance;
+                dirX = x[j] - x[i];
+                dirY = y[j] - y[i];
+                distance = Math.sqrt(dirX * dirX + dirY * dirY);
+                mag = (G * m[i] * m[j]) / (distance * distance + SOFTENING);
+                fx[i] += mag * dirX / distance;
+                fx[j] -= mag * dirX / distance;
+                fy[i] += mag * dirY / distance;
+                fy[j] -= mag * dirY / distance;
             }
         }
     }
 
     public void moveBodies() {
-        Point deltaV, deltaP;
-        
+        final double[] x = b.x, y = b.y, vx = b.vx, vy = b.vy, m = b.m, fx = b.fx, fy = b.fy;
+        double dvx, dvy;
+
         for (int i = 0; i < gnumBodies; i++) {
-            deltaV = new Point( (f[i].x / ms[i]) * DT, 
-                                (f[i].y / ms[i]) * DT);
-            deltaP = new Point( ((v[i].x + deltaV.x) / 2) * DT,
-                                ((v[i].y + deltaV.y) / 2) * DT);
-
-            v[i].x += deltaV.x;
-            v[i].y += deltaV.y;
-            p[i].x += deltaP.x;
-            p[i].y += deltaP.y;
-            f[i].x = f[i].y = 0.0;
+            dvx = (fx[i] / m[i]) * DT;
+            dvy = (fy[i] / m[i]) * DT;
+
+            x[i] += ((vx[i] + dvx) / 2) * DT;
+            y[i] += ((vy[i] + dvy) / 2) * DT;
+            vx[i] += dvx;
+            vy[i] += dvy;
+            fx[i] = fy[i] = 0.0;
         }
     }
 
-    /* Calculates the distance between two Bodys. */
-    public double dist(Point p1, Point p2) {
-        return Math.sqrt(Math.pow((p1.x - p2.x), 2) + Math.pow((p1.y - p2.y), 2));
-    }
-
-    public static double randInterval(double min, double max) {
-        return Math.random() * (max - min) + min;
-    }
-
     public static void main(String[] args) {
 
-        final int MAX_BODIES = 240;
-        final int MAX_STEPS = 400000;
+        final int DEFAULT_BODIES = 240;
+        final int DEFAULT_STEPS = 400000;
 
         int gnumBodies, numSteps;
         long startTime, endTime;
@@ -140,18 +128,17 @@ public class Nbody {
         double massVariance;
         int numResultsShown;
 
-        gnumBodies = (args.length > 0) && (Integer.parseInt(args[0]) < MAX_BODIES) ? Integer.parseInt(args[0])
-                : MAX_BODIES;
-        numSteps = (args.length > 1) && (Integer.parseInt(args[1]) < MAX_STEPS) ? Integer.parseInt(args[1])
-                : MAX_STEPS;
+        gnumBodies = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_BODIES;
+        numSteps = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_STEPS;
         numResultsShown = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
         massOfBodies = (args.length > 3) ? Integer.parseInt(args[3]) : EARTH_MASS;
         massVariance = (args.length > 4) ? Integer.parseInt(args[4]) : 0.1;
 
         Nbody prg = new Nbody(gnumBodies, numSteps, massOfBodies, massVariance);
+        System.out.format("Seed : %d%n", prg.seed);
 
         System.out.println("\n- Initial Conditions -\n");
-        Util.printArrays(prg.p, prg.v, gnumBodies, numResultsShown);
+        Util.printArrays(prg.b, numResultsShown);
 
         startTime = System.nanoTime();
 
@@ -165,7 +152,7 @@ public class Nbody {
         endTime = System.nanoTime() - startTime;
 
         System.out.println("\n- After simulation -\n");
-        Util.printArrays(prg.p, prg.v, gnumBodies, numResultsShown);
+        Util.printArrays(prg.b, numResultsShown);
 
         System.out.format("%n- Simulation executed in %.1f ms -%n", endTime * Math.pow(10, -6));
         System.out.println("---------------------------------");
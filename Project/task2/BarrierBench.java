@@ -0,0 +1,81 @@
+/**
+ * Benchmark of the StepBarrier implementations.
+ *
+ * Usage (from root):
+ *  javac task2/BarrierBench.java
+ *  java task2.BarrierBench [crossings] [threads...]
+ *
+ * where:
+ *  crossings:  Barrier crossings per thread and run (default 200000).
+ *  threads:    Thread counts to test (default 1 2 4 ... up to the number of cores).
+ *
+ * Every thread calls await in a loop with no other work, so the numbers are
+ * the pure synchronization cost a step pays for each barrier.
+ */
+package task2;
+
+import java.util.concurrent.BrokenBarrierException;
+
+import util.StepBarrier;
+
+public class BarrierBench {
+
+    private static final String[] BARRIERS = { "cyclic", "phaser", "spin", "tree" };
+
+    public static void main(String[] args) throws InterruptedException {
+        int crossings = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        int[] threads;
+        if (args.length > 1) {
+            threads = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+                threads[i - 1] = Integer.parseInt(args[i]);
+        } else {
+            int cores = Runtime.getRuntime().availableProcessors();
+            int count = 32 - Integer.numberOfLeadingZeros(cores);
+            threads = new int[count];
+            for (int i = 0; i < count; i++)
+                threads[i] = 1 << i;
+        }
+
+        System.out.format("%-8s", "threads");
+        for (String name : BARRIERS)
+            System.out.format("%12s", name);
+        System.out.format("   (ns per crossing)%n");
+        for (int p : threads) {
+            System.out.format("%-8d", p);
+            for (String name : BARRIERS) {
+                // Warm up, then time
+                run(StepBarrier.create(name, p, null), p, crossings / 10);
+                System.out.format("%12.0f", run(StepBarrier.create(name, p, null), p, crossings));
+            }
+            System.out.println();
+        }
+    }
+
+    /* Runs p threads through the barrier, returns nanoseconds per crossing */
+    private static double run(StepBarrier barrier, int p, int crossings) throws InterruptedException {
+        Thread[] workers = new Thread[p];
+        long[] elapsed = new long[1];
+
+        for (int w = 0; w < p; w++) {
+            int id = w;
+            workers[w] = new Thread(() -> {
+                try {
+                    barrier.await(id);
+                    long t0 = System.nanoTime();
+                    for (int s = 0; s < crossings; s++)
+                        barrier.await(id);
+                    if (id == 0)
+                        elapsed[0] = System.nanoTime() - t0;
+                } catch (InterruptedException | BrokenBarrierException e) {
+                    e.printStackTrace();
+                    Thread.currentThread().interrupt();
+                }
+            });
+            workers[w].start();
+        }
+        for (Thread t : workers)
+            t.join();
+        return (double) elapsed[0] / crossings;
+    }
+}
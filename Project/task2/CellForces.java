@@ -0,0 +1,204 @@
+package task2;
+
+import static task2.Nbody.G;
+import static task2.Nbody.SOFTENING;
+
+import java.util.Arrays;
+import java.util.concurrent.BrokenBarrierException;
+
+import util.BodyStore;
+import util.StepBarrier;
+
+/**
+ * Cell list stepping for the Worker threads: only pairs closer than a
+ * cutoff radius interact, in O(N) per step for a bounded density.
+ *
+ * Every step the bodies are binned into a uniform grid over their bounding
+ * box whose cells are at least cutoff wide, so every partner of a body
+ * within the cutoff is in its own cell or one of the eight around it. The
+ * binning is a parallel counting sort into cell ordered copies of the
+ * positions and masses:
+ *
+ *  1. Count: every worker counts the bodies of its range per cell, in its
+ *     own histogram.
+ *  2. Sum: every worker sums the histograms over its range of cells.
+ *  3. Offsets: every worker turns the counts of its cells into the first
+ *     rank of each worker's bodies in each cell, starting after the cells
+ *     of the workers before it.
+ *  4. Scatter: every worker copies the bodies of its range to their ranks.
+ *
+ * Then, like RowForces, every worker owns a range of ranks and computes
+ * the force on each of those bodies from the nine cells around it. It only
+ * writes its own bodies, so there is nothing to reduce. A body is moved in
+ * place as soon as its force is done, the force pass only reads the sorted
+ * copies. The bounding box of the moved bodies is the one of the next
+ * step.
+ *
+ * The phases are separated by the phases barrier, the step ends on the
+ * barrier of the simulation. The cells are capped at one per body, wider
+ * cells still hold every partner within the cutoff. The histograms are as
+ * long as the grid and only grow when the grid does.
+ */
+public class CellForces {
+
+    private final Nbody prg;
+    private final StepBarrier barrier, phases;
+    private final double cutoff;
+    private final int workers;
+
+    private final double[][] box;  // [worker] minX, maxX, minY, maxY of its bodies
+    private final int[][] hist;    // [worker][cell] count, then first rank, grown with the grid
+    private final int[] rangeSum;  // [worker] bodies in its range of cells
+    private final int[] start;     // [cell] first rank of the cell, [cells] is n
+    private final int[] cellOf;    // [body] cell
+    private final int[] id;        // [rank] body
+    private final double[] sx, sy, sm; // [rank] position and mass
+
+    public CellForces(Nbody prg, StepBarrier barrier, StepBarrier phases, double cutoff) {
+        int n = prg.gnumBodies;
+        this.prg = prg;
+        this.barrier = barrier;
+        this.phases = phases;
+        this.cutoff = cutoff;
+        this.workers = prg.numWorkers;
+        this.box = new double[workers][4];
+        this.hist = new int[workers][1];
+        this.rangeSum = new int[workers];
+        this.start = new int[Math.max(n, 1) + 1];
+        this.cellOf = new int[n];
+        this.id = new int[n];
+        this.sx = new double[n];
+        this.sy = new double[n];
+        this.sm = new double[n];
+        for (int w = 0; w < workers; w++) {
+            double[] bw = box[w];
+            bw[0] = bw[2] = Double.POSITIVE_INFINITY;
+            bw[1] = bw[3] = Double.NEGATIVE_INFINITY;
+            for (int i = (int) ((long) w * n / workers); i < (int) ((long) (w + 1) * n / workers); i++)
+                grow(bw, prg.b.x[i], prg.b.y[i]);
+        }
+    }
+
+    /* Step s of the worker */
+    public void step(int worker, int s) throws InterruptedException, BrokenBarrierException {
+        final int n = prg.gnumBodies;
+        final BodyStore b = prg.b;
+        final double[] x = b.x, y = b.y, m = b.m, fx = b.fx, fy = b.fy;
+        int lo = (int) ((long) worker * n / workers);
+        int hi = (int) ((long) (worker + 1) * n / workers);
+
+        // Grid over the boxes of all workers, every worker gets the same one
+        double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (double[] bw : box) {
+            minX = Math.min(minX, bw[0]);
+            maxX = Math.max(maxX, bw[1]);
+            minY = Math.min(minY, bw[2]);
+            maxY = Math.max(maxY, bw[3]);
+        }
+        int cols = Math.max(1, (int) Math.min((maxX - minX) / cutoff, n));
+        int rows = Math.max(1, (int) Math.min((maxY - minY) / cutoff, n));
+        while ((long) cols * rows > Math.max(n, 1)) {
+            cols = Math.max(1, cols / 2);
+            rows = Math.max(1, rows / 2);
+        }
+        int cells = cols * rows;
+        double cellW = (maxX - minX) / cols, cellH = (maxY - minY) / rows;
+
+        // 1. Count, the other workers read the grown histogram after the barrier
+        if (hist[worker].length < cells)
+            hist[worker] = new int[cells];
+        int[] own = hist[worker];
+        Arrays.fill(own, 0, cells, 0);
+        for (int i = lo; i < hi; i++) {
+            int c = cell(x[i], y[i], minX, minY, cellW, cellH, cols, rows);
+            cellOf[i] = c;
+            own[c]++;
+        }
+        phases.await(worker);
+
+        // 2. Sum
+        int c0 = (int) ((long) worker * cells / workers), c1 = (int) ((long) (worker + 1) * cells / workers);
+        int sum = 0;
+        for (int c = c0; c < c1; c++) {
+            for (int w = 0; w < workers; w++)
+                sum += hist[w][c];
+        }
+        rangeSum[worker] = sum;
+        phases.await(worker);
+
+        // 3. Offsets
+        int rank = 0;
+        for (int w = 0; w < worker; w++)
+            rank += rangeSum[w];
+        for (int c = c0; c < c1; c++) {
+            start[c] = rank;
+            for (int w = 0; w < workers; w++) {
+                int count = hist[w][c];
+                hist[w][c] = rank;
+                rank += count;
+            }
+        }
+        if (worker == workers - 1)
+            start[cells] = n;
+        phases.await(worker);
+
+        // 4. Scatter
+        for (int i = lo; i < hi; i++) {
+            int r = own[cellOf[i]]++;
+            sx[r] = x[i];
+            sy[r] = y[i];
+            sm[r] = m[i];
+            id[r] = i;
+        }
+        phases.await(worker);
+
+        // Forces on the bodies of the worker's ranks from the cells around them, then move them
+        final double cut2 = cutoff * cutoff;
+        double[] bw = box[worker];
+        bw[0] = bw[2] = Double.POSITIVE_INFINITY;
+        bw[1] = bw[3] = Double.NEGATIVE_INFINITY;
+        for (int r = lo; r < hi; r++) {
+            int i = id[r], c = cellOf[i];
+            int cx = c % cols, cy = c / cols;
+            double px = sx[r], py = sy[r], mi = sm[r];
+            double sumX = 0.0, sumY = 0.0;
+            for (int ny = Math.max(cy - 1, 0); ny <= Math.min(cy + 1, rows - 1); ny++) {
+                for (int nx = Math.max(cx - 1, 0); nx <= Math.min(cx + 1, cols - 1); nx++) {
+                    int k = ny * cols + nx;
+                    for (int j = start[k]; j < start[k + 1]; j++) {
+                        double dirX = sx[j] - px;
+                        double dirY = sy[j] - py;
+                        double d2 = dirX * dirX + dirY * dirY;
+                        if (j == r || d2 >= cut2)
+                            continue;
+                        double distance = Math.sqrt(d2);
+                        double mag = (G * mi * sm[j]) / (d2 + SOFTENING);
+                        sumX += mag * dirX / distance;
+                        sumY += mag * dirY / distance;
+                    }
+                }
+            }
+            fx[i] = sumX;
+            fy[i] = sumY;
+            prg.moveRange(i, i + 1, b, b);
+            grow(bw, x[i], y[i]);
+        }
+        barrier.await(worker);
+    }
+
+    /* Cell of the point (px, py), points on the far edges go to the last cells */
+    private static int cell(double px, double py, double minX, double minY, double cellW, double cellH, int cols,
+            int rows) {
+        int cx = cellW > 0.0 ? Math.min(cols - 1, (int) ((px - minX) / cellW)) : 0;
+        int cy = cellH > 0.0 ? Math.min(rows - 1, (int) ((py - minY) / cellH)) : 0;
+        return cy * cols + cx;
+    }
+
+    private static void grow(double[] bw, double px, double py) {
+        bw[0] = Math.min(bw[0], px);
+        bw[1] = Math.max(bw[1], px);
+        bw[2] = Math.min(bw[2], py);
+        bw[3] = Math.max(bw[3], py);
+    }
+}
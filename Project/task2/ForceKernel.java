@@ -0,0 +1,75 @@
+package task2;
+
+import util.BodyStore;
+
+/**
+ * Inner loop of the brute force simulation. A kernel adds the forces between
+ * body i and every body j in [from, to) to both fx/fy[i] and fx/fy[j].
+ * The row variant only writes body i, for workers that own whole rows.
+ *
+ * The vector kernels need the incubator module, both when compiling and running:
+ *  javac --add-modules jdk.incubator.vector task2/*.java
+ *  java --add-modules jdk.incubator.vector -Dnbody.kernel=vector task2.Nbody
+ */
+public interface ForceKernel {
+
+    void interact(int i, int from, int to, double[] x, double[] y, double[] m, double[] fx, double[] fy);
+
+    /* Adds the forces of every body j in [from, to) on body i to fx/fy[i] only, i must not be in the range */
+    void row(int i, int from, int to, double[] x, double[] y, double[] m, double[] fx, double[] fy);
+
+    /* Largest accepted deviation from the scalar kernel, relative to the largest force */
+    default double tolerance() {
+        return 1e-9;
+    }
+
+    /**
+     * Loads a kernel by name: scalar, vector or vector-float.
+     * Falls back to the scalar kernel if the vector module is not available.
+     */
+    static ForceKernel load(String name) {
+        String cls;
+        switch (name) {
+            case "scalar":
+                return new ScalarKernel();
+            case "vector":
+                cls = "task2.VectorKernel";
+                break;
+            case "vector-float":
+                cls = "task2.VectorFloatKernel";
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown force kernel: " + name);
+        }
+        try {
+            return (ForceKernel) Class.forName(cls).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            System.err.format("Warning: kernel %s unavailable (%s), using scalar%n", name, e);
+            return new ScalarKernel();
+        }
+    }
+
+    /* Bodies used by compare, the check is O(n^2) so large runs only test a prefix */
+    int COMPARE_BODIES = 2048;
+
+    /**
+     * Runs one force pass over the first COMPARE_BODIES bodies with both
+     * kernels and returns the largest difference between them, relative to
+     * the largest reference force.
+     */
+    static double compare(ForceKernel kernel, ForceKernel reference, BodyStore b) {
+        int n = Math.min(b.n, COMPARE_BODIES);
+        double[] fx = new double[n], fy = new double[n];
+        double[] rx = new double[n], ry = new double[n];
+        for (int i = 0; i < n; i++) {
+            kernel.interact(i, i + 1, n, b.x, b.y, b.m, fx, fy);
+            reference.interact(i, i + 1, n, b.x, b.y, b.m, rx, ry);
+        }
+        double maxErr = 0.0, maxForce = Double.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            maxErr = Math.max(maxErr, Math.hypot(fx[i] - rx[i], fy[i] - ry[i]));
+            maxForce = Math.max(maxForce, Math.hypot(rx[i], ry[i]));
+        }
+        return maxErr / maxForce;
+    }
+}
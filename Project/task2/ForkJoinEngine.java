@@ -0,0 +1,135 @@
+package task2;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import util.ForceReduction;
+import util.SlotPool;
+
+/**
+ * Fork/join alternative to the Worker threads.
+ *
+ * The upper triangle of the (i, j) pair space is split recursively: a
+ * triangle becomes two half size triangles plus the square between them,
+ * and a square is split into its four quadrants, until a piece is at most
+ * leafSize bodies wide. The pieces run on a work stealing ForkJoinPool, so
+ * idle threads take work from busy ones, and the recursion keeps the bodies
+ * a leaf touches close together at every level of the cache.
+ *
+ * A leaf writes to the force buffer of the pool thread running it. The pool
+ * never grows past numWorkers threads, each thread holds one buffer slot.
+ */
+public class ForkJoinEngine {
+
+    private final Nbody prg;
+    private final int leafSize;
+    private final ForkJoinPool pool;
+
+    public ForkJoinEngine(Nbody prg, int leafSize) {
+        this.prg = prg;
+        this.leafSize = leafSize;
+        this.pool = SlotPool.create(prg.numWorkers);
+        // Every pool thread writes to its own slot of the dense buffers
+        prg.forces = ForceReduction.dense(prg.gnumBodies, prg.numWorkers, Nbody.REDUCE_BLOCK);
+    }
+
+    public void run(int numSteps) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        // The step loop itself runs on a pool thread. Joining from the main
+        // thread could run the root task there and fork outside the pool.
+        pool.execute(() -> {
+            try {
+                for (int s = 0; s < numSteps; s++) {
+                    new Triangle(0, prg.gnumBodies).invoke();
+                    new Move(0, prg.forces.numBlocks).invoke();
+                    Nbody.increment();
+                }
+            } finally {
+                done.countDown();
+            }
+        });
+        done.await();
+        pool.shutdown();
+    }
+
+    /* All pairs i < j with both bodies in [lo, hi) */
+    private class Triangle extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int lo, hi;
+
+        Triangle(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= leafSize) {
+                int w = SlotPool.slot();
+                for (int i = lo; i < hi; i++)
+                    prg.kernel.interact(i, i + 1, hi, prg.b.x, prg.b.y, prg.b.m, prg.forces.fx(w), prg.forces.fy(w));
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new Triangle(lo, mid), new Triangle(mid, hi), new Square(lo, mid, mid, hi));
+        }
+    }
+
+    /* All pairs with i in [i0, i1) and j in [j0, j1), where i1 <= j0 */
+    private class Square extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int i0, i1, j0, j1;
+
+        Square(int i0, int i1, int j0, int j1) {
+            this.i0 = i0;
+            this.i1 = i1;
+            this.j0 = j0;
+            this.j1 = j1;
+        }
+
+        @Override
+        protected void compute() {
+            if (i1 - i0 <= leafSize && j1 - j0 <= leafSize) {
+                int w = SlotPool.slot();
+                for (int i = i0; i < i1; i++)
+                    prg.kernel.interact(i, j0, j1, prg.b.x, prg.b.y, prg.b.m, prg.forces.fx(w), prg.forces.fy(w));
+                return;
+            }
+            int im = (i0 + i1) >>> 1, jm = (j0 + j1) >>> 1;
+            if (i1 - i0 <= leafSize) {
+                invokeAll(new Square(i0, i1, j0, jm), new Square(i0, i1, jm, j1));
+            } else if (j1 - j0 <= leafSize) {
+                invokeAll(new Square(i0, im, j0, j1), new Square(im, i1, j0, j1));
+            } else {
+                invokeAll(new Square(i0, im, j0, jm), new Square(i0, im, jm, j1),
+                        new Square(im, i1, j0, jm), new Square(im, i1, jm, j1));
+            }
+        }
+    }
+
+    /* Reduces and moves the body blocks [lo, hi) */
+    private class Move extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int lo, hi;
+
+        Move(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= 1) {
+                if (hi > lo)
+                    prg.moveBlock(lo);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new Move(lo, mid), new Move(mid, hi));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Idle time of the barrier stepping against the dataflow TaskGraph.
+ *
+ * Usage (from root):
+ *  javac task2/GraphBench.java
+ *  java task2.GraphBench [gnumBodies] [numSteps] [blockSize] [threads...]
+ *
+ * where:
+ *  gnumBodies:  The number of bodies (default 4096).
+ *  numSteps:    Timed steps per run (default 20).
+ *  blockSize:   Tile and block size of both versions (default 256).
+ *  threads:     Thread counts to test (default 2 4 8 16).
+ *
+ * Both versions run the same tiles. The barrier version is the tiled
+ * schedule with two barriers per step, the task graph has no barriers.
+ * Idle time is threads * wall time minus the time spent in force and move
+ * work, so it covers barrier waits as well as load imbalance and scheduling.
+ */
+package task2;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.atomic.LongAdder;
+
+import util.StepBarrier;
+
+public class GraphBench {
+
+    public static void main(String[] args) throws InterruptedException {
+        int gnumBodies = (args.length > 0) ? Integer.parseInt(args[0]) : 4096;
+        int numSteps = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+        int blockSize = (args.length > 2) ? Integer.parseInt(args[2]) : 256;
+        int[] threads = { 2, 4, 8, 16 };
+        if (args.length > 3) {
+            threads = new int[args.length - 3];
+            for (int i = 3; i < args.length; i++)
+                threads[i - 3] = Integer.parseInt(args[i]);
+        }
+
+        System.out.format("%8s %16s %14s %16s %14s %16s%n", "threads", "barrier ms/step", "barrier idle",
+                "graph ms/step", "graph idle", "idle saved ms");
+        for (int p : threads) {
+            // Warm up both, then time
+            barrier(gnumBodies, 2, p, blockSize);
+            graph(gnumBodies, 2, p, blockSize);
+            long[] b = barrier(gnumBodies, numSteps, p, blockSize);
+            long[] g = graph(gnumBodies, numSteps, p, blockSize);
+            long barrierIdle = p * b[0] - b[1], graphIdle = p * g[0] - g[1];
+            System.out.format("%8d %16.2f %13.1f%% %16.2f %13.1f%% %16.2f%n", p,
+                    b[0] * 1e-6 / numSteps, 100.0 * barrierIdle / (p * b[0]),
+                    g[0] * 1e-6 / numSteps, 100.0 * graphIdle / (p * g[0]),
+                    (barrierIdle - graphIdle) * 1e-6 / numSteps);
+        }
+    }
+
+    /* Returns { wall time, busy time } in nanoseconds */
+    private static long[] barrier(int n, int numSteps, int p, int blockSize) throws InterruptedException {
+        Nbody prg = new Nbody(n, numSteps, p, Nbody.EARTH_MASS, 0.1);
+        prg.setupForces(String.valueOf(blockSize), Long.MAX_VALUE);
+        StepBarrier barrier = StepBarrier.create("cyclic", p, null);
+        LongAdder busy = new LongAdder();
+        Thread[] workers = new Thread[p];
+
+        long t0 = System.nanoTime();
+        for (int w = 0; w < p; w++) {
+            int id = w;
+            workers[w] = new Thread(() -> {
+                try {
+                    for (int s = 0; s < numSteps; s++) {
+                        long t = System.nanoTime();
+                        prg.calculateForces(id);
+                        busy.add(System.nanoTime() - t);
+                        barrier.await(id);
+                        t = System.nanoTime();
+                        prg.moveBodies(id);
+                        busy.add(System.nanoTime() - t);
+                        barrier.await(id);
+                    }
+                } catch (InterruptedException | BrokenBarrierException e) {
+                    e.printStackTrace();
+                    Thread.currentThread().interrupt();
+                }
+            });
+            workers[w].start();
+        }
+        for (Thread t : workers)
+            t.join();
+        return new long[] { System.nanoTime() - t0, busy.sum() };
+    }
+
+    private static long[] graph(int n, int numSteps, int p, int blockSize) throws InterruptedException {
+        Nbody prg = new Nbody(n, numSteps, p, Nbody.EARTH_MASS, 0.1);
+        TaskGraph graph = new TaskGraph(prg, numSteps, blockSize);
+        long t0 = System.nanoTime();
+        graph.run();
+        return new long[] { System.nanoTime() - t0, graph.busyNanos() };
+    }
+}
@@ -10,8 +10,8 @@
  *                        [massBody] [massVariance] [speedVariance]
  * 
  * where parameters are:
- *  gnumBodies:         The number of bodies used in the simulation.
- *  numSteps:           The number of steps/cycles.
+ *  gnumBodies:         The number of bodies used in the simulation (default 240).
+ *  numSteps:           The number of steps/cycles (default 400000).
  *  numWorkers:         The number of worker threads.
  *  numResultsShown:    The number of results to be printed to stdout.
  *  massBody:           The mass used for each body.
@@ -20,25 +20,68 @@
  * 
  *  All parameters are optional.
  * 
+ *  The force kernel is picked with -Dnbody.kernel=scalar|vector|vector-float
+ *  (default scalar). The vector kernels need the incubator module:
+ *   javac --add-modules jdk.incubator.vector task2/*.java
+ *   java --add-modules jdk.incubator.vector -Dnbody.kernel=vector task2.Nbody
+ *  The chosen kernel is checked against the scalar one before the simulation starts.
+ * 
+ *  -Dnbody.tile=off|auto|<blockSize> (default off) switches to the cache tiled
+ *  force pass, auto picks the block size from a short calibration run.
+ * 
+ *  -Dnbody.engine=threads|forkjoin|graph (default threads) replaces the Worker
+ *  threads with the fork/join engine, -Dnbody.leaf sets its leaf size (default 64),
+ *  or with the dataflow TaskGraph, which uses -Dnbody.tile=<blockSize> as its
+ *  block size (default 256) and reports how long its threads were idle.
+ * 
+ *  -Dnbody.step=pipelined|barrier (default pipelined) picks how the Worker
+ *  threads synchronize. pipelined double buffers the positions and waits on
+ *  single blocks instead of barriers (see Pipeline), barrier runs two
+ *  barriers per step and -Dnbody.barrier=cyclic|phaser|spin|tree (default
+ *  cyclic) picks their implementation, see util.StepBarrier.
+ * 
+ *  -Dnbody.force=pairs|rows (default pairs) picks how the Worker threads split
+ *  the forces. pairs computes every pair once and reduces per worker force
+ *  buffers, rows gives every worker whole rows of forces on its own bodies,
+ *  twice the arithmetic but no reduction and one barrier per step (see
+ *  RowForces). rows ignores -Dnbody.tile and -Dnbody.step. task2.RowBench
+ *  times both over body and thread counts. -Dnbody.force=cells only
+ *  computes forces between bodies closer than -Dnbody.cutoff (default 40),
+ *  found through a grid of cells rebuilt every step (see CellForces), in
+ *  O(N) per step. It also ignores -Dnbody.tile and -Dnbody.step.
+ * 
+ *  -Dnbody.memory=<bytes> (k, m, g suffixes, default half the free heap) bounds
+ *  the force buffers. Dense buffers over the budget are replaced by the tiled
+ *  layout, the run stops if those do not fit either.
+ * 
+ *  The initial conditions are generated in parallel from -Dnbody.seed
+ *  (default random), the same seed always gives the same bodies.
+ * 
  *  @author Alex Lindberg
  * 
  */
 package task2;
 
-import java.util.Random;
-import java.util.concurrent.CyclicBarrier;
+import java.util.SplittableRandom;
+
+import util.BodyStore;
+import util.ForceReduction;
+import util.ParallelInit;
+import util.StepBarrier;
 
 public class Nbody {
 
     public static final double G = 6.67e-3;
-    public static final int MAX_BODIES = 240;
-    public static final int MAX_STEPS = 400000;
+    public static final int DEFAULT_BODIES = 240;
+    public static final int DEFAULT_STEPS = 400000;
     public static final Double EARTH_MASS = 59.742;
     public static final double RADIUS = 150;
     public static final double MIN_DIST = 80;
     public static final double SOFTENING = 1e5;
     public static final double DT = 0.1;
     public static final double START_VEL = 0.0008;
+    public static final int REDUCE_BLOCK = 256;
+    public static final double CUTOFF = 40; // default cutoff radius of -Dnbody.force=cells
 
     public static int prgCounter = 0;
     public static synchronized void increment() { prgCounter++; }
@@ -48,14 +91,14 @@ public class Nbody {
     public final int gnumBodies;
     public final int numSteps;
     public final int numWorkers;
+    public final long seed;
 
     // Data oriented solution, takes advantage of spatial locality better than
     // if we keep everything in a "body" class
-    Point[] bodies; // x, y coords
-    Point[] vs; // x, y velocity
-    Point[][] fs; // x, y Forces
-    double[] ms; // Mass
-    Random rGen;
+    BodyStore b;
+    ForceReduction forces; // Forces per worker, see setupForces
+    ForceKernel kernel = new ScalarKernel();
+    TiledForces tiles; // null means reverse stripes
 
     /**
      * Simulation of the nbody-problem
@@ -70,107 +113,121 @@ public class Nbody {
         this.gnumBodies = gnumBodies;
         this.numSteps = numSteps;
         this.numWorkers = numWorkers;
-        this.bodies = new Point[gnumBodies];
-        this.vs = new Point[gnumBodies];
-        this.fs = new Point[numWorkers][gnumBodies];
-        this.ms = new double[gnumBodies];
-        this.rGen = new Random();
+        this.b = new BodyStore(gnumBodies);
+        this.seed = ParallelInit.seed();
 
         // The sun
-        this.bodies[0] = new Point(0,0);
-        this.vs[0] = new Point(0,0);
-        this.ms[0] = EARTH_MASS * 333;
+        this.b.m[0] = EARTH_MASS * 333;
 
-        for (int i = 1; i < gnumBodies; i++) {
+        ParallelInit.run(1, gnumBodies, seed, (i, rand) -> {
             // Random position
-            this.bodies[i] = getRandPos(this.bodies[0], RADIUS, MIN_DIST);
+            setRandPos(rand, i, b.x[0], b.y[0], RADIUS, MIN_DIST);
 
             // Velocity orthogonal to the direction vector from the sun to current body
-            double vx =  (this.bodies[0].x - this.bodies[i].x) * START_VEL;
-            double vy =  -(this.bodies[0].y - this.bodies[i].x) * START_VEL;
-            this.vs[i] = new Point(vx,vy);
+            b.vx[i] =  (b.x[0] - b.x[i]) * START_VEL;
+            b.vy[i] =  -(b.y[0] - b.x[i]) * START_VEL;
             // Mass with some varaince
-            this.ms[i] = massBody * (1 + rand(-massVariance, massVariance));
-        }
-        for (int w = 0; w < numWorkers; w++) {
-            for (int i = 0; i < gnumBodies; i++)
-                this.fs[w][i] = new Point(0, 0);
-        }
+            b.m[i] = massBody * (1 + rand(rand, -massVariance, massVariance));
+        });
     }
 
-    public double rand(double min, double max) {
+    public static double rand(SplittableRandom rand, double min, double max) {
         if(min == max) return 0.0;
-        return this.rGen.nextDouble() * (max - min) + min;
+        return ParallelInit.interval(rand, min, max);
     }
 
-    private Point getRandPos(Point center, double radius, double minDist) {
-        double r = radius * Math.sqrt(this.rGen.nextDouble()) + minDist; // distance
-        double theta = this.rGen.nextDouble() * 2 * Math.PI; // direction
-        double x = center.x + r * Math.cos(theta); // cartesian pos x
-        double y = center.y + r * Math.sin(theta); // cartesian pos y
-        return new Point(x,y);
+    private void setRandPos(SplittableRandom rand, int i, double cx, double cy, double radius, double minDist) {
+        double r = radius * Math.sqrt(rand.nextDouble()) + minDist; // distance
+        double theta = rand.nextDouble() * 2 * Math.PI; // direction
+        b.x[i] = cx + r * Math.cos(theta); // cartesian pos x
+        b.y[i] = cy + r * Math.sin(theta); // cartesian pos y
     }
 
-    public void calculateForces(int worker) {
-        double distance, mag, dirX, dirY;
-
-        // Reverse stripes allocation
-        for (int i = worker; i < gnumBodies; i += numWorkers) {
-            for (int j = i + 1; j < gnumBodies; j++) {
-                distance = dist(bodies[i], bodies[j]);
-                mag = (G * ms[i] * ms[j]) / (Math.pow(distance, 2) + SOFTENING);
-                dirX = bodies[j].x - bodies[i].x;
-                dirY = bodies[j].y - bodies[i].y;
-                fs[worker][i].x += mag * dirX / distance;
-                fs[worker][j].x -= mag * dirX / distance;
-                fs[worker][i].y += mag * dirY / distance;
-                fs[worker][j].y -= mag * dirY / distance;
+    /**
+     * Picks the force schedule and allocates the force buffers. tile is off,
+     * auto or a block size. Dense buffers over the memory budget are replaced
+     * by the tiled layout. Returns false if not even that fits.
+     */
+    public boolean setupForces(String tile, long budget) {
+        if (tile.equals("off")) {
+            long dense = ForceReduction.denseBytes(gnumBodies, numWorkers, REDUCE_BLOCK);
+            if (dense <= budget) {
+                tiles = null;
+                forces = ForceReduction.dense(gnumBodies, numWorkers, REDUCE_BLOCK);
+                return true;
             }
+            System.out.format("Dense force buffers need %,d bytes (budget %,d), using tiles%n", dense, budget);
+            tile = "auto";
+        }
+        int blockSize = tile.equals("auto") ? TiledForces.calibrate(kernel, b) : Integer.parseInt(tile);
+        TiledForces tiled = new TiledForces(gnumBodies, numWorkers, blockSize);
+        boolean[][] touched = tiled.touched();
+        long bytes = ForceReduction.bytes(touched, blockSize);
+        if (bytes > budget) {
+            System.err.format("Error: tiled force buffers need %,d bytes (budget %,d)%n", bytes, budget);
+            return false;
         }
+        tiles = tiled;
+        forces = new ForceReduction(gnumBodies, numWorkers, blockSize, touched);
+        return true;
     }
 
-    public void moveBodies(int worker) {
-        double dx, dy;
-        double dvx, dvy;
-        Point force = new Point(0.0, 0.0);
+    public void calculateForces(int worker) {
+        calculateForces(worker, b);
+    }
 
-        for (int i = worker; i < gnumBodies; i += numWorkers) {
-            for (int j = 0; j < numWorkers; j++) {
-                force.x += fs[j][i].x;
-                fs[j][i].x = 0.0;
-                force.y += fs[j][i].y;
-                fs[j][i].y = 0.0;
-            }
-            dvx = (force.x / ms[i]) * DT;
-            dvy = (force.y / ms[i]) * DT;
-            dx = (vs[i].x + dvx / 2) * DT;
-            dy = (vs[i].y + dvy / 2) * DT;
+    /* Forces between the bodies at the positions in pos, added to the worker's buffers */
+    public void calculateForces(int worker, BodyStore pos) {
+        final double[] x = pos.x, y = pos.y, m = pos.m;
+        final double[] fx = forces.fx(worker), fy = forces.fy(worker);
 
-            vs[i].x += dvx;
-            vs[i].y += dvy;
+        if (tiles != null) {
+            tiles.calculateForces(worker, kernel, pos, forces);
+            return;
+        }
 
-            bodies[i].x += dx;
-            bodies[i].y += dy;
+        // Reverse stripes allocation
+        for (int i = worker; i < gnumBodies; i += numWorkers) {
+            kernel.interact(i, i + 1, gnumBodies, x, y, m, fx, fy);
+        }
+    }
 
-            force.x = force.y = 0.0;
+    public void moveBodies(int worker) {
+        // Each worker reduces and moves every numWorkers:th block of bodies
+        for (int k = worker; k < forces.numBlocks; k += numWorkers) {
+            moveBlock(k);
         }
     }
 
-    /* Calculates the distance between two Bodies. */
-    public double dist(Point p1, Point p2) {
-        return Math.sqrt(Math.pow((p1.x - p2.x), 2) + Math.pow((p1.y - p2.y), 2));
+    /* Reduces the forces of one block of bodies and moves them */
+    public void moveBlock(int k) {
+        moveBlock(k, b, b);
     }
 
-    /**
-     * Sub-class for representation of a celestial body
-     */
-    public class Point {
-        public double x;
-        public double y;
+    /* Same as above, reading the positions from one store and writing them to another */
+    public void moveBlock(int k, BodyStore from, BodyStore to) {
+        forces.reduce(k, b.fx, b.fy);
+        moveRange(k * forces.blockSize, Math.min((k + 1) * forces.blockSize, gnumBodies), from, to);
+    }
 
-        public Point(double x, double y) {
-            this.x = x;
-            this.y = y;
+    /* Moves bodies [lo, hi) by the forces in b.fx/fy */
+    public void moveRange(int lo, int hi, BodyStore from, BodyStore to) {
+        final double[] x = from.x, y = from.y, nx = to.x, ny = to.y;
+        final double[] vx = b.vx, vy = b.vy, m = b.m, fx = b.fx, fy = b.fy;
+        double dx, dy;
+        double dvx, dvy;
+
+        for (int i = lo; i < hi; i++) {
+            dvx = (fx[i] / m[i]) * DT;
+            dvy = (fy[i] / m[i]) * DT;
+            dx = (vx[i] + dvx / 2) * DT;
+            dy = (vy[i] + dvy / 2) * DT;
+
+            vx[i] += dvx;
+            vy[i] += dvy;
+
+            nx[i] = x[i] + dx;
+            ny[i] = y[i] + dy;
         }
     }
 
@@ -184,57 +241,132 @@ public class Nbody {
         int numWorkers;
         int numResultsShown;
 
-        gnumBodies = (args.length > 0) && (Integer.parseInt(args[0]) < MAX_BODIES) ? Integer.parseInt(args[0])
-                : MAX_BODIES;
-        numSteps = (args.length > 1) && (Integer.parseInt(args[1]) < MAX_STEPS) ? Integer.parseInt(args[1]) : MAX_STEPS;
+        gnumBodies = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_BODIES;
+        numSteps = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_STEPS;
         numWorkers = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
         numResultsShown = (args.length > 3) ? Integer.parseInt(args[3]) : 5;
         massBody = (args.length > 4) ? Double.parseDouble(args[4]) : EARTH_MASS;
         massVariance = (args.length > 5) ? Integer.parseInt(args[5]) : 0.1;
 
         Nbody prg = new Nbody(gnumBodies, numSteps, numWorkers, massBody, massVariance);
+
+        // Pick the force kernel and check it against the scalar reference
+        ForceKernel kernel = ForceKernel.load(System.getProperty("nbody.kernel", "scalar"));
+        double kernelError = ForceKernel.compare(kernel, new ScalarKernel(), prg.b);
+        if (kernelError > kernel.tolerance()) {
+            System.err.format("Warning: %s deviates %.2e from scalar, using scalar%n",
+                    kernel.getClass().getSimpleName(), kernelError);
+            kernel = new ScalarKernel();
+        }
+        prg.kernel = kernel;
+
+        // Force buffers, the fork/join engine and the task graph always use the dense layout
+        long budget = ForceReduction.budget();
+        String engineName = System.getProperty("nbody.engine", "threads");
+        ForkJoinEngine engine = null;
+        TaskGraph graph = null;
+        String forceName = System.getProperty("nbody.force", "pairs");
+        boolean rowMode = forceName.equals("rows");
+        boolean cellMode = forceName.equals("cells");
+        if (rowMode || cellMode) {
+            // Every worker writes only its own bodies, nothing to reduce
+        } else if (engineName.equals("forkjoin") || engineName.equals("graph")) {
+            String tile = System.getProperty("nbody.tile", "off");
+            int blockSize = engineName.equals("graph") && !tile.equals("off") && !tile.equals("auto")
+                    ? Integer.parseInt(tile) : REDUCE_BLOCK;
+            long dense = ForceReduction.denseBytes(gnumBodies, numWorkers, blockSize);
+            if (dense > budget) {
+                System.err.format("Error: %s force buffers need %,d bytes (budget %,d)%n", engineName, dense, budget);
+                System.exit(1);
+            }
+            if (engineName.equals("graph"))
+                graph = new TaskGraph(prg, numSteps, blockSize);
+            else
+                engine = new ForkJoinEngine(prg, Integer.getInteger("nbody.leaf", 64));
+        } else if (!prg.setupForces(System.getProperty("nbody.tile", "off"), budget)) {
+            System.exit(1);
+        }
         Thread[] workers = new Thread[numWorkers];
-        CyclicBarrier barrier = new CyclicBarrier(numWorkers, new Runnable() { public void run() { increment(); }});
+        StepBarrier barrier = StepBarrier.create(System.getProperty("nbody.barrier", "cyclic"), numWorkers,
+                new Runnable() { public void run() { increment(); }});
+        RowForces rows = rowMode ? new RowForces(prg, barrier) : null;
+        CellForces cells = cellMode
+                ? new CellForces(prg, barrier,
+                        StepBarrier.create(System.getProperty("nbody.barrier", "cyclic"), numWorkers, null),
+                        Double.parseDouble(System.getProperty("nbody.cutoff", String.valueOf(CUTOFF))))
+                : null;
+        Pipeline pipeline = !rowMode && !cellMode && System.getProperty("nbody.step", "pipelined").equals("pipelined")
+                ? new Pipeline(prg) : null;
 
         // Printing starting conditions
         System.out.println("\n- Initial Conditions -\n");
         System.out.println("Body  \t: x\ty\t| vx\tvy");
         for (int i = 0; i < numResultsShown; i++) {
-            System.out.format("Body %d\t: %.0f\t%.0f\t| %.3f\t%.3f %n", i, prg.bodies[i].x, prg.bodies[i].y,
-                    prg.vs[i].x,
-                    prg.vs[i].y);
+            System.out.format("Body %d\t: %.0f\t%.0f\t| %.3f\t%.3f %n", i, prg.b.x[i], prg.b.y[i],
+                    prg.b.vx[i],
+                    prg.b.vy[i]);
         }
         System.out.format("Total Body count : %d%n", prg.gnumBodies);
         System.out.format("Total Worker count : %d%n", prg.numWorkers);
+        System.out.format("Seed : %d%n", prg.seed);
+        System.out.format("Force buffers : %,d bytes%n", rowMode || cellMode ? 0 : prg.forces.bytes());
+        System.out.format("Force kernel : %s (error %.2e)%n", prg.kernel.getClass().getSimpleName(), kernelError);
         
 
         startTime = System.nanoTime();
 
         // Start parallel work
-        for (int i = 0; i < numWorkers; i++) {
-            workers[i] = new Thread(new Worker(i, numSteps, prg, barrier));
-            workers[i].start();
-        }
-        for (int i = 0; i < numWorkers; i++) {
+        if (engine != null) {
             try {
-                workers[i].join();
+                engine.run(numSteps);
             } catch (InterruptedException e) {
                 e.printStackTrace();
                 System.exit(1);
             }
+        } else if (graph != null) {
+            try {
+                graph.run();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        } else {
+            for (int i = 0; i < numWorkers; i++) {
+                workers[i] = new Thread(rows != null ? new Worker(i, numSteps, prg, rows)
+                        : cells != null ? new Worker(i, numSteps, prg, cells)
+                        : pipeline != null ? new Worker(i, numSteps, prg, pipeline)
+                        : new Worker(i, numSteps, prg, barrier));
+                workers[i].start();
+            }
+            for (int i = 0; i < numWorkers; i++) {
+                try {
+                    workers[i].join();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    System.exit(1);
+                }
+            }
+            if (rows != null)
+                rows.finish(numSteps);
+            else if (pipeline != null)
+                pipeline.finish(numSteps);
         }
         // Finished parallel work
         endTime = System.nanoTime() - startTime;
 
         System.out.format("%n- After simulation (%d steps) -%n%n", numSteps);
         for (int i = 0; i < numResultsShown; i++) {
-            System.out.format("Body %d\t: %.0f\t%.0f\t| %.3f\t%.3f %n", i, prg.bodies[i].x, prg.bodies[i].y,
-                prg.vs[i].x,
-                prg.vs[i].y);
+            System.out.format("Body %d\t: %.0f\t%.0f\t| %.3f\t%.3f %n", i, prg.b.x[i], prg.b.y[i],
+                prg.b.vx[i],
+                prg.b.vy[i]);
         }
 
         // Printing end time
         System.out.format("%n- Simulation executed in %.3f ms -%n%n", endTime * Math.pow(10, -6));
         System.out.format("- Counter = %d -%n", prgCounter);
+        if (graph != null) {
+            System.out.format("- Idle = %.1f %% of %d threads -%n",
+                    100.0 * (1 - graph.busyNanos() / ((double) endTime * numWorkers)), numWorkers);
+        }
     }
 }
@@ -0,0 +1,74 @@
+package task2;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import util.BodyStore;
+import util.ForceReduction;
+import util.StepBarrier;
+
+/**
+ * Barrier free stepping for the Worker threads.
+ *
+ * The positions are double buffered: step s reads the positions in
+ * state[s % 2] and the move writes the new ones to state[(s + 1) % 2], so
+ * a block can be moved while other workers still read its old positions.
+ * The two full barriers of a step are replaced by waits on single blocks:
+ *
+ *  - A block is moved as soon as every worker that writes forces to it
+ *    (its contributors in the ForceReduction) has finished its force pass.
+ *    With the tiled schedule that is a few workers, with the dense
+ *    layout it is all of them and the wait works like a barrier.
+ *  - A worker starts the next force pass as soon as the blocks it reads
+ *    have been moved, instead of waiting for every block.
+ *
+ * One force buffer is enough: forces for a block are only written after
+ * the block has been moved, which is after its forces were reduced.
+ * Positions need two buffers: state[(s + 1) % 2] of a block is written
+ * after all its contributors finished step s, so nobody reads it anymore.
+ */
+public class Pipeline {
+
+    private static final int PAD = 16; // one counter per 64 byte line
+
+    private final Nbody prg;
+    private final BodyStore[] state;
+    private final AtomicIntegerArray moved; // [block] number of steps the block has been moved
+    private final AtomicIntegerArray done;  // [worker * PAD] number of force passes finished
+    private final int spinLimit;
+
+    public Pipeline(Nbody prg) {
+        this.prg = prg;
+        this.state = new BodyStore[] { prg.b, prg.b.positionBuffer() };
+        this.moved = new AtomicIntegerArray(prg.forces.numBlocks);
+        this.done = new AtomicIntegerArray(prg.numWorkers * PAD);
+        this.spinLimit = StepBarrier.spinLimit(prg.numWorkers);
+    }
+
+    /* Step s of the worker */
+    public void step(int worker, int s) throws InterruptedException {
+        ForceReduction forces = prg.forces;
+        BodyStore from = state[s & 1], to = state[(s + 1) & 1];
+
+        // Positions of every block the worker reads must be from step s
+        for (int k = 0; k < forces.numBlocks; k++) {
+            if (forces.offset(worker, k) >= 0)
+                for (int spins = 0; moved.get(k) < s; spins++)
+                    StepBarrier.backoff(spins, spinLimit);
+        }
+        prg.calculateForces(worker, from);
+        done.set(worker * PAD, s + 1);
+
+        for (int k = worker; k < forces.numBlocks; k += prg.numWorkers) {
+            for (int c : forces.contributors(k))
+                for (int spins = 0; done.get(c * PAD) <= s; spins++)
+                    StepBarrier.backoff(spins, spinLimit);
+            prg.moveBlock(k, from, to);
+            moved.set(k, s + 1);
+        }
+    }
+
+    /* Makes the simulation point at the positions after numSteps steps, call after all workers finished */
+    public void finish(int numSteps) {
+        prg.b = state[numSteps & 1];
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Benchmark of the force buffer layouts used by the parallel brute force version.
+ *
+ * Usage (from root):
+ *  javac task2/ReductionBench.java
+ *  java task2.ReductionBench [gnumBodies] [numSteps] [threads...]
+ *
+ * where:
+ *  gnumBodies:  The number of bodies (default 8192).
+ *  numSteps:    Timed steps per layout (default 3).
+ *  threads:     Thread counts to test (default 8 16 32 64).
+ *
+ * Layouts:
+ *  points:  The old Point[numWorkers][gnumBodies] matrix, summed column by column.
+ *  dense:   ForceReduction with a full padded buffer per worker, reverse stripes.
+ *  tiled:   ForceReduction sized by the tiled schedule, each worker only
+ *           buffers the blocks it touches.
+ *
+ * Each step runs the force pass, a barrier, the reduction and a barrier.
+ * Bytes for the points layout are estimated (16 byte object headers, 4 byte references).
+ */
+package task2;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+import util.ForceReduction;
+
+public class ReductionBench {
+
+    private static final int TILE = 256;
+
+    public static void main(String[] args) throws Exception {
+        int gnumBodies = (args.length > 0) ? Integer.parseInt(args[0]) : 8192;
+        int numSteps = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        int[] threads = { 8, 16, 32, 64 };
+        if (args.length > 2) {
+            threads = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++)
+                threads[i - 2] = Integer.parseInt(args[i]);
+        }
+
+        System.out.format("%-8s %8s %14s %16s%n", "layout", "threads", "ms/step", "buffer bytes");
+        for (int p : threads) {
+            Nbody prg = new Nbody(gnumBodies, numSteps, p, Nbody.EARTH_MASS, 0.1);
+
+            Points points = new Points(gnumBodies, p);
+            report("points", p, run(p, numSteps, w -> points.forces(w, prg), w -> points.reduce(w, prg)),
+                    points.bytes());
+
+            prg.forces = ForceReduction.dense(gnumBodies, p, TILE);
+            prg.tiles = null;
+            report("dense", p, run(p, numSteps, prg::calculateForces, w -> reduce(prg, w)), prg.forces.bytes());
+
+            prg.tiles = new TiledForces(gnumBodies, p, TILE);
+            prg.forces = new ForceReduction(gnumBodies, p, TILE, prg.tiles.touched());
+            report("tiled", p, run(p, numSteps, prg::calculateForces, w -> reduce(prg, w)), prg.forces.bytes());
+        }
+    }
+
+    private static void report(String layout, int threads, double msPerStep, long bytes) {
+        System.out.format("%-8s %8d %14.2f %,16d%n", layout, threads, msPerStep, bytes);
+    }
+
+    /* Reduction part of Nbody.moveBodies, without moving anything */
+    private static void reduce(Nbody prg, int w) {
+        for (int k = w; k < prg.forces.numBlocks; k += prg.numWorkers)
+            prg.forces.reduce(k, prg.b.fx, prg.b.fy);
+    }
+
+    /* Runs force and reduce phases on p threads, returns milliseconds per step */
+    private static double run(int p, int numSteps, Phase forces, Phase reduce) throws InterruptedException {
+        CyclicBarrier barrier = new CyclicBarrier(p);
+        Thread[] workers = new Thread[p];
+        long[] elapsed = new long[1];
+
+        for (int w = 0; w < p; w++) {
+            int id = w;
+            workers[w] = new Thread(() -> {
+                try {
+                    // One untimed step to warm up
+                    long t0 = 0;
+                    for (int s = 0; s <= numSteps; s++) {
+                        if (s == 1)
+                            t0 = System.nanoTime();
+                        forces.run(id);
+                        barrier.await();
+                        reduce.run(id);
+                        barrier.await();
+                    }
+                    if (id == 0)
+                        elapsed[0] = System.nanoTime() - t0;
+                } catch (InterruptedException | BrokenBarrierException e) {
+                    e.printStackTrace();
+                    Thread.currentThread().interrupt();
+                }
+            });
+            workers[w].start();
+        }
+        for (Thread t : workers)
+            t.join();
+        return elapsed[0] * 1e-6 / numSteps;
+    }
+
+    interface Phase {
+        void run(int worker);
+    }
+
+    /* The force layout used before ForceReduction */
+    private static class Points {
+        final int n, p;
+        final Point[][] fs;
+
+        Points(int n, int p) {
+            this.n = n;
+            this.p = p;
+            this.fs = new Point[p][n];
+            for (int w = 0; w < p; w++)
+                for (int i = 0; i < n; i++)
+                    fs[w][i] = new Point();
+        }
+
+        void forces(int w, Nbody prg) {
+            double[] x = prg.b.x, y = prg.b.y, m = prg.b.m;
+            double distance, mag, dirX, dirY;
+            for (int i = w; i < n; i += p) {
+                for (int j = i + 1; j < n; j++) {
+                    dirX = x[j] - x[i];
+                    dirY = y[j] - y[i];
+                    distance = Math.sqrt(dirX * dirX + dirY * dirY);
+                    mag = (Nbody.G * m[i] * m[j]) / (distance * distance + Nbody.SOFTENING);
+                    fs[w][i].x += mag * dirX / distance;
+                    fs[w][j].x -= mag * dirX / distance;
+                    fs[w][i].y += mag * dirY / distance;
+                    fs[w][j].y -= mag * dirY / distance;
+                }
+            }
+        }
+
+        void reduce(int w, Nbody prg) {
+            for (int i = w; i < n; i += p) {
+                double forceX = 0.0, forceY = 0.0;
+                for (int k = 0; k < p; k++) {
+                    forceX += fs[k][i].x;
+                    fs[k][i].x = 0.0;
+                    forceY += fs[k][i].y;
+                    fs[k][i].y = 0.0;
+                }
+                prg.b.fx[i] = forceX;
+                prg.b.fy[i] = forceY;
+            }
+        }
+
+        long bytes() {
+            return (long) p * (16 + 4L * n) + (long) p * n * 32;
+        }
+    }
+
+    private static class Point {
+        double x, y;
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Crossover between the pair forces with reduction and the row ownership
+ * forces without it.
+ *
+ * Usage (from root):
+ *  javac task2/RowBench.java
+ *  java task2.RowBench [numSteps] [maxThreads] [gnumBodies...]
+ *
+ * where:
+ *  numSteps:    Timed steps per run (default 10).
+ *  maxThreads:  Thread counts 1, 2, 4, ... up to this are tested (default cores).
+ *  gnumBodies:  Body counts to test (default 256 1024 4096 16384).
+ *
+ * pairs is the default mode of Nbody (reverse stripes, pipelined steps),
+ * rows is -Dnbody.force=rows. rows does twice the arithmetic, so it wins
+ * where the reduction and the synchronization cost more than the extra
+ * half of the pairs: small N and many threads. The kernel is picked with
+ * -Dnbody.kernel like in Nbody.
+ */
+package task2;
+
+import util.ForceReduction;
+import util.StepBarrier;
+
+public class RowBench {
+
+    public static void main(String[] args) throws InterruptedException {
+        int numSteps = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+        int maxThreads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int[] sizes = { 256, 1024, 4096, 16384 };
+        if (args.length > 2) {
+            sizes = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++)
+                sizes[i - 2] = Integer.parseInt(args[i]);
+        }
+        ForceKernel kernel = ForceKernel.load(System.getProperty("nbody.kernel", "scalar"));
+
+        System.out.format("%10s %8s %16s %16s %8s%n", "gnumBodies", "threads", "pairs ms/step", "rows ms/step",
+                "winner");
+        for (int n : sizes) {
+            for (int p = 1; p <= maxThreads; p *= 2) {
+                // Warm up both, then time
+                run(n, 2, p, kernel, false);
+                run(n, 2, p, kernel, true);
+                long pairs = run(n, numSteps, p, kernel, false);
+                long rows = run(n, numSteps, p, kernel, true);
+                System.out.format("%10d %8d %16.3f %16.3f %8s%n", n, p, pairs * 1e-6 / numSteps,
+                        rows * 1e-6 / numSteps, rows < pairs ? "rows" : "pairs");
+            }
+        }
+    }
+
+    /* Wall time of numSteps steps in nanoseconds */
+    private static long run(int n, int numSteps, int p, ForceKernel kernel, boolean rowMode)
+            throws InterruptedException {
+        Nbody prg = new Nbody(n, numSteps, p, Nbody.EARTH_MASS, 0.1);
+        prg.kernel = kernel;
+        Thread[] workers = new Thread[p];
+        RowForces rows = null;
+        Pipeline pipeline = null;
+        if (rowMode) {
+            rows = new RowForces(prg, StepBarrier.create("cyclic", p, null));
+        } else {
+            prg.setupForces("off", ForceReduction.budget());
+            pipeline = new Pipeline(prg);
+        }
+
+        long t0 = System.nanoTime();
+        for (int w = 0; w < p; w++) {
+            workers[w] = new Thread(rowMode ? new Worker(w, numSteps, prg, rows)
+                    : new Worker(w, numSteps, prg, pipeline));
+            workers[w].start();
+        }
+        for (Thread t : workers)
+            t.join();
+        return System.nanoTime() - t0;
+    }
+}
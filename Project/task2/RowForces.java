@@ -0,0 +1,66 @@
+package task2;
+
+import java.util.concurrent.BrokenBarrierException;
+
+import util.BodyStore;
+import util.StepBarrier;
+
+/**
+ * Row ownership stepping for the Worker threads, without force reduction.
+ *
+ * The other modes use the symmetry of the forces: the pair (i, j) is
+ * computed once and added to both bodies, so a worker writes forces of
+ * bodies it does not own and every step needs a reduction of the per worker
+ * buffers. Here every worker owns a contiguous range of bodies and computes
+ * the full row of forces on each of them from all other bodies. That is
+ * twice the arithmetic, but a worker only ever writes its own bodies:
+ *
+ *  - No ForceReduction buffers and no reduction pass.
+ *  - The move is fused into the force pass, a chunk of bodies is moved as
+ *    soon as its forces are done, while they are still in cache.
+ *
+ * Positions are double buffered like in Pipeline, step s reads state[s % 2]
+ * and moves into state[(s + 1) % 2], so one barrier per step is enough.
+ * Every row costs the same, so equal ranges are balanced.
+ */
+public class RowForces {
+
+    private static final int CHUNK = Nbody.REDUCE_BLOCK; // bodies moved together
+
+    private final Nbody prg;
+    private final StepBarrier barrier;
+    private final BodyStore[] state;
+
+    public RowForces(Nbody prg, StepBarrier barrier) {
+        this.prg = prg;
+        this.barrier = barrier;
+        this.state = new BodyStore[] { prg.b, prg.b.positionBuffer() };
+    }
+
+    /* Step s of the worker */
+    public void step(int worker, int s) throws InterruptedException, BrokenBarrierException {
+        final int n = prg.gnumBodies;
+        final BodyStore from = state[s & 1], to = state[(s + 1) & 1];
+        final double[] x = from.x, y = from.y, m = from.m, fx = prg.b.fx, fy = prg.b.fy;
+        final ForceKernel kernel = prg.kernel;
+        int lo = (int) ((long) worker * n / prg.numWorkers);
+        int hi = (int) ((long) (worker + 1) * n / prg.numWorkers);
+
+        for (int c = lo; c < hi; c += CHUNK) {
+            int end = Math.min(c + CHUNK, hi);
+            for (int i = c; i < end; i++) {
+                fx[i] = 0.0;
+                fy[i] = 0.0;
+                kernel.row(i, 0, i, x, y, m, fx, fy);
+                kernel.row(i, i + 1, n, x, y, m, fx, fy);
+            }
+            prg.moveRange(c, end, from, to);
+        }
+        barrier.await(worker);
+    }
+
+    /* Makes the simulation point at the positions after numSteps steps, call after all workers finished */
+    public void finish(int numSteps) {
+        prg.b = state[numSteps & 1];
+    }
+}
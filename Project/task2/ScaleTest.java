@@ -0,0 +1,75 @@
+/**
+ * Large scale run of the parallel brute force version.
+ *
+ * Usage (from root):
+ *  javac task2/ScaleTest.java
+ *  java -Xmx4g task2.ScaleTest [gnumBodies] [numSteps] [numWorkers]
+ *
+ * where:
+ *  gnumBodies:  The number of bodies (default 1000000).
+ *  numSteps:    The number of steps (default 1).
+ *  numWorkers:  The number of worker threads (default: available processors).
+ *
+ * Times the parallel initialization, the force buffer setup and every step,
+ * then checks that no body ended up with a NaN or infinite position or
+ * velocity. The same properties as task2.Nbody apply (nbody.seed,
+ * nbody.kernel, nbody.tile, nbody.memory). One step over a million bodies is
+ * 5e11 interactions, so expect minutes per step on a desktop.
+ */
+package task2;
+
+import util.ForceReduction;
+
+public class ScaleTest {
+
+    public static void main(String[] args) throws InterruptedException {
+        int gnumBodies = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        int numSteps = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+        int numWorkers = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        long t0 = System.nanoTime();
+        Nbody prg = new Nbody(gnumBodies, numSteps, numWorkers, Nbody.EARTH_MASS, 0.1);
+        System.out.format("Init %,d bodies : %.1f ms (seed %d)%n", gnumBodies, (System.nanoTime() - t0) * 1e-6,
+                prg.seed);
+
+        prg.kernel = ForceKernel.load(System.getProperty("nbody.kernel", "scalar"));
+        t0 = System.nanoTime();
+        if (!prg.setupForces(System.getProperty("nbody.tile", "off"), ForceReduction.budget()))
+            System.exit(1);
+        System.out.format("Force buffers : %,d bytes, %.1f ms%n", prg.forces.bytes(), (System.nanoTime() - t0) * 1e-6);
+
+        long pairs = (long) gnumBodies * (gnumBodies - 1) / 2;
+        Thread[] workers = new Thread[numWorkers];
+        for (int s = 0; s < numSteps; s++) {
+            t0 = System.nanoTime();
+            for (int w = 0; w < numWorkers; w++) {
+                int id = w;
+                workers[w] = new Thread(() -> prg.calculateForces(id));
+                workers[w].start();
+            }
+            for (Thread t : workers)
+                t.join();
+            for (int w = 0; w < numWorkers; w++) {
+                int id = w;
+                workers[w] = new Thread(() -> prg.moveBodies(id));
+                workers[w].start();
+            }
+            for (Thread t : workers)
+                t.join();
+            double seconds = (System.nanoTime() - t0) * 1e-9;
+            System.out.format("Step %d : %.2f s, %.3e interactions/s%n", s, seconds, pairs / seconds);
+        }
+
+        int bad = 0;
+        for (int i = 0; i < gnumBodies; i++) {
+            if (!Double.isFinite(prg.b.x[i]) || !Double.isFinite(prg.b.y[i])
+                    || !Double.isFinite(prg.b.vx[i]) || !Double.isFinite(prg.b.vy[i]))
+                bad++;
+        }
+        if (bad > 0) {
+            System.err.format("Error: %,d bodies are not finite%n", bad);
+            System.exit(1);
+        }
+        System.out.println("All bodies finite");
+    }
+}
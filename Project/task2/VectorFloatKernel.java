@@ -0,0 +1,122 @@
+package task2;
+
+import static task2.Nbody.G;
+import static task2.Nbody.SOFTENING;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Single precision variant of the vector kernel. Positions and masses are
+ * narrowed to float, which doubles the number of j bodies per instruction.
+ * Forces are widened back and accumulated in double precision.
+ */
+public class VectorFloatKernel implements ForceKernel {
+
+    private static final VectorSpecies<Double> D = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> F = FloatVector.SPECIES_PREFERRED;
+    private static final int HALF = D.length();
+
+    @Override
+    public double tolerance() {
+        return 1e-4;
+    }
+
+    @Override
+    public void interact(int i, int from, int to, double[] x, double[] y, double[] m, double[] fx, double[] fy) {
+        final double xi = x[i], yi = y[i], gmi = G * m[i];
+        DoubleVector sumX = DoubleVector.zero(D);
+        DoubleVector sumY = DoubleVector.zero(D);
+
+        int j = from;
+        for (int upper = from + F.loopBound(to - from); j < upper; j += F.length()) {
+            // Relative positions are taken in double before narrowing, to keep precision
+            FloatVector dirX = narrow(DoubleVector.fromArray(D, x, j).sub(xi),
+                    DoubleVector.fromArray(D, x, j + HALF).sub(xi));
+            FloatVector dirY = narrow(DoubleVector.fromArray(D, y, j).sub(yi),
+                    DoubleVector.fromArray(D, y, j + HALF).sub(yi));
+            FloatVector mj = narrow(DoubleVector.fromArray(D, m, j),
+                    DoubleVector.fromArray(D, m, j + HALF));
+            FloatVector dist2 = dirX.fma(dirX, dirY.mul(dirY));
+            FloatVector scale = mj.mul((float) gmi)
+                    .div(dist2.add((float) SOFTENING).mul(dist2.sqrt()));
+            FloatVector px = scale.mul(dirX);
+            FloatVector py = scale.mul(dirY);
+
+            for (int part = 0; part < 2; part++) {
+                int k = j + part * HALF;
+                DoubleVector wx = (DoubleVector) px.convertShape(VectorOperators.F2D, D, part);
+                DoubleVector wy = (DoubleVector) py.convertShape(VectorOperators.F2D, D, part);
+                sumX = sumX.add(wx);
+                sumY = sumY.add(wy);
+                DoubleVector.fromArray(D, fx, k).sub(wx).intoArray(fx, k);
+                DoubleVector.fromArray(D, fy, k).sub(wy).intoArray(fy, k);
+            }
+        }
+        double sx = sumX.reduceLanes(VectorOperators.ADD);
+        double sy = sumY.reduceLanes(VectorOperators.ADD);
+
+        // Scalar tail
+        for (; j < to; j++) {
+            double dirX = x[j] - xi;
+            double dirY = y[j] - yi;
+            double dist2 = dirX * dirX + dirY * dirY;
+            double scale = gmi * m[j] / ((dist2 + SOFTENING) * Math.sqrt(dist2));
+            sx += scale * dirX;
+            sy += scale * dirY;
+            fx[j] -= scale * dirX;
+            fy[j] -= scale * dirY;
+        }
+        fx[i] += sx;
+        fy[i] += sy;
+    }
+
+    @Override
+    public void row(int i, int from, int to, double[] x, double[] y, double[] m, double[] fx, double[] fy) {
+        final double xi = x[i], yi = y[i], gmi = G * m[i];
+        DoubleVector sumX = DoubleVector.zero(D);
+        DoubleVector sumY = DoubleVector.zero(D);
+
+        int j = from;
+        for (int upper = from + F.loopBound(to - from); j < upper; j += F.length()) {
+            FloatVector dirX = narrow(DoubleVector.fromArray(D, x, j).sub(xi),
+                    DoubleVector.fromArray(D, x, j + HALF).sub(xi));
+            FloatVector dirY = narrow(DoubleVector.fromArray(D, y, j).sub(yi),
+                    DoubleVector.fromArray(D, y, j + HALF).sub(yi));
+            FloatVector mj = narrow(DoubleVector.fromArray(D, m, j),
+                    DoubleVector.fromArray(D, m, j + HALF));
+            FloatVector dist2 = dirX.fma(dirX, dirY.mul(dirY));
+            FloatVector scale = mj.mul((float) gmi)
+                    .div(dist2.add((float) SOFTENING).mul(dist2.sqrt()));
+            FloatVector px = scale.mul(dirX);
+            FloatVector py = scale.mul(dirY);
+
+            for (int part = 0; part < 2; part++) {
+                sumX = sumX.add((DoubleVector) px.convertShape(VectorOperators.F2D, D, part));
+                sumY = sumY.add((DoubleVector) py.convertShape(VectorOperators.F2D, D, part));
+            }
+        }
+        double sx = sumX.reduceLanes(VectorOperators.ADD);
+        double sy = sumY.reduceLanes(VectorOperators.ADD);
+
+        for (; j < to; j++) {
+            double dirX = x[j] - xi;
+            double dirY = y[j] - yi;
+            double dist2 = dirX * dirX + dirY * dirY;
+            double scale = gmi * m[j] / ((dist2 + SOFTENING) * Math.sqrt(dist2));
+            sx += scale * dirX;
+            sy += scale * dirY;
+        }
+        fx[i] += sx;
+        fy[i] += sy;
+    }
+
+    /* Packs two double vectors into one float vector of twice the lane count */
+    private static FloatVector narrow(DoubleVector lo, DoubleVector hi) {
+        FloatVector a = (FloatVector) lo.convertShape(VectorOperators.D2F, F, 0);
+        FloatVector b = (FloatVector) hi.convertShape(VectorOperators.D2F, F, -1);
+        return a.add(b);
+    }
+}
@@ -0,0 +1,88 @@
+package task2;
+
+import static task2.Nbody.G;
+import static task2.Nbody.SOFTENING;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Force kernel using the Vector API. Body i is handled against a full lane
+ * width of j bodies at once, the remaining tail is done with scalar code.
+ */
+public class VectorKernel implements ForceKernel {
+
+    private static final VectorSpecies<Double> S = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public void interact(int i, int from, int to, double[] x, double[] y, double[] m, double[] fx, double[] fy) {
+        final double xi = x[i], yi = y[i], gmi = G * m[i];
+        DoubleVector sumX = DoubleVector.zero(S);
+        DoubleVector sumY = DoubleVector.zero(S);
+
+        int j = from;
+        for (int upper = from + S.loopBound(to - from); j < upper; j += S.length()) {
+            DoubleVector dirX = DoubleVector.fromArray(S, x, j).sub(xi);
+            DoubleVector dirY = DoubleVector.fromArray(S, y, j).sub(yi);
+            DoubleVector dist2 = dirX.fma(dirX, dirY.mul(dirY));
+            // magnitude / distance, so it can be multiplied with the direction directly
+            DoubleVector scale = DoubleVector.fromArray(S, m, j).mul(gmi)
+                    .div(dist2.add(SOFTENING).mul(dist2.sqrt()));
+            DoubleVector px = scale.mul(dirX);
+            DoubleVector py = scale.mul(dirY);
+
+            sumX = sumX.add(px);
+            sumY = sumY.add(py);
+            DoubleVector.fromArray(S, fx, j).sub(px).intoArray(fx, j);
+            DoubleVector.fromArray(S, fy, j).sub(py).intoArray(fy, j);
+        }
+        double sx = sumX.reduceLanes(VectorOperators.ADD);
+        double sy = sumY.reduceLanes(VectorOperators.ADD);
+
+        // Scalar tail
+        for (; j < to; j++) {
+            double dirX = x[j] - xi;
+            double dirY = y[j] - yi;
+            double dist2 = dirX * dirX + dirY * dirY;
+            double scale = gmi * m[j] / ((dist2 + SOFTENING) * Math.sqrt(dist2));
+            sx += scale * dirX;
+            sy += scale * dirY;
+            fx[j] -= scale * dirX;
+            fy[j] -= scale * dirY;
+        }
+        fx[i] += sx;
+        fy[i] += sy;
+    }
+
+    @Override
+    public void row(int i, int from, int to, double[] x, double[] y, double[] m, double[] fx, double[] fy) {
+        final double xi = x[i], yi = y[i], gmi = G * m[i];
+        DoubleVector sumX = DoubleVector.zero(S);
+        DoubleVector sumY = DoubleVector.zero(S);
+
+        int j = from;
+        for (int upper = from + S.loopBound(to - from); j < upper; j += S.length()) {
+            DoubleVector dirX = DoubleVector.fromArray(S, x, j).sub(xi);
+            DoubleVector dirY = DoubleVector.fromArray(S, y, j).sub(yi);
+            DoubleVector dist2 = dirX.fma(dirX, dirY.mul(dirY));
+            DoubleVector scale = DoubleVector.fromArray(S, m, j).mul(gmi)
+                    .div(dist2.add(SOFTENING).mul(dist2.sqrt()));
+            sumX = scale.fma(dirX, sumX);
+            sumY = scale.fma(dirY, sumY);
+        }
+        double sx = sumX.reduceLanes(VectorOperators.ADD);
+        double sy = sumY.reduceLanes(VectorOperators.ADD);
+
+        for (; j < to; j++) {
+            double dirX = x[j] - xi;
+            double dirY = y[j] - yi;
+            double dist2 = dirX * dirX + dirY * dirY;
+            double scale = gmi * m[j] / ((dist2 + SOFTENING) * Math.sqrt(dist2));
+            sx += scale * dirX;
+            sy += scale * dirY;
+        }
+        fx[i] += sx;
+        fy[i] += sy;
+    }
+}
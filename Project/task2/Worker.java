@@ -1,24 +1,43 @@
 package task2;
 
 import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CyclicBarrier;
+
+import util.StepBarrier;
 
 public class Worker implements Runnable {
     int id;
     int numSteps;
     Nbody work;
-    CyclicBarrier barrier;
+    StepBarrier barrier;
+    Pipeline pipeline; // null means two barriers per step
+    RowForces rows;    // non null means row ownership, one barrier per step
+    CellForces cells;  // non null means cell lists with a cutoff
 
-    public Worker(int w, int numSteps, Nbody work, CyclicBarrier barrier) {
+    public Worker(int w, int numSteps, Nbody work, StepBarrier barrier) {
         this.id = w;
         this.work = work;
         this.numSteps = numSteps;
         this.barrier = barrier;
     }
 
+    public Worker(int w, int numSteps, Nbody work, Pipeline pipeline) {
+        this(w, numSteps, work, (StepBarrier) null);
+        this.pipeline = pipeline;
+    }
+
+    public Worker(int w, int numSteps, Nbody work, RowForces rows) {
+        this(w, numSteps, work, (StepBarrier) null);
+        this.rows = rows;
+    }
+
+    public Worker(int w, int numSteps, Nbody work, CellForces cells) {
+        this(w, numSteps, work, (StepBarrier) null);
+        this.cells = cells;
+    }
+
     public void barrier(int w) {
         try {
-            barrier.await();
+            barrier.await(w);
         } catch (InterruptedException | BrokenBarrierException e) {
             System.err.format("Error: Exception caught for worker %d%n", w);
             e.printStackTrace();
@@ -28,6 +47,35 @@ public class Worker implements Runnable {
 
     @Override
     public void run() {
+        if (rows != null || cells != null) {
+            try {
+                for (int i = 0; i < numSteps; i++) {
+                    if (rows != null)
+                        rows.step(id, i);
+                    else
+                        cells.step(id, i);
+                }
+            } catch (InterruptedException | BrokenBarrierException e) {
+                System.err.format("Error: Exception caught for worker %d%n", id);
+                e.printStackTrace();
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        if (pipeline != null) {
+            try {
+                for (int i = 0; i < numSteps; i++) {
+                    pipeline.step(id, i);
+                    if (id == 0)
+                        Nbody.increment();
+                }
+            } catch (InterruptedException e) {
+                System.err.format("Error: Exception caught for worker %d%n", id);
+                e.printStackTrace();
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
         for (int i = 0; i < numSteps; i++) {
             work.calculateForces(id);
             barrier(id);
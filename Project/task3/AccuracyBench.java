@@ -0,0 +1,163 @@
+/**
+ * Barnes-Hut against brute force: force error, energy drift and speedup of
+ * FlatBHTree next to task1.Nbody over several body counts and theta, as CSV.
+ *
+ * Usage (from root):
+ *  javac task3/AccuracyBench.java
+ *  java task3.AccuracyBench [numSteps] [gnumBodies,...] [theta...] > accuracy.csv
+ *
+ * where:
+ *  numSteps:    Steps of every run (default 20).
+ *  gnumBodies:  Comma separated body counts (default 1000,4000,16000).
+ *  theta:       Opening thresholds to test (default 0.3 0.5 0.8 1.0).
+ *
+ * Every run starts from the initial conditions of task1.Nbody with the same
+ * seed (-Dnbody.seed, one random seed for all runs if it is not set) and
+ * moves the bodies with task1.Nbody.moveBodies, so the runs only differ in
+ * their forces: calculateForces for brute force, a FlatBHTree over the
+ * bounding square of the bodies for Barnes-Hut.
+ *
+ * The force errors are percentiles of the relative difference of every
+ * body's force to brute force in the first step. Energy drift is
+ * |E(end) - E(0)| / |E(0)|, with the potential of the softened force.
+ * Times are of all steps, force and move, after one untimed warm up of
+ * both engines. Speedup is brute force time over Barnes-Hut time.
+ */
+package task3;
+
+import java.util.Arrays;
+
+import util.BodyStore;
+import util.ParallelInit;
+
+public class AccuracyBench {
+
+    private static final double MASS_VARIANCE = 0.1; // as in task1.Nbody.main
+
+    public static void main(String[] args) {
+        int numSteps = (args.length > 0) ? Integer.parseInt(args[0]) : 20;
+        int[] sizes = { 1000, 4000, 16000 };
+        if (args.length > 1)
+            sizes = Arrays.stream(args[1].split(",")).mapToInt(Integer::parseInt).toArray();
+        double[] thetas = { 0.3, 0.5, 0.8, 1.0 };
+        if (args.length > 2) {
+            thetas = new double[args.length - 2];
+            for (int i = 2; i < args.length; i++)
+                thetas[i - 2] = Double.parseDouble(args[i]);
+        }
+
+        // Every engine reads the seed again, so it has to be fixed before the first one
+        if (System.getProperty("nbody.seed") == null)
+            System.setProperty("nbody.seed", String.valueOf(ParallelInit.seed()));
+        long seed = ParallelInit.seed();
+
+        warmUp();
+        System.out.println("gnumBodies,theta,numSteps,seed,brute_ms,bh_ms,speedup,"
+                + "err_p50,err_p90,err_p99,err_max,drift_brute,drift_bh");
+        for (int n : sizes) {
+            task1.Nbody brute = new task1.Nbody(n, numSteps, task1.Nbody.EARTH_MASS, MASS_VARIANCE);
+            double e0 = energy(brute.b);
+            double[] fx = new double[n], fy = new double[n]; // brute force forces of the first step
+            long bruteTime = 0;
+            for (int s = 0; s < numSteps; s++) {
+                long t0 = System.nanoTime();
+                brute.calculateForces();
+                if (s == 0) {
+                    System.arraycopy(brute.b.fx, 0, fx, 0, n);
+                    System.arraycopy(brute.b.fy, 0, fy, 0, n);
+                }
+                brute.moveBodies();
+                bruteTime += System.nanoTime() - t0;
+            }
+            double bruteDrift = Math.abs(energy(brute.b) - e0) / Math.abs(e0);
+
+            for (double theta : thetas) {
+                task1.Nbody bh = new task1.Nbody(n, numSteps, task1.Nbody.EARTH_MASS, MASS_VARIANCE);
+                Body[] bodies = new Body[n];
+                for (int i = 0; i < n; i++)
+                    bodies[i] = new Body(0, 0, 0, 0, 0, 0, bh.b.m[i]);
+                FlatBHTree tree = new FlatBHTree(bodies, theta, false);
+                double[] error = new double[n];
+                long bhTime = 0;
+                for (int s = 0; s < numSteps; s++) {
+                    long t0 = System.nanoTime();
+                    forces(tree, bodies, bh.b);
+                    bhTime += System.nanoTime() - t0;
+                    if (s == 0) {
+                        for (int i = 0; i < n; i++)
+                            error[i] = Math.hypot(bh.b.fx[i] - fx[i], bh.b.fy[i] - fy[i]) / Math.hypot(fx[i], fy[i]);
+                    }
+                    t0 = System.nanoTime();
+                    bh.moveBodies();
+                    bhTime += System.nanoTime() - t0;
+                }
+                double bhDrift = Math.abs(energy(bh.b) - e0) / Math.abs(e0);
+
+                Arrays.sort(error);
+                System.out.format("%d,%.3f,%d,%d,%.1f,%.1f,%.2f,%.3e,%.3e,%.3e,%.3e,%.3e,%.3e%n", n, theta, numSteps,
+                        seed, bruteTime * 1e-6, bhTime * 1e-6, (double) bruteTime / bhTime, percentile(error, 0.5),
+                        percentile(error, 0.9), percentile(error, 0.99), error[n - 1], bruteDrift, bhDrift);
+            }
+        }
+    }
+
+    /* A few steps of both engines, so the timed runs are compiled */
+    private static void warmUp() {
+        task1.Nbody prg = new task1.Nbody(1000, 5, task1.Nbody.EARTH_MASS, MASS_VARIANCE);
+        Body[] bodies = new Body[prg.gnumBodies];
+        for (int i = 0; i < bodies.length; i++)
+            bodies[i] = new Body(0, 0, 0, 0, 0, 0, prg.b.m[i]);
+        FlatBHTree tree = new FlatBHTree(bodies);
+        for (int s = 0; s < 5; s++) {
+            prg.calculateForces();
+            forces(tree, bodies, prg.b);
+            prg.moveBodies();
+        }
+    }
+
+    /* Barnes-Hut forces on the bodies of store, like calculateForces */
+    private static void forces(FlatBHTree tree, Body[] bodies, BodyStore store) {
+        double xMin = Double.POSITIVE_INFINITY, xMax = Double.NEGATIVE_INFINITY;
+        double yMin = Double.POSITIVE_INFINITY, yMax = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < bodies.length; i++) {
+            Body b = bodies[i];
+            b.px = store.x[i];
+            b.py = store.y[i];
+            b.fx = b.fy = 0.0;
+            xMin = Math.min(xMin, b.px);
+            xMax = Math.max(xMax, b.px);
+            yMin = Math.min(yMin, b.py);
+            yMax = Math.max(yMax, b.py);
+        }
+        tree.reset((xMin + xMax) / 2, (yMin + yMax) / 2, Math.max(xMax - xMin, yMax - yMin));
+        for (int i = 0; i < bodies.length; i++)
+            tree.insert(i);
+        for (int i = 0; i < bodies.length; i++) {
+            tree.updateForce(i);
+            store.fx[i] = bodies[i].fx;
+            store.fy[i] = bodies[i].fy;
+        }
+    }
+
+    /*
+     * Kinetic plus potential energy. The force G m m / (d^2 + SOFTENING) is
+     * minus the derivative of -G m m (pi / 2 - atan(d / s)) / s, s the square
+     * root of SOFTENING.
+     */
+    private static double energy(BodyStore b) {
+        double s = Math.sqrt(task1.Nbody.SOFTENING), kinetic = 0.0, potential = 0.0;
+        for (int i = 0; i < b.n; i++) {
+            kinetic += 0.5 * b.m[i] * (b.vx[i] * b.vx[i] + b.vy[i] * b.vy[i]);
+            for (int j = i + 1; j < b.n; j++) {
+                double d = Math.hypot(b.x[j] - b.x[i], b.y[j] - b.y[i]);
+                potential -= task1.Nbody.G * b.m[i] * b.m[j] * (Math.PI / 2 - Math.atan(d / s)) / s;
+            }
+        }
+        return kinetic + potential;
+    }
+
+    /* Nearest rank percentile of the sorted values */
+    private static double percentile(double[] sorted, double p) {
+        return sorted[Math.max(0, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+}
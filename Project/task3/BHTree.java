@@ -1,5 +1,7 @@
 package task3;
 
+import java.util.Arrays;
+
 public class BHTree {
 
     /*
@@ -16,6 +18,8 @@ public class BHTree {
     private BHTree SW; // southwest quadrant sub-tree
     private BHTree SE; // southeast quadrant sub-tree
 
+    private int count; // bodies inserted into this sub-tree
+
     public BHTree(Quad q) {
         this.quad = q;
     }
@@ -32,6 +36,7 @@ public class BHTree {
      * Adds the Body p to the invoking Barnes-Hut tree.
      */
     public void insert(Body nb) {
+        count++;
         if (body == null) {
             this.body = nb;
         }
@@ -93,4 +98,122 @@ public class BHTree {
             }
         }
     }
+
+    /**
+     * Approximates the net force on every body in the tree with one walk
+     * per group of close bodies, the largest sub-trees with at most
+     * groupSize bodies, like FlatBHTree.updateForceGroups.
+     */
+    public void updateForceGroups(int groupSize) {
+        groups(this, new Group(groupSize));
+    }
+
+    /* Walks the groups in this sub-tree, root is the whole tree */
+    private void groups(BHTree root, Group group) {
+        if (body == null)
+            return;
+        if (count > group.capacity && !checkExternal()) {
+            NW.groups(root, group);
+            NE.groups(root, group);
+            SW.groups(root, group);
+            SE.groups(root, group);
+            return;
+        }
+        group.clear();
+        members(group);
+        root.walk(this, group);
+        for (int r = 0; r < group.count; r++)
+            group.members[r].addForces(group.x, group.y, group.mass, group.member, group.size, r);
+    }
+
+    /* Adds the bodies of this sub-tree to the group */
+    private void members(Group group) {
+        if (body == null)
+            return;
+        if (checkExternal()) {
+            group.add(body);
+            return;
+        }
+        NW.members(group);
+        NE.members(group);
+        SW.members(group);
+        SE.members(group);
+    }
+
+    /* Adds the bodies and aggregates that the group of sub-tree g interacts with to the list */
+    private void walk(BHTree g, Group group) {
+        if (body == null)
+            return;
+        if (checkExternal()) {
+            group.list(body);
+            return;
+        }
+        // a node holding the group is always opened, its aggregate includes the group
+        if (!quad.contains(g.quad)) {
+            // distance between the box of the group and this node's center-of-mass
+            double distance = group.distance(body.px, body.py);
+            if ((quad.length() / distance) < THETA) {
+                group.list(body);
+                return;
+            }
+        }
+        NW.walk(g, group);
+        NE.walk(g, group);
+        SW.walk(g, group);
+        SE.walk(g, group);
+    }
+
+    /* Bodies of a group, their bounding box and their interaction list */
+    private static class Group {
+        final int capacity;
+        final Body[] members;
+        int count;
+        double minX, maxX, minY, maxY;
+
+        int size;
+        double[] x = new double[64], y = new double[64], mass = new double[64];
+        int[] member = new int[64]; // index in members of a listed body of the group, -1 otherwise
+
+        Group(int capacity) {
+            this.capacity = capacity;
+            this.members = new Body[capacity];
+        }
+
+        void clear() {
+            count = size = 0;
+            minX = minY = Double.POSITIVE_INFINITY;
+            maxX = maxY = Double.NEGATIVE_INFINITY;
+        }
+
+        void add(Body b) {
+            members[count++] = b;
+            minX = Math.min(minX, b.px);
+            maxX = Math.max(maxX, b.px);
+            minY = Math.min(minY, b.py);
+            maxY = Math.max(maxY, b.py);
+        }
+
+        void list(Body b) {
+            if (size == x.length) {
+                x = Arrays.copyOf(x, 2 * size);
+                y = Arrays.copyOf(y, 2 * size);
+                mass = Arrays.copyOf(mass, 2 * size);
+                member = Arrays.copyOf(member, 2 * size);
+            }
+            int r = count - 1;
+            while (r >= 0 && members[r] != b)
+                r--;
+            x[size] = b.px;
+            y[size] = b.py;
+            mass[size] = b.mass;
+            member[size++] = r;
+        }
+
+        /* Distance from (px, py) to the nearest point of the bounding box */
+        double distance(double px, double py) {
+            double dx = Math.max(Math.max(minX - px, px - maxX), 0.0);
+            double dy = Math.max(Math.max(minY - py, py - maxY), 0.0);
+            return Math.sqrt(dx * dx + dy * dy);
+        }
+    }
 }
\ No newline at end of file
@@ -2,9 +2,9 @@ package task3;
 
 public class Body {
 
-    private static final double G = 6.67e-3;
+    static final double G = 6.67e-3;
     private static final double DT = 0.1;
-    private static final double SOFTENING = 1e5;
+    static final double SOFTENING = 1e5;
 
     double px;  // position
     double py;
@@ -13,6 +13,7 @@ public class Body {
     double fx;  // force vector
     double fy;
     double mass;
+    double accel; // |acceleration| of the last update, for FlatBHTree.Criterion.RELATIVE
 
     public Body(double px, double py, double vx, double vy, double fx, double fy, double mass) {
         this.px = px;
@@ -31,16 +32,62 @@ public class Body {
 
     /* Update the force vector */
     public void addForce(Body body) {
-        double dx = body.px - this.px;
-        double dy = body.py - this.py;
-        double distance = this.dist(body);
-        double force = (G * this.mass * body.mass) / (distance * distance + SOFTENING);
+        addForce(body.px, body.py, body.mass);
+    }
+
+    /* Same as above, for a mass at (x, y) that is not a Body */
+    public void addForce(double x, double y, double mass) {
+        double dx = x - this.px;
+        double dy = y - this.py;
+        double distance = Math.sqrt(Math.pow((this.px - x), 2) + Math.pow((this.py - y), 2));
+        double force = (G * this.mass * mass) / (distance * distance + SOFTENING);
         this.fx += force * dx / distance;
         this.fy += force * dy / distance;
     }
 
+    /**
+     * Same as above, plus the quadrupole term of a cell with center of mass
+     * (x, y) and second moments qxx, qxy, qyy about it. The force of a unit
+     * mass at offset R is R h(s) with s = |R|^2 and
+     * h(s) = 1 / (sqrt(s) (s + SOFTENING)). The bodies of the cell are at
+     * R + d, with the sum of m d zero, so the second order Taylor term
+     * sum m d d : grad grad (R h) / 2 is what the monopole leaves out.
+     */
+    public void addForce(double x, double y, double mass, double qxx, double qxy, double qyy) {
+        addForce(x, y, mass);
+        double dx = x - this.px;
+        double dy = y - this.py;
+        double s = dx * dx + dy * dy;
+        double h = 1.0 / (Math.sqrt(s) * (s + SOFTENING));
+        double l1 = -0.5 / s - 1.0 / (s + SOFTENING); // h' = h l1
+        double l2 = 0.5 / (s * s) + 1.0 / ((s + SOFTENING) * (s + SOFTENING)); // h'' = h (l1^2 + l2)
+        double h1 = h * l1, h2 = h * (l1 * l1 + l2);
+        double mx = qxx * dx + qxy * dy, my = qxy * dx + qyy * dy;
+        double t = h1 * (qxx + qyy) + 2 * h2 * (dx * mx + dy * my);
+        this.fx += G * this.mass * (2 * h1 * mx + dx * t);
+        this.fy += G * this.mass * (2 * h1 * my + dy * t);
+    }
+
+    /* Same as addForce for each of the first n masses in the arrays, except the one of body self */
+    public void addForces(double[] x, double[] y, double[] mass, int[] body, int n, int self) {
+        double fx = 0.0, fy = 0.0;
+        for (int j = 0; j < n; j++) {
+            if (body[j] == self)
+                continue;
+            double dx = x[j] - this.px;
+            double dy = y[j] - this.py;
+            double distance = Math.sqrt(dx * dx + dy * dy);
+            double force = (G * this.mass * mass[j]) / (distance * distance + SOFTENING);
+            fx += force * dx / distance;
+            fy += force * dy / distance;
+        }
+        this.fx += fx;
+        this.fy += fy;
+    }
+
     /* Update or move the bodies */
     public void update() {
+        accel = Math.sqrt(fx * fx + fy * fy) / mass;
         vx += DT * fx / mass;
         vy += DT * fy / mass;
         px += DT * vx;
@@ -0,0 +1,210 @@
+package task3;
+
+import java.util.Arrays;
+
+/**
+ * Barnes-Hut tree with buckets of up to leafSize bodies in its leaves,
+ * walked with an explicit stack instead of recursion.
+ *
+ * BHTree splits a node as soon as it holds two bodies, so the tree gets
+ * one leaf per body and is as deep as the closest pair of bodies demands,
+ * without bound for bodies at the same point. Here a node is split only
+ * when it holds more than leafSize bodies and is less than MAX_DEPTH levels
+ * deep, otherwise it stays a leaf with all its bodies.
+ *
+ * The tree is built top down: the bodies of a node are a range of an index
+ * array, which is partitioned by quadrant (same tests and order as
+ * BHTree.putInQuad) into the ranges of its children. The positions and
+ * masses are then copied in that order, so the bodies of a leaf are next to
+ * each other in memory. updateForce keeps the nodes still to visit on an
+ * int stack and sums the forces of the bodies of an opened leaf directly.
+ */
+public class BucketBHTree {
+
+    public static final int LEAF_SIZE = 8; // Default bodies per leaf
+    private static final int MAX_DEPTH = 32;
+    private static final int NW = 0, NE = 1, SW = 2, SE = 3;
+
+    private final Body[] bodies;
+    private final double theta;
+    private final int leafSize;
+    private int size;  // nodes in use
+    private int count; // bodies in the tree
+
+    private int[] child = {}; // first of the four children, -1 for a leaf
+    private int[] start = {}, end = {}; // bodies of the node, ranks [start, end)
+    private double[] cx = {}, cy = {}, length = {};
+    private double[] mass = {}, comX = {}, comY = {};
+
+    private final int[] order;  // [rank] index of the body
+    private final int[] tmp, code; // scratch of split: sorted order, quadrant of a rank
+    private final int[] next = new int[4];
+    private final double[] x, y, m; // [rank] position and mass
+
+    private final int[] stack = new int[3 * MAX_DEPTH + 4];
+    private final int[] depth = new int[3 * MAX_DEPTH + 4];
+
+    public BucketBHTree(Body[] bodies, double theta, int leafSize) {
+        this.bodies = bodies;
+        this.theta = theta;
+        this.leafSize = Math.max(leafSize, 1);
+        this.order = new int[bodies.length];
+        this.tmp = new int[bodies.length];
+        this.code = new int[bodies.length];
+        this.x = new double[bodies.length];
+        this.y = new double[bodies.length];
+        this.m = new double[bodies.length];
+        allocate(Math.max(8 * bodies.length / this.leafSize, 64));
+    }
+
+    /* Builds the tree of the bodies in the square centered at (cx, cy), like BHTree on Quad(cx, cy, length) */
+    public void build(double cx, double cy, double length) {
+        Quad quad = new Quad(cx, cy, length);
+        count = 0;
+        for (int i = 0; i < bodies.length; i++) {
+            if (bodies[i].in(quad))
+                order[count++] = i;
+        }
+        size = 0;
+        node(cx, cy, length, 0, count);
+
+        // Split the nodes that hold too many bodies, depth first
+        int sp = 0;
+        stack[sp] = 0;
+        depth[sp++] = 0;
+        while (sp > 0) {
+            int k = stack[--sp], d = depth[sp];
+            if (end[k] - start[k] <= leafSize || d == MAX_DEPTH)
+                continue;
+            int c = split(k);
+            for (int q = c + 3; q >= c; q--) {
+                stack[sp] = q;
+                depth[sp++] = d + 1;
+            }
+        }
+
+        for (int r = 0; r < count; r++) {
+            Body b = bodies[order[r]];
+            x[r] = b.px;
+            y[r] = b.py;
+            m[r] = b.mass;
+        }
+        // Masses bottom up, children always come after their parent
+        for (int k = size - 1; k >= 0; k--) {
+            double sm = 0.0, sx = 0.0, sy = 0.0;
+            if (child[k] < 0) {
+                for (int r = start[k]; r < end[k]; r++) {
+                    sm += m[r];
+                    sx += m[r] * x[r];
+                    sy += m[r] * y[r];
+                }
+            } else {
+                for (int q = child[k]; q < child[k] + 4; q++) {
+                    sm += mass[q];
+                    sx += mass[q] * comX[q];
+                    sy += mass[q] * comY[q];
+                }
+            }
+            mass[k] = sm;
+            comX[k] = sm > 0.0 ? sx / sm : 0.0;
+            comY[k] = sm > 0.0 ? sy / sm : 0.0;
+        }
+    }
+
+    /* Approximates the net force on body i from all bodies in the tree */
+    public void updateForce(int i) {
+        Body nb = bodies[i];
+        int sp = 0;
+        stack[sp++] = 0;
+        while (sp > 0) {
+            int k = stack[--sp];
+            if (start[k] == end[k])
+                continue;
+            if (child[k] < 0) {
+                // leaf, every body on its own
+                for (int r = start[k]; r < end[k]; r++) {
+                    if (order[r] != i)
+                        nb.addForce(x[r], y[r], m[r]);
+                }
+                continue;
+            }
+            // distance between nb and this node's center-of-mass
+            double distance = Math.sqrt(Math.pow((comX[k] - nb.px), 2) + Math.pow((comY[k] - nb.py), 2));
+
+            // compare ratio (quad_side / d) to threshold value Theta
+            if ((length[k] / distance) < theta) {
+                nb.addForce(comX[k], comY[k], mass[k]);
+            } else {
+                for (int q = child[k] + 3; q >= child[k]; q--)
+                    stack[sp++] = q;
+            }
+        }
+    }
+
+    /* Gives node k four children, same squares as Quad.NW/NE/SW/SE, and sorts its bodies between them */
+    private int split(int k) {
+        double x0 = cx[k], y0 = cy[k], l = length[k];
+        int lo = start[k], hi = end[k];
+        int c = node(x0 - l / 4.0, y0 + l / 4.0, l / 2.0, 0, 0);
+        node(x0 + l / 4.0, y0 + l / 4.0, l / 2.0, 0, 0);
+        node(x0 - l / 4.0, y0 - l / 4.0, l / 2.0, 0, 0);
+        node(x0 + l / 4.0, y0 - l / 4.0, l / 2.0, 0, 0);
+        child[k] = c;
+
+        // Counting sort of the range by quadrant, the order within a quadrant is kept
+        Arrays.fill(next, 0);
+        for (int r = lo; r < hi; r++) {
+            Body b = bodies[order[r]];
+            int q = quadrant(c, b.px, b.py);
+            code[r] = q;
+            next[q]++;
+        }
+        for (int q = NW, pos = lo; q <= SE; q++) {
+            start[c + q] = pos;
+            pos += next[q];
+            end[c + q] = pos;
+            next[q] = start[c + q];
+        }
+        for (int r = lo; r < hi; r++)
+            tmp[next[code[r]]++] = order[r];
+        System.arraycopy(tmp, lo, order, lo, hi - lo);
+        return c;
+    }
+
+    /* The first of the children c to c + 3 whose quad contains (px, py), tested like BHTree.putInQuad */
+    private int quadrant(int c, double px, double py) {
+        for (int q = NW; q < SE; q++) {
+            double middle = length[c + q] / 2.0;
+            if (px <= cx[c + q] + middle && px >= cx[c + q] - middle &&
+                    py <= cy[c + q] + middle && py >= cy[c + q] - middle)
+                return q;
+        }
+        // BHTree drops a body in none of the quads, here it goes to the last one
+        return SE;
+    }
+
+    private int node(double x0, double y0, double l, int lo, int hi) {
+        if (size == child.length)
+            allocate(2 * size);
+        int k = size++;
+        cx[k] = x0;
+        cy[k] = y0;
+        length[k] = l;
+        child[k] = -1;
+        start[k] = lo;
+        end[k] = hi;
+        return k;
+    }
+
+    private void allocate(int capacity) {
+        child = Arrays.copyOf(child, capacity);
+        start = Arrays.copyOf(start, capacity);
+        end = Arrays.copyOf(end, capacity);
+        cx = Arrays.copyOf(cx, capacity);
+        cy = Arrays.copyOf(cy, capacity);
+        length = Arrays.copyOf(length, capacity);
+        mass = Arrays.copyOf(mass, capacity);
+        comX = Arrays.copyOf(comX, capacity);
+        comY = Arrays.copyOf(comY, capacity);
+    }
+}
@@ -0,0 +1,437 @@
+package task3;
+
+import java.util.Arrays;
+
+/**
+ * Barnes-Hut tree in flat arrays, a drop in for BHTree.
+ *
+ * BHTree allocates a node, its four children, their Quads and an aggregate
+ * Body for every split, and the whole tree is garbage after each step. Here
+ * node k is a slot in primitive arrays: its square (cx, cy, length), its
+ * mass and center of mass, the body of a leaf and the index of its first
+ * child. The four children of a node are consecutive, in NW, NE, SW, SE
+ * order. The arrays are kept between steps and only grow, so once they are
+ * big enough a step allocates nothing.
+ *
+ * insert and updateForce do the same arithmetic in the same order as BHTree,
+ * so both trees give the same forces.
+ *
+ * With quadrupoles, insert only places the bodies and moments sums the
+ * masses, centers of mass and second moments of all nodes afterwards, in one
+ * backwards pass over the arrays (children always come after their parent).
+ * updateForce then adds the quadrupole term of every accepted node, which
+ * allows a larger theta for the same accuracy.
+ *
+ * updateForceGroups walks the tree once per group of close bodies instead
+ * of once per body: the largest subtrees with at most groupSize bodies. A
+ * node is accepted for the whole group if it is far enough from every
+ * point of the group's bounding box, so each body gets at least the
+ * accuracy of its own walk. The accepted nodes and the bodies of the opened
+ * leaves make one interaction list, which Body.addForces then sums for
+ * every body of the group in a plain loop over arrays.
+ *
+ * The opening criterion is one of Criterion. GEOMETRIC is the test of
+ * BHTree, the other two bound the error of an accepted node instead and
+ * take alpha, a tolerance relative to the accelerations, in place of theta.
+ * In both, larger values are faster and less accurate, ThetaTuner picks the
+ * largest one that meets an error target.
+ */
+public class FlatBHTree {
+
+    /* When a node is far enough from a body to stand in for its bodies */
+    public enum Criterion {
+        /* The side of the node over the distance to its center of mass is below theta */
+        GEOMETRIC,
+        /*
+         * Salmon and Warren: every node gets its own opening radius from its
+         * second moments, so the monopole error stays below alpha times the
+         * pull of the whole tree at the distance of the root's side. Needs
+         * moments() after the inserts.
+         */
+        SALMON_WARREN,
+        /*
+         * Relative acceleration (as in Gadget): G mass side^2 / d^4 below alpha
+         * times the body's acceleration of the last step, and the body not
+         * within 1.2 times the node's quad. Falls back to GEOMETRIC until the
+         * body has moved once.
+         */
+        RELATIVE
+    }
+
+    public static final double THETA = 0.5; // Threshold value for center-mass calc.
+    public static final double ALPHA = 0.001; // Default tolerance of the error based criteria
+    private static final int EMPTY = -1;     // body[k] of a node without bodies
+    private static final int AGGREGATE = -2; // body[k] of an internal node
+    private static final int CELL = -1;      // listBody of an accepted node in the interaction list
+
+    private final Body[] bodies;
+    private double theta, alpha;
+    private final boolean quadrupole;
+    private final Criterion criterion;
+    private final boolean deferred; // insert leaves the sums of the internal nodes to moments
+    private int size; // nodes in use
+
+    private int[] child = {};  // first of the four children, -1 for an external node
+    private int[] body = {};   // index of the body in a leaf, EMPTY or AGGREGATE
+    private double[] cx = {}, cy = {}, length = {};
+    private double[] mass = {}, comX = {}, comY = {};
+    private double[] qxx = {}, qxy = {}, qyy = {}; // second moments about the center of mass
+    private double[] open = {}; // Salmon-Warren opening radius
+    private int[] count = {}; // bodies in the subtree, for the group walk
+
+    // Group walk: the bodies of the group, their bounding box and the interaction list
+    private int[] group = {};
+    private int groupCount;
+    private double minX, maxX, minY, maxY;
+    private double minAccel;
+    private int listSize;
+    private int[] listBody = {}, listNode = {};
+    private double[] listX = {}, listY = {}, listMass = {};
+
+    public FlatBHTree(Body[] bodies) {
+        this(bodies, THETA, false);
+    }
+
+    public FlatBHTree(Body[] bodies, double theta, boolean quadrupole) {
+        this(bodies, theta, quadrupole, Criterion.GEOMETRIC, ALPHA);
+    }
+
+    public FlatBHTree(Body[] bodies, double theta, boolean quadrupole, Criterion criterion, double alpha) {
+        this.bodies = bodies;
+        this.theta = theta;
+        this.alpha = alpha;
+        this.quadrupole = quadrupole;
+        this.criterion = criterion;
+        this.deferred = quadrupole || criterion == Criterion.SALMON_WARREN;
+        allocate(Math.max(4 * bodies.length, 64));
+    }
+
+    public Criterion criterion() {
+        return criterion;
+    }
+
+    /* Whether moments() has to run after the inserts */
+    public boolean needsMoments() {
+        return deferred;
+    }
+
+    /* The accuracy parameter of the criterion, theta for GEOMETRIC and alpha otherwise */
+    public double parameter() {
+        return criterion == Criterion.GEOMETRIC ? theta : alpha;
+    }
+
+    /* Sets the accuracy parameter, the tree is kept */
+    public void parameter(double value) {
+        if (criterion == Criterion.GEOMETRIC) {
+            theta = value;
+        } else {
+            alpha = value;
+            if (criterion == Criterion.SALMON_WARREN)
+                radii();
+        }
+    }
+
+    /* Empties the tree, the root covers the square centered at (x, y) */
+    public void reset(double x, double y, double length) {
+        size = 0;
+        node(x, y, length);
+    }
+
+    /* Adds body i to the tree, like BHTree.insert(bodies[i]) */
+    public void insert(int i) {
+        Body nb = bodies[i];
+        double x = nb.px, y = nb.py;
+        int k = 0;
+        while (k >= 0) {
+            if (body[k] == EMPTY) {
+                body[k] = i;
+                mass[k] = nb.mass;
+                comX[k] = x;
+                comY[k] = y;
+                return;
+            }
+            if (child[k] < 0) {
+                // External node, split it and move its body down
+                int c = split(k);
+                int q = quadrant(c, comX[k], comY[k]);
+                if (q >= 0) {
+                    body[q] = body[k];
+                    mass[q] = mass[k];
+                    comX[q] = comX[k];
+                    comY[q] = comY[k];
+                }
+                body[k] = AGGREGATE;
+            }
+            if (deferred) {
+                k = quadrant(child[k], x, y);
+                continue;
+            }
+            // update the center-of-mass and total mass
+            double m = mass[k] + nb.mass;
+            comX[k] = (comX[k] * mass[k] + x * nb.mass) / m;
+            comY[k] = (comY[k] * mass[k] + y * nb.mass) / m;
+            mass[k] = m;
+            k = quadrant(child[k], x, y);
+        }
+    }
+
+    /* Sums mass, center of mass and second moments of the internal nodes from their children */
+    public void moments() {
+        for (int k = size - 1; k >= 0; k--) {
+            int c = child[k];
+            if (c < 0) {
+                qxx[k] = qxy[k] = qyy[k] = 0.0;
+                continue;
+            }
+            double m = 0.0, mx = 0.0, my = 0.0;
+            for (int q = c; q < c + 4; q++) {
+                m += mass[q];
+                mx += mass[q] * comX[q];
+                my += mass[q] * comY[q];
+            }
+            double x = m > 0.0 ? mx / m : 0.0, y = m > 0.0 ? my / m : 0.0;
+            double xx = 0.0, xy = 0.0, yy = 0.0;
+            // Parallel axis theorem, moments of a child about its own center of mass moved to x, y
+            for (int q = c; q < c + 4; q++) {
+                if (mass[q] == 0.0)
+                    continue;
+                double dx = comX[q] - x, dy = comY[q] - y;
+                xx += qxx[q] + mass[q] * dx * dx;
+                xy += qxy[q] + mass[q] * dx * dy;
+                yy += qyy[q] + mass[q] * dy * dy;
+            }
+            mass[k] = m;
+            comX[k] = x;
+            comY[k] = y;
+            qxx[k] = xx;
+            qxy[k] = xy;
+            qyy[k] = yy;
+        }
+        if (criterion == Criterion.SALMON_WARREN)
+            radii();
+    }
+
+    /*
+     * Opening radius of every internal node. With b the largest distance
+     * from the center of mass to a point of the quad and B2 the trace of the
+     * second moments, the monopole error at distance d is below
+     * G 3 B2 / (d - b)^4, and it is below delta for d beyond
+     * b / 2 + sqrt(b^2 / 4 + sqrt(3 B2 / delta)).
+     */
+    private void radii() {
+        double delta = alpha * mass[0] / (length[0] * length[0]);
+        for (int k = 0; k < size; k++) {
+            if (child[k] < 0)
+                continue;
+            double dx = Math.abs(comX[k] - cx[k]) + length[k] / 2.0;
+            double dy = Math.abs(comY[k] - cy[k]) + length[k] / 2.0;
+            double b = Math.sqrt(dx * dx + dy * dy);
+            open[k] = b / 2.0 + Math.sqrt(b * b / 4.0 + Math.sqrt(3.0 * (qxx[k] + qyy[k]) / delta));
+        }
+    }
+
+    /* Approximates the net force on body i from all bodies in the tree, like BHTree.updateForce */
+    public void updateForce(int i) {
+        updateForce(0, bodies[i], i);
+    }
+
+    /* Approximates the net force on every body in the tree, with one walk per group of at most groupSize bodies */
+    public void updateForceGroups(int groupSize) {
+        for (int k = size - 1; k >= 0; k--) {
+            int c = child[k];
+            count[k] = c >= 0 ? count[c] + count[c + 1] + count[c + 2] + count[c + 3] : body[k] >= 0 ? 1 : 0;
+        }
+        if (group.length < groupSize)
+            group = new int[groupSize];
+        groups(0, groupSize);
+    }
+
+    /* Walks the groups in the subtree of node k */
+    private void groups(int k, int groupSize) {
+        if (count[k] == 0)
+            return;
+        if (count[k] > groupSize) {
+            for (int c = child[k]; c < child[k] + 4; c++)
+                groups(c, groupSize);
+            return;
+        }
+        groupCount = 0;
+        minX = minY = minAccel = Double.POSITIVE_INFINITY;
+        maxX = maxY = Double.NEGATIVE_INFINITY;
+        members(k);
+
+        listSize = 0;
+        walk(0, k);
+        int cells = 0;
+        if (quadrupole) {
+            // Cells go through addForce for their quadrupole terms, only bodies stay in the list
+            int bodiesInList = 0;
+            for (int j = 0; j < listSize; j++) {
+                if (listBody[j] == CELL)
+                    listNode[cells++] = listNode[j];
+                else
+                    list(bodiesInList++, listBody[j], listX[j], listY[j], listMass[j]);
+            }
+            listSize = bodiesInList;
+        }
+        for (int r = 0; r < groupCount; r++) {
+            Body nb = bodies[group[r]];
+            nb.addForces(listX, listY, listMass, listBody, listSize, group[r]);
+            for (int j = 0; j < cells; j++) {
+                int q = listNode[j];
+                nb.addForce(comX[q], comY[q], mass[q], qxx[q], qxy[q], qyy[q]);
+            }
+        }
+    }
+
+    /* Lists the bodies in the subtree of node k as the group and grows its bounding box */
+    private void members(int k) {
+        if (child[k] >= 0) {
+            for (int c = child[k]; c < child[k] + 4; c++)
+                members(c);
+        } else if (body[k] >= 0) {
+            Body b = bodies[body[k]];
+            group[groupCount++] = body[k];
+            minX = Math.min(minX, b.px);
+            maxX = Math.max(maxX, b.px);
+            minY = Math.min(minY, b.py);
+            maxY = Math.max(maxY, b.py);
+            minAccel = Math.min(minAccel, b.accel);
+        }
+    }
+
+    /* Adds the nodes and bodies that group g interacts with below node k to the list */
+    private void walk(int k, int g) {
+        if (body[k] == EMPTY)
+            return;
+        if (child[k] < 0) {
+            Body b = bodies[body[k]];
+            list(listSize++, body[k], b.px, b.py, b.mass);
+            return;
+        }
+        // A node holding the group is always opened, its mass includes the group
+        if (!holds(k, g)) {
+            // distance between the box of the group and this node's center-of-mass
+            double dx = Math.max(Math.max(minX - comX[k], comX[k] - maxX), 0.0);
+            double dy = Math.max(Math.max(minY - comY[k], comY[k] - maxY), 0.0);
+            double distance = Math.sqrt(dx * dx + dy * dy);
+            if (criterion == Criterion.GEOMETRIC ? (length[k] / distance) < theta
+                    : accept(k, distance, minX, maxX, minY, maxY, minAccel)) {
+                list(listSize, CELL, comX[k], comY[k], mass[k]);
+                listNode[listSize++] = k;
+                return;
+            }
+        }
+        for (int c = child[k]; c < child[k] + 4; c++)
+            walk(c, g);
+    }
+
+    /* Whether the quad of node k holds the one of node g, quads are nested or apart */
+    private boolean holds(int k, int g) {
+        return length[k] >= length[g] && Math.abs(cx[g] - cx[k]) < length[k] / 2.0
+                && Math.abs(cy[g] - cy[k]) < length[k] / 2.0;
+    }
+
+    private void list(int j, int b, double x, double y, double m) {
+        if (j == listBody.length) {
+            int capacity = Math.max(2 * j, 64);
+            listBody = Arrays.copyOf(listBody, capacity);
+            listNode = Arrays.copyOf(listNode, capacity);
+            listX = Arrays.copyOf(listX, capacity);
+            listY = Arrays.copyOf(listY, capacity);
+            listMass = Arrays.copyOf(listMass, capacity);
+        }
+        listBody[j] = b;
+        listX[j] = x;
+        listY[j] = y;
+        listMass[j] = m;
+    }
+
+    private void updateForce(int k, Body nb, int i) {
+        if (body[k] == EMPTY || body[k] == i)
+            return;
+        // external node
+        if (child[k] < 0) {
+            nb.addForce(bodies[body[k]]);
+            return;
+        }
+        // distance between nb and this node's center-of-mass
+        double distance = Math.sqrt(Math.pow((comX[k] - nb.px), 2) + Math.pow((comY[k] - nb.py), 2));
+
+        // compare ratio (quad_side / d) to threshold value Theta
+        if (criterion == Criterion.GEOMETRIC ? (length[k] / distance) < theta
+                : accept(k, distance, nb.px, nb.px, nb.py, nb.py, nb.accel)) {
+            if (quadrupole)
+                nb.addForce(comX[k], comY[k], mass[k], qxx[k], qxy[k], qyy[k]);
+            else
+                nb.addForce(comX[k], comY[k], mass[k]);
+        } else {
+            for (int c = child[k]; c < child[k] + 4; c++)
+                updateForce(c, nb, i);
+        }
+    }
+
+    /* Error based test of node k at distance from the box [x0, x1] x [y0, y1], whose smallest acceleration is a */
+    private boolean accept(int k, double distance, double x0, double x1, double y0, double y1, double a) {
+        if (criterion == Criterion.SALMON_WARREN)
+            return distance > open[k];
+        if (a == 0.0)
+            return (length[k] / distance) < theta;
+        double l = length[k], margin = 0.6 * l;
+        if (x1 >= cx[k] - margin && x0 <= cx[k] + margin && y1 >= cy[k] - margin && y0 <= cy[k] + margin)
+            return false;
+        double d2 = distance * distance;
+        return Body.G * mass[k] * l * l < alpha * a * d2 * d2;
+    }
+
+    /* The one of the siblings c to c + 3 whose quad contains (x, y), -1 if none */
+    private int quadrant(int c, double x, double y) {
+        for (int q = c; q < c + 4; q++) {
+            double middle = length[q] / 2.0;
+            if (x <= cx[q] + middle && x >= cx[q] - middle &&
+                    y <= cy[q] + middle && y >= cy[q] - middle)
+                return q;
+        }
+        return -1;
+    }
+
+    /* Gives node k four empty children, same squares as Quad.NW/NE/SW/SE */
+    private int split(int k) {
+        double x = cx[k], y = cy[k], l = length[k];
+        int c = node(x - l / 4.0, y + l / 4.0, l / 2.0);
+        node(x + l / 4.0, y + l / 4.0, l / 2.0);
+        node(x - l / 4.0, y - l / 4.0, l / 2.0);
+        node(x + l / 4.0, y - l / 4.0, l / 2.0);
+        child[k] = c;
+        return c;
+    }
+
+    private int node(double x, double y, double l) {
+        if (size == child.length)
+            allocate(2 * size);
+        int k = size++;
+        cx[k] = x;
+        cy[k] = y;
+        length[k] = l;
+        child[k] = -1;
+        body[k] = EMPTY;
+        mass[k] = comX[k] = comY[k] = 0.0;
+        return k;
+    }
+
+    private void allocate(int capacity) {
+        child = Arrays.copyOf(child, capacity);
+        body = Arrays.copyOf(body, capacity);
+        cx = Arrays.copyOf(cx, capacity);
+        cy = Arrays.copyOf(cy, capacity);
+        length = Arrays.copyOf(length, capacity);
+        mass = Arrays.copyOf(mass, capacity);
+        comX = Arrays.copyOf(comX, capacity);
+        comY = Arrays.copyOf(comY, capacity);
+        qxx = Arrays.copyOf(qxx, capacity);
+        qxy = Arrays.copyOf(qxy, capacity);
+        qyy = Arrays.copyOf(qyy, capacity);
+        open = Arrays.copyOf(open, capacity);
+        count = Arrays.copyOf(count, capacity);
+    }
+}
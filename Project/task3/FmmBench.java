@@ -0,0 +1,127 @@
+/**
+ * FmmTree against FlatBHTree: build and force times and the force error
+ * over several body counts, for several expansion orders.
+ *
+ * Usage (from root):
+ *  javac task3/FmmBench.java
+ *  java task3.FmmBench [gnumBodies,...] [order...]
+ *
+ * where:
+ *  gnumBodies:  Comma separated body counts (default 10000,100000,1000000).
+ *  order:       Expansion orders of FmmTree to test (default 4 6 8).
+ *
+ * The flat tree runs with theta 0.5, with monopoles and with quadrupoles,
+ * the FMM with FmmTree.LEAF_SIZE bodies per leaf. Times are the best of
+ * two rounds after an untimed warm up. The trees walk one body after the
+ * other as in task3.Nbody, the passes of the FMM use the common pool
+ * (-Djava.util.concurrent.ForkJoinPool.common.parallelism=1 for one
+ * thread). The error is the rms of the force differences over the rms of
+ * the forces, against the direct sums of 256 bodies spread through the
+ * array, as in ThetaTuner.
+ */
+package task3;
+
+import java.util.Arrays;
+
+public class FmmBench {
+
+    private static final double LENGTH = 4 * (Nbody.RADIUS + Nbody.MIN_DIST);
+    private static final int SAMPLE = 256;
+    private static final int ROUNDS = 2;
+
+    public static void main(String[] args) {
+        int[] sizes = { 10000, 100000, 1000000 };
+        if (args.length > 0)
+            sizes = Arrays.stream(args[0].split(",")).mapToInt(Integer::parseInt).toArray();
+        int[] orders = { 4, 6, 8 };
+        if (args.length > 1) {
+            orders = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+                orders[i - 1] = Integer.parseInt(args[i]);
+        }
+
+        System.out.format("%10s %12s %12s %12s %12s%n", "gnumBodies", "engine", "build ms", "force ms",
+                "force error");
+        for (int n : sizes) {
+            Nbody prg = new Nbody(n, 1, Nbody.EARTH_MASS, 0.05);
+            Body[] bodies = prg.bodies;
+            Quad q = new Quad(0, 0, LENGTH);
+
+            // Direct sums of the sampled bodies
+            int sample = Math.min(SAMPLE, n);
+            int stride = n / sample;
+            double[] fx = new double[sample], fy = new double[sample];
+            for (int s = 0; s < sample; s++) {
+                Body nb = bodies[s * stride];
+                for (int j = 0; j < n; j++) {
+                    if (j != s * stride && bodies[j].in(q))
+                        nb.addForce(bodies[j]);
+                }
+                fx[s] = nb.fx;
+                fy[s] = nb.fy;
+                nb.fx = nb.fy = 0.0;
+            }
+
+            for (boolean quadrupole : new boolean[] { false, true }) {
+                FlatBHTree flat = new FlatBHTree(bodies, FlatBHTree.THETA, quadrupole);
+                long build = Long.MAX_VALUE, force = Long.MAX_VALUE;
+                for (int round = -1; round < ROUNDS; round++) {
+                    clear(bodies);
+                    long t0 = System.nanoTime();
+                    flat.reset(0, 0, LENGTH);
+                    for (int j = 0; j < n; j++) {
+                        if (bodies[j].in(q))
+                            flat.insert(j);
+                    }
+                    if (flat.needsMoments())
+                        flat.moments();
+                    long t1 = System.nanoTime();
+                    for (int j = 0; j < n; j++)
+                        flat.updateForce(j);
+                    long t2 = System.nanoTime();
+                    if (round >= 0) {
+                        build = Math.min(build, t1 - t0);
+                        force = Math.min(force, t2 - t1);
+                    }
+                }
+                System.out.format("%10d %12s %12.2f %12.2f %12.2e%n", n, quadrupole ? "quadrupole" : "flat",
+                        build * 1e-6, force * 1e-6, error(bodies, fx, fy, stride));
+            }
+
+            for (int order : orders) {
+                FmmTree fmm = new FmmTree(bodies, order, FmmTree.LEAF_SIZE);
+                long build = Long.MAX_VALUE, force = Long.MAX_VALUE;
+                for (int round = -1; round < ROUNDS; round++) {
+                    clear(bodies);
+                    long t0 = System.nanoTime();
+                    fmm.build(0, 0, LENGTH);
+                    long t1 = System.nanoTime();
+                    fmm.updateForces();
+                    long t2 = System.nanoTime();
+                    if (round >= 0) {
+                        build = Math.min(build, t1 - t0);
+                        force = Math.min(force, t2 - t1);
+                    }
+                }
+                System.out.format("%10d %12s %12.2f %12.2f %12.2e%n", n, "fmm p=" + order, build * 1e-6,
+                        force * 1e-6, error(bodies, fx, fy, stride));
+            }
+        }
+    }
+
+    private static void clear(Body[] bodies) {
+        for (Body b : bodies)
+            b.fx = b.fy = 0.0;
+    }
+
+    /* Rms force error of the sample */
+    private static double error(Body[] bodies, double[] fx, double[] fy, int stride) {
+        double diff = 0.0, norm = 0.0;
+        for (int s = 0; s < fx.length; s++) {
+            Body nb = bodies[s * stride];
+            diff += (nb.fx - fx[s]) * (nb.fx - fx[s]) + (nb.fy - fy[s]) * (nb.fy - fy[s]);
+            norm += fx[s] * fx[s] + fy[s] * fy[s];
+        }
+        return norm > 0.0 ? Math.sqrt(diff / norm) : 0.0;
+    }
+}
@@ -0,0 +1,498 @@
+package task3;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Fast multipole method on a quadtree of Quads: the forces of all bodies in
+ * O(N) instead of one tree walk per body.
+ *
+ * The tree is the one Quad.NW/NE/SW/SE defines, cut to the same depth
+ * everywhere: level l has 2^l x 2^l quads of side length / 2^l, and only
+ * the occupied ones are kept, sorted by Morton key so the children of a
+ * cell are next to each other in the level below. The depth is the first
+ * one whose occupied leaves hold at most leafSize bodies on average.
+ *
+ * Every cell has a multipole expansion of its bodies about its center and
+ * a local expansion of the far field about its center, both Taylor series
+ * of order p in x and y. Gravity here is G m m / (d^2 + SOFTENING), which
+ * is not a harmonic potential in the plane, so the expansions are the
+ * Cartesian ones of Body.addForce's potential instead of complex ones.
+ * The derivatives of the potential phi(d^2) come from the closed form
+ * derivatives of dphi / ds = 1 / (2 sqrt(s) (s + SOFTENING)).
+ *
+ *  - P2M: the multipoles of the leaves from their bodies.
+ *  - M2M: the multipoles of the level above from the ones of its children,
+ *    level by level up to the root.
+ *  - M2L: every cell adds to its local expansion the multipoles of the
+ *    children of its parent's neighbours that are not its own neighbours,
+ *    at most 27 cells.
+ *  - L2L: every cell takes the local expansion of its parent, shifted to
+ *    its center, level by level down to the leaves.
+ *  - L2P and P2P: every body gets the field of its leaf's local expansion
+ *    and the forces of the bodies in its own and the neighbouring leaves
+ *    directly, as in Body.addForce.
+ *
+ * The cells of one level are done in parallel in every pass, each cell
+ * only writes its own expansion and each body only its own force.
+ *
+ * Bodies outside the root are not in the tree, as with the other trees.
+ * They walk it from the root instead and take the multipoles of cells at
+ * least two side lengths away.
+ */
+public class FmmTree {
+
+    public static final int ORDER = 6;      // Default expansion order
+    public static final int LEAF_SIZE = 32; // Default mean bodies per occupied leaf
+    private static final int MAX_DEPTH = 15; // two 15 bit coordinates make an int key
+    private static final int OFFSETS = 7;   // M2L sources are at most 3 cells away in x and y
+
+    private final Body[] bodies;
+    private final int p;        // expansion order
+    private final int leafSize;
+    private final int terms;    // coefficients of an expansion, (p + 1)(p + 2) / 2
+
+    private final double[] inverseFactorial; // [n] 1 / n!
+    private final double[][] binomial;       // [n][i] n choose i
+    private final double[][] hermite;        // [n][i] n! / (i! (n - 2i)!)
+
+    private Quad root;
+    private double x0, y0, length; // lower left corner and side of the root
+    private int depth;             // level of the leaves
+
+    private final int[] count = new int[MAX_DEPTH + 1]; // [level] occupied cells
+    private final int[][] key = new int[MAX_DEPTH + 1][], ix = new int[MAX_DEPTH + 1][], iy = new int[MAX_DEPTH + 1][];
+    private final int[][] from = new int[MAX_DEPTH + 1][], to = new int[MAX_DEPTH + 1][]; // children, ranks for leaves
+    private final int[][] parent = new int[MAX_DEPTH + 1][];
+    private final double[][] multipole = new double[MAX_DEPTH + 1][], local = new double[MAX_DEPTH + 1][]; // [level][cell * terms + term]
+    private final double[][] green = new double[MAX_DEPTH + 1][]; // [level][offset * terms + term] derivatives of phi
+
+    private final long[] sorted; // key << 32 | body
+    private final int[] rank;    // [rank] body, leaf by leaf
+    private final double[] x, y, m; // [rank] position and mass
+    private final int[] outside; // bodies not in the root
+    private int inside, outsideCount;
+
+    public FmmTree(Body[] bodies) {
+        this(bodies, ORDER, LEAF_SIZE);
+    }
+
+    public FmmTree(Body[] bodies, int p, int leafSize) {
+        this.bodies = bodies;
+        this.p = Math.max(p, 1);
+        this.leafSize = Math.max(leafSize, 1);
+        this.terms = (this.p + 1) * (this.p + 2) / 2;
+        this.sorted = new long[bodies.length];
+        this.rank = new int[bodies.length];
+        this.x = new double[bodies.length];
+        this.y = new double[bodies.length];
+        this.m = new double[bodies.length];
+        this.outside = new int[bodies.length];
+
+        // M2P of outside bodies needs derivatives of order p + 1
+        int n = this.p + 2;
+        inverseFactorial = new double[n];
+        binomial = new double[n][n];
+        hermite = new double[n][];
+        inverseFactorial[0] = 1.0;
+        for (int k = 1; k < n; k++)
+            inverseFactorial[k] = inverseFactorial[k - 1] / k;
+        for (int k = 0; k < n; k++) {
+            binomial[k][0] = binomial[k][k] = 1.0;
+            for (int i = 1; i < k; i++)
+                binomial[k][i] = binomial[k - 1][i - 1] + binomial[k - 1][i];
+            hermite[k] = new double[k / 2 + 1];
+            for (int i = 0; 2 * i <= k; i++)
+                hermite[k][i] = inverseFactorial[i] * inverseFactorial[k - 2 * i] / inverseFactorial[k];
+        }
+    }
+
+    /* Expansion order */
+    public int order() {
+        return p;
+    }
+
+    /* Builds the tree of the bodies in the square centered at (cx, cy) and its multipoles, like BHTree on Quad(cx, cy, length) */
+    public void build(double cx, double cy, double length) {
+        this.root = new Quad(cx, cy, length);
+        this.length = length;
+        this.x0 = cx - length / 2.0;
+        this.y0 = cy - length / 2.0;
+
+        inside = outsideCount = 0;
+        for (int i = 0; i < bodies.length; i++) {
+            if (bodies[i].in(root))
+                inside++;
+            else
+                outside[outsideCount++] = i;
+        }
+        // Keys of the deepest level first, the ones of the leaves are their prefixes
+        int side = 1 << MAX_DEPTH, r = 0;
+        for (int i = 0; i < bodies.length; i++) {
+            Body b = bodies[i];
+            if (!b.in(root))
+                continue;
+            int bx = Math.max(0, Math.min(side - 1, (int) ((b.px - x0) / length * side)));
+            int by = Math.max(0, Math.min(side - 1, (int) ((b.py - y0) / length * side)));
+            sorted[r++] = (long) interleave(bx, by) << 32 | i;
+        }
+        Arrays.parallelSort(sorted, 0, inside);
+
+        // Two neighbours in the order are in different cells from the level of the first bit their keys differ in
+        int[] split = new int[MAX_DEPTH + 1];
+        for (r = 1; r < inside; r++) {
+            int diff = (int) (sorted[r] >>> 32) ^ (int) (sorted[r - 1] >>> 32);
+            if (diff != 0)
+                split[MAX_DEPTH - (31 - Integer.numberOfLeadingZeros(diff)) / 2]++;
+        }
+        int occupied = Math.min(inside, 1) + split[1] + split[2];
+        depth = 2;
+        while (depth < MAX_DEPTH && (long) occupied * leafSize < inside)
+            occupied += split[++depth];
+        int shift = 2 * (MAX_DEPTH - depth);
+
+        // Leaves, one per run of equal keys
+        allocate(depth, inside);
+        int cells = 0;
+        for (r = 0; r < inside; r++) {
+            int k = (int) (sorted[r] >>> 32) >>> shift, i = (int) sorted[r];
+            rank[r] = i;
+            x[r] = bodies[i].px;
+            y[r] = bodies[i].py;
+            m[r] = bodies[i].mass;
+            if (cells == 0 || key[depth][cells - 1] != k) {
+                cell(depth, cells, k);
+                from[depth][cells++] = r;
+            }
+            to[depth][cells - 1] = r + 1;
+        }
+        count[depth] = cells;
+
+        // Every level above, one cell per run of equal parent keys
+        for (int l = depth - 1; l >= 0; l--) {
+            allocate(l, count[l + 1]);
+            cells = 0;
+            for (int c = 0; c < count[l + 1]; c++) {
+                int k = key[l + 1][c] >>> 2;
+                if (cells == 0 || key[l][cells - 1] != k) {
+                    cell(l, cells, k);
+                    from[l][cells++] = c;
+                }
+                to[l][cells - 1] = c + 1;
+                parent[l + 1][c] = cells - 1;
+            }
+            count[l] = cells;
+        }
+
+        // Derivatives of phi for every M2L offset of a level
+        for (int l = 2; l <= depth; l++) {
+            if (green[l] == null)
+                green[l] = new double[OFFSETS * OFFSETS * terms];
+            double size = length / (1 << l);
+            for (int ox = -3; ox <= 3; ox++) {
+                for (int oy = -3; oy <= 3; oy++) {
+                    if (Math.abs(ox) > 1 || Math.abs(oy) > 1)
+                        derivatives(ox * size, oy * size, p, green[l], offset(ox, oy) * terms);
+                }
+            }
+        }
+
+        IntStream.range(0, count[depth]).parallel().forEach(this::p2m);
+        for (int l = depth - 1; l >= 0; l--) {
+            int level = l;
+            IntStream.range(0, count[l]).parallel().forEach(c -> m2m(level, c));
+        }
+    }
+
+    /* Adds the force of all bodies in the tree to every body */
+    public void updateForces() {
+        if (inside == 0)
+            return;
+        for (int l = 2; l <= depth; l++) {
+            int level = l;
+            Arrays.fill(local[l], 0, count[l] * terms, 0.0);
+            IntStream.range(0, count[l]).parallel().forEach(c -> m2l(level, c));
+        }
+        for (int l = 3; l <= depth; l++) {
+            int level = l;
+            IntStream.range(0, count[l]).parallel().forEach(c -> l2l(level, c));
+        }
+        IntStream.range(0, count[depth]).parallel().forEach(this::leaf);
+        IntStream.range(0, outsideCount).parallel().forEach(j -> {
+            double[] t = new double[(p + 2) * (p + 3) / 2];
+            walk(bodies[outside[j]], 0, 0, t);
+        });
+    }
+
+    /* Multipole of leaf c from its bodies */
+    private void p2m(int c) {
+        double[] M = multipole[depth];
+        int base = c * terms;
+        Arrays.fill(M, base, base + terms, 0.0);
+        double size = length / (1 << depth);
+        double cx = x0 + (ix[depth][c] + 0.5) * size, cy = y0 + (iy[depth][c] + 0.5) * size;
+        double[] powX = new double[p + 1], powY = new double[p + 1];
+        for (int r = from[depth][c]; r < to[depth][c]; r++) {
+            powers(x[r] - cx, y[r] - cy, powX, powY);
+            for (int n = 0; n <= p; n++) {
+                for (int b = 0; b <= n; b++)
+                    M[base + index(n - b, b)] += m[r] * powX[n - b] * powY[b];
+            }
+        }
+    }
+
+    /* Multipole of cell c of level l from the ones of its children, shifted to its center */
+    private void m2m(int l, int c) {
+        double[] M = multipole[l], child = multipole[l + 1];
+        int base = c * terms;
+        Arrays.fill(M, base, base + terms, 0.0);
+        double[] powX = new double[p + 1], powY = new double[p + 1];
+        double quarter = length / (1 << l) / 4.0;
+        for (int k = from[l][c]; k < to[l][c]; k++) {
+            // Child centers are a quarter of the parent's side off its center
+            powers((2 * (ix[l + 1][k] & 1) - 1) * quarter, (2 * (iy[l + 1][k] & 1) - 1) * quarter, powX, powY);
+            int kb = k * terms;
+            for (int n = 0; n <= p; n++) {
+                for (int b = 0; b <= n; b++) {
+                    int a = n - b;
+                    double sum = 0.0;
+                    for (int qa = 0; qa <= a; qa++) {
+                        for (int qb = 0; qb <= b; qb++)
+                            sum += child[kb + index(qa, qb)] * powX[a - qa] * powY[b - qb];
+                    }
+                    M[base + index(a, b)] += sum;
+                }
+            }
+        }
+    }
+
+    /* Local expansion of cell c of level l from the multipoles of its interaction list */
+    private void m2l(int l, int c) {
+        double[] M = multipole[l], L = local[l], T = green[l];
+        int base = c * terms, cx = ix[l][c], cy = iy[l][c];
+        for (int nx = (cx >> 1) - 1; nx <= (cx >> 1) + 1; nx++) {
+            for (int ny = (cy >> 1) - 1; ny <= (cy >> 1) + 1; ny++) {
+                int j = find(l - 1, nx, ny);
+                if (j < 0)
+                    continue;
+                for (int s = from[l - 1][j]; s < to[l - 1][j]; s++) {
+                    int ox = ix[l][s] - cx, oy = iy[l][s] - cy;
+                    if (Math.abs(ox) <= 1 && Math.abs(oy) <= 1)
+                        continue;
+                    int sb = s * terms, tb = offset(ox, oy) * terms;
+                    // L_k += (-1)^|k| sum over |n| <= p - |k| of M_n T_(n + k)
+                    for (int k = 0; k <= p; k++) {
+                        for (int kb = 0; kb <= k; kb++) {
+                            int ka = k - kb;
+                            double sum = 0.0;
+                            for (int n = 0; n <= p - k; n++) {
+                                for (int b = 0; b <= n; b++)
+                                    sum += M[sb + index(n - b, b)] * T[tb + index(n - b + ka, b + kb)];
+                            }
+                            L[base + index(ka, kb)] += (k & 1) == 0 ? sum : -sum;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /* Local expansion of the parent of cell c of level l, shifted to the center of c */
+    private void l2l(int l, int c) {
+        double[] L = local[l], up = local[l - 1];
+        int base = c * terms, pb = parent[l][c] * terms;
+        double[] powX = new double[p + 1], powY = new double[p + 1];
+        double quarter = length / (1 << (l - 1)) / 4.0;
+        powers((2 * (ix[l][c] & 1) - 1) * quarter, (2 * (iy[l][c] & 1) - 1) * quarter, powX, powY);
+        for (int q = 0; q <= p; q++) {
+            for (int qb = 0; qb <= q; qb++) {
+                int qa = q - qb;
+                double sum = 0.0;
+                for (int k = q; k <= p; k++) {
+                    for (int kb = qb; kb <= k - qa; kb++)
+                        sum += up[pb + index(k - kb, kb)] * powX[k - kb - qa] * powY[kb - qb];
+                }
+                L[base + index(qa, qb)] += sum;
+            }
+        }
+    }
+
+    /* Far field of leaf c's local expansion and the near field of its neighbours for each body of leaf c */
+    private void leaf(int c) {
+        double[] L = local[depth];
+        int base = c * terms, cx = ix[depth][c], cy = iy[depth][c];
+        double size = length / (1 << depth);
+        double centerX = x0 + (cx + 0.5) * size, centerY = y0 + (cy + 0.5) * size;
+        double[] powX = new double[p + 1], powY = new double[p + 1];
+        int[] near = new int[9];
+        int nearCount = 0;
+        for (int nx = cx - 1; nx <= cx + 1; nx++) {
+            for (int ny = cy - 1; ny <= cy + 1; ny++) {
+                int j = find(depth, nx, ny);
+                if (j >= 0)
+                    near[nearCount++] = j;
+            }
+        }
+        for (int r = from[depth][c]; r < to[depth][c]; r++) {
+            Body nb = bodies[rank[r]];
+            // The force is -G m grad of the local potential, sum of L_(q + e) (x - center)^q / q!
+            powers(x[r] - centerX, y[r] - centerY, powX, powY);
+            double fx = 0.0, fy = 0.0;
+            for (int q = 0; q < p; q++) {
+                for (int b = 0; b <= q; b++) {
+                    double w = powX[q - b] * powY[b];
+                    fx += L[base + index(q - b + 1, b)] * w;
+                    fy += L[base + index(q - b, b + 1)] * w;
+                }
+            }
+            nb.fx -= Body.G * nb.mass * fx;
+            nb.fy -= Body.G * nb.mass * fy;
+            for (int j = 0; j < nearCount; j++) {
+                for (int s = from[depth][near[j]]; s < to[depth][near[j]]; s++) {
+                    if (s != r)
+                        nb.addForce(x[s], y[s], m[s]);
+                }
+            }
+        }
+    }
+
+    /* Force on nb, outside the root, from cell c of level l: its multipole when it is far enough, else its children */
+    private void walk(Body nb, int l, int c, double[] t) {
+        double size = length / (1 << l);
+        double dx = x0 + (ix[l][c] + 0.5) * size - nb.px;
+        double dy = y0 + (iy[l][c] + 0.5) * size - nb.py;
+        if (dx * dx + dy * dy >= 4 * size * size) {
+            // M2P, the force is G m sum of M_n T_(n + e) at the center minus the body
+            derivatives(dx, dy, p + 1, t, 0);
+            double[] M = multipole[l];
+            int base = c * terms;
+            double fx = 0.0, fy = 0.0;
+            for (int n = 0; n <= p; n++) {
+                for (int b = 0; b <= n; b++) {
+                    double w = M[base + index(n - b, b)];
+                    fx += w * t[index(n - b + 1, b)];
+                    fy += w * t[index(n - b, b + 1)];
+                }
+            }
+            nb.fx += Body.G * nb.mass * fx;
+            nb.fy += Body.G * nb.mass * fy;
+        } else if (l == depth) {
+            for (int r = from[l][c]; r < to[l][c]; r++)
+                nb.addForce(x[r], y[r], m[r]);
+        } else {
+            for (int k = from[l][c]; k < to[l][c]; k++)
+                walk(nb, l + 1, k, t);
+        }
+    }
+
+    /*
+     * Derivatives d^(a + b) phi / dx^a dy^b at (dx, dy) for a + b <= order
+     * into t from off on, phi the potential of Body.addForce for one unit of
+     * G m m. With s = dx^2 + dy^2 and g_k the k-th derivative of phi(s):
+     * d^(a + b) phi / dx^a dy^b = sum over i, j of H(a, i) H(b, j)
+     * (2 dx)^(a - 2i) (2 dy)^(b - 2j) g_(a + b - i - j),
+     * H(n, i) = n! / (i! (n - 2i)!). phi itself is left out, g_0 = 0.
+     */
+    private void derivatives(double dx, double dy, int order, double[] t, int off) {
+        double s = dx * dx + dy * dy, soft = s + Body.SOFTENING;
+        // g_k = h^(k - 1) / 2, h(s) = s^-1/2 (s + SOFTENING)^-1 by Leibniz from the derivatives of both factors
+        double[] u = new double[order], v = new double[order], g = new double[order + 1];
+        u[0] = 1.0 / Math.sqrt(s);
+        v[0] = 1.0 / soft;
+        for (int i = 1; i < order; i++) {
+            u[i] = u[i - 1] * (0.5 - i) / s;
+            v[i] = -v[i - 1] * i / soft;
+        }
+        for (int k = 1; k <= order; k++) {
+            double sum = 0.0;
+            for (int i = 0; i < k; i++)
+                sum += binomial[k - 1][i] * u[i] * v[k - 1 - i];
+            g[k] = 0.5 * sum;
+        }
+        double[] powX = new double[order + 1], powY = new double[order + 1];
+        powX[0] = powY[0] = 1.0;
+        for (int i = 1; i <= order; i++) {
+            powX[i] = powX[i - 1] * 2 * dx;
+            powY[i] = powY[i - 1] * 2 * dy;
+        }
+        for (int n = 0; n <= order; n++) {
+            for (int b = 0; b <= n; b++) {
+                int a = n - b;
+                double sum = 0.0;
+                for (int i = 0; 2 * i <= a; i++) {
+                    for (int j = 0; 2 * j <= b; j++)
+                        sum += hermite[a][i] * hermite[b][j] * powX[a - 2 * i] * powY[b - 2 * j] * g[n - i - j];
+                }
+                t[off + index(a, b)] = sum;
+            }
+        }
+    }
+
+    /* dx^a / a! and dy^b / b! for a, b <= p */
+    private void powers(double dx, double dy, double[] powX, double[] powY) {
+        powX[0] = powY[0] = 1.0;
+        for (int k = 1; k <= p; k++) {
+            powX[k] = powX[k - 1] * dx / k;
+            powY[k] = powY[k - 1] * dy / k;
+        }
+    }
+
+    /* Coefficient of the term x^a y^b, terms are ordered by a + b */
+    private static int index(int a, int b) {
+        return (a + b) * (a + b + 1) / 2 + b;
+    }
+
+    private static int offset(int ox, int oy) {
+        return (ox + 3) * OFFSETS + oy + 3;
+    }
+
+    /* Cell at (cx, cy) of level l, or -1 when it is empty or off the root */
+    private int find(int l, int cx, int cy) {
+        if (cx < 0 || cy < 0 || cx >= 1 << l || cy >= 1 << l)
+            return -1;
+        int j = Arrays.binarySearch(key[l], 0, count[l], interleave(cx, cy));
+        return j >= 0 ? j : -1;
+    }
+
+    /* Sets cell c of level l to the quad with key k */
+    private void cell(int l, int c, int k) {
+        key[l][c] = k;
+        ix[l][c] = compact(k);
+        iy[l][c] = compact(k >>> 1);
+    }
+
+    private void allocate(int l, int cells) {
+        if (key[l] != null && key[l].length >= cells)
+            return;
+        int size = Math.max(cells, 4);
+        key[l] = new int[size];
+        ix[l] = new int[size];
+        iy[l] = new int[size];
+        from[l] = new int[size];
+        to[l] = new int[size];
+        parent[l] = new int[size];
+        multipole[l] = new double[size * terms];
+        local[l] = new double[size * terms];
+    }
+
+    /* Morton key of (cx, cy), x in the even bits */
+    private static int interleave(int cx, int cy) {
+        return spread(cx) | spread(cy) << 1;
+    }
+
+    private static int spread(int v) {
+        v = (v | v << 8) & 0x00ff00ff;
+        v = (v | v << 4) & 0x0f0f0f0f;
+        v = (v | v << 2) & 0x33333333;
+        return (v | v << 1) & 0x55555555;
+    }
+
+    /* Inverse of spread, from the even bits */
+    private static int compact(int v) {
+        v &= 0x55555555;
+        v = (v | v >>> 1) & 0x33333333;
+        v = (v | v >>> 2) & 0x0f0f0f0f;
+        v = (v | v >>> 4) & 0x00ff00ff;
+        return (v | v >>> 8) & 0x0000ffff;
+    }
+}
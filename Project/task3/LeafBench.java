@@ -0,0 +1,114 @@
+/**
+ * Leaf size sweep of BucketBHTree: build and force times and the force
+ * error for several bodies per leaf, next to FlatBHTree with one body per
+ * leaf.
+ *
+ * Usage (from root):
+ *  javac task3/LeafBench.java
+ *  java task3.LeafBench [gnumBodies] [leafSize...]
+ *
+ * where:
+ *  gnumBodies:  The number of bodies (default 100000).
+ *  leafSize:    Bodies per leaf to test (default 1 2 4 8 16 32 64).
+ *
+ * Times are the best of three rounds after an untimed warm up. The error is
+ * the mean relative difference to the direct sum of the forces of all
+ * bodies, over 1000 bodies spread through the array.
+ */
+package task3;
+
+public class LeafBench {
+
+    private static final double LENGTH = 4 * (Nbody.RADIUS + Nbody.MIN_DIST);
+    private static final int SAMPLE = 1000;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        int[] leafSizes = { 1, 2, 4, 8, 16, 32, 64 };
+        if (args.length > 1) {
+            leafSizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+                leafSizes[i - 1] = Integer.parseInt(args[i]);
+        }
+
+        Nbody prg = new Nbody(n, 1, Nbody.EARTH_MASS, 0.05);
+        Body[] bodies = prg.bodies;
+        Quad q = new Quad(0, 0, LENGTH);
+
+        // Direct sums of the sampled bodies
+        int sample = Math.min(SAMPLE, n);
+        int stride = n / sample;
+        double[] fx = new double[sample], fy = new double[sample];
+        for (int s = 0; s < sample; s++) {
+            Body nb = bodies[s * stride];
+            for (int j = 0; j < n; j++) {
+                if (j != s * stride)
+                    nb.addForce(bodies[j]);
+            }
+            fx[s] = nb.fx;
+            fy[s] = nb.fy;
+            nb.fx = nb.fy = 0.0;
+        }
+
+        System.out.format("gnumBodies : %d%n", n);
+        System.out.format("%10s %12s %12s %12s%n", "leafSize", "build ms", "force ms", "force error");
+
+        FlatBHTree flat = new FlatBHTree(bodies);
+        long build = Long.MAX_VALUE, force = Long.MAX_VALUE;
+        for (int round = -1; round < ROUNDS; round++) {
+            clear(bodies);
+            long t0 = System.nanoTime();
+            flat.reset(0, 0, LENGTH);
+            for (int j = 0; j < n; j++) {
+                if (bodies[j].in(q))
+                    flat.insert(j);
+            }
+            long t1 = System.nanoTime();
+            for (int j = 0; j < n; j++)
+                flat.updateForce(j);
+            long t2 = System.nanoTime();
+            if (round >= 0) {
+                build = Math.min(build, t1 - t0);
+                force = Math.min(force, t2 - t1);
+            }
+        }
+        System.out.format("%10s %12.2f %12.2f %12.2e%n", "flat", build * 1e-6, force * 1e-6,
+                error(bodies, fx, fy, stride));
+
+        for (int leafSize : leafSizes) {
+            BucketBHTree tree = new BucketBHTree(bodies, FlatBHTree.THETA, leafSize);
+            build = force = Long.MAX_VALUE;
+            for (int round = -1; round < ROUNDS; round++) {
+                clear(bodies);
+                long t0 = System.nanoTime();
+                tree.build(0, 0, LENGTH);
+                long t1 = System.nanoTime();
+                for (int j = 0; j < n; j++)
+                    tree.updateForce(j);
+                long t2 = System.nanoTime();
+                if (round >= 0) {
+                    build = Math.min(build, t1 - t0);
+                    force = Math.min(force, t2 - t1);
+                }
+            }
+            System.out.format("%10d %12.2f %12.2f %12.2e%n", leafSize, build * 1e-6, force * 1e-6,
+                    error(bodies, fx, fy, stride));
+        }
+    }
+
+    private static void clear(Body[] bodies) {
+        for (Body b : bodies)
+            b.fx = b.fy = 0.0;
+    }
+
+    /* Mean relative error of the sampled forces */
+    private static double error(Body[] bodies, double[] fx, double[] fy, int stride) {
+        double error = 0;
+        for (int s = 0; s < fx.length; s++) {
+            Body nb = bodies[s * stride];
+            error += Math.hypot(nb.fx - fx[s], nb.fy - fy[s]) / Math.hypot(fx[s], fy[s]);
+        }
+        return error / fx.length;
+    }
+}
@@ -0,0 +1,74 @@
+package task3;
+
+import java.util.Arrays;
+
+import util.MortonTree;
+
+/**
+ * Barnes-Hut tree built from sorted Morton keys (see util.MortonTree)
+ * instead of inserting the bodies one at a time.
+ *
+ * build sorts the Body array itself by key, so bodies close in space are
+ * also close in the array and the force loop walks similar paths one body
+ * after the other. Indices of the bodies change with every build.
+ *
+ * The opening test and the forces are the ones of BHTree, but cells with a
+ * single occupied quadrant are skipped, so the approximation differs a
+ * little from BHTree.
+ */
+public class MortonBHTree {
+
+    private static final double THETA = 0.5; // Threshold value for center-mass calc.
+
+    private final Body[] bodies;
+    private final Body[] sorted;
+    private final double[] x, y, m;
+    private final MortonTree tree;
+
+    public MortonBHTree(Body[] bodies) {
+        this.bodies = bodies;
+        this.sorted = new Body[bodies.length];
+        this.x = new double[bodies.length];
+        this.y = new double[bodies.length];
+        this.m = new double[bodies.length];
+        this.tree = new MortonTree(bodies.length);
+    }
+
+    /* Sorts the bodies and builds the tree of the ones in the square centered at (cx, cy), like BHTree on Quad(cx, cy, length) */
+    public void build(double cx, double cy, double length) {
+        Arrays.parallelSetAll(x, i -> bodies[i].px);
+        Arrays.parallelSetAll(y, i -> bodies[i].py);
+        Arrays.parallelSetAll(m, i -> bodies[i].mass);
+        tree.build(x, y, m, bodies.length, cx, cy, length, true);
+
+        int[] order = tree.order();
+        for (int r = 0; r < bodies.length; r++)
+            sorted[r] = bodies[order[r]];
+        System.arraycopy(sorted, 0, bodies, 0, bodies.length);
+    }
+
+    /* Approximates the net force on body i from all bodies in the tree, like BHTree.updateForce */
+    public void updateForce(int i) {
+        if (tree.count > 0)
+            updateForce(tree.root, bodies[i], i);
+    }
+
+    private void updateForce(int k, Body nb, int i) {
+        // leaf, its rank is the index of the body
+        if (k < 0) {
+            if (~k != i)
+                nb.addForce(tree.x[~k], tree.y[~k], tree.m[~k]);
+            return;
+        }
+        // distance between nb and this node's center-of-mass
+        double distance = Math.sqrt(Math.pow((tree.comX[k] - nb.px), 2) + Math.pow((tree.comY[k] - nb.py), 2));
+
+        // compare ratio (quad_side / d) to threshold value Theta
+        if ((tree.size[k] / distance) < THETA) {
+            nb.addForce(tree.comX[k], tree.comY[k], tree.mass[k]);
+        } else {
+            updateForce(tree.left[k], nb, i);
+            updateForce(tree.right[k], nb, i);
+        }
+    }
+}
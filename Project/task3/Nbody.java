@@ -10,8 +10,8 @@
  *                        [massBody] [massVariance] [speedVariance]
  * 
  * where:
- *  gnumBodies:         The number of bodies used in the simulation.
- *  numSteps:           The number of steps/cycles.
+ *  gnumBodies:         The number of bodies used in the simulation (default 240).
+ *  numSteps:           The number of steps/cycles (default 100000).
  *  far:                The distance used to decide when to approximate 
  *                          (low values means faster but less accurate)
  *  numResultsShown:    The number of results to be printed to stdout.
@@ -19,16 +19,52 @@
  *  massVariance:       The mass used for each body.
  *  speedVariance:      Percentage variance in initialized speed for each body
  * 
+ *  -Dnbody.tree=flat|objects|morton (default flat) picks the tree. flat is
+ *  FlatBHTree, kept in arrays and reused every step, objects is the BHTree of
+ *  nodes, morton is MortonBHTree, built in parallel from sorted Morton keys.
+ *  task3.TreeBench compares their build times.
+ *
+ *  -Dnbody.moments=monopole|quadrupole (default monopole) and -Dnbody.theta
+ *  (default 0.5) set up the flat tree. With quadrupoles the forces of
+ *  accepted cells include their quadrupole term, so a larger theta gives
+ *  the same accuracy. task3.ThetaBench compares both over several theta.
+ *
+ *  -Dnbody.walk=body|group (default body) picks the force walk of the flat
+ *  tree: one walk per body, or one shared walk per group of at most
+ *  -Dnbody.group (default 16) close bodies, see FlatBHTree.updateForceGroups.
+ *  -Dnbody.walk=group also makes BHTree walk per group.
+ *
+ *  -Dnbody.tree=bucket is BucketBHTree, with up to -Dnbody.leaf (default 8)
+ *  bodies per leaf and walked with a stack. task3.LeafBench sweeps the leaf
+ *  size.
+ *
+ *  -Dnbody.tree=fmm is FmmTree, the fast multipole method with expansions
+ *  of order -Dnbody.order (default 6) and about -Dnbody.leaf (default 32)
+ *  bodies per leaf. task3.FmmBench compares it to the flat tree.
+ *
+ *  -Dnbody.open=geometric|salmon_warren|relative (default geometric) picks
+ *  the opening criterion of the flat tree, see FlatBHTree.Criterion. The
+ *  error based ones take -Dnbody.alpha (default 0.001) instead of theta.
+ *  -Dnbody.theta=auto has task3.ThetaTuner pick theta, or alpha, on the
+ *  initial conditions: the largest one whose rms force error on a sample of
+ *  the bodies is within -Dnbody.error (default 0.001).
+ * 
+ *  The initial conditions are generated in parallel from -Dnbody.seed
+ *  (default random), the same seed always gives the same bodies.
+ * 
  *  @author Alex Lindberg
  */
 package task3;
 
-import java.util.Random;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import util.ParallelInit;
 
 public class Nbody {
 
-    public static final int MAX_BODIES = 240;
-    public static final int MAX_STEPS = 100000;
+    public static final int DEFAULT_BODIES = 240;
+    public static final int DEFAULT_STEPS = 100000;
     public static final Double EARTH_MASS = 59.742;
     public static final double RADIUS = 150;
     public static final double MIN_DIST = 80;
@@ -37,9 +73,9 @@ public class Nbody {
     public final int gnumBodies;
     public final int numSteps;
     public final double massBody;
+    public final long seed;
 
     Body[] bodies; // x, y coords
-    Random rGen;
 
     /**
      * Simulation of the nbody-problem
@@ -56,30 +92,26 @@ public class Nbody {
         this.massBody = massBody;
 
         this.bodies = new Body[gnumBodies];
-        this.rGen = new Random();
+        this.seed = ParallelInit.seed();
 
         this.bodies[0] = new Body(0, 0, 0, 0, 0, 0, massBody * 333);
 
-        for (int i = 1; i < gnumBodies; i++) {
+        ParallelInit.run(1, gnumBodies, seed, (i, rand) -> {
             // Random position
-            double[] pos = getRandPos(this.bodies[0].px, this.bodies[0].py, RADIUS, MIN_DIST);
+            double[] pos = getRandPos(rand, this.bodies[0].px, this.bodies[0].py, RADIUS, MIN_DIST);
 
             // Velocity orthogonal to the direction vector from the sun to current body
             double vx =  (this.bodies[0].vx - pos[0]) * START_VEL;
             double vy =  -(this.bodies[0].vy - pos[1]) * START_VEL;
 
-            double mass = massBody * (1 + rand(1 - massVariance, 1 + massVariance));
+            double mass = massBody * (1 + ParallelInit.interval(rand, 1 - massVariance, 1 + massVariance));
             this.bodies[i] = new Body(pos[0], pos[1], vx, vy, 0, 0, mass);
-        }
-    }
-
-    private double rand(double min, double max) {
-        return this.rGen.nextDouble() * (max - min) + min;
+        });
     }
 
-    private double[] getRandPos(double cx, double cy, double radius, double minDist) {
-        double r = radius * Math.sqrt(this.rGen.nextDouble()) + minDist; // distance
-        double theta = this.rGen.nextDouble() * 2 * Math.PI; // direction
+    private static double[] getRandPos(SplittableRandom rand, double cx, double cy, double radius, double minDist) {
+        double r = radius * Math.sqrt(rand.nextDouble()) + minDist; // distance
+        double theta = rand.nextDouble() * 2 * Math.PI; // direction
         double x = cx + r * Math.cos(theta); // px
         double y = cy + r * Math.sin(theta); // py
         return new double[] { x, y };
@@ -93,15 +125,57 @@ public class Nbody {
         double massBody, massVariance;
         int numResultsShown;
 
-        gnumBodies = (args.length > 0) && (Integer.parseInt(args[0]) < MAX_BODIES) ? Integer.parseInt(args[0])
-                : MAX_BODIES;
-        numSteps = (args.length > 1) && (Integer.parseInt(args[1]) < MAX_STEPS) ? Integer.parseInt(args[1]) : MAX_STEPS;
+        gnumBodies = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_BODIES;
+        numSteps = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_STEPS;
         far = (args.length > 2) ? Integer.parseInt(args[2]) : RADIUS / 8;
         numResultsShown = (args.length > 3) ? Integer.parseInt(args[3]) : 5;
         massBody = (args.length > 4) ? Double.parseDouble(args[4]) : EARTH_MASS;
         massVariance = (args.length > 5) ? Integer.parseInt(args[5]) : 0.05;
 
         Nbody prg = new Nbody(gnumBodies, numSteps, massBody, massVariance);
+        String treeName = System.getProperty("nbody.tree", "flat");
+        boolean quadrupole = System.getProperty("nbody.moments", "monopole").equals("quadrupole");
+        FlatBHTree.Criterion criterion = FlatBHTree.Criterion
+                .valueOf(System.getProperty("nbody.open", "geometric").toUpperCase());
+        double alpha = Double.parseDouble(System.getProperty("nbody.alpha", String.valueOf(FlatBHTree.ALPHA)));
+        String thetaName = System.getProperty("nbody.theta", String.valueOf(FlatBHTree.THETA));
+        boolean tune = thetaName.equals("auto");
+        double theta = tune ? FlatBHTree.THETA : Double.parseDouble(thetaName);
+        FlatBHTree flat = treeName.equals("flat")
+                ? new FlatBHTree(prg.bodies, theta, quadrupole, criterion, alpha)
+                : null;
+        Quad q = new Quad(0, 0, far);
+        if (tune) {
+            // The bucket tree takes the theta tuned on a flat tree with the geometric criterion
+            FlatBHTree tuned = flat != null ? flat : new FlatBHTree(prg.bodies, theta, quadrupole);
+            double target = Double.parseDouble(System.getProperty("nbody.error", "0.001"));
+            tuned.reset(0, 0, far);
+            for (int j = 0; j < gnumBodies; j++) {
+                if (prg.bodies[j].in(q))
+                    tuned.insert(j);
+            }
+            if (tuned.needsMoments())
+                tuned.moments();
+            ThetaTuner tuner = new ThetaTuner(tuned, prg.bodies, q, ThetaTuner.SAMPLE);
+            double value = tuner.tune(target);
+            if (tuned.criterion() == FlatBHTree.Criterion.GEOMETRIC)
+                theta = value;
+            System.out.format("Tuned %s : %.4g (rms force error %.2e, target %.2e)%n",
+                    tuned.criterion() == FlatBHTree.Criterion.GEOMETRIC ? "theta" : "alpha", value,
+                    tuner.error(value), target);
+        }
+        boolean groups = System.getProperty("nbody.walk", "body").equals("group");
+        int groupSize = Integer.getInteger("nbody.group", 16);
+        MortonBHTree morton = treeName.equals("morton") ? new MortonBHTree(prg.bodies) : null;
+        BucketBHTree bucket = treeName.equals("bucket")
+                ? new BucketBHTree(prg.bodies, theta, Integer.getInteger("nbody.leaf", BucketBHTree.LEAF_SIZE))
+                : null;
+        FmmTree fmm = treeName.equals("fmm")
+                ? new FmmTree(prg.bodies, Integer.getInteger("nbody.order", FmmTree.ORDER),
+                        Integer.getInteger("nbody.leaf", FmmTree.LEAF_SIZE))
+                : null;
+        // The morton tree sorts the bodies, keep the shown ones to print them at the end
+        Body[] shown = Arrays.copyOf(prg.bodies, Math.min(numResultsShown, gnumBodies));
 
         // Printing starting conditions
         System.out.println("\n- Initial Conditions -\n");
@@ -112,24 +186,67 @@ public class Nbody {
                     prg.bodies[i].vy);
         }
         System.out.format("Total Body count : %d%n", gnumBodies);
+        System.out.format("Seed : %d%n", prg.seed);
 
         System.out.println("\n- After simulation -\n");
         startTime = System.nanoTime();
         // Start seq work
 
         for (int i = 0; i < numSteps; i++) {
-            Quad q = new Quad(0, 0, far);
-            BHTree tree = new BHTree(q);
-            
-            // Build tree
-            for (int j = 0; j < gnumBodies; j++) {
-                if (prg.bodies[j].in(q))
-                    tree.insert(prg.bodies[j]);
-            }
+            if (fmm != null) {
+                fmm.build(0, 0, far);
+                fmm.updateForces();
+            } else if (bucket != null) {
+                bucket.build(0, 0, far);
+                for (int j = 0; j < gnumBodies; j++) {
+                    bucket.updateForce(j);
+                }
+            } else if (morton != null) {
+                morton.build(0, 0, far);
+                for (int j = 0; j < gnumBodies; j++) {
+                    morton.updateForce(j);
+                }
+            } else if (flat != null) {
+                flat.reset(0, 0, far);
+                for (int j = 0; j < gnumBodies; j++) {
+                    if (prg.bodies[j].in(q))
+                        flat.insert(j);
+                }
+                if (flat.needsMoments())
+                    flat.moments();
+                if (groups) {
+                    flat.updateForceGroups(groupSize);
+                    // Bodies outside the root are not in any group
+                    for (int j = 0; j < gnumBodies; j++) {
+                        if (!prg.bodies[j].in(q))
+                            flat.updateForce(j);
+                    }
+                } else {
+                    for (int j = 0; j < gnumBodies; j++) {
+                        flat.updateForce(j);
+                    }
+                }
+            } else {
+                BHTree tree = new BHTree(q);
 
-            // Update force vectors
-            for (int j = 0; j < gnumBodies; j++) {
-                tree.updateForce(prg.bodies[j]);
+                // Build tree
+                for (int j = 0; j < gnumBodies; j++) {
+                    if (prg.bodies[j].in(q))
+                        tree.insert(prg.bodies[j]);
+                }
+
+                // Update force vectors
+                if (groups) {
+                    tree.updateForceGroups(groupSize);
+                    for (int j = 0; j < gnumBodies; j++) {
+                        if (!prg.bodies[j].in(q))
+                            tree.updateForce(prg.bodies[j]);
+                    }
+                } else {
+                    for (int j = 0; j < gnumBodies; j++) {
+                        tree.updateForce(prg.bodies[j]);
+                    }
+                }
             }
 
             // Move bodies
@@ -142,10 +259,10 @@ public class Nbody {
         endTime = System.nanoTime() - startTime;
 
         // Printing end result
-        for (int i = 0; i < numResultsShown; i++) {
-            System.out.format("Body %d\t: %.0f\t%.0f\t| %.3f \t%.3f %n", i, prg.bodies[i].px, prg.bodies[i].py,
-                    prg.bodies[i].vx,
-                    prg.bodies[i].vy);
+        for (int i = 0; i < shown.length; i++) {
+            System.out.format("Body %d\t: %.0f\t%.0f\t| %.3f \t%.3f %n", i, shown[i].px, shown[i].py,
+                    shown[i].vx,
+                    shown[i].vy);
         }
 
         System.out.format("%n- Simulation executed in %.1f ms -%n%n", endTime * Math.pow(10, -6));
@@ -28,6 +28,11 @@ public class Quad {
                 y >= this.cy - middle);
     }
 
+    /* Check whether that quad lies in this one, quads of one tree are nested or apart */
+    public boolean contains(Quad that) {
+        return this.length >= that.length && contains(that.cx, that.cy);
+    }
+
     /* North west quadrant of the current quad */
     public Quad NW() {
         double x = this.cx - this.length / 4.0;
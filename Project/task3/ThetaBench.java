@@ -0,0 +1,96 @@
+/**
+ * Accuracy against time of the FlatBHTree forces with and without the
+ * quadrupole terms, over several theta.
+ *
+ * Usage (from root):
+ *  javac task3/ThetaBench.java
+ *  java task3.ThetaBench [gnumBodies] [theta...]
+ *
+ * where:
+ *  gnumBodies:  The number of bodies (default 50000).
+ *  theta:       Opening thresholds to test (default 0.3 0.5 0.7 0.8 1.0).
+ *
+ * The time is a build and a force pass over all bodies, after two untimed
+ * warm ups. The error is the mean relative difference to the direct sum of
+ * the forces of all bodies, over 1000 bodies spread through the array.
+ */
+package task3;
+
+public class ThetaBench {
+
+    private static final double LENGTH = 4 * (Nbody.RADIUS + Nbody.MIN_DIST);
+    private static final int SAMPLE = 1000;
+
+    public static void main(String[] args) {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 50000;
+        double[] thetas = { 0.3, 0.5, 0.7, 0.8, 1.0 };
+        if (args.length > 1) {
+            thetas = new double[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+                thetas[i - 1] = Double.parseDouble(args[i]);
+        }
+
+        Nbody prg = new Nbody(n, 1, Nbody.EARTH_MASS, 0.05);
+        Body[] bodies = prg.bodies;
+        Quad q = new Quad(0, 0, LENGTH);
+
+        // Direct sums of the sampled bodies
+        int sample = Math.min(SAMPLE, n);
+        int stride = n / sample;
+        double[] fx = new double[sample], fy = new double[sample];
+        for (int s = 0; s < sample; s++) {
+            Body nb = bodies[s * stride];
+            for (int j = 0; j < n; j++) {
+                if (j != s * stride)
+                    nb.addForce(bodies[j]);
+            }
+            fx[s] = nb.fx;
+            fy[s] = nb.fy;
+            nb.fx = nb.fy = 0.0;
+        }
+
+        System.out.format("gnumBodies : %d%n", n);
+        System.out.format("%8s %14s %14s %14s %14s%n", "theta", "monopole ms", "monopole err", "quadrupole ms",
+                "quadrupole err");
+        for (double theta : thetas) {
+            double[] monopole = run(bodies, theta, false, q, fx, fy, stride);
+            double[] quadrupole = run(bodies, theta, true, q, fx, fy, stride);
+            System.out.format("%8.2f %14.2f %14.2e %14.2f %14.2e%n", theta, monopole[0], monopole[1], quadrupole[0],
+                    quadrupole[1]);
+        }
+    }
+
+    /* Time in ms of a build and force pass, and the mean relative error of the sampled forces */
+    private static double[] run(Body[] bodies, double theta, boolean quadrupole, Quad q, double[] fx, double[] fy,
+            int stride) {
+        FlatBHTree tree = new FlatBHTree(bodies, theta, quadrupole);
+        long time = 0;
+        for (int round = 0; round < 3; round++) {
+            long t0 = System.nanoTime();
+            tree.reset(0, 0, LENGTH);
+            for (int j = 0; j < bodies.length; j++) {
+                if (bodies[j].in(q))
+                    tree.insert(j);
+            }
+            if (quadrupole)
+                tree.moments();
+            for (int j = 0; j < bodies.length; j++)
+                tree.updateForce(j);
+            time = System.nanoTime() - t0;
+
+            if (round < 2) {
+                for (Body b : bodies)
+                    b.fx = b.fy = 0.0;
+            }
+        }
+
+        double error = 0;
+        for (int s = 0; s < fx.length; s++) {
+            Body nb = bodies[s * stride];
+            error += Math.hypot(nb.fx - fx[s], nb.fy - fy[s]) / Math.hypot(fx[s], fy[s]);
+        }
+        for (Body b : bodies)
+            b.fx = b.fy = 0.0;
+        return new double[] { time * 1e-6, error / fx.length };
+    }
+}
@@ -0,0 +1,87 @@
+package task3;
+
+/**
+ * Picks the accuracy parameter of a FlatBHTree (theta, or alpha for the
+ * error based criteria) from a target force error instead of a guess.
+ *
+ * The forces on a sample of bodies spread through the array are summed
+ * directly over all bodies in the tree once. For every candidate value the
+ * sampled bodies are walked through the tree and compared to those sums,
+ * the error is the rms of the force differences over the rms of the forces,
+ * so the nearly balanced pull on the sun does not swamp it. The error grows
+ * with the parameter, a bisection finds the largest value within target.
+ */
+public class ThetaTuner {
+
+    public static final int SAMPLE = 256;
+    private static final int STEPS = 16; // bisection steps
+    private static final double MAX_THETA = 2.0, MIN_ALPHA = 1e-8, MAX_ALPHA = 1e2;
+
+    private final FlatBHTree tree;
+    private final Body[] bodies;
+    private final int stride;
+    private final double[] fx, fy; // [sample] direct sums
+
+    /* Sums the forces on the sample, tree has to be built over the bodies in quad */
+    public ThetaTuner(FlatBHTree tree, Body[] bodies, Quad quad, int sample) {
+        this.tree = tree;
+        this.bodies = bodies;
+        sample = Math.max(1, Math.min(sample, bodies.length));
+        this.stride = bodies.length / sample;
+        this.fx = new double[sample];
+        this.fy = new double[sample];
+        for (int s = 0; s < sample; s++) {
+            Body nb = bodies[s * stride];
+            double ox = nb.fx, oy = nb.fy;
+            nb.fx = nb.fy = 0.0;
+            for (int j = 0; j < bodies.length; j++) {
+                if (j != s * stride && bodies[j].in(quad))
+                    nb.addForce(bodies[j]);
+            }
+            fx[s] = nb.fx;
+            fy[s] = nb.fy;
+            nb.fx = ox;
+            nb.fy = oy;
+        }
+    }
+
+    /* Largest parameter with error at most target, the tree is left with it */
+    public double tune(double target) {
+        boolean theta = tree.criterion() == FlatBHTree.Criterion.GEOMETRIC;
+        double lo = theta ? 0.0 : MIN_ALPHA, hi = theta ? MAX_THETA : MAX_ALPHA;
+        if (error(hi) <= target) {
+            lo = hi;
+        } else {
+            for (int step = 0; step < STEPS; step++) {
+                double mid = theta ? (lo + hi) / 2.0 : Math.sqrt(lo * hi);
+                if (error(mid) <= target)
+                    lo = mid;
+                else
+                    hi = mid;
+            }
+        }
+        tree.parameter(lo);
+        return lo;
+    }
+
+    /* Rms force error of the sample with the tree's parameter set to value */
+    public double error(double value) {
+        tree.parameter(value);
+        double diff = 0.0, norm = 0.0;
+        for (int s = 0; s < fx.length; s++) {
+            Body nb = bodies[s * stride];
+            double ox = nb.fx, oy = nb.fy, oa = nb.accel;
+            nb.fx = nb.fy = 0.0;
+            // The relative criterion needs an acceleration, before the first step take the exact one
+            if (nb.accel == 0.0)
+                nb.accel = Math.sqrt(fx[s] * fx[s] + fy[s] * fy[s]) / nb.mass;
+            tree.updateForce(s * stride);
+            diff += (nb.fx - fx[s]) * (nb.fx - fx[s]) + (nb.fy - fy[s]) * (nb.fy - fy[s]);
+            norm += fx[s] * fx[s] + fy[s] * fy[s];
+            nb.fx = ox;
+            nb.fy = oy;
+            nb.accel = oa;
+        }
+        return norm > 0.0 ? Math.sqrt(diff / norm) : 0.0;
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Build time of the Barnes-Hut trees: BHTree and FlatBHTree insert the
+ * bodies one at a time from the root, MortonBHTree sorts Morton keys and
+ * builds bottom up.
+ *
+ * Usage (from root):
+ *  javac task3/TreeBench.java
+ *  java task3.TreeBench [builds] [gnumBodies...]
+ *
+ * where:
+ *  builds:      Timed builds per tree and body count (default 5).
+ *  gnumBodies:  Body counts to test (default 10000 100000 1000000).
+ *
+ * The root square holds every body. The force error is the mean relative
+ * difference of the MortonBHTree forces to the BHTree ones, over the first
+ * 1000 bodies.
+ */
+package task3;
+
+public class TreeBench {
+
+    private static final double LENGTH = 4 * (Nbody.RADIUS + Nbody.MIN_DIST);
+    private static final int SAMPLE = 1000;
+
+    public static void main(String[] args) {
+        int builds = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+        int[] sizes = { 10000, 100000, 1000000 };
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+                sizes[i - 1] = Integer.parseInt(args[i]);
+        }
+
+        System.out.format("%10s %14s %14s %14s %14s%n", "gnumBodies", "objects ms", "flat ms", "morton ms",
+                "force error");
+        for (int n : sizes) {
+            Nbody prg = new Nbody(n, 1, Nbody.EARTH_MASS, 0.05);
+            Body[] bodies = prg.bodies;
+            Quad q = new Quad(0, 0, LENGTH);
+            FlatBHTree flat = new FlatBHTree(bodies);
+            MortonBHTree morton = new MortonBHTree(bodies);
+            BHTree tree = null;
+            long objectsTime = 0, flatTime = 0, mortonTime = 0;
+
+            // As many untimed builds first to warm up
+            for (int b = -builds; b < builds; b++) {
+                long t0 = System.nanoTime();
+                tree = new BHTree(q);
+                for (int j = 0; j < n; j++) {
+                    if (bodies[j].in(q))
+                        tree.insert(bodies[j]);
+                }
+                long t1 = System.nanoTime();
+                flat.reset(0, 0, LENGTH);
+                for (int j = 0; j < n; j++) {
+                    if (bodies[j].in(q))
+                        flat.insert(j);
+                }
+                long t2 = System.nanoTime();
+                morton.build(0, 0, LENGTH);
+                long t3 = System.nanoTime();
+                if (b >= 0) {
+                    objectsTime += t1 - t0;
+                    flatTime += t2 - t1;
+                    mortonTime += t3 - t2;
+                }
+            }
+
+            double error = 0;
+            int sample = Math.min(SAMPLE, n);
+            for (int j = 0; j < sample; j++) {
+                Body nb = bodies[j];
+                nb.fx = nb.fy = 0.0;
+                tree.updateForce(nb);
+                double fx = nb.fx, fy = nb.fy;
+                nb.fx = nb.fy = 0.0;
+                morton.updateForce(j);
+                error += Math.hypot(nb.fx - fx, nb.fy - fy) / Math.hypot(fx, fy);
+                nb.fx = nb.fy = 0.0;
+            }
+            System.out.format("%10d %14.2f %14.2f %14.2f %14.2e%n", n, objectsTime * 1e-6 / builds,
+                    flatTime * 1e-6 / builds, mortonTime * 1e-6 / builds, error / sample);
+        }
+    }
+}
@@ -22,16 +22,16 @@ public class BHTree {
         return (NW == null && NE == null && SW == null && SE == null);
     }
 
-    /* Adds the Body p to the invoking Barnes-Hut tree. */
-    public void insert(Body nb) {
+    /* Adds the Body nb to the invoking Barnes-Hut tree, at its positions in buffer p. */
+    public void insert(Body nb, int p) {
         if (body == null) {
             this.body = nb;
         }
         // Internal node
         else if (!checkExternal()) {
             // update the center-of-mass and total mass
-            this.body = body.add(nb);
-            putInQuad(nb);
+            this.body = body.add(nb, p);
+            putInQuad(nb, p);
         }
         // External node
         else {
@@ -40,46 +40,46 @@ public class BHTree {
             SE = new BHTree(quad.SE());
             SW = new BHTree(quad.SW());
 
-            putInQuad(this.body);
-            putInQuad(nb);
+            putInQuad(this.body, p);
+            putInQuad(nb, p);
 
-            body = body.add(nb);
+            body = body.add(nb, p);
         }
     }
 
     /* Inserts a body into the appropriate quadrant. */
-    private void putInQuad(Body body) {
-        if (body.in(quad.NW()))
-            NW.insert(body);
-        else if (body.in(quad.NE()))
-            NE.insert(body);
-        else if (body.in(quad.SW()))
-            SW.insert(body);
+    private void putInQuad(Body body, int p) {
+        if (body.in(quad.NW(), p))
+            NW.insert(body, p);
+        else if (body.in(quad.NE(), p))
+            NE.insert(body, p);
+        else if (body.in(quad.SW(), p))
+            SW.insert(body, p);
         else // It has to be in south-east
-            SE.insert(body);
+            SE.insert(body, p);
     }
 
     /* Approximates the net force acting on Body nb from all bodies in this tree. */
-    public void updateForce(Body nb) {
+    public void updateForce(Body nb, int p) {
 
         if (body == null || nb.equals(body))
             return;
         // external node
         if (checkExternal())
-            nb.addForce(body);
+            nb.addForce(body, p);
         // internal node
         else {
             // distance between Body p and this node's center-of-mass
-            double distance = body.dist(nb);
+            double distance = body.dist(nb, p);
 
             // compare ratio (quad_side_length / distance_to_center_mass) to threshold value Theta
             if ((quad.length() / distance) < THETA)
-                nb.addForce(body);
+                nb.addForce(body, p);
             else {
-                NW.updateForce(nb);
-                NE.updateForce(nb);
-                SW.updateForce(nb);
-                SE.updateForce(nb);
+                NW.updateForce(nb, p);
+                NE.updateForce(nb, p);
+                SW.updateForce(nb, p);
+                SE.updateForce(nb, p);
             }
         }
     }
@@ -6,8 +6,9 @@ public class Body {
     private static final double DT = 0.1;
     private static final double SOFTENING = 1e5;
 
-    double px;  // position
-    double py;
+    // Position, double buffered: step s reads px[s % 2] and moves to px[(s + 1) % 2]
+    final double[] px = new double[2];
+    final double[] py = new double[2];
     double vx;  // velocity
     double vy;
     double fx;  // force vector
@@ -15,8 +16,8 @@ public class Body {
     double mass;
 
     public Body(double px, double py, double vx, double vy, double fx, double fy, double mass) {
-        this.px = px;
-        this.py = py;
+        this.px[0] = this.px[1] = px;
+        this.py[0] = this.py[1] = py;
         this.vx = vx;
         this.vy = vy;
         this.fx = fx;
@@ -24,42 +25,47 @@ public class Body {
         this.mass = mass;
     }
 
-    /* Check whether quad contains the body */
-    public boolean in(Quad quad) {
-        return quad.contains(px, py);
+    /* Check whether quad contains the body, p is the position buffer */
+    public boolean in(Quad quad, int p) {
+        return quad.contains(px[p], py[p]);
     }
 
     /* Update the force vector */
-    public void addForce(Body body) {
-        double dx = body.px - this.px;
-        double dy = body.py - this.py;
-        double distance = this.dist(body);
-        double force = (G * this.mass * body.mass) / (distance * distance + SOFTENING);
+    public void addForce(Body body, int p) {
+        addForce(body.px[p], body.py[p], body.mass, p);
+    }
+
+    /* Same as above, for a mass at (x, y) that is not a Body */
+    public void addForce(double x, double y, double mass, int p) {
+        double dx = x - this.px[p];
+        double dy = y - this.py[p];
+        double distance = Math.sqrt(Math.pow((this.px[p] - x), 2) + Math.pow((this.py[p] - y), 2));
+        double force = (G * this.mass * mass) / (distance * distance + SOFTENING);
         this.fx += force * dx / distance;
         this.fy += force * dy / distance;
     }
 
-    /* Update or move the bodies */
-    public void update() {
+    /* Update or move the bodies, from position buffer p to the other one */
+    public void update(int p) {
         vx += DT * fx / mass;
         vy += DT * fy / mass;
-        px += DT * vx;
-        py += DT * vy;
+        px[p ^ 1] = px[p] + DT * vx;
+        py[p ^ 1] = py[p] + DT * vy;
         
         fx = fy = 0.0;
     }
 
     /* Distance between this body and another */
-    public double dist(Body body) {
-        return Math.sqrt(Math.pow((this.px - body.px), 2) + Math.pow((this.py - body.py), 2));
+    public double dist(Body body, int p) {
+        return Math.sqrt(Math.pow((this.px[p] - body.px[p]), 2) + Math.pow((this.py[p] - body.py[p]), 2));
     }
 
     /* Aggregate two bodies */
-    public Body add(Body body) {
+    public Body add(Body body, int p) {
 
         double m = this.mass + body.mass;
-        double x = (this.px * this.mass + body.px * body.mass) / m;
-        double y = (this.py * this.mass + body.py * body.mass) / m;
+        double x = (this.px[p] * this.mass + body.px[p] * body.mass) / m;
+        double y = (this.py[p] * this.mass + body.py[p] * body.mass) / m;
 
         return new Body(x, y, this.vx, body.vy, 0, 0, m);
     }
@@ -0,0 +1,153 @@
+package task4;
+
+import java.util.Arrays;
+
+/**
+ * Barnes-Hut tree in flat arrays, a drop in for BHTree.
+ *
+ * BHTree allocates a node, its four children, their Quads and an aggregate
+ * Body for every split, and the whole tree is garbage after each step. Here
+ * node k is a slot in primitive arrays: its square (cx, cy, length), its
+ * mass and center of mass, the body of a leaf and the index of its first
+ * child. The four children of a node are consecutive, in NW, NE, SW, SE
+ * order. The arrays are kept between steps and only grow, so once they are
+ * big enough a step allocates nothing.
+ *
+ * insert and updateForce do the same arithmetic in the same order as BHTree,
+ * so both trees give the same forces.
+ */
+public class FlatBHTree {
+
+    private static final double THETA = 0.5; // Threshold value for center-mass calc.
+    private static final int EMPTY = -1;     // body[k] of a node without bodies
+    private static final int AGGREGATE = -2; // body[k] of an internal node
+
+    private final Body[] bodies;
+    private int size; // nodes in use
+
+    private int[] child = {};  // first of the four children, -1 for an external node
+    private int[] body = {};   // index of the body in a leaf, EMPTY or AGGREGATE
+    private double[] cx = {}, cy = {}, length = {};
+    private double[] mass = {}, comX = {}, comY = {};
+
+    public FlatBHTree(Body[] bodies) {
+        this(bodies, 4 * bodies.length);
+    }
+
+    /* Starts with room for capacity nodes, for trees that only hold some of the bodies */
+    public FlatBHTree(Body[] bodies, int capacity) {
+        this.bodies = bodies;
+        allocate(Math.max(capacity, 64));
+    }
+
+    /* Empties the tree, the root covers the square centered at (x, y) */
+    public void reset(double x, double y, double length) {
+        size = 0;
+        node(x, y, length);
+    }
+
+    /* Adds body i at its positions in buffer p to the tree, like BHTree.insert(bodies[i], p) */
+    public void insert(int i, int p) {
+        Body nb = bodies[i];
+        double x = nb.px[p], y = nb.py[p];
+        int k = 0;
+        while (true) {
+            if (body[k] == EMPTY) {
+                body[k] = i;
+                mass[k] = nb.mass;
+                comX[k] = x;
+                comY[k] = y;
+                return;
+            }
+            if (child[k] < 0) {
+                // External node, split it and move its body down
+                int c = split(k);
+                int q = quadrant(c, comX[k], comY[k]);
+                body[q] = body[k];
+                mass[q] = mass[k];
+                comX[q] = comX[k];
+                comY[q] = comY[k];
+                body[k] = AGGREGATE;
+            }
+            // update the center-of-mass and total mass
+            double m = mass[k] + nb.mass;
+            comX[k] = (comX[k] * mass[k] + x * nb.mass) / m;
+            comY[k] = (comY[k] * mass[k] + y * nb.mass) / m;
+            mass[k] = m;
+            k = quadrant(child[k], x, y);
+        }
+    }
+
+    /* Approximates the net force on body i from all bodies in the tree, like BHTree.updateForce, returns the interactions */
+    public int updateForce(int i, int p) {
+        return updateForce(0, bodies[i], i, p);
+    }
+
+    private int updateForce(int k, Body nb, int i, int p) {
+        if (body[k] == EMPTY || body[k] == i)
+            return 0;
+        // external node
+        if (child[k] < 0) {
+            nb.addForce(bodies[body[k]], p);
+            return 1;
+        }
+        // distance between nb and this node's center-of-mass
+        double distance = Math.sqrt(Math.pow((comX[k] - nb.px[p]), 2) + Math.pow((comY[k] - nb.py[p]), 2));
+
+        // compare ratio (quad_side / d) to threshold value Theta
+        if ((length[k] / distance) < THETA) {
+            nb.addForce(comX[k], comY[k], mass[k], p);
+            return 1;
+        }
+        int n = 0;
+        for (int c = child[k]; c < child[k] + 4; c++)
+            n += updateForce(c, nb, i, p);
+        return n;
+    }
+
+    /* The one of the siblings c to c + 3 whose quad contains (x, y), it has to be in SE if no other */
+    private int quadrant(int c, double x, double y) {
+        for (int q = c; q < c + 3; q++) {
+            double middle = length[q] / 2.0;
+            if (x <= cx[q] + middle && x >= cx[q] - middle &&
+                    y <= cy[q] + middle && y >= cy[q] - middle)
+                return q;
+        }
+        return c + 3;
+    }
+
+    /* Gives node k four empty children, same squares as Quad.NW/NE/SW/SE */
+    private int split(int k) {
+        double x = cx[k], y = cy[k], l = length[k];
+        int c = node(x - l / 4.0, y + l / 4.0, l / 2.0);
+        node(x + l / 4.0, y + l / 4.0, l / 2.0);
+        node(x - l / 4.0, y - l / 4.0, l / 2.0);
+        node(x + l / 4.0, y - l / 4.0, l / 2.0);
+        child[k] = c;
+        return c;
+    }
+
+    private int node(double x, double y, double l) {
+        if (size == child.length)
+            allocate(2 * size);
+        int k = size++;
+        cx[k] = x;
+        cy[k] = y;
+        length[k] = l;
+        child[k] = -1;
+        body[k] = EMPTY;
+        mass[k] = comX[k] = comY[k] = 0.0;
+        return k;
+    }
+
+    private void allocate(int capacity) {
+        child = Arrays.copyOf(child, capacity);
+        body = Arrays.copyOf(body, capacity);
+        cx = Arrays.copyOf(cx, capacity);
+        cy = Arrays.copyOf(cy, capacity);
+        length = Arrays.copyOf(length, capacity);
+        mass = Arrays.copyOf(mass, capacity);
+        comX = Arrays.copyOf(comX, capacity);
+        comY = Arrays.copyOf(comY, capacity);
+    }
+}
@@ -10,8 +10,8 @@
  *                        [massBody] [massVariance] [speedVariance]
  * 
  * where:
- *  gnumBodies:         The number of bodies used in the simulation.
- *  numSteps:           The number of steps/cycles.
+ *  gnumBodies:         The number of bodies used in the simulation (default 240).
+ *  numSteps:           The number of steps/cycles (default 400000).
  *  far:                The distance used to decide when to approximate 
  *                          (low values means faster but less accurate)
  *  numWorkers:         The number of worker threads.
@@ -20,12 +20,31 @@
  *  massVariance:       The mass used for each body.
  *  speedVariance:      Percentage variance in initialized speed for each body
  * 
+ *  -Dnbody.build=parallel|worker (default parallel) picks who builds the tree.
+ *  parallel builds one ParallelBHTree per step on a fork/join pool and all
+ *  workers share it, worker has every worker build its own copy, with
+ *  -Dnbody.tree=flat|objects (default flat) picking FlatBHTree, kept in
+ *  arrays and reused every step, or the BHTree of nodes.
+ * 
+ *  -Dnbody.zones=static|cost (default static) splits the bodies between
+ *  the workers on the shared tree. static strides over the indices, cost
+ *  gives every worker a zone of the tree order with about the same number
+ *  of interactions in the last step, and prints how far the largest zone
+ *  was from the mean in every step.
+ * 
+ *  The initial conditions are generated in parallel from -Dnbody.seed
+ *  (default random), the same seed always gives the same bodies.
+ * 
  *  @author Alex Lindberg
  */
 package task4;
 
-import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ForkJoinPool;
+
+import util.CostZones;
+import util.ParallelInit;
 
 public class Nbody {
 
@@ -38,9 +57,9 @@ public class Nbody {
     public final int numSteps;
     public final double massBody;
     public final int numWorkers;
+    public final long seed;
 
     Body[] bodies; // x, y coords
-    Random rGen;
 
     /**
      * Simulation of the nbody-problem
@@ -58,30 +77,26 @@ public class Nbody {
         this.numWorkers = numWorkers;
 
         this.bodies = new Body[gnumBodies];
-        this.rGen = new Random();
+        this.seed = ParallelInit.seed();
 
         this.bodies[0] = new Body(0, 0, 0, 0, 0, 0, massBody * 333);
 
-        for (int i = 1; i < gnumBodies; i++) {
+        ParallelInit.run(1, gnumBodies, seed, (i, rand) -> {
             // Random position
-            double[] pos = getRandPos(this.bodies[0].px, this.bodies[0].py, RADIUS, MIN_DIST);
+            double[] pos = getRandPos(rand, this.bodies[0].px[0], this.bodies[0].py[0], RADIUS, MIN_DIST);
 
             // Velocity orthogonal to the direction vector from the sun to current body
-            double vx =  (this.bodies[0].px - pos[0]) * START_VEL;
-            double vy =  -(this.bodies[0].py - pos[1]) * START_VEL;
+            double vx =  (this.bodies[0].px[0] - pos[0]) * START_VEL;
+            double vy =  -(this.bodies[0].py[0] - pos[1]) * START_VEL;
             
-            double mass = massBody * (1 + rand(1 - massVariance, 1 + massVariance));
+            double mass = massBody * (1 + ParallelInit.interval(rand, 1 - massVariance, 1 + massVariance));
             this.bodies[i] = new Body(pos[0], pos[1], vx, vy, 0, 0, mass);
-        }
+        });
     }
 
-    private double rand(double min, double max) {
-        return this.rGen.nextDouble() * (max - min) + min;
-    }
-
-    private double[] getRandPos(double cx, double cy, double radius, double minDist) {
-        double r = radius * Math.sqrt(this.rGen.nextDouble()) + minDist; // distance
-        double theta = this.rGen.nextDouble() * 2 * Math.PI; // direction
+    private static double[] getRandPos(SplittableRandom rand, double cx, double cy, double radius, double minDist) {
+        double r = radius * Math.sqrt(rand.nextDouble()) + minDist; // distance
+        double theta = rand.nextDouble() * 2 * Math.PI; // direction
         double x = cx + r * Math.cos(theta); // cartesian pos x
         double y = cy + r * Math.sin(theta); // cartesian pos y
         return new double[] { x, y };
@@ -89,8 +104,8 @@ public class Nbody {
 
     public static void main(String[] args) {
 
-        final int MAX_BODIES = 240;
-        final int MAX_STEPS = 400000;
+        final int DEFAULT_BODIES = 240;
+        final int DEFAULT_STEPS = 400000;
 
         long startTime, endTime;
         int gnumBodies, numSteps;
@@ -99,36 +114,60 @@ public class Nbody {
         double massBody, massVariance;
         int numResultsShown;
 
-        gnumBodies = (args.length > 0) && (Integer.parseInt(args[0]) < MAX_BODIES) ? Integer.parseInt(args[0])
-                : MAX_BODIES;
-        numSteps = (args.length > 1) && (Integer.parseInt(args[1]) < MAX_STEPS) ? Integer.parseInt(args[1]) : MAX_STEPS;
+        gnumBodies = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_BODIES;
+        numSteps = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_STEPS;
         far = (args.length > 2) ? Integer.parseInt(args[2]) : RADIUS / 8;
         numWorkers = (args.length > 3) ? Integer.parseInt(args[3]) : 4;
         numResultsShown = (args.length > 4) ? Integer.parseInt(args[4]) : 5;
         massBody = (args.length > 5) ? Double.parseDouble(args[5]) : EARTH_MASS;
         massVariance = (args.length > 6) ? Integer.parseInt(args[6]) : 0.05;
 
+        boolean flat = System.getProperty("nbody.tree", "flat").equals("flat");
         Thread[] workers = new Thread[numWorkers];
-        CyclicBarrier barrier = new CyclicBarrier(numWorkers);
-        CyclicBarrier b2 = new CyclicBarrier(numWorkers);
         Nbody prg = new Nbody(gnumBodies, numSteps, numWorkers, massBody, massVariance);
 
+        // The shared tree of the next step is built by the barrier action, after every body moved
+        ForkJoinPool pool = null;
+        ParallelBHTree shared = null;
+        if (System.getProperty("nbody.build", "parallel").equals("parallel")) {
+            pool = new ForkJoinPool(numWorkers);
+            shared = new ParallelBHTree(prg.bodies, 0, 0, far, pool);
+            shared.build();
+        }
+        final ParallelBHTree tree = shared;
+        final CostZones zones = tree != null && System.getProperty("nbody.zones", "static").equals("cost")
+                ? new CostZones(gnumBodies, numWorkers)
+                : null;
+        CyclicBarrier barrier = tree == null ? new CyclicBarrier(numWorkers)
+                : new CyclicBarrier(numWorkers, () -> {
+                    if (zones != null)
+                        zones.record();
+                    if (tree.builds() < numSteps) {
+                        tree.build();
+                        // Zones of the next step from the costs of this one
+                        if (zones != null)
+                            zones.split(tree.order());
+                    }
+                });
+
         // Printing starting conditions
         System.out.println("\n- Initial Conditions -\n");
         System.out.println("Body \t: x\ty\t| vx \tvy");
         for (int i = 0; i < numResultsShown; i++) {
-            System.out.format("Body %d\t: %.0f\t%.0f\t| %.3f \t%.3f %n", i, prg.bodies[i].px, prg.bodies[i].py,
+            System.out.format("Body %d\t: %.0f\t%.0f\t| %.3f \t%.3f %n", i, prg.bodies[i].px[0], prg.bodies[i].py[0],
                     prg.bodies[i].vx,
                     prg.bodies[i].vy);
         }
         System.out.format("Total Body count : %d%n", gnumBodies);
         System.out.format("Total Worker count : %d%n", numWorkers);
+        System.out.format("Seed : %d%n", prg.seed);
 
         startTime = System.nanoTime();
         // Start parallel work
 
         for (int i = 0; i < numWorkers; i++) {
-            workers[i] = new Thread(new Worker(i, prg, far, barrier, b2));
+            workers[i] = new Thread(tree != null ? new Worker(i, prg, tree, zones, barrier)
+                    : new Worker(i, prg, far, flat, barrier));
             workers[i].start();
         }
         for (int i = 0; i < numWorkers; i++) {
@@ -139,16 +178,23 @@ public class Nbody {
                 System.exit(1);
             }
         }
+        if (pool != null)
+            pool.shutdown();
 
         // Finished parallel work
         endTime = System.nanoTime() - startTime;
 
         System.out.format("%n- After simulation (%d steps) -%n%n", numSteps);
         for (int i = 0; i < numResultsShown; i++) {
-            System.out.format("Body %d\t: %.0f\t%.0f\t| %.3f \t%.3f %n", i, prg.bodies[i].px, prg.bodies[i].py,
+            System.out.format("Body %d\t: %.0f\t%.0f\t| %.3f \t%.3f %n", i, prg.bodies[i].px[numSteps & 1],
+                    prg.bodies[i].py[numSteps & 1],
                     prg.bodies[i].vx,
                     prg.bodies[i].vy);
         }
+        if (zones != null) {
+            System.out.println("\nImbalance (largest / mean worker interactions):");
+            zones.print(20);
+        }
         System.out.format("%n- Simulation executed in %.3f ms -%n%n", endTime * Math.pow(10, -6));
     }
 }
\ No newline at end of file
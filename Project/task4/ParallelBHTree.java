@@ -0,0 +1,273 @@
+package task4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * One Barnes-Hut tree per step, built by all threads together and shared by
+ * every worker in the force phase.
+ *
+ * The top levels of the tree are a complete quadtree of cells, deep enough
+ * for several cells per pool thread. A build runs on a ForkJoinPool in
+ * three parallel phases:
+ *
+ *  1. Every chunk of bodies finds the bottom cell of each body, with the
+ *     same quadrant tests as BHTree, and counts the bodies per cell.
+ *  2. The chunks scatter their bodies into one list per cell, in index
+ *     order, like a counting sort.
+ *  3. Every cell inserts its bodies into its own FlatBHTree, so below the
+ *     top levels the tree is the same as a BHTree.
+ *
+ * The masses and centers of mass of the top cells are then merged bottom
+ * up from the cells below them. A top cell with one body is a leaf and one
+ * without bodies is empty, like in BHTree. The tree is not changed again
+ * until the next build, so the workers can read it without locks.
+ *
+ * Bodies outside the root are sorted into one more list after the cells,
+ * so order() holds every body once.
+ */
+public class ParallelBHTree {
+
+    private static final double THETA = 0.5; // Threshold value for center-mass calc.
+    private static final int CHUNK = 1 << 12; // bodies per classification task
+    private static final int NW = 0, NE = 1, SW = 2, SE = 3;
+
+    private final Body[] bodies;
+    private final ForkJoinPool pool;
+    private final int depth;   // top levels, cells are at level depth
+    private final int cells;   // 4^depth
+    private final int chunks;
+    private final FlatBHTree[] subtrees; // [cell]
+
+    private final int[] cell;      // [body] bottom cell, cells outside the root
+    private final int[] members;   // bodies sorted by cell, the ones outside the root last
+    private final int[] start;     // [cell] first member of the cell, start[cells] = first outside the root
+    private final int[] hist;      // [chunk * (cells + 1) + cell] counts, then scatter positions
+
+    // Top nodes, level l starts at (4^l - 1) / 3, children of the c:th node of a level are 4c to 4c + 3
+    private final double[] cx, cy, length;
+    private final double[] mass, comX, comY;
+    private final int[] count, single; // bodies in the node, the body if there is only one
+
+    private int builds; // builds so far, build b reads position buffer b % 2
+
+    public ParallelBHTree(Body[] bodies, double x, double y, double length, ForkJoinPool pool) {
+        this.bodies = bodies;
+        this.pool = pool;
+        // Enough cells for every thread to get several, so stealing can even out the load
+        int d = 1;
+        while (d < 5 && (1 << (2 * d)) < 8 * pool.getParallelism())
+            d++;
+        this.depth = d;
+        this.cells = 1 << (2 * d);
+        this.chunks = Math.max(1, (bodies.length + CHUNK - 1) / CHUNK);
+        this.subtrees = new FlatBHTree[cells];
+        for (int c = 0; c < cells; c++)
+            subtrees[c] = new FlatBHTree(bodies, 4 * bodies.length / cells);
+
+        this.cell = new int[bodies.length];
+        this.members = new int[bodies.length];
+        this.start = new int[cells + 2];
+        this.hist = new int[chunks * (cells + 1)];
+
+        int nodes = offset(depth + 1);
+        this.cx = new double[nodes];
+        this.cy = new double[nodes];
+        this.length = new double[nodes];
+        this.mass = new double[nodes];
+        this.comX = new double[nodes];
+        this.comY = new double[nodes];
+        this.count = new int[nodes];
+        this.single = new int[nodes];
+
+        // Same squares as Quad.NW/NE/SW/SE
+        cx[0] = x;
+        cy[0] = y;
+        this.length[0] = length;
+        for (int l = 0; l < depth; l++) {
+            for (int c = 0; c < (1 << (2 * l)); c++) {
+                int k = offset(l) + c, child = offset(l + 1) + 4 * c;
+                double len = this.length[k];
+                square(child + NW, cx[k] - len / 4.0, cy[k] + len / 4.0, len / 2.0);
+                square(child + NE, cx[k] + len / 4.0, cy[k] + len / 4.0, len / 2.0);
+                square(child + SW, cx[k] - len / 4.0, cy[k] - len / 4.0, len / 2.0);
+                square(child + SE, cx[k] + len / 4.0, cy[k] - len / 4.0, len / 2.0);
+            }
+        }
+    }
+
+    /* Builds the tree of the next step, from position buffer builds % 2 */
+    public void build() {
+        final int p = builds & 1;
+        pool.invoke(ForkJoinTask.adapt(() -> {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int k = 0; k < chunks; k++) {
+                int chunk = k;
+                tasks.add(ForkJoinTask.adapt(() -> classify(chunk, p)));
+            }
+            ForkJoinTask.invokeAll(tasks);
+
+            // Positions in cell major, chunk minor order keep every cell in index order
+            int pos = 0;
+            for (int c = 0; c <= cells; c++) {
+                start[c] = pos;
+                for (int k = 0; k < chunks; k++) {
+                    int t = hist[k * (cells + 1) + c];
+                    hist[k * (cells + 1) + c] = pos;
+                    pos += t;
+                }
+            }
+            start[cells + 1] = pos;
+
+            tasks.clear();
+            for (int k = 0; k < chunks; k++) {
+                int chunk = k;
+                tasks.add(ForkJoinTask.adapt(() -> scatter(chunk)));
+            }
+            ForkJoinTask.invokeAll(tasks);
+
+            tasks.clear();
+            for (int c = 0; c < cells; c++) {
+                int bottom = c;
+                tasks.add(ForkJoinTask.adapt(() -> subtree(bottom, p)));
+            }
+            ForkJoinTask.invokeAll(tasks);
+        }));
+        merge();
+        builds++;
+    }
+
+    /* Number of builds so far */
+    public int builds() {
+        return builds;
+    }
+
+    /* Approximates the net force on body i from all bodies in the tree, like BHTree.updateForce, returns the interactions */
+    public int updateForce(int i, int p) {
+        return updateForce(0, 0, 0, bodies[i], i, p);
+    }
+
+    /* All bodies of the last build in cell order, every cell in index order, then the ones outside the root */
+    public int[] order() {
+        return members;
+    }
+
+    private int updateForce(int l, int c, int k, Body nb, int i, int p) {
+        if (l == depth)
+            return subtrees[c].updateForce(i, p);
+        if (count[k] == 0 || single[k] == i)
+            return 0;
+        // a single body is an external node
+        if (count[k] == 1) {
+            nb.addForce(bodies[single[k]], p);
+            return 1;
+        }
+        // distance between nb and this node's center-of-mass
+        double distance = Math.sqrt(Math.pow((comX[k] - nb.px[p]), 2) + Math.pow((comY[k] - nb.py[p]), 2));
+
+        // compare ratio (quad_side / d) to threshold value Theta
+        if ((length[k] / distance) < THETA) {
+            nb.addForce(comX[k], comY[k], mass[k], p);
+            return 1;
+        }
+        int n = 0;
+        for (int q = 4 * c; q < 4 * c + 4; q++)
+            n += updateForce(l + 1, q, offset(l + 1) + q, nb, i, p);
+        return n;
+    }
+
+    /* Bottom cells of the bodies in the chunk, counted per cell */
+    private void classify(int chunk, int p) {
+        int base = chunk * (cells + 1);
+        for (int c = 0; c <= cells; c++)
+            hist[base + c] = 0;
+        for (int i = chunk * CHUNK, end = Math.min(i + CHUNK, bodies.length); i < end; i++) {
+            int c = locate(bodies[i].px[p], bodies[i].py[p]);
+            cell[i] = c;
+            hist[base + c]++;
+        }
+    }
+
+    private void scatter(int chunk) {
+        int base = chunk * (cells + 1);
+        for (int i = chunk * CHUNK, end = Math.min(i + CHUNK, bodies.length); i < end; i++)
+            members[hist[base + cell[i]]++] = i;
+    }
+
+    /* Builds the tree of bottom cell c and sums its mass */
+    private void subtree(int c, int p) {
+        int k = offset(depth) + c;
+        FlatBHTree tree = subtrees[c];
+        tree.reset(cx[k], cy[k], length[k]);
+        double m = 0.0, mx = 0.0, my = 0.0;
+        for (int r = start[c]; r < start[c + 1]; r++) {
+            Body b = bodies[members[r]];
+            tree.insert(members[r], p);
+            m += b.mass;
+            mx += b.mass * b.px[p];
+            my += b.mass * b.py[p];
+        }
+        node(k, start[c + 1] - start[c], m, mx, my, start[c + 1] > start[c] ? members[start[c]] : -1);
+    }
+
+    /* Top cells from the ones below them */
+    private void merge() {
+        for (int l = depth - 1; l >= 0; l--) {
+            for (int c = 0; c < (1 << (2 * l)); c++) {
+                int n = 0, one = -1;
+                double m = 0.0, mx = 0.0, my = 0.0;
+                for (int q = offset(l + 1) + 4 * c, end = q + 4; q < end; q++) {
+                    n += count[q];
+                    if (count[q] > 0) {
+                        m += mass[q];
+                        mx += mass[q] * comX[q];
+                        my += mass[q] * comY[q];
+                        one = single[q];
+                    }
+                }
+                node(offset(l) + c, n, m, mx, my, one);
+            }
+        }
+    }
+
+    private void node(int k, int n, double m, double mx, double my, int one) {
+        count[k] = n;
+        single[k] = n == 1 ? one : -1;
+        mass[k] = m;
+        comX[k] = n > 0 ? mx / m : 0.0;
+        comY[k] = n > 0 ? my / m : 0.0;
+    }
+
+    /* Bottom cell containing (x, y), quadrants tested like BHTree.putInQuad, cells outside the root */
+    private int locate(double x, double y) {
+        double middle = length[0] / 2.0;
+        if (!(x <= cx[0] + middle && x >= cx[0] - middle && y <= cy[0] + middle && y >= cy[0] - middle))
+            return cells;
+        int c = 0;
+        for (int l = 1; l <= depth; l++) {
+            int q = NW, first = offset(l) + 4 * c;
+            while (q < SE && !contains(first + q, x, y))
+                q++;
+            c = 4 * c + q;
+        }
+        return c;
+    }
+
+    private boolean contains(int k, double x, double y) {
+        double middle = length[k] / 2.0;
+        return x <= cx[k] + middle && x >= cx[k] - middle && y <= cy[k] + middle && y >= cy[k] - middle;
+    }
+
+    private void square(int k, double x, double y, double len) {
+        cx[k] = x;
+        cy[k] = y;
+        length[k] = len;
+    }
+
+    /* First top node of level l */
+    private static int offset(int l) {
+        return ((1 << (2 * l)) - 1) / 3;
+    }
+}
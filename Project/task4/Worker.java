@@ -3,6 +3,8 @@ package task4;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
 
+import util.CostZones;
+
 public class Worker implements Runnable {
 
     public final int id;
@@ -11,23 +13,63 @@ public class Worker implements Runnable {
     private final int gnumBodies;
     private Nbody work;
     private double far;
-    private CyclicBarrier forceBarrier;
-    private CyclicBarrier moveBarrier;
+    private boolean flat; // FlatBHTree instead of BHTree
+    private ParallelBHTree shared; // one tree for all workers, null means every worker builds its own
+    private CostZones zones; // bodies of every worker on the shared tree, null strides over the indices
+    private CyclicBarrier stepBarrier;
 
-    public Worker(int id, Nbody work, double far, CyclicBarrier forceBarrier, CyclicBarrier moveBarrier) {
+    public Worker(int id, Nbody work, double far, boolean flat, CyclicBarrier stepBarrier) {
         this.id = id;
         this.work = work;
         this.numWorkers = work.numWorkers;
         this.numSteps = work.numSteps;
         this.gnumBodies = work.gnumBodies;
         this.far = far;
-        this.forceBarrier = forceBarrier;
-        this.moveBarrier = moveBarrier;
+        this.flat = flat;
+        this.stepBarrier = stepBarrier;
+    }
+
+    /* Worker on a shared tree, stepBarrier has to build the tree of the next step */
+    public Worker(int id, Nbody work, ParallelBHTree shared, CyclicBarrier stepBarrier) {
+        this(id, work, 0, false, stepBarrier);
+        this.shared = shared;
+    }
+
+    /* Worker on a shared tree that moves the bodies of its zone, stepBarrier has to split the zones again */
+    public Worker(int id, Nbody work, ParallelBHTree shared, CostZones zones, CyclicBarrier stepBarrier) {
+        this(id, work, shared, stepBarrier);
+        this.zones = zones;
     }
 
 
     @Override
     public void run() {
+        if (shared != null) {
+            try {
+                for (int i = 0; i < numSteps; i++) {
+                    int p = i & 1;
+                    if (zones != null) {
+                        for (int r = zones.from(id); r < zones.to(id); r++) {
+                            int j = zones.body(r);
+                            zones.cost[j] = shared.updateForce(j, p);
+                            work.bodies[j].update(p);
+                        }
+                    } else {
+                        for (int j = id; j < gnumBodies; j += numWorkers) {
+                            shared.updateForce(j, p);
+                            work.bodies[j].update(p);
+                        }
+                    }
+                    // The barrier action builds the next tree once every body has moved
+                    stepBarrier.await();
+                }
+            } catch (InterruptedException | BrokenBarrierException e) {
+                System.err.format("Error: Exception caught for worker %d%n", id);
+                e.printStackTrace();
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
         // for (int i = 0; i < numSteps; i++) {
         //     Quad quad = new Quad(0, 0, far);
         //     BHTree tree = new BHTree(quad);
@@ -46,28 +88,39 @@ public class Worker implements Runnable {
         //     }
         //     barrier(id);
         // }
+        // Every worker builds its own copy of the tree, the flat one is reused every step
+        FlatBHTree flatTree = flat ? new FlatBHTree(work.bodies) : null;
+        Quad q = new Quad(0, 0, far);
         try {
         for (int i = 0; i < numSteps; i++) {
-            Quad q = new Quad(0, 0, far);
-            BHTree tree = new BHTree(q);
+            // Positions are double buffered, this step reads buffer p and moves to the other
+            int p = i & 1;
+            BHTree tree = flat ? null : new BHTree(q);
+            if (flat)
+                flatTree.reset(0, 0, far);
 
             for (int j = 0; j < gnumBodies; j++) {
-                if (work.bodies[j].in(q))
-                    tree.insert(work.bodies[j]);
-            }
-
-            for (int j = id; j < gnumBodies; j += numWorkers) {
-                tree.updateForce(work.bodies[j]);
+                if (work.bodies[j].in(q, p)) {
+                    if (flat)
+                        flatTree.insert(j, p);
+                    else
+                        tree.insert(work.bodies[j], p);
+                }
             }
-            forceBarrier.await();
 
+            /* A body's force only comes from this worker, so it can be moved
+             * right away. Other workers still read buffer p, never the one
+             * written here. */
             for (int j = id; j < gnumBodies; j += numWorkers) {
-                work.bodies[j].update();
+                if (flat)
+                    flatTree.updateForce(j, p);
+                else
+                    tree.updateForce(work.bodies[j], p);
+                work.bodies[j].update(p);
             }
-            /* We need to wait again since a far-ahead thread may start
-             * calculating forces without others having finished moving 
-             * their assigned bodies. */
-            moveBarrier.await();
+            /* One barrier: nobody may build the next tree before every body
+             * is moved, or overwrite buffer p before every tree is built. */
+            stepBarrier.await();
         }
     } catch (InterruptedException | BrokenBarrierException e) {
         System.err.format("Error: Exception caught for worker %d%n", id);
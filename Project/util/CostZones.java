@@ -0,0 +1,135 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * Cost zones: the bodies are split between the workers so that every worker
+ * gets about the same number of interactions instead of the same number of
+ * bodies.
+ *
+ * The force walk of body i stores the number of nodes and bodies it
+ * interacted with in cost[i]. After the step the bodies are split along the
+ * order of the next tree, where bodies close in space are close in the
+ * order, into zones of about equal summed cost. The bodies only move a
+ * little in a step, so a body costs about the same in the next one and the
+ * zones stay close to balanced. Before the first split every body costs 1
+ * and the zones are equal blocks of body indices.
+ *
+ * record() measures the imbalance of the step that just ran, the largest
+ * zone cost over the mean zone cost. The same ratio for equal blocks of body
+ * indices, with the same costs, is kept next to it for comparison.
+ */
+public class CostZones {
+
+    public final int[] cost; // [body] interactions in the last step, written by the body's worker
+
+    private final int zones;
+    private final int[] order; // [rank] body, zone z is ranks [from[z], from[z + 1])
+    private final int[] from;
+
+    private double[] imbalance = new double[64], blocks = new double[64]; // [step]
+    private int steps;
+
+    public CostZones(int n, int zones) {
+        this.zones = zones;
+        this.cost = new int[n];
+        this.order = new int[n];
+        this.from = new int[zones + 1];
+        Arrays.fill(cost, 1);
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        for (int z = 0; z <= zones; z++)
+            from[z] = block(z);
+    }
+
+    /* First rank of zone z */
+    public int from(int z) {
+        return from[z];
+    }
+
+    /* End of zone z, exclusive */
+    public int to(int z) {
+        return from[z + 1];
+    }
+
+    /* Body at rank r */
+    public int body(int r) {
+        return order[r];
+    }
+
+    /* New zones of equal cost along treeOrder, which holds every body once */
+    public void split(int[] treeOrder) {
+        System.arraycopy(treeOrder, 0, order, 0, order.length);
+        long total = 0;
+        for (int c : cost)
+            total += c;
+        // Zone z starts at the first body where the cost before it reaches z / zones of the total
+        long sum = 0;
+        int z = 1;
+        for (int r = 0; r < order.length && z < zones; r++) {
+            while (z < zones && sum * zones >= total * z)
+                from[z++] = r;
+            sum += cost[order[r]];
+        }
+        while (z < zones)
+            from[z++] = order.length;
+    }
+
+    /* Imbalance of the zones and of equal index blocks, for the costs of the step that just ran */
+    public void record() {
+        long total = 0, max = 0, maxBlock = 0;
+        for (int z = 0; z < zones; z++) {
+            long zone = 0, block = 0;
+            for (int r = from[z]; r < from[z + 1]; r++)
+                zone += cost[order[r]];
+            for (int i = block(z); i < block(z + 1); i++)
+                block += cost[i];
+            total += zone;
+            max = Math.max(max, zone);
+            maxBlock = Math.max(maxBlock, block);
+        }
+        if (steps == imbalance.length) {
+            imbalance = Arrays.copyOf(imbalance, 2 * steps);
+            blocks = Arrays.copyOf(blocks, 2 * steps);
+        }
+        imbalance[steps] = total > 0 ? (double) max * zones / total : 1.0;
+        blocks[steps] = total > 0 ? (double) maxBlock * zones / total : 1.0;
+        steps++;
+    }
+
+    /* Steps recorded so far */
+    public int steps() {
+        return steps;
+    }
+
+    /* Largest zone cost over the mean zone cost in step s */
+    public double imbalance(int s) {
+        return imbalance[s];
+    }
+
+    /* Same as imbalance(s), had the bodies been split in equal blocks of indices */
+    public double blockImbalance(int s) {
+        return blocks[s];
+    }
+
+    /* Prints the imbalance of at most rows steps spread over the run, and the mean and worst of all steps */
+    public void print(int rows) {
+        System.out.format("%8s %12s %12s%n", "step", "cost zones", "index blocks");
+        int stride = Math.max(1, (steps + rows - 1) / rows);
+        for (int s = 0; s < steps; s += stride)
+            System.out.format("%8d %12.3f %12.3f%n", s, imbalance[s], blocks[s]);
+        double mean = 0, meanBlocks = 0, worst = 0, worstBlocks = 0;
+        for (int s = 0; s < steps; s++) {
+            mean += imbalance[s] / steps;
+            meanBlocks += blocks[s] / steps;
+            worst = Math.max(worst, imbalance[s]);
+            worstBlocks = Math.max(worstBlocks, blocks[s]);
+        }
+        System.out.format("%8s %12.3f %12.3f%n%8s %12.3f %12.3f%n", "mean", mean, meanBlocks, "worst", worst,
+                worstBlocks);
+    }
+
+    private int block(int z) {
+        return (int) ((long) order.length * z / zones);
+    }
+}
@@ -0,0 +1,283 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+/**
+ * Quadtree built from sorted Morton keys instead of by inserting the bodies
+ * one at a time from the root.
+ *
+ *  1. Every body gets a 64 bit key: its x and y cell in the root square at
+ *     32 bit resolution, with the bits interleaved (x in the odd bits).
+ *  2. The bodies are radix sorted by key, 8 bits per pass. Every pass counts
+ *     and scatters chunks of bodies in parallel, passes where all keys have
+ *     the same digit are skipped. Bodies close in space end up close in the
+ *     sorted arrays.
+ *  3. The tree is built bottom up from the sorted keys as a binary radix
+ *     tree (Karras, "Maximizing parallelism in the construction of BVHs,
+ *     octrees, and k-d trees", 2012). Internal node k is found from the keys
+ *     around rank k alone, so all nodes are built in parallel. The masses are
+ *     then summed from the leaves up, the second child to finish a node
+ *     computes it.
+ *
+ * Leaves are the sorted bodies, a child index below zero is ~rank. A binary
+ * node whose keys share p bits lies in the quadtree cell at level p / 2.
+ * Binary nodes at the same level as their parent are parts of one cell and
+ * may not be accepted on their own, their size is infinite so an opening
+ * test size / distance < theta always fails. The others have the size of
+ * their cell. A cell with a single occupied quadrant is left out, the walk
+ * goes straight to the smallest cell holding the same bodies.
+ */
+public class MortonTree {
+
+    private static final int BITS = 8;          // radix sort digit
+    private static final int RADIX = 1 << BITS;
+    private static final int CHUNK = 1 << 12;   // bodies per parallel task
+    private static final long OUTSIDE = -1L;    // key of a body left out of the tree, sorted last
+    private static final long MAX_CELL = 0xFFFFFFFEL;
+
+    public final int capacity;
+    public int count; // bodies in the tree, ranks [0, count)
+    public int root;  // 0, or ~0 if there is a single body, meaningless without bodies
+
+    private long[] key, keyTmp;
+    private int[] order, orderTmp;
+    private final int[] hist;
+
+    public final double[] x, y, m;    // [rank] sorted positions and masses
+    public final int[] left, right;   // [node] children, ~rank for a leaf
+    public final double[] mass, comX, comY, size;
+    private final int[] parent, leafParent, prefix;
+    private final AtomicIntegerArray visits;
+
+    public MortonTree(int capacity) {
+        this.capacity = capacity;
+        int nodes = Math.max(capacity - 1, 1);
+        this.key = new long[capacity];
+        this.keyTmp = new long[capacity];
+        this.order = new int[capacity];
+        this.orderTmp = new int[capacity];
+        this.hist = new int[chunks(capacity) * RADIX];
+        this.x = new double[capacity];
+        this.y = new double[capacity];
+        this.m = new double[capacity];
+        this.left = new int[nodes];
+        this.right = new int[nodes];
+        this.mass = new double[nodes];
+        this.comX = new double[nodes];
+        this.comY = new double[nodes];
+        this.size = new double[nodes];
+        this.parent = new int[nodes];
+        this.prefix = new int[nodes];
+        this.leafParent = new int[capacity];
+        this.visits = new AtomicIntegerArray(nodes);
+    }
+
+    /* Body of every rank, order()[r] is the index in the arrays given to build */
+    public int[] order() {
+        return order;
+    }
+
+    /**
+     * Sorts bodies [0, n) by key and builds the tree in the square of side
+     * length centered at (cx, cy). With clip, bodies outside the square (same
+     * test as Quad.contains) are sorted last and left out of the tree,
+     * without it they are clamped to the border.
+     */
+    public void build(double[] px, double[] py, double[] pm, int n, double cx, double cy, double length,
+            boolean clip) {
+        if (n > capacity)
+            throw new IllegalArgumentException("Tree holds " + capacity + " bodies, got " + n);
+        final double middle = length / 2.0, x0 = cx - middle, y0 = cy - middle;
+        final double scale = Math.scalb(1.0, 32) / length;
+
+        forChunks(n, (lo, hi) -> {
+            for (int i = lo; i < hi; i++) {
+                order[i] = i;
+                if (clip && !(px[i] <= cx + middle && px[i] >= cx - middle &&
+                        py[i] <= cy + middle && py[i] >= cy - middle))
+                    key[i] = OUTSIDE;
+                else
+                    key[i] = spread(cell((px[i] - x0) * scale)) << 1 | spread(cell((py[i] - y0) * scale));
+            }
+        });
+        sort(n);
+
+        int c = n;
+        while (c > 0 && key[c - 1] == OUTSIDE)
+            c--;
+        count = c;
+        forChunks(n, (lo, hi) -> {
+            for (int r = lo; r < hi; r++) {
+                x[r] = px[order[r]];
+                y[r] = py[order[r]];
+                m[r] = pm[order[r]];
+            }
+        });
+        if (count < 2) {
+            root = ~0;
+            return;
+        }
+        root = 0;
+        parent[0] = -1;
+        IntStream.range(0, count - 1).parallel().forEach(this::node);
+        IntStream.range(0, count).parallel().forEach(this::sum);
+        IntStream.range(0, count - 1).parallel().forEach(k -> {
+            int level = Math.min(prefix[k], 64) / 2;
+            size[k] = k == 0 || Math.min(prefix[parent[k]], 64) / 2 < level
+                    ? Math.scalb(length, -level) : Double.POSITIVE_INFINITY;
+        });
+    }
+
+    /* Finds the range and the children of internal node k, Karras 2012 figure 4 */
+    private void node(int k) {
+        int d = delta(k, k + 1) - delta(k, k - 1) > 0 ? 1 : -1;
+
+        // Other end of the range: keys in it share more than deltaMin bits with k
+        int deltaMin = delta(k, k - d);
+        int lmax = 2;
+        while (delta(k, k + lmax * d) > deltaMin)
+            lmax *= 2;
+        int l = 0;
+        for (int t = lmax / 2; t >= 1; t /= 2) {
+            if (delta(k, k + (l + t) * d) > deltaMin)
+                l += t;
+        }
+        int j = k + l * d;
+
+        // Split: the last key sharing more than deltaNode bits with k
+        int deltaNode = delta(k, j);
+        int s = 0;
+        for (int div = 2, t = (l + 1) / 2; ; div *= 2, t = (l + div - 1) / div) {
+            if (delta(k, k + (s + t) * d) > deltaNode)
+                s += t;
+            if (t == 1)
+                break;
+        }
+        int split = k + s * d + Math.min(d, 0);
+
+        left[k] = Math.min(k, j) == split ? ~split : split;
+        right[k] = Math.max(k, j) == split + 1 ? ~(split + 1) : split + 1;
+        prefix[k] = deltaNode;
+        visits.set(k, 0);
+        setParent(left[k], k);
+        setParent(right[k], k);
+    }
+
+    private void setParent(int child, int k) {
+        if (child < 0)
+            leafParent[~child] = k;
+        else
+            parent[child] = k;
+    }
+
+    /* Walks up from leaf r, the second child to arrive at a node sums it */
+    private void sum(int r) {
+        int k = leafParent[r];
+        while (visits.getAndIncrement(k) == 1) {
+            double ml = nodeMass(left[k]), mr = nodeMass(right[k]);
+            mass[k] = ml + mr;
+            comX[k] = (nodeX(left[k]) * ml + nodeX(right[k]) * mr) / mass[k];
+            comY[k] = (nodeY(left[k]) * ml + nodeY(right[k]) * mr) / mass[k];
+            if (k == 0)
+                return;
+            k = parent[k];
+        }
+    }
+
+    private double nodeMass(int k) {
+        return k < 0 ? m[~k] : mass[k];
+    }
+
+    private double nodeX(int k) {
+        return k < 0 ? x[~k] : comX[k];
+    }
+
+    private double nodeY(int k) {
+        return k < 0 ? y[~k] : comY[k];
+    }
+
+    /* Length of the common key prefix of ranks i and j, equal keys are told apart by rank */
+    private int delta(int i, int j) {
+        if (j < 0 || j >= count)
+            return -1;
+        long a = key[i], b = key[j];
+        if (a == b)
+            return 64 + Integer.numberOfLeadingZeros(i ^ j);
+        return Long.numberOfLeadingZeros(a ^ b);
+    }
+
+    /* LSD radix sort of key and order, the digit counts and scatters run in parallel per chunk */
+    private void sort(int n) {
+        final int chunks = chunks(n);
+        for (int shift = 0; shift < 64; shift += BITS) {
+            final int sh = shift;
+            final long[] src = key, dst = keyTmp;
+            final int[] srcOrder = order, dstOrder = orderTmp;
+
+            IntStream.range(0, chunks).parallel().forEach(c -> {
+                int base = c * RADIX;
+                for (int d = 0; d < RADIX; d++)
+                    hist[base + d] = 0;
+                for (int i = c * CHUNK, end = Math.min(i + CHUNK, n); i < end; i++)
+                    hist[base + (int) ((src[i] >>> sh) & (RADIX - 1))]++;
+            });
+
+            // Positions in digit major, chunk minor order keep the sort stable
+            int pos = 0;
+            boolean skip = false;
+            for (int d = 0; d < RADIX && !skip; d++) {
+                int start = pos;
+                for (int c = 0; c < chunks; c++) {
+                    int t = hist[c * RADIX + d];
+                    hist[c * RADIX + d] = pos;
+                    pos += t;
+                }
+                skip = pos - start == n; // every key has this digit
+            }
+            if (skip)
+                continue;
+
+            IntStream.range(0, chunks).parallel().forEach(c -> {
+                int base = c * RADIX;
+                for (int i = c * CHUNK, end = Math.min(i + CHUNK, n); i < end; i++) {
+                    int p = hist[base + (int) ((src[i] >>> sh) & (RADIX - 1))]++;
+                    dst[p] = src[i];
+                    dstOrder[p] = srcOrder[i];
+                }
+            });
+            keyTmp = src;
+            key = dst;
+            orderTmp = srcOrder;
+            order = dstOrder;
+        }
+    }
+
+    private interface Range {
+        void run(int lo, int hi);
+    }
+
+    private static void forChunks(int n, Range range) {
+        IntStream.range(0, chunks(n)).parallel()
+                .forEach(c -> range.run(c * CHUNK, Math.min((c + 1) * CHUNK, n)));
+    }
+
+    private static int chunks(int n) {
+        return Math.max(1, (n + CHUNK - 1) / CHUNK);
+    }
+
+    private static long cell(double v) {
+        return Math.max(0, Math.min((long) v, MAX_CELL));
+    }
+
+    /* Spreads the low 32 bits of v to the even bits */
+    private static long spread(long v) {
+        v &= 0xFFFFFFFFL;
+        v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+        v = (v | (v << 8)) & 0x00FF00FF00FF00FFL;
+        v = (v | (v << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | (v << 2)) & 0x3333333333333333L;
+        v = (v | (v << 1)) & 0x5555555555555555L;
+        return v;
+    }
+}
@@ -3,6 +3,7 @@ package util;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.Formatter;
+import java.util.SplittableRandom;
 
 public class Util {
 
@@ -26,6 +27,13 @@ public class Util {
             double y = center.y + r * Math.sin(theta); // cartesian pos y
             return new Point(x, y);
         }
+
+        /* Same as above, drawing from the given random stream */
+        public static Point getRandPos(Point center, double radius, double minDist, SplittableRandom rand) {
+            double r = radius * Math.sqrt(rand.nextDouble()) + minDist; // distance
+            double theta = rand.nextDouble() * 2 * Math.PI; // direction
+            return new Point(center.x + r * Math.cos(theta), center.y + r * Math.sin(theta));
+        }
     }
 
     public static void printArrays(Point[] pPositions, Point[] pVelocities, int gnumBodies, int numResultsShown) {
@@ -49,6 +57,10 @@ public class Util {
         
     }
 
+    public static void printArrays(BodyStore bodies, int numResultsShown) {
+        printArrays(bodies.positions(), bodies.velocities(), bodies.n, numResultsShown);
+    }
+
     public static double round(double value, int places) {
         if (places < 0) throw new IllegalArgumentException();
     